@@ -0,0 +1,188 @@
+package com.github.vegeto079.ngcommontools.example.networking;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import com.github.vegeto079.ngcommontools.main.Logger;
+import com.github.vegeto079.ngcommontools.main.Logger.LogLevel;
+import com.github.vegeto079.ngcommontools.networking.ReliableUDP;
+import com.github.vegeto079.ngcommontools.networking.ReliableUDP.ReliableUDPMessageHandler;
+
+/**
+ * Tests {@link ReliableUDP} entirely over localhost, with packets randomly
+ * dropped and delayed on both sides. Checks that every message arrives in
+ * order on its stream, that a peer dropped by only one side reconnects cleanly,
+ * and that a packet from an address we never shook hands with isn't
+ * acknowledged or kept.
+ *
+ * @author Nathan
+ * @version 1.0: Started tracking version.
+ */
+public class ReliableUDPLossTest {
+	static Logger logger = new Logger(LogLevel.NORMAL, LogLevel.WARNING, LogLevel.ERROR);
+	static int messages = 200;
+
+	public static void main(String[] args) throws Exception {
+		boolean passed = true;
+		OurMessageHandler handlerA = new OurMessageHandler();
+		OurMessageHandler handlerB = new OurMessageHandler();
+		LossyReliableUDP a = new LossyReliableUDP(handlerA, 0, 1);
+		LossyReliableUDP b = new LossyReliableUDP(handlerB, 0, 2);
+		// Small enough that A has to hold messages back for B
+		a.maxOutOfOrder = 16;
+		b.maxOutOfOrder = 16;
+		a.start();
+		b.start();
+		SocketAddress toB = new InetSocketAddress("127.0.0.1", b.getPort());
+
+		// Lossy, reordered delivery on two independent streams
+		for (int i = 0; i < messages; i++)
+			a.sendMessage(toB, i % 2, "Message " + i);
+		passed &= check("Loss/reorder", handlerB, 0, messages);
+
+		// A forgets B (like a restart), but B still has A's old connection
+		int port = a.getPort();
+		a.close();
+		handlerB.clear();
+		a = new LossyReliableUDP(handlerA, port, 3);
+		a.start();
+		for (int i = 0; i < 10; i++)
+			a.sendMessage(toB, i % 2, "Message " + i);
+		passed &= check("One-sided drop", handlerB, 0, 10);
+
+		// A DATA packet from an address that never shook hands
+		DatagramSocket spoof = new DatagramSocket();
+		spoof.setSoTimeout(100);
+		int peers = b.getPeerAmt();
+		ByteBuffer buf = ByteBuffer.allocate(64);
+		buf.put((byte) 1).putInt(1234).putInt(5678).putInt(0).putInt(-1).putInt(0);
+		buf.put((byte) 0).putInt(0).putShort((short) 5).put("Spoof".getBytes("UTF-8"));
+		DatagramPacket reply = new DatagramPacket(new byte[64], 64);
+		for (int tries = 0; tries < 20; tries++) {
+			// B's reply is lossy too
+			spoof.send(new DatagramPacket(buf.array(), buf.position(), toB));
+			try {
+				spoof.receive(reply);
+				break;
+			} catch (SocketTimeoutException e) {
+			}
+		}
+		Thread.sleep(100);
+		if (b.getPeerAmt() != peers || reply.getData()[0] != 7 || handlerB.count() != 10) {
+			logger.log(LogLevel.ERROR, "Spoofed source: FAILED (peers " + peers + " -> " + b.getPeerAmt()
+					+ ", reply type " + reply.getData()[0] + ").");
+			passed = false;
+		} else
+			logger.log(LogLevel.NORMAL, "Spoofed source: passed.");
+		spoof.close();
+
+		a.close();
+		b.close();
+		logger.log(passed ? LogLevel.NORMAL : LogLevel.ERROR, passed ? "All tests passed." : "Tests FAILED.");
+		System.exit(passed ? 0 : 1);
+	}
+
+	/**
+	 * Waits up to 30 seconds for <b>handler</b> to receive messages
+	 * <b>from</b> to <b>to</b> (sent alternating between streams 0 and 1), then
+	 * checks each stream received its own in order.
+	 */
+	static boolean check(String name, OurMessageHandler handler, int from, int to) throws InterruptedException {
+		long start = System.currentTimeMillis();
+		while (handler.count() < to - from && System.currentTimeMillis() - start < 30000)
+			Thread.sleep(10);
+		for (int stream = 0; stream < 2; stream++) {
+			List<String> expected = new ArrayList<String>();
+			for (int i = from; i < to; i++)
+				if (i % 2 == stream)
+					expected.add("Message " + i);
+			List<String> received = handler.get(stream);
+			if (!received.equals(expected)) {
+				logger.log(LogLevel.ERROR, name + ": FAILED on stream " + stream + ", received " + received);
+				return false;
+			}
+		}
+		logger.log(LogLevel.NORMAL,
+				name + ": passed in " + (System.currentTimeMillis() - start) + "ms (" + (to - from) + " messages).");
+		return true;
+	}
+
+	/**
+	 * Drops 20% of the packets it sends, and delays another 30% by up to 30ms
+	 * so they arrive out of order.
+	 */
+	static class LossyReliableUDP extends ReliableUDP {
+		Random random;
+		Timer timer = new Timer(true);
+
+		LossyReliableUDP(ReliableUDPMessageHandler messageHandler, int port, long seed) {
+			super(messageHandler, ReliableUDPLossTest.logger, port);
+			random = new Random(seed);
+			minRetransmitTimeout = 10;
+		}
+
+		@Override
+		protected void send(final SocketAddress to, ByteBuffer buf) {
+			double roll;
+			long delay;
+			synchronized (random) {
+				roll = random.nextDouble();
+				delay = 1 + random.nextInt(30);
+			}
+			if (roll < 0.2)
+				return;
+			if (roll < 0.5) {
+				final ByteBuffer copy = ByteBuffer.allocate(buf.position());
+				copy.put(buf.array(), 0, buf.position());
+				timer.schedule(new TimerTask() {
+					public void run() {
+						LossyReliableUDP.super.send(to, copy);
+					}
+				}, delay);
+				return;
+			}
+			super.send(to, buf);
+		}
+
+		@Override
+		public void close() {
+			timer.cancel();
+			super.close();
+		}
+	}
+
+	static class OurMessageHandler extends ReliableUDPMessageHandler {
+		List<List<String>> received = new ArrayList<List<String>>();
+
+		OurMessageHandler() {
+			clear();
+		}
+
+		public synchronized void process(SocketAddress from, int stream, String message) {
+			received.get(stream).add(message);
+		}
+
+		synchronized void clear() {
+			received.clear();
+			received.add(new ArrayList<String>());
+			received.add(new ArrayList<String>());
+		}
+
+		synchronized int count() {
+			return received.get(0).size() + received.get(1).size();
+		}
+
+		synchronized List<String> get(int stream) {
+			return new ArrayList<String>(received.get(stream));
+		}
+	}
+}
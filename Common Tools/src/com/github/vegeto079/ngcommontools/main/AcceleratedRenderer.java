@@ -0,0 +1,342 @@
+package com.github.vegeto079.ngcommontools.main;
+
+import java.awt.BorderLayout;
+import java.awt.Canvas;
+import java.awt.Color;
+import java.awt.Component;
+import java.awt.Container;
+import java.awt.Graphics2D;
+import java.awt.LayoutManager;
+import java.awt.event.KeyEvent;
+import java.awt.event.KeyListener;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseListener;
+import java.awt.event.MouseMotionListener;
+import java.awt.event.MouseWheelEvent;
+import java.awt.event.MouseWheelListener;
+import java.awt.image.BufferStrategy;
+import java.awt.image.BufferedImage;
+
+import javax.swing.SwingUtilities;
+
+import com.github.vegeto079.ngcommontools.main.Logger.LogLevel;
+
+/**
+ * Draws a {@link Game} straight to the screen through a {@link Canvas}'s
+ * {@link BufferStrategy}, used by {@link Game.RenderMode#ACCELERATED}.<br>
+ * <br>
+ * The {@link Canvas} fills whatever shows the {@link Game} (the {@link Game}
+ * itself if {@link Game#dontResize}, otherwise its {@link Resizer}), and its
+ * events are passed on as if they happened there. Each frame is drawn with
+ * {@link Game#drawFrame(Graphics2D)} (so {@link Game#paintTick(Graphics2D)}
+ * works as always, scaled to fit) onto a back buffer kept in video memory,
+ * then shown by page flipping where the system can, or a copy in video memory
+ * where it can't. If the buffers' contents are lost (such as when the display
+ * mode changes), the frame is drawn again. If the {@link Canvas} itself is
+ * remade (such as when going fullscreen), so are the buffers.<br>
+ * <br>
+ * As frames never pass through an image, {@link #captureFrame(long)} asks for
+ * one to be drawn onto an image as well, by {@link #render()} like every other.
+ *
+ * @author Nathan
+ * @version 1.0: Started tracking version.
+ * @version 1.01: Added {@link #captureFrame(long)}, so screenshots are drawn on
+ *          the paint thread.
+ */
+public class AcceleratedRenderer {
+	/**
+	 * The {@link Game} we draw.
+	 */
+	protected final Game game;
+	/**
+	 * How many buffers to flip between (2 for double buffering, 3 for triple).
+	 */
+	protected final int bufferAmt;
+	/**
+	 * What we draw on.
+	 */
+	protected final Canvas canvas = new Canvas();
+	/**
+	 * Where {@link #canvas} goes, and what its events are passed on to.
+	 */
+	protected Container parent = null;
+	/**
+	 * What {@link #parent} was laid out with before {@link #canvas} was added.
+	 */
+	protected LayoutManager parentLayout = null;
+	/**
+	 * {@link #canvas}'s buffers, or <b>null</b> if they need making.
+	 */
+	protected BufferStrategy strategy = null;
+	/**
+	 * Whether or not {@link #canvas} has been added to {@link #parent}.
+	 */
+	protected volatile boolean attached = false;
+	/**
+	 * Whether or not {@link #render()} should also draw a frame for
+	 * {@link #captureFrame(long)}.
+	 */
+	protected volatile boolean captureRequested = false;
+	/**
+	 * The frame drawn for {@link #captureFrame(long)}.
+	 */
+	protected BufferedImage captured = null;
+
+	/**
+	 * Initiates {@link AcceleratedRenderer} for <b>game</b>, triple buffered.
+	 * Call {@link #attach()} before rendering.
+	 */
+	public AcceleratedRenderer(Game game) {
+		this(game, 3);
+	}
+
+	/**
+	 * Initiates {@link AcceleratedRenderer} for <b>game</b>, flipping between
+	 * <b>bufferAmt</b> buffers. Call {@link #attach()} before rendering.
+	 */
+	public AcceleratedRenderer(Game game, int bufferAmt) {
+		this.game = game;
+		this.bufferAmt = Math.max(2, bufferAmt);
+		canvas.setIgnoreRepaint(true);
+		canvas.setBackground(Color.BLACK);
+		canvas.setFocusable(true);
+		canvas.setFocusTraversalKeysEnabled(false);
+	}
+
+	/**
+	 * Adds our {@link Canvas} over whatever shows {@link #game}, on the event
+	 * dispatch thread. Frames are drawn once it's there.
+	 */
+	public void attach() {
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				if (attached)
+					return;
+				if (game.dontResize || game.resizer == null)
+					parent = game;
+				else
+					parent = game.resizer;
+				Forwarder forwarder;
+				if (parent == game)
+					// Events normally go to the game through its JFrame
+					forwarder = new Forwarder(game, game.jFrame);
+				else
+					forwarder = new Forwarder(game.resizer, game.resizer);
+				canvas.addKeyListener(forwarder);
+				canvas.addMouseListener(forwarder);
+				canvas.addMouseMotionListener(forwarder);
+				canvas.addMouseWheelListener(forwarder);
+				parentLayout = parent.getLayout();
+				parent.setLayout(new BorderLayout());
+				parent.add(canvas, BorderLayout.CENTER);
+				parent.validate();
+				canvas.requestFocus();
+				attached = true;
+				game.logger.log(LogLevel.DEBUG,
+						"[AcceleratedRenderer] Attached to " + parent.getClass().getSimpleName());
+			}
+		});
+	}
+
+	/**
+	 * Draws and shows the next frame, unless {@link Game.Pause#paint()} or we
+	 * can't yet.
+	 *
+	 * @return Whether or not a frame was shown.
+	 */
+	public boolean render() {
+		if (!attached || !canvas.isDisplayable() || canvas.getWidth() <= 0 || canvas.getHeight() <= 0) {
+			strategy = null;
+			return false;
+		}
+		if (strategy != null && canvas.getBufferStrategy() != strategy)
+			// Canvas was remade (such as going fullscreen), buffers with it
+			strategy = null;
+		game.updateResize();
+		if (game.pause.paint())
+			return false;
+		try {
+			if (strategy == null) {
+				canvas.createBufferStrategy(bufferAmt);
+				strategy = canvas.getBufferStrategy();
+				game.logger.log(LogLevel.DEBUG, "[AcceleratedRenderer] Made " + bufferAmt + " buffers, page flipping: "
+						+ strategy.getCapabilities().isPageFlipping());
+			}
+			double scaleX = (double) canvas.getWidth() / (double) Math.max(1, game.getWidth());
+			double scaleY = (double) canvas.getHeight() / (double) Math.max(1, game.getHeight());
+			do {
+				do {
+					Graphics2D g = (Graphics2D) strategy.getDrawGraphics();
+					try {
+						if (scaleX != 1 || scaleY != 1)
+							g.scale(scaleX, scaleY);
+						game.drawFrame(g);
+					} finally {
+						g.dispose();
+					}
+				} while (strategy.contentsRestored());
+				strategy.show();
+			} while (strategy.contentsLost());
+		} catch (IllegalStateException e) {
+			// Canvas went away while drawing
+			game.logger.log(LogLevel.DEBUG, "[AcceleratedRenderer] Lost buffers, remaking: " + e.getMessage());
+			strategy = null;
+			return false;
+		}
+		if (captureRequested)
+			capture();
+		game.addFps();
+		return true;
+	}
+
+	/**
+	 * Waits for {@link #render()} to draw a frame onto an image as well, so it
+	 * is drawn on the same thread as every other frame.
+	 *
+	 * @param timeout
+	 *            The longest (in milliseconds) to wait.
+	 * @return The frame, at {@link #game}'s size, or <b>null</b> if none was
+	 *         drawn in time (such as while paused).
+	 * @throws InterruptedException
+	 *             If interrupted while waiting.
+	 */
+	public synchronized BufferedImage captureFrame(long timeout) throws InterruptedException {
+		captured = null;
+		captureRequested = true;
+		long end = System.currentTimeMillis() + timeout;
+		try {
+			while (captured == null) {
+				long wait = end - System.currentTimeMillis();
+				if (wait <= 0)
+					break;
+				wait(wait);
+			}
+			return captured;
+		} finally {
+			captureRequested = false;
+			captured = null;
+		}
+	}
+
+	/**
+	 * Draws a frame for {@link #captureFrame(long)} and hands it over.
+	 */
+	private void capture() {
+		BufferedImage frame = new BufferedImage(Math.max(1, game.getWidth()), Math.max(1, game.getHeight()),
+				BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g = frame.createGraphics();
+		try {
+			game.drawFrame(g);
+		} finally {
+			g.dispose();
+		}
+		synchronized (this) {
+			if (!captureRequested)
+				// Gave up waiting
+				return;
+			captured = frame;
+			captureRequested = false;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Removes our {@link Canvas}, on the event dispatch thread, leaving
+	 * whatever shows {@link #game} as it was.
+	 */
+	public void detach() {
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				if (!attached)
+					return;
+				attached = false;
+				if (strategy != null)
+					strategy.dispose();
+				strategy = null;
+				parent.remove(canvas);
+				parent.setLayout(parentLayout);
+				parent.validate();
+				parent.requestFocus();
+				game.logger.log(LogLevel.DEBUG,
+						"[AcceleratedRenderer] Detached from " + parent.getClass().getSimpleName());
+			}
+		});
+	}
+
+	/**
+	 * @return {@link #canvas}.
+	 */
+	public Canvas getCanvas() {
+		return canvas;
+	}
+
+	/**
+	 * Passes {@link #canvas}'s events on to whoever would have had them without
+	 * it, from where they would have been.
+	 */
+	protected class Forwarder implements KeyListener, MouseListener, MouseMotionListener, MouseWheelListener {
+		protected final Object listener;
+		protected final Component from;
+
+		/**
+		 * @param listener
+		 *            What to pass events on to: a {@link KeyListener},
+		 *            {@link MouseListener}, {@link MouseMotionListener} and
+		 *            {@link MouseWheelListener}.
+		 * @param from
+		 *            What mouse positions are made relative to.
+		 */
+		protected Forwarder(Object listener, Component from) {
+			this.listener = listener;
+			this.from = from;
+		}
+
+		private MouseEvent convert(MouseEvent e) {
+			return from == null ? e : SwingUtilities.convertMouseEvent(canvas, e, from);
+		}
+
+		public void keyPressed(KeyEvent e) {
+			((KeyListener) listener).keyPressed(e);
+		}
+
+		public void keyReleased(KeyEvent e) {
+			((KeyListener) listener).keyReleased(e);
+		}
+
+		public void keyTyped(KeyEvent e) {
+			((KeyListener) listener).keyTyped(e);
+		}
+
+		public void mouseClicked(MouseEvent e) {
+			((MouseListener) listener).mouseClicked(convert(e));
+		}
+
+		public void mousePressed(MouseEvent e) {
+			((MouseListener) listener).mousePressed(convert(e));
+		}
+
+		public void mouseReleased(MouseEvent e) {
+			((MouseListener) listener).mouseReleased(convert(e));
+		}
+
+		public void mouseEntered(MouseEvent e) {
+			((MouseListener) listener).mouseEntered(convert(e));
+		}
+
+		public void mouseExited(MouseEvent e) {
+			((MouseListener) listener).mouseExited(convert(e));
+		}
+
+		public void mouseDragged(MouseEvent e) {
+			((MouseMotionListener) listener).mouseDragged(convert(e));
+		}
+
+		public void mouseMoved(MouseEvent e) {
+			((MouseMotionListener) listener).mouseMoved(convert(e));
+		}
+
+		public void mouseWheelMoved(MouseWheelEvent e) {
+			((MouseWheelListener) listener).mouseWheelMoved((MouseWheelEvent) convert(e));
+		}
+	}
+}
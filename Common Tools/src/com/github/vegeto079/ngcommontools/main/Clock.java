@@ -0,0 +1,60 @@
+package com.github.vegeto079.ngcommontools.main;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Where something gets the time from, and how it waits. Anything that asks
+ * {@link #SYSTEM} (the default) gets the real time, but can be given a
+ * {@link VirtualClock} instead to run in time that only passes when told to.
+ *
+ * @author Nathan
+ * @version 1.0: Started tracking version.
+ * @version 1.01: Added {@link #waitUntilNanos(long, long)}.
+ */
+public class Clock {
+	/**
+	 * The real time, from {@link System}.
+	 */
+	public final static Clock SYSTEM = new Clock();
+
+	/**
+	 * @return The time in milliseconds, as {@link System#currentTimeMillis()}.
+	 */
+	public long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+
+	/**
+	 * @return The time in nanoseconds, as {@link System#nanoTime()}. Only useful
+	 *         to measure time passed.
+	 */
+	public long nanoTime() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * Waits <b>millis</b> milliseconds.
+	 */
+	public void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+		}
+	}
+
+	/**
+	 * Waits until {@link #nanoTime()} reaches <b>deadline</b>: parks until
+	 * <b>spinNanos</b> before it, then spins the rest, to be on time without
+	 * keeping a core busy.
+	 */
+	public void waitUntilNanos(long deadline, long spinNanos) {
+		long remaining;
+		while ((remaining = deadline - nanoTime()) > spinNanos) {
+			LockSupport.parkNanos(remaining - spinNanos);
+			if (Thread.currentThread().isInterrupted())
+				return;
+		}
+		while (deadline - nanoTime() > 0)
+			Thread.yield();
+	}
+}
@@ -0,0 +1,153 @@
+package com.github.vegeto079.ngcommontools.main;
+
+import java.awt.GraphicsConfiguration;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * A few frame-sized {@link BufferedImage}s, reused frame after frame instead of
+ * making a new one each time.<br>
+ * <br>
+ * Whoever draws frames takes a buffer with {@link #acquireBack(int, int, GraphicsConfiguration)},
+ * draws all of it, and hands it over with {@link #publish(BufferedImage)},
+ * making it the front buffer. Whoever shows them takes the front buffer with
+ * {@link #acquireFront()} and gives it back with {@link #release(BufferedImage)}
+ * when done. A buffer is never handed out to draw on while it is the front
+ * buffer or still being shown, so nothing is ever shown half-drawn. Three
+ * buffers are enough for one drawer and one shower; if more are held at once,
+ * more are made.<br>
+ * <br>
+ * Buffers are only made again when the size (or {@link GraphicsConfiguration})
+ * asked for changes.
+ *
+ * @author Nathan
+ * @version 1.0: Started tracking version.
+ */
+public class FrameBufferPool {
+	/**
+	 * The buffers, made when first needed.
+	 */
+	protected BufferedImage[] buffers;
+	/**
+	 * How many are showing each of {@link #buffers}.
+	 */
+	protected int[] readers;
+	/**
+	 * The index in {@link #buffers} of the front buffer, or -1 if none yet.
+	 */
+	protected int front = -1;
+	/**
+	 * The size of {@link #buffers}.
+	 */
+	protected int width = -1, height = -1;
+	/**
+	 * What {@link #buffers} are made compatible with, or <b>null</b> if
+	 * nothing.
+	 */
+	protected GraphicsConfiguration configuration = null;
+
+	/**
+	 * Initiates {@link FrameBufferPool} with three buffers.
+	 */
+	public FrameBufferPool() {
+		this(3);
+	}
+
+	/**
+	 * Initiates {@link FrameBufferPool} with <b>size</b> buffers (at least two).
+	 */
+	public FrameBufferPool(int size) {
+		buffers = new BufferedImage[Math.max(2, size)];
+		readers = new int[buffers.length];
+	}
+
+	/**
+	 * Takes a buffer to draw a frame on. Its last frame is still on it, so draw
+	 * over all of it.
+	 *
+	 * @param configuration
+	 *            What to make buffers compatible with (for faster drawing), or
+	 *            <b>null</b> for {@link BufferedImage#TYPE_INT_ARGB}.
+	 * @return A buffer of <b>width</b> by <b>height</b> (at least 1 by 1), not
+	 *         the front buffer and not being shown.
+	 */
+	public synchronized BufferedImage acquireBack(int width, int height, GraphicsConfiguration configuration) {
+		width = Math.max(1, width);
+		height = Math.max(1, height);
+		if (width != this.width || height != this.height || configuration != this.configuration) {
+			// Start over, buffers still being shown are just forgotten
+			this.width = width;
+			this.height = height;
+			this.configuration = configuration;
+			Arrays.fill(buffers, null);
+			Arrays.fill(readers, 0);
+			front = -1;
+		}
+		int index = -1;
+		for (int i = 1; i <= buffers.length && index == -1; i++) {
+			int check = (front + i) % buffers.length;
+			if (check != front && readers[check] == 0)
+				index = check;
+		}
+		if (index == -1) {
+			// All held, make room for one more
+			index = buffers.length;
+			buffers = Arrays.copyOf(buffers, index + 1);
+			readers = Arrays.copyOf(readers, index + 1);
+		}
+		if (buffers[index] == null)
+			buffers[index] = configuration == null
+					? new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB)
+					: configuration.createCompatibleImage(width, height, Transparency.TRANSLUCENT);
+		return buffers[index];
+	}
+
+	/**
+	 * Makes <b>buffer</b>, taken with
+	 * {@link #acquireBack(int, int, GraphicsConfiguration)} and fully drawn, the
+	 * front buffer. Ignored if it's no longer one of ours (after a resize).
+	 */
+	public synchronized void publish(BufferedImage buffer) {
+		int index = indexOf(buffer);
+		if (index != -1)
+			front = index;
+	}
+
+	/**
+	 * Takes the front buffer to show. Must be given back with
+	 * {@link #release(BufferedImage)}.
+	 *
+	 * @return The newest frame published, or <b>null</b> if none yet.
+	 */
+	public synchronized BufferedImage acquireFront() {
+		if (front == -1)
+			return null;
+		readers[front]++;
+		return buffers[front];
+	}
+
+	/**
+	 * Gives back <b>buffer</b>, taken with {@link #acquireFront()}.
+	 */
+	public synchronized void release(BufferedImage buffer) {
+		int index = indexOf(buffer);
+		if (index != -1 && readers[index] > 0)
+			readers[index]--;
+	}
+
+	/**
+	 * @return How many buffers we have, made or not.
+	 */
+	public synchronized int getSize() {
+		return buffers.length;
+	}
+
+	private int indexOf(BufferedImage buffer) {
+		if (buffer != null)
+			for (int i = 0; i < buffers.length; i++)
+				if (buffers[i] == buffer)
+					return i;
+		return -1;
+	}
+}
@@ -0,0 +1,146 @@
+package com.github.vegeto079.ngcommontools.main;
+
+/**
+ * Paces a loop that runs something a fixed number of times per second, such
+ * as {@link Game#gameTick()}.<br>
+ * <br>
+ * Time passed is counted in nanoseconds into an accumulator, and every whole
+ * tick's worth in it is one tick due (see {@link #update()}), so ticks keep a
+ * fixed step however unevenly the loop itself runs. Between ticks,
+ * {@link #waitForNextTick()} parks the thread until just before the next is
+ * due and spins only the last {@link #spinNanos}, instead of sleeping a
+ * millisecond at a time: close to no CPU used while idle, with ticks on time
+ * to well under a millisecond.<br>
+ * <br>
+ * {@link #getAlpha()} tells how far we are between the last tick and the next,
+ * for painting between ticks (see {@link Game#paintTick(java.awt.Graphics2D, double)}).
+ *
+ * @author Nathan
+ * @version 1.0: Started tracking version.
+ */
+public class FrameScheduler {
+	/**
+	 * Where we get the time from, and how we wait.
+	 */
+	protected Clock clock = Clock.SYSTEM;
+	/**
+	 * How long each tick is, in nanoseconds.
+	 */
+	protected volatile long tickNanos;
+	/**
+	 * Time passed not yet used up by ticks, in nanoseconds.
+	 */
+	protected volatile long accumulator = 0;
+	/**
+	 * When {@link #update()} last ran, or -1 if it hasn't yet.
+	 */
+	protected volatile long lastUpdate = -1;
+	/**
+	 * How long (in nanoseconds) before each tick is due to stop parking and spin
+	 * instead. Parking can wake late by about this much; spinning never does.
+	 */
+	public long spinNanos = 250000;
+	/**
+	 * The most ticks {@link #update()} gives at once, or -1 for no limit. Any
+	 * more due than this are dropped, so a loop that fell far behind (or was
+	 * paused by the system) doesn't run a burst of ticks to catch up.
+	 */
+	public int maxTicksPerUpdate = -1;
+
+	/**
+	 * Initiates {@link FrameScheduler} running <b>ticksPerSecond</b> times per
+	 * second.
+	 */
+	public FrameScheduler(int ticksPerSecond) {
+		setTicksPerSecond(ticksPerSecond);
+	}
+
+	/**
+	 * Changes how many times per second we tick, keeping any time already
+	 * accumulated.
+	 */
+	public void setTicksPerSecond(int ticksPerSecond) {
+		long tickNanos = 1000000000L / Math.max(1, ticksPerSecond);
+		if (tickNanos != this.tickNanos)
+			this.tickNanos = tickNanos;
+	}
+
+	/**
+	 * @return How many times per second we tick.
+	 */
+	public int getTicksPerSecond() {
+		return (int) (1000000000L / tickNanos);
+	}
+
+	/**
+	 * Adds the time passed since last time to the accumulator, and takes every
+	 * whole tick out of it. The first call starts the count and gives none.
+	 *
+	 * @return How many ticks are due now.
+	 */
+	public int update() {
+		long now = clock.nanoTime();
+		if (lastUpdate == -1) {
+			lastUpdate = now;
+			return 0;
+		}
+		long passed = now - lastUpdate;
+		lastUpdate = now;
+		if (passed < 0)
+			// Time went backwards, count it as none
+			passed = 0;
+		long accumulator = this.accumulator + passed;
+		long ticks = accumulator / tickNanos;
+		accumulator -= ticks * tickNanos;
+		if (maxTicksPerUpdate != -1 && ticks > maxTicksPerUpdate)
+			ticks = maxTicksPerUpdate;
+		this.accumulator = accumulator;
+		return (int) ticks;
+	}
+
+	/**
+	 * @return How far we are from the last tick to the next, from 0 to 1, as of
+	 *         now. Safe to call from another thread.
+	 */
+	public double getAlpha() {
+		long lastUpdate = this.lastUpdate;
+		if (lastUpdate == -1)
+			return 0;
+		double alpha = (double) (accumulator + clock.nanoTime() - lastUpdate) / tickNanos;
+		return alpha < 0 ? 0 : alpha > 1 ? 1 : alpha;
+	}
+
+	/**
+	 * @return How long (in nanoseconds) until the next tick is due, as of the
+	 *         last {@link #update()}.
+	 */
+	public long getNanosUntilNextTick() {
+		return tickNanos - accumulator;
+	}
+
+	/**
+	 * Waits until the next tick is due: parks until {@link #spinNanos} before,
+	 * then spins the rest.
+	 */
+	public void waitForNextTick() {
+		if (lastUpdate == -1)
+			return;
+		clock.waitUntilNanos(lastUpdate + getNanosUntilNextTick(), spinNanos);
+	}
+
+	/**
+	 * @return {@link #clock}.
+	 */
+	public Clock getClock() {
+		return clock;
+	}
+
+	/**
+	 * Sets {@link #clock}, starting the count over.
+	 */
+	public void setClock(Clock clock) {
+		this.clock = clock;
+		lastUpdate = -1;
+		accumulator = 0;
+	}
+}
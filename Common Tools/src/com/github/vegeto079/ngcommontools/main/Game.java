@@ -115,9 +115,35 @@ import com.github.vegeto079.ngcommontools.main.Logger.LogLevel;
  *          and <b>this</b> so that TAB events are handled by the KeyListener.
  * @version 1.109: {@link #mouseDragged(MouseEvent)} now properly passes on the
  *          right button pressed.
+ * @version 1.11: Added {@link #inbox}, run before every {@link #gameTick()},
+ *          so other threads can hand work to the game thread.
+ * @version 1.12: The game and paint threads are paced by {@link FrameScheduler}
+ *          s ({@link #tickScheduler} and {@link #paintScheduler}) instead of
+ *          sleeping a millisecond at a time. Added
+ *          {@link #paintTick(Graphics2D, double)}, told how far between game
+ *          ticks we are painting.
+ * @version 1.13: Added {@link #setSpeed(double)} (and argument "speed:#") to
+ *          run game ticks at a multiple of real time, or as fast as possible
+ *          in virtual time with {@link #UNTHROTTLED}. Added
+ *          {@link #getTicksRun()} and {@link #getSimulationRate()} to tell how
+ *          fast it's going.
+ * @version 1.14: Frames are drawn on buffers reused from {@link #frameBuffers}
+ *          instead of a new image every frame. Added {@link #renderFrame()},
+ *          which the paint thread now calls instead of painting onto
+ *          {@link #painted}.
+ * @version 1.15: Added {@link #renderMode} (and argument "accelerated"), to
+ *          draw through an {@link AcceleratedRenderer} instead. Frames are
+ *          drawn by {@link #drawFrame(Graphics2D)} in either mode.
+ * @version 1.16: Screenshots while {@link RenderMode#ACCELERATED} are drawn by
+ *          the paint thread, through
+ *          {@link AcceleratedRenderer#captureFrame(long)}.
  */
 public abstract class Game extends JComponent
 		implements Runnable, KeyListener, MouseListener, MouseMotionListener, MouseWheelListener {
+	/**
+	 * The {@link #setSpeed(double)} to run game ticks as fast as possible.
+	 */
+	public final static double UNTHROTTLED = 0;
 	/**
 	 * Custom {@link Logger} used to display messages with this {@link Game}.
 	 */
@@ -136,7 +162,7 @@ public abstract class Game extends JComponent
 	 * Whether or not this {@link Game} is currently on and running. If turned to
 	 * <b>false</b> while running, the {@link Game} will end.
 	 */
-	private boolean running = false;
+	private volatile boolean running = false;
 	/**
 	 * The value for this {@link Game}'s width.
 	 */
@@ -163,6 +189,20 @@ public abstract class Game extends JComponent
 	protected Thread resizerThread = null;
 	protected Thread paintThread = null;
 	public BufferedImage painted = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB);
+	/**
+	 * The buffers frames are drawn on, the front one being {@link #painted}.
+	 * Take it with {@link FrameBufferPool#acquireFront()} to show it from
+	 * another thread, so it isn't drawn over meanwhile.
+	 */
+	public final FrameBufferPool frameBuffers = new FrameBufferPool();
+	/**
+	 * How the paint thread draws frames. Can be changed while running.
+	 */
+	public RenderMode renderMode = RenderMode.SOFTWARE;
+	/**
+	 * Draws frames while {@link #renderMode} is {@link RenderMode#ACCELERATED}.
+	 */
+	protected AcceleratedRenderer acceleratedRenderer = null;
 
 	private ArrayList<Float> fps = new ArrayList<Float>();
 	private int fpsTotal;
@@ -195,6 +235,29 @@ public abstract class Game extends JComponent
 
 	protected Point mouseDragOrigin;
 
+	/**
+	 * Work handed to the game thread by other threads, run right before every
+	 * {@link #gameTick()}. See {@link GameInbox}.
+	 */
+	protected final GameInbox inbox = new GameInbox();
+	/**
+	 * Paces the game thread, at {@link #ticksPerSecond}.
+	 */
+	protected final FrameScheduler tickScheduler = new FrameScheduler(ticksPerSecond);
+	/**
+	 * Paces the paint thread, at {@link #paintTicksPerSecond}.
+	 */
+	protected final FrameScheduler paintScheduler = new FrameScheduler(paintTicksPerSecond);
+	/**
+	 * How many times faster than real time game ticks run, or
+	 * {@link #UNTHROTTLED}. See {@link #setSpeed(double)}.
+	 */
+	private double speed = 1;
+	/**
+	 * How many game ticks have run (paused or not) since starting.
+	 */
+	private volatile long ticksRun = 0;
+
 	/**
 	 * Initates a {@link Game}.
 	 * 
@@ -257,7 +320,10 @@ public abstract class Game extends JComponent
 			logger.log(LogLevel.DEBUG, "Checking argument: " + args[i]);
 			if (i > 0)
 				argsOneLine += " " + args[1];
-			if (args[i].contains("noResize")) {
+			if (args[i].contains("accelerated")) {
+				logger.log(LogLevel.DEBUG, "accelerated found");
+				renderMode = RenderMode.ACCELERATED;
+			} else if (args[i].contains("noResize")) {
 				logger.log(LogLevel.DEBUG, "noResize found");
 				dontResize = true;
 			} else if (args[i].contains("noScreenshots")) {
@@ -277,6 +343,13 @@ public abstract class Game extends JComponent
 				} catch (Exception e) {
 					logger.log("fps is not a number as expected");
 				}
+			} else if (args[i].toLowerCase().startsWith("speed:")) {
+				logger.log(LogLevel.DEBUG, "speed custom value found");
+				try {
+					setSpeed(Double.parseDouble(args[i].split(":")[1]));
+				} catch (Exception e) {
+					logger.log("speed is not a number as expected");
+				}
 			}
 		}
 		this.args = args;
@@ -302,6 +375,9 @@ public abstract class Game extends JComponent
 			running = true;
 			if (width <= 0 || height <= 0) {
 				logger.log(LogLevel.DEBUG, "Not going to turn on display because width or height is less than 1.");
+				if (speed != 1)
+					logger.log(LogLevel.DEBUG, "Running game ticks at speed: "
+							+ (speed == UNTHROTTLED ? "unthrottled" : speed + "x"));
 				logger.log(LogLevel.DEBUG, "Game ready to go (no display). Starting thread.");
 				new Thread(this, "Game Logic Thread").start();
 				return;
@@ -407,17 +483,75 @@ public abstract class Game extends JComponent
 
 	}
 
+	/**
+	 * The method called by the paint thread, as {@link #paintTick(Graphics2D)}
+	 * (which it calls unless overridden), but also told how far we are between
+	 * the last {@link #gameTick()} and the next.<br>
+	 * Override this instead to draw moving things part way between where they
+	 * were last tick and where they will be next, so they move smoothly even
+	 * when painting more often than ticking.
+	 * 
+	 * @param alpha
+	 *            How far we are from the last {@link #gameTick()} to the next,
+	 *            from 0 to 1.
+	 */
+	protected void paintTick(Graphics2D g, double alpha) {
+		paintTick(g);
+	}
+
 	public void paint(Graphics gOld) {
 		if (jFrame == null)
 			return;
 		super.paint(gOld);
 		if (gOld == null)
 			return;
-		// BufferedImage paintTo = new BufferedImage(getWidth(), getHeight(),
-		// BufferedImage.TYPE_INT_ARGB);
-		BufferedImage img = new BufferedImage(getWidth(), getHeight(), BufferedImage.TYPE_INT_ARGB);
-		Graphics2D g = (Graphics2D) img.getGraphics();
+		renderFrame();
+		BufferedImage frame = frameBuffers.acquireFront();
+		try {
+			gOld.drawImage(frame == null ? painted : frame, 0, 0, null);
+		} finally {
+			frameBuffers.release(frame);
+		}
+		Toolkit.getDefaultToolkit().sync();
+		gOld.dispose();
+	}
+
+	/**
+	 * Draws the next frame with {@link #paintTick(Graphics2D, double)} on a
+	 * buffer from {@link #frameBuffers}, and makes it the front buffer and
+	 * {@link #painted}. Nothing is drawn while {@link Pause#paint()}.
+	 */
+	protected void renderFrame() {
+		updateResize();
+		if (!pause.paint()) {
+			BufferedImage img = frameBuffers.acquireBack(getWidth(), getHeight(), getGraphicsConfiguration());
+			Graphics2D g = img.createGraphics();
+			drawFrame(g);
+			g.dispose();
+			frameBuffers.publish(img);
+			painted = img;
+		}
+		addFps();
+	}
+
+	/**
+	 * Clears <b>g</b> to black and draws the next frame on it with
+	 * {@link #paintTick(Graphics2D, double)}, whatever {@link #renderMode}.
+	 */
+	protected void drawFrame(Graphics2D g) {
 		g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+		Color tempColor = g.getColor();
+		g.setColor(Color.BLACK);
+		g.fillRect(-10, -10, getWidth() + 10, getHeight() + 10);
+		g.setColor(tempColor);
+		paintTick(g, tickScheduler.getAlpha());
+	}
+
+	/**
+	 * Updates {@link #resizeX} and {@link #resizeY} from the size of
+	 * {@link #resizer}'s frame, if there is one.
+	 */
+	protected void updateResize() {
 		boolean stopResize = false;
 		double newResizeX = 0;
 		try {
@@ -434,23 +568,6 @@ public abstract class Game extends JComponent
 			resizeX = newResizeX;
 			resizeY = newResizeY;
 		}
-		Color tempColor = g.getColor();
-		g.setColor(Color.BLACK);
-		g.fillRect(-10, -10, getWidth() + 10, getHeight() + 10);
-		g.setColor(tempColor);
-		if (pause.paint()) {
-			gOld.drawImage(painted, 0, 0, null);
-		} else {
-			paintTick(g);
-			gOld.drawImage(img, 0, 0, null);
-			painted = img;
-		}
-		addFps();
-		Toolkit.getDefaultToolkit().sync();
-		g.dispose();
-		gOld.dispose();
-		img.flush();
-		img = null;
 	}
 
 	public void run() {
@@ -459,48 +576,18 @@ public abstract class Game extends JComponent
 		logger.log(LogLevel.DEBUG, "Calling firstLoad()");
 		firstLoad();
 
-		int lastGameTick = -1;
-		// int renderedFrames = 0;
-
-		double time = System.nanoTime() / 1000000000.0;
-		double now = time;
-		double averagePassedTime = 0;
-
-		boolean naiveTiming = true;
 		while (running) {
-			double lastTime = time;
-			time = System.nanoTime() / 1000000000.0;
-			double passedTime = time - lastTime;
-
-			if (passedTime < 0)
-				naiveTiming = false; // Stop relying on nanotime if it starts
-			// skipping around in time (ie running
-			// backwards at least once). This
-			// sometimes happens on dual core amds.
-			averagePassedTime = averagePassedTime * 0.9 + passedTime * 0.1;
-
-			if (naiveTiming) {
-				now = time;
-			} else {
-				now += averagePassedTime;
-			}
-			int gameTick = (int) (now * ticksPerSecond);
-			if (lastGameTick == -1)
-				lastGameTick = gameTick;
-			while (lastGameTick < gameTick) {
-				lastGameTick++;
+			tickScheduler.setTicksPerSecond(ticksPerSecond);
+			for (int ticks = tickScheduler.update(); ticks > 0; ticks--) {
+				ticksRun++;
 				if (pause.game()) {
 					addUps();
 				} else {
+					inbox.drain();
 					gameTick();
 				}
 			}
-			sleep(1);
-			try {
-				// if (!pause.game() && getUps() > ticksPerSecond)
-				// Thread.sleep((long) (1000d / (double) ticksPerSecond));
-			} catch (Exception e) {
-			}
+			tickScheduler.waitForNextTick();
 		}
 
 	}
@@ -791,7 +878,30 @@ public abstract class Game extends JComponent
 		public void run() {
 			ran = true;
 			logger.log(LogLevel.WARNING, "Sending screenshot to Imgur.");
-			String url = Tools.uploadToImgur(painted, logger);
+			String url;
+			AcceleratedRenderer acceleratedRenderer = Game.this.acceleratedRenderer;
+			if (renderMode == RenderMode.ACCELERATED) {
+				// Frames go straight to the screen, have the paint thread draw one to keep
+				BufferedImage shot = null;
+				if (acceleratedRenderer != null)
+					try {
+						shot = acceleratedRenderer.captureFrame(1000);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				if (shot == null) {
+					logger.log(LogLevel.WARNING, "Couldn't draw a frame for the screenshot.");
+					return;
+				}
+				url = Tools.uploadToImgur(shot, logger);
+			} else {
+				BufferedImage frame = frameBuffers.acquireFront();
+				try {
+					url = Tools.uploadToImgur(frame == null ? painted : frame, logger);
+				} finally {
+					frameBuffers.release(frame);
+				}
+			}
 			logger.log(LogLevel.WARNING, "Screenshot taken: " + url);
 			try {
 				// Desktop.getDesktop().browse(new URI(url));
@@ -879,6 +989,64 @@ public abstract class Game extends JComponent
 		upsTotal = 0;
 	}
 
+	/**
+	 * Changes how fast game ticks run, from now on. The paint thread is not
+	 * affected, so this is mostly for a {@link Game} without display (width or
+	 * height less than 1): servers, bots, replays and batch runs.<br>
+	 * <br>
+	 * At a <b>speed</b> of 2, {@link #ticksPerSecond} ticks run every half a
+	 * second. At {@link #UNTHROTTLED}, ticks run one after another as fast as
+	 * they can, in virtual time that moves on a tick's worth for each. Either
+	 * way, {@link #getClock()} tells the time as the game sees it.
+	 *
+	 * @param speed
+	 *            How many times faster than real time to run, or
+	 *            {@link #UNTHROTTLED} (or anything less than or equal to 0).
+	 */
+	public void setSpeed(double speed) {
+		if (speed <= 0) {
+			this.speed = UNTHROTTLED;
+			tickScheduler.setClock(new VirtualClock(System.currentTimeMillis()));
+		} else if (speed == 1) {
+			this.speed = speed;
+			tickScheduler.setClock(Clock.SYSTEM);
+		} else {
+			this.speed = speed;
+			tickScheduler.setClock(new ScaledClock(speed));
+		}
+	}
+
+	/**
+	 * @return How many times faster than real time game ticks are meant to run,
+	 *         or {@link #UNTHROTTLED}.
+	 */
+	public double getSpeed() {
+		return speed;
+	}
+
+	/**
+	 * @return The time game ticks run in: the real time unless changed by
+	 *         {@link #setSpeed(double)}.
+	 */
+	public Clock getClock() {
+		return tickScheduler.getClock();
+	}
+
+	/**
+	 * @return How many game ticks have run (paused or not) since starting.
+	 */
+	public long getTicksRun() {
+		return ticksRun;
+	}
+
+	/**
+	 * @return How many times faster than real time game ticks are actually
+	 *         running, from {@link #getUps()}.
+	 */
+	public double getSimulationRate() {
+		return (double) getUps() / ticksPerSecond;
+	}
+
 	public void setSeed(long seed, long randomCount) {
 		if (this.seed == seed && this.randomCount == randomCount)
 			return;
@@ -893,58 +1061,52 @@ public abstract class Game extends JComponent
 		public void run() {
 			logger.log(LogLevel.DEBUG, "Starting paint thread!");
 
-			int lastPaintTick = -1;
-			// int renderedFrames = 0;
-
-			double time = System.nanoTime() / 1000000000.0;
-			double now = time;
-			double averagePassedTime = 0;
-
-			boolean naiveTiming = true;
 			while (running) {
-				double lastTime = time;
-				time = System.nanoTime() / 1000000000.0;
-				double passedTime = time - lastTime;
-
-				if (passedTime < 0)
-					naiveTiming = false;
-				// Stop relying on nanotime if it starts
-				// skipping around in time (ie running
-				// backwards at least once). This
-				// sometimes happens on dual core amds.
-				averagePassedTime = averagePassedTime * 0.9 + passedTime * 0.1;
-
-				if (naiveTiming) {
-					now = time;
-				} else {
-					now += averagePassedTime;
+				paintScheduler.setTicksPerSecond(paintTicksPerSecond);
+				// Frames we fell behind on are skipped: only the newest is worth
+				// showing
+				if (renderMode == RenderMode.ACCELERATED && acceleratedRenderer == null && jFrame != null) {
+					acceleratedRenderer = new AcceleratedRenderer(Game.this);
+					acceleratedRenderer.attach();
+				} else if (renderMode != RenderMode.ACCELERATED && acceleratedRenderer != null) {
+					acceleratedRenderer.detach();
+					acceleratedRenderer = null;
 				}
-				int paintTick = (int) (now * paintTicksPerSecond);
-				if (lastPaintTick == -1)
-					lastPaintTick = paintTick;
-				while (lastPaintTick < paintTick) {
-					Graphics g = painted.getGraphics();
-					if (dontResize)
+				if (paintScheduler.update() > 0) {
+					if (acceleratedRenderer != null)
+						acceleratedRenderer.render();
+					else if (dontResize)
 						repaint();
-					else
-						paint(g);
-					g.dispose();
-					g = null;
-					lastPaintTick++;
+					else if (jFrame != null)
+						renderFrame();
 					Toolkit.getDefaultToolkit().sync();
 				}
-				Tools.sleep(1);
-				try {
-					// if (!pause.paint() && getUps() > paintTicksPerSecond)
-					// Thread.sleep((long) (1000d / (double)
-					// paintTicksPerSecond));
-				} catch (Exception e) {
-				}
+				paintScheduler.waitForNextTick();
 			}
 
 		}
 	}
 
+	/**
+	 * How a {@link Game}'s paint thread draws frames. Either way, they are drawn
+	 * by {@link Game#paintTick(Graphics2D)}.
+	 * 
+	 * @author Nathan
+	 * 
+	 */
+	public static enum RenderMode {
+		/**
+		 * Frames are drawn on images in memory (see {@link Game#frameBuffers}),
+		 * then copied to the screen by Swing.
+		 */
+		SOFTWARE,
+		/**
+		 * Frames are drawn on buffers in video memory and flipped to the screen
+		 * (see {@link AcceleratedRenderer}): faster copies and less delay.
+		 */
+		ACCELERATED;
+	}
+
 	/**
 	 * Used to represent different pausing types in a {@link Game}.
 	 * 
@@ -1052,4 +1214,12 @@ public abstract class Game extends JComponent
 	public boolean isRunning() {
 		return running;
 	}
+
+	/**
+	 * @return {@link #inbox}, to hand work to the game thread with (such as
+	 *         network messages, with the message handlers' <i>setGameInbox</i>).
+	 */
+	public GameInbox getInbox() {
+		return inbox;
+	}
 }
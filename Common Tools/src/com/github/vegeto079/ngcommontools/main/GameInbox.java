@@ -0,0 +1,72 @@
+package com.github.vegeto079.ngcommontools.main;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Hands work from other threads (such as messages from a network thread) to a
+ * {@link Game}'s thread.<br>
+ * <br>
+ * Anything can {@link #post(Runnable)} from any thread without locking, and the
+ * {@link Game} runs everything posted, in the order it was posted, right
+ * before each {@link Game#gameTick()} (see {@link Game#getInbox()}). The game's
+ * state is then only ever changed on its own thread, at a known point in the
+ * tick.
+ *
+ * @author Nathan
+ * @version 1.0: Started tracking version.
+ * @version 1.01: A task that throws no longer stops the rest from running.
+ */
+public class GameInbox {
+	/**
+	 * Everything posted and not yet run, oldest first.
+	 */
+	protected final ConcurrentLinkedQueue<Runnable> queue = new ConcurrentLinkedQueue<Runnable>();
+	/**
+	 * The most {@link #drain()} runs at once, or -1 for everything posted. The
+	 * rest waits for the next tick.
+	 */
+	public int maxPerDrain = -1;
+
+	/**
+	 * Adds <b>task</b> to be run on the {@link Game}'s thread. Safe from any
+	 * thread.
+	 */
+	public void post(Runnable task) {
+		queue.offer(task);
+	}
+
+	/**
+	 * Runs everything posted so far (up to {@link #maxPerDrain}), oldest first.
+	 * Called by the {@link Game} before each {@link Game#gameTick()}. A task
+	 * that throws is printed and counted as run, and the rest still run.
+	 *
+	 * @return How many were run.
+	 */
+	public int drain() {
+		int amt = 0;
+		Runnable task;
+		while ((maxPerDrain == -1 || amt < maxPerDrain) && (task = queue.poll()) != null) {
+			try {
+				task.run();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+			amt++;
+		}
+		return amt;
+	}
+
+	/**
+	 * @return Whether or not nothing is waiting to be run.
+	 */
+	public boolean isEmpty() {
+		return queue.isEmpty();
+	}
+
+	/**
+	 * Throws away everything waiting to be run.
+	 */
+	public void clear() {
+		queue.clear();
+	}
+}
@@ -65,6 +65,9 @@ import com.github.vegeto079.ngcommontools.main.Logger.LogLevel;
  *          so that TAB events are handled by the KeyListener.
  * @version 1.067: {@link #mouseDragged(MouseEvent)} now properly passes on the
  *          right button pressed.
+ * @version 1.07: Shows {@link Game#frameBuffers}' front buffer, scaled as it
+ *          is drawn, instead of making a resized copy of {@link Game#painted}
+ *          every frame. Buffers are no longer flushed, as they are reused.
  */
 public class Resizer extends JComponent implements KeyListener, MouseListener, MouseMotionListener, MouseWheelListener {
 	private static final long serialVersionUID = 1L;
@@ -286,7 +289,14 @@ public class Resizer extends JComponent implements KeyListener, MouseListener, M
 
 	public void paint(Graphics g) {
 		super.paint(g);
-		if (image != null)
+		BufferedImage frame = game == null ? null : game.frameBuffers.acquireFront();
+		if (frame != null) {
+			try {
+				g.drawImage(frame, 0, 0, getWidth(), getHeight(), null);
+			} finally {
+				game.frameBuffers.release(frame);
+			}
+		} else if (image != null)
 			g.drawImage(resize(image, getWidth(), getHeight()), 0, 0, null);
 	}
 
@@ -473,13 +483,8 @@ public class Resizer extends JComponent implements KeyListener, MouseListener, M
 				// game.paint(g); direct to another thread
 				// g.dispose();
 				// g = null;
-				if (game.painted != null) {
-					if (game.resizer.image != null) {
-						game.resizer.image.flush();
-						game.resizer.image = null;
-					}
+				if (game.painted != null)
 					game.resizer.setImage(game.painted);
-				}
 				game.resizer.repaint();
 			} else
 				game.repaint();
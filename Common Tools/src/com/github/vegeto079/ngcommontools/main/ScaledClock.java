@@ -0,0 +1,92 @@
+package com.github.vegeto079.ngcommontools.main;
+
+/**
+ * A {@link Clock} running at a multiple of the real time: at a
+ * {@link #getSpeed()} of 2, two seconds pass on it for every real second, and
+ * waiting on it takes half as long.
+ *
+ * @author Nathan
+ * @version 1.0: Started tracking version.
+ */
+public class ScaledClock extends Clock {
+	/**
+	 * How many times faster than real time we run.
+	 */
+	protected double speed;
+	/**
+	 * The real time ({@link System#nanoTime()}) when we last changed speed.
+	 */
+	protected long realStart;
+	/**
+	 * Our time when we last changed speed.
+	 */
+	protected long scaledStart;
+	/**
+	 * The difference between our {@link #currentTimeMillis()} and
+	 * {@link #nanoTime()}, in milliseconds.
+	 */
+	protected final long millisOffset;
+
+	/**
+	 * Initiates {@link ScaledClock} at the real time, running <b>speed</b> times
+	 * as fast.
+	 */
+	public ScaledClock(double speed) {
+		if (speed <= 0)
+			throw new IllegalArgumentException("speed must be > 0.");
+		this.speed = speed;
+		realStart = System.nanoTime();
+		scaledStart = realStart;
+		millisOffset = System.currentTimeMillis() - realStart / 1000000L;
+	}
+
+	@Override
+	public long currentTimeMillis() {
+		return millisOffset + nanoTime() / 1000000L;
+	}
+
+	@Override
+	public synchronized long nanoTime() {
+		return scaledStart + (long) ((System.nanoTime() - realStart) * speed);
+	}
+
+	/**
+	 * Waits <b>millis</b> milliseconds of our time.
+	 */
+	@Override
+	public void sleep(long millis) {
+		Clock.SYSTEM.waitUntilNanos(System.nanoTime() + (long) (millis * 1000000L / speed), 0);
+	}
+
+	/**
+	 * Waits until the real time at which our {@link #nanoTime()} reaches
+	 * <b>deadline</b>. <b>spinNanos</b> is in real time.
+	 */
+	@Override
+	public void waitUntilNanos(long deadline, long spinNanos) {
+		long realDeadline;
+		synchronized (this) {
+			realDeadline = realStart + (long) ((deadline - scaledStart) / speed);
+		}
+		Clock.SYSTEM.waitUntilNanos(realDeadline, spinNanos);
+	}
+
+	/**
+	 * @return How many times faster than real time we run.
+	 */
+	public synchronized double getSpeed() {
+		return speed;
+	}
+
+	/**
+	 * Changes how many times faster than real time we run, from now on.
+	 */
+	public synchronized void setSpeed(double speed) {
+		if (speed <= 0)
+			throw new IllegalArgumentException("speed must be > 0.");
+		long now = System.nanoTime();
+		scaledStart = scaledStart + (long) ((now - realStart) * this.speed);
+		realStart = now;
+		this.speed = speed;
+	}
+}
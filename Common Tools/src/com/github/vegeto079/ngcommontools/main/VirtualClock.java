@@ -0,0 +1,116 @@
+package com.github.vegeto079.ngcommontools.main;
+
+/**
+ * A {@link Clock} whose time only passes when told to, by {@link #advance(long)}
+ * or {@link #sleep(long)}. Runs that use one give the same result every time,
+ * and take no longer than the work done in them, however much time passes.<br>
+ * <br>
+ * If a {@link Driver} is set, {@link #sleep(long)} hands the wait to it, so
+ * whatever else is meant to happen in that time (such as work scheduled by
+ * others) runs while we "sleep".
+ *
+ * @author Nathan
+ * @version 1.0: Started tracking version.
+ * @version 1.01: {@link #waitUntilNanos(long, long)} moves the time on.
+ */
+public class VirtualClock extends Clock {
+	/**
+	 * The time, in nanoseconds.
+	 */
+	protected volatile long nanos;
+	/**
+	 * Runs what happens during {@link #sleep(long)}, or <b>null</b> to just
+	 * move the time on.
+	 */
+	protected Driver driver = null;
+
+	/**
+	 * Initiates {@link VirtualClock} at <b>startMillis</b>.
+	 */
+	public VirtualClock(long startMillis) {
+		nanos = startMillis * 1000000L;
+	}
+
+	@Override
+	public long currentTimeMillis() {
+		return nanos / 1000000L;
+	}
+
+	@Override
+	public long nanoTime() {
+		return nanos;
+	}
+
+	/**
+	 * Lets <b>millis</b> milliseconds pass, through {@link #driver} if set.
+	 */
+	@Override
+	public void sleep(long millis) {
+		if (driver != null)
+			driver.runUntil(currentTimeMillis() + Math.max(0, millis));
+		else
+			advance(millis);
+	}
+
+	/**
+	 * Lets the time pass up to <b>deadline</b>, through {@link #driver} if set.
+	 * Nothing to spin on, so <b>spinNanos</b> is ignored.
+	 */
+	@Override
+	public void waitUntilNanos(long deadline, long spinNanos) {
+		if (deadline <= nanos)
+			return;
+		if (driver != null)
+			driver.runUntil(deadline / 1000000L);
+		advanceToNanos(deadline);
+	}
+
+	/**
+	 * Moves the time on by <b>millis</b> milliseconds, without running anything.
+	 */
+	public void advance(long millis) {
+		advanceNanos(millis * 1000000L);
+	}
+
+	/**
+	 * Moves the time on by <b>amt</b> nanoseconds, without running anything.
+	 */
+	public synchronized void advanceNanos(long amt) {
+		if (amt > 0)
+			nanos += amt;
+	}
+
+	/**
+	 * Moves the time on to <b>millis</b>, if it isn't already past it.
+	 */
+	public void advanceTo(long millis) {
+		advanceToNanos(millis * 1000000L);
+	}
+
+	/**
+	 * Moves the time on to <b>time</b> nanoseconds, if it isn't already past it.
+	 */
+	public synchronized void advanceToNanos(long time) {
+		if (time > nanos)
+			nanos = time;
+	}
+
+	/**
+	 * @param driver
+	 *            See {@link #driver}.
+	 */
+	public void setDriver(Driver driver) {
+		this.driver = driver;
+	}
+
+	/**
+	 * Runs whatever is meant to happen while a {@link VirtualClock} moves on.
+	 */
+	public interface Driver {
+		/**
+		 * Runs everything due up to <b>millis</b>, moving the clock on as it goes
+		 * and leaving it at <b>millis</b>.
+		 */
+		public void runUntil(long millis);
+	}
+}
@@ -0,0 +1,367 @@
+package com.github.vegeto079.ngcommontools.networking;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+
+import com.github.vegeto079.ngcommontools.main.Logger;
+import com.github.vegeto079.ngcommontools.main.Logger.LogLevel;
+
+/**
+ * Sends large payloads (maps, asset bundles, ...) to {@link Client}s without
+ * holding up anything else sent to them.<br>
+ * <br>
+ * Instead of going through the {@link Server.Handler}'s queue as one huge
+ * message, the payload is <i>offered</i> with a small <i>BULK_OFFER:</i>
+ * message, and the {@link Client} fetches it over its own connection to
+ * {@link #port}. Files are sent straight from disk with
+ * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}
+ * in chunks of {@link #chunkSize}, paced to {@link #bytesPerSecond} so they
+ * don't crowd out gameplay on the same link. Each transfer runs on its own
+ * thread, and the {@link Client} reports progress to its
+ * {@link Client.ClientMessageHandler} as chunks arrive.
+ *
+ * @author Nathan
+ * @version 1.0: Started tracking version.
+ * @version 1.01: Gives up on {@link Client}s that don't ask for anything within
+ *          {@link #readTimeout}, and on files that shrink while being sent.
+ */
+public class BulkTransfer {
+	/**
+	 * Starts a message offering a payload: <i>BULK_OFFER:id:size:port:name</i>.
+	 */
+	public final static String OFFER_PREFIX = "BULK_OFFER:";
+
+	/**
+	 * Custom {@link Logger} used to display messages with this
+	 * {@link BulkTransfer}.
+	 */
+	protected Logger logger = null;
+	/**
+	 * The port {@link Client}s fetch payloads from.
+	 */
+	protected int port = -1;
+	/**
+	 * Largest piece (in bytes) sent at once.
+	 */
+	public int chunkSize = 64 * 1024;
+	/**
+	 * Most bytes per second a single transfer sends, or -1 for as fast as the
+	 * connection allows.
+	 */
+	public long bytesPerSecond = 512 * 1024;
+	/**
+	 * How long (in milliseconds) an offer stays open before it is dropped.
+	 */
+	public long offerTimeout = 60000;
+	/**
+	 * How long (in milliseconds) a {@link Client} has to say what it wants once
+	 * connected, or 0 to wait forever.
+	 */
+	public int readTimeout = 10000;
+	/**
+	 * Offers waiting to be fetched, by id.
+	 */
+	protected final Map<String, Transfer> offers = new HashMap<String, Transfer>();
+	/**
+	 * Accepts {@link Client}s fetching payloads.
+	 */
+	protected ServerSocketChannel listener = null;
+	/**
+	 * Runs {@link #accept()}.
+	 */
+	protected Thread thread = null;
+	/**
+	 * Whether or not we should stop.
+	 */
+	protected volatile boolean stop = true;
+
+	/**
+	 * Initiates {@link BulkTransfer}. Nothing is opened until {@link #open()}.
+	 *
+	 * @param logger
+	 *            See {@link #logger}
+	 * @param port
+	 *            See {@link #port}
+	 */
+	public BulkTransfer(Logger logger, int port) {
+		this.logger = logger;
+		this.port = port;
+	}
+
+	/**
+	 * Opens {@link #port} and starts serving offers.
+	 *
+	 * @throws IOException
+	 *             If the port could not be opened.
+	 */
+	public void open() throws IOException {
+		if (!stop) {
+			logger.log(LogLevel.WARNING, "We tried to open the BulkTransfer when it was already open..");
+			return;
+		}
+		listener = ServerSocketChannel.open();
+		listener.socket().bind(new InetSocketAddress(port), 100);
+		stop = false;
+		thread = new Thread(new Runnable() {
+			public void run() {
+				accept();
+			}
+		}, "BulkTransfer");
+		thread.setDaemon(true);
+		thread.start();
+		logger.log(LogLevel.NORMAL, "BulkTransfer listening on port " + port + ".");
+	}
+
+	/**
+	 * Stops listening and drops every offer. Transfers already running are
+	 * finished.
+	 */
+	public void close() {
+		stop = true;
+		try {
+			if (listener != null)
+				listener.close();
+		} catch (IOException e) {
+		}
+		synchronized (offers) {
+			offers.clear();
+		}
+	}
+
+	/**
+	 * Offers <b>file</b> to <b>handler</b>'s {@link Client}.
+	 *
+	 * @param name
+	 *            What the {@link Client} is told the payload is called.
+	 * @param listener
+	 *            Told how the transfer goes, or <b>null</b>.
+	 * @return The transfer.
+	 */
+	public Transfer offer(Server.Handler handler, String name, File file, ProgressListener listener) {
+		return offer(handler, new Transfer(name, file, null, file.length(), listener));
+	}
+
+	/**
+	 * Offers <b>data</b> to <b>handler</b>'s {@link Client}.
+	 *
+	 * @param name
+	 *            What the {@link Client} is told the payload is called.
+	 * @param listener
+	 *            Told how the transfer goes, or <b>null</b>.
+	 * @return The transfer.
+	 */
+	public Transfer offer(Server.Handler handler, String name, byte[] data, ProgressListener listener) {
+		return offer(handler, new Transfer(name, null, data, data.length, listener));
+	}
+
+	private Transfer offer(Server.Handler handler, Transfer transfer) {
+		synchronized (offers) {
+			offers.put(transfer.id, transfer);
+		}
+		handler.sendMessageToClient(OFFER_PREFIX + transfer.id + ":" + transfer.size + ":" + port + ":" + transfer.name);
+		return transfer;
+	}
+
+	/**
+	 * @return {@link #port}.
+	 */
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * Run by {@link #thread} until {@link #stop}: accepts {@link Client}s and
+	 * starts sending them what they ask for.
+	 */
+	private void accept() {
+		while (!stop) {
+			try {
+				final SocketChannel channel = listener.accept();
+				Thread sender = new Thread(new Runnable() {
+					public void run() {
+						serve(channel);
+					}
+				}, "BulkTransfer sender");
+				sender.setDaemon(true);
+				sender.start();
+			} catch (IOException e) {
+				if (!stop)
+					logger.log(LogLevel.WARNING, "BulkTransfer couldn't accept: " + e.getMessage());
+			}
+		}
+		logger.log(LogLevel.DEBUG, "BulkTransfer stopped.");
+	}
+
+	/**
+	 * Reads the id <b>channel</b> asks for and sends that payload.
+	 */
+	private void serve(SocketChannel channel) {
+		Transfer transfer = null;
+		try {
+			channel.socket().setSoTimeout(readTimeout);
+			// Channel reads ignore the timeout, the socket's stream doesn't
+			String id = readLine(channel.socket().getInputStream());
+			synchronized (offers) {
+				removeExpiredOffers();
+				transfer = id == null ? null : offers.remove(id);
+			}
+			if (transfer == null) {
+				logger.log(LogLevel.WARNING, "Client asked for a payload that isn't on offer: " + id);
+				return;
+			}
+			logger.log(LogLevel.DEBUG, "Sending " + transfer.name + " (" + transfer.size + " bytes).");
+			long start = System.currentTimeMillis();
+			if (transfer.file != null) {
+				FileInputStream in = new FileInputStream(transfer.file);
+				try {
+					FileChannel file = in.getChannel();
+					while (transfer.sent < transfer.size) {
+						long sent = file.transferTo(transfer.sent, Math.min(chunkSize, transfer.size - transfer.sent),
+								channel);
+						if (sent == 0 && transfer.sent >= file.size())
+							throw new IOException(transfer.file.getName() + " shrank to " + file.size()
+									+ " bytes while being sent.");
+						sent(transfer, sent, start);
+					}
+				} finally {
+					in.close();
+				}
+			} else {
+				ByteBuffer data = ByteBuffer.wrap(transfer.data);
+				while (data.hasRemaining()) {
+					data.limit(Math.min(data.capacity(), data.position() + chunkSize));
+					sent(transfer, channel.write(data), start);
+					data.limit(data.capacity());
+				}
+			}
+			if (transfer.listener != null)
+				transfer.listener.finished(transfer);
+		} catch (Exception e) {
+			logger.log(LogLevel.WARNING, "BulkTransfer failed: " + e.getMessage());
+			if (transfer != null && transfer.listener != null)
+				transfer.listener.failed(transfer, e);
+		} finally {
+			try {
+				channel.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * Notes that <b>amt</b> more bytes of <b>transfer</b> went out, then waits if
+	 * we are ahead of {@link #bytesPerSecond}.
+	 */
+	private void sent(Transfer transfer, long amt, long start) throws InterruptedException {
+		transfer.sent += amt;
+		if (transfer.listener != null)
+			transfer.listener.progress(transfer, transfer.sent, transfer.size);
+		if (bytesPerSecond <= 0)
+			return;
+		long wait = start + transfer.sent * 1000 / bytesPerSecond - System.currentTimeMillis();
+		if (wait > 0)
+			Thread.sleep(wait);
+	}
+
+	/**
+	 * Drops every offer older than {@link #offerTimeout}. Must hold
+	 * {@link #offers}.
+	 */
+	private void removeExpiredOffers() {
+		long now = System.currentTimeMillis();
+		Iterator<Transfer> iterator = offers.values().iterator();
+		while (iterator.hasNext())
+			if (now - iterator.next().offerTime > offerTimeout)
+				iterator.remove();
+	}
+
+	/**
+	 * Reads a single short line from <b>in</b>, a byte at a time so nothing
+	 * after it is consumed.
+	 */
+	static String readLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		while (line.length() < 256) {
+			int read = in.read();
+			if (read == -1)
+				return null;
+			char c = (char) read;
+			if (c == '\n')
+				return line.toString();
+			line.append(c);
+		}
+		return null;
+	}
+
+	/**
+	 * A single payload offered to a {@link Client}.
+	 */
+	public static class Transfer {
+		protected final String id = UUID.randomUUID().toString().replace("-", "");
+		protected final String name;
+		protected final File file;
+		protected final byte[] data;
+		protected final long size;
+		protected final ProgressListener listener;
+		protected final long offerTime = System.currentTimeMillis();
+		protected volatile long sent = 0;
+
+		private Transfer(String name, File file, byte[] data, long size, ProgressListener listener) {
+			this.name = name;
+			this.file = file;
+			this.data = data;
+			this.size = size;
+			this.listener = listener;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		/**
+		 * @return How many bytes have been sent so far.
+		 */
+		public long getSent() {
+			return sent;
+		}
+	}
+
+	/**
+	 * Told how a {@link Transfer} is going, on the thread sending it.
+	 */
+	public abstract static class ProgressListener {
+		/**
+		 * Runs after every chunk.
+		 */
+		public abstract void progress(Transfer transfer, long sent, long size);
+
+		/**
+		 * Runs once everything has been sent.
+		 */
+		public void finished(Transfer transfer) {
+
+		}
+
+		/**
+		 * Runs if the transfer couldn't be finished.
+		 */
+		public void failed(Transfer transfer, Exception e) {
+
+		}
+	}
+}
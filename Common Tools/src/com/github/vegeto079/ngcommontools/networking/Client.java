@@ -1,17 +1,30 @@
 package com.github.vegeto079.ngcommontools.networking;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.net.ConnectException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Random;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.locks.LockSupport;
 
+import com.github.vegeto079.ngcommontools.main.Clock;
 import com.github.vegeto079.ngcommontools.main.Game;
+import com.github.vegeto079.ngcommontools.main.GameInbox;
 import com.github.vegeto079.ngcommontools.main.Logger;
 import com.github.vegeto079.ngcommontools.main.Tools;
 import com.github.vegeto079.ngcommontools.main.Logger.LogLevel;
@@ -70,6 +83,52 @@ import com.github.vegeto079.ngcommontools.networking.Server.Handler;
  *          {@link #connectionTime} and {@link #currentTimeMillis()}.
  * @version 1.11: Removed all ping-related things as the {@link #Server} handles
  *          the computing. Now just uses {@link #ping}.
+ * @version 1.12: Added {@link #room}, to join a room hosted by a
+ *          {@link RoomServer}.
+ * @version 1.13: {@link Connector} is now run by a shared
+ *          {@link NetworkScheduler} (see {@link #scheduler}) instead of its own
+ *          {@link java.util.Timer} thread, and {@link Connector.ConnectorThread}
+ *          is parked until it is needed instead of polling every millisecond.
+ * @version 1.14: {@link #talkToServer()} now splits each line once with a
+ *          {@link MessageTokenizer} instead of several {@link String#split}s per
+ *          message, and pings are read by
+ *          {@link ClientMessageHandler#preProcess(Client, MessageView, int)}
+ *          without copying the message.
+ * @version 1.15: Added {@link #journal} to record every line sent and
+ *          received.
+ * @version 1.16: Follows <i>SENDRATE:</i> from the {@link Server}, talking to it
+ *          less often when our connection can't keep up (see
+ *          {@link Connector#setPeriod(long)}).
+ * @version 1.17: Follows <i>REDIRECT:</i> from the {@link Server}, reconnecting to
+ *          the node it was moved to and resuming its session there (see
+ *          {@link #redirect(String, int, String)}).
+ * @version 1.18: Joining takes a single round trip: the {@link Server}'s
+ *          <i>CONNECTING:</i> reply now also carries its time (setting
+ *          {@link #timeOffset} straight away) and any initial state, and we talk
+ *          to it right after connecting instead of a tick later. Failed attempts
+ *          back off exponentially with jitter (see {@link #maxBackoff}), the
+ *          address is only resolved once and connecting can no longer hang
+ *          forever (see {@link #handshakeTimeout}).
+ * @version 1.19: Fetches payloads offered with <i>BULK_OFFER:</i> over a
+ *          separate connection (see {@link BulkTransfer}), reporting progress
+ *          to {@link ClientMessageHandler#onBulkProgress(Client, String, long, long)}.
+ * @version 1.2: Snapshots from a {@link SnapshotBootstrap} are handed to
+ *          {@link ClientMessageHandler#onSnapshot(Client, long, File)}, then the
+ *          {@link Server} is told they are loaded.
+ * @version 1.21: {@link ClientMessageHandler} picks what to do with each
+ *          message through a {@link MessageRouter} instead of a chain of
+ *          {@link String#startsWith(String)}s. Games can route their own
+ *          messages with {@link ClientMessageHandler#getRouter()}.
+ * @version 1.22: Can connect to a {@link Server} in another process on this
+ *          host through a {@link SharedMemoryChannel} instead of a socket (see
+ *          {@link #setSharedMemory(File)}).
+ * @version 1.23: {@link ClientMessageHandler#setGameInbox(GameInbox)} runs
+ *          {@link ClientMessageHandler#process(String)} on the game thread
+ *          instead of ours.
+ * @version 1.24: Everything timed now goes through {@link #clock}, and a
+ *          {@link VirtualNetwork} can connect us to its {@link Server}s, with
+ *          our {@link Connector} run straight from its {@link VirtualScheduler}
+ *          instead of its own thread.
  */
 public class Client {
 	/**
@@ -160,6 +219,16 @@ public class Client {
 	 * viewing of persons.
 	 */
 	public final static String CHAT_SPLITTER = "-=CHAT=-";
+	/**
+	 * Starts a message telling us to reconnect to another {@link Server} node:
+	 * <i>REDIRECT:token:port:host</i>.
+	 */
+	public final static String REDIRECT_PREFIX = "REDIRECT:";
+	/**
+	 * Starts our <i>CONNECTING</i> line instead when we are resuming a session
+	 * with {@link #resumeToken}.
+	 */
+	public final static String RESUME_PREFIX = "CONNECTING:RESUME:";
 	/**
 	 * Username used to identify ourselves to the {@link Server} so they know who
 	 * the messages are coming from.
@@ -229,6 +298,102 @@ public class Client {
 	 */
 	public long lag = 0;
 
+	/**
+	 * The name of the room to join when connecting to a {@link RoomServer}, or
+	 * <b>null</b> to connect normally (or join the {@link RoomServer}'s default
+	 * room).
+	 */
+	protected String room = null;
+	/**
+	 * Runs {@link #connector}. Defaults to {@link NetworkScheduler#getShared()}.
+	 */
+	protected NetworkScheduler scheduler = NetworkScheduler.getShared();
+	/**
+	 * Where we get the time from, and how we wait. {@link Clock#SYSTEM} unless
+	 * set with {@link #setClock(Clock)}.
+	 */
+	protected Clock clock = Clock.SYSTEM;
+	/**
+	 * The {@link VirtualNetwork} we connect through instead of sockets, or
+	 * <b>null</b>. Set by {@link VirtualNetwork#attach(Client, String)}.
+	 */
+	protected VirtualNetwork virtualNetwork = null;
+	/**
+	 * Splits lines read in {@link #talkToServer()}.
+	 */
+	protected MessageTokenizer tokenizer = new MessageTokenizer();
+	/**
+	 * Reused to hand messages to
+	 * {@link ClientMessageHandler#preProcess(Client, MessageView, int)}.
+	 */
+	protected MessageView messageView = new MessageView();
+	/**
+	 * The last message that had its ping taken out by
+	 * {@link ClientMessageHandler#preProcess(Client, MessageView, int)}. Reused
+	 * when the next one is the same (as with every <i>RECEIVED</i>), so it
+	 * doesn't have to be rebuilt.
+	 */
+	protected String lastUnpingedMessage = "";
+	/**
+	 * If set, every line sent to or received from the {@link Server} is recorded
+	 * here, as {@link #journalID}. <b>null</b> by default.
+	 */
+	protected NetworkJournal journal = null;
+	/**
+	 * The connection id this {@link Client}'s lines are recorded as in
+	 * {@link #journal}. Negative, so it is never mistaken for a
+	 * {@link Server.Handler#getID()}.
+	 */
+	protected int journalID = -1;
+	/**
+	 * Token of the session we are resuming on the node we were moved to, or
+	 * <b>null</b>. See {@link #redirect(String, int, String)}.
+	 */
+	protected String resumeToken = null;
+	/**
+	 * The longest time (in milliseconds) connecting to the {@link Server} and
+	 * waiting for its <i>CONNECTING:</i> reply can take before the attempt fails.
+	 */
+	public int handshakeTimeout = 5000;
+	/**
+	 * The longest time (in milliseconds) we wait between failed connection
+	 * attempts. The wait starts at {@link #timeBetweenConnectionAttempts} and
+	 * doubles each failure up to this.
+	 */
+	public long maxBackoff = 10000;
+	/**
+	 * How many connection attempts in a row have failed.
+	 */
+	private int failedAttempts = 0;
+	/**
+	 * The earliest time we try connecting again after a failed attempt.
+	 */
+	private long nextAttemptTime = 0;
+	/**
+	 * Spreads out retries (see {@link #backOff()}). A {@link VirtualNetwork}
+	 * seeds it, so its runs repeat exactly.
+	 */
+	protected Random backoffRandom = new Random();
+	/**
+	 * Where payloads from a {@link BulkTransfer} are saved, or <b>null</b> for the
+	 * system's temporary directory.
+	 */
+	protected File bulkDirectory = null;
+	/**
+	 * Directory of a {@link Server} on this host to connect through with a
+	 * {@link SharedMemoryChannel}, or <b>null</b> to connect with a socket.
+	 */
+	protected File sharedMemory = null;
+	/**
+	 * Bytes each way a {@link SharedMemoryChannel} holds.
+	 */
+	public int sharedMemoryCapacity = 256 * 1024;
+	/**
+	 * Handles connection to a {@link Server} instead of {@link #socket} when
+	 * {@link #sharedMemory} is set.
+	 */
+	protected SharedMemoryChannel channel = null;
+
 	/**
 	 * Initiates {@link Client}. Also uses {@link #addPing(int)} to add a 'ping' of
 	 * -1 to initiate {@link #pingList}.
@@ -249,7 +414,7 @@ public class Client {
 		this.timeBetweenConnectionAttempts = timeBetweenConnectionAttempts;
 		this.username = username;
 		this.me = this;
-		queueTimes.add(System.currentTimeMillis());
+		queueTimes.add(clock.currentTimeMillis());
 		ping = -1;
 		logger.log(LogLevel.DEBUG, "Client created (" + username + ").");
 	}
@@ -269,7 +434,7 @@ public class Client {
 		this.timeBetweenConnectionAttempts = timeBetweenConnectionAttempts;
 		this.username = username;
 		this.me = this;
-		queueTimes.add(System.currentTimeMillis());
+		queueTimes.add(clock.currentTimeMillis());
 		ping = -1;
 		logger.log(LogLevel.DEBUG, "Client created (" + username + ").");
 	}
@@ -329,21 +494,18 @@ public class Client {
 						send = send + USERNAME_SPLITTER + username;
 						logger.log(LogLevel.DEBUG, "Sending to server: " + send);
 						send = "Ping pong" + MESSAGE_SPLITTER + send;
-						out.println(send);
+						println(send);
 					} else {
 						// Don't have any messages to send, just ping the
 						// server
 						// logger.log(LogLevel.DEBUG, "No messages to send.
 						// Pinging server.");
-						out.println("Ping pong" + USERNAME_SPLITTER + username);
+						println("Ping pong" + USERNAME_SPLITTER + username);
 					}
 					if (lag != 0)
-						try {
-							Thread.sleep(lag);
-						} catch (Exception e) {
-						}
+						clock.sleep(lag);
 					// Get input from the Server
-					String line = in.readLine();
+					String line = readLine();
 					// logger.log(LogLevel.DEBUG, "Got raw input: " + line);
 					if (line == null) {
 						logger.log(LogLevel.WARNING,
@@ -351,33 +513,40 @@ public class Client {
 						disconnect();
 						return false;
 					}
+					// Who the messages are from, the same for all of them
+					int userAt = line.indexOf(USERNAME_SPLITTER);
+					if (userAt == -1) {
+						logger.log(LogLevel.WARNING, "Got input without a username, ignoring: " + line);
+						return true;
+					}
+					int userEnd = line.indexOf(USERNAME_SPLITTER, userAt + USERNAME_SPLITTER.length());
+					if (userEnd == -1)
+						userEnd = line.length();
 					// If it contains the message splitter they have
 					// multiple messages to give to us
-					String[] splitInput = null;
-					if (line.contains(MESSAGE_SPLITTER)) {
-						// logger.log(LogLevel.DEBUG, "Got multiple message
-						// pack.");
-						splitInput = line.split(USERNAME_SPLITTER)[0].split(MESSAGE_SPLITTER);
-					} else {
-						// logger.log(LogLevel.DEBUG, "Got single message.");
-						splitInput = new String[] { line.split(USERNAME_SPLITTER)[0] };
-					}
-					for (int i = 0; i < splitInput.length; i++) {
+					int amt = tokenizer.split(line, 0, userAt, MESSAGE_SPLITTER);
+					String from = null;
+					for (int i = 0; i < amt; i++) {
 						// Go through all messages separately
-						splitInput[i] += USERNAME_SPLITTER + line.split(USERNAME_SPLITTER)[1];
-						if (!splitInput[i].startsWith("RECEIVED-=PING"))
-							logger.log(LogLevel.DEBUG, "Got message #" + i + ": " + splitInput[i]);
+						MessageView message = tokenizer.get(i);
+						if (amt == 1 && userEnd == line.length()) {
+							// The whole line is the message, no need to copy it
+							messageView.set(line);
+						} else {
+							if (from == null)
+								from = line.substring(userAt, userEnd);
+							messageView.set(message + from);
+						}
+						if (!messageView.startsWith("RECEIVED-=PING"))
+							logger.log(LogLevel.DEBUG, "Got message #" + i + ": " + messageView);
 						// Process the message from the Server
-						messageHandler.preProcess(me, splitInput[i], connector.port + 1);
-					}
-					try {
-						// Sleep a very small time between processing every
-						// message to avoid lockups/weirdness
-						Thread.sleep(1);
-					} catch (Exception e) {
+						messageHandler.preProcess(me, messageView, connector.port + 1);
 					}
+					// Sleep a very small time between processing every message to
+					// avoid lockups/weirdness
+					clock.sleep(1);
 					if (!timeOffsetCheck && connectionTime != -1
-							&& System.currentTimeMillis() - connectionTime >= 10000) {
+							&& clock.currentTimeMillis() - connectionTime >= 10000) {
 						// Wait 10 seconds after connection to sync time, for
 						// ping to fully settle
 						// Do this after the connection so all pings are
@@ -419,9 +588,10 @@ public class Client {
 		stop = false;
 		maxConnectionAttempts = connectionAttempts;
 		currentConnectionAttempt = 0;
-		Timer timer = new Timer();
-		connector = new Connector(timer, ip, port);
-		timer.scheduleAtFixedRate(connector, 0, timeBetweenConnectionAttempts);
+		failedAttempts = 0;
+		nextAttemptTime = 0;
+		connector = new Connector(ip, port);
+		connector.start(scheduler, timeBetweenConnectionAttempts);
 	}
 
 	/**
@@ -436,38 +606,185 @@ public class Client {
 	private void connect(String ip, int port) {
 		try {
 			logger.log(LogLevel.DEBUG, "Attempting to connect to server.");
-			socket = new Socket();
-			// socket.connect(new InetSocketAddress(ip, port));
-			InetSocketAddress socketAddress = null;
-			int triesLeft = 5;
-			do {
-				socketAddress = new InetSocketAddress(ip, port);
-				triesLeft--;
-				logger.log(LogLevel.DEBUG, "Creating socket address.");
-			} while (socketAddress.isUnresolved() && triesLeft > 0);
-			socket.connect(socketAddress, 0);
-			in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-			out = new PrintWriter(socket.getOutputStream(), true);
-			out.println("CONNECTING" + USERNAME_SPLITTER + username);
-			String input = in.readLine();
+			if (virtualNetwork != null) {
+				VirtualNetwork.Link link = virtualNetwork.connect(this, ip, port);
+				if (link == null)
+					throw new ConnectException("Nobody accepting at " + ip + ":" + port);
+				in = link.in;
+				out = link.out;
+			} else if (sharedMemory != null) {
+				channel = SharedMemoryChannel.create(sharedMemory, sharedMemoryCapacity);
+				channel.setTimeout(handshakeTimeout);
+				in = channel.openReader();
+				out = channel.openWriter(false);
+			} else {
+				// Resolved once per address, not on every attempt
+				if (connector.address == null || connector.address.isUnresolved()) {
+					connector.address = new InetSocketAddress(ip, port);
+					if (connector.address.isUnresolved())
+						throw new UnknownHostException(ip);
+				}
+				socket = new Socket();
+				socket.setTcpNoDelay(true);
+				socket.connect(connector.address, handshakeTimeout);
+				socket.setSoTimeout(handshakeTimeout);
+				in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+				out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream())));
+			}
+			// Everything we have to say goes out together
+			if (room != null)
+				println(RoomServer.ROOM_PREFIX + room, false);
+			if (resumeToken != null)
+				println(RESUME_PREFIX + resumeToken + USERNAME_SPLITTER + username);
+			else
+				println("CONNECTING" + USERNAME_SPLITTER + username);
+			long sentTime = clock.currentTimeMillis();
+			String input = readLine();
+			long receivedTime = clock.currentTimeMillis();
+			if (channel != null)
+				channel.setTimeout(0);
+			else if (socket != null)
+				socket.setSoTimeout(0);
 			logger.log(LogLevel.DEBUG, "Got raw input from server: " + input);
-			if (input.startsWith("CONNECTING") && input.contains(":")) {
+			int userAt = input == null ? -1 : input.indexOf(USERNAME_SPLITTER);
+			if (userAt != -1 && input.startsWith("CONNECTING:")) {
 				connecting = false;
 				logger.log(LogLevel.DEBUG, "Found connecting server.");
-				seed = Long.parseLong(input.split(":")[1].split(USERNAME_SPLITTER)[0]);
-				logger.log(LogLevel.DEBUG, "Got seed: " + seed);
-				theirName = input.split(":")[1].split(USERNAME_SPLITTER)[1];
+				theirName = input.substring(userAt + USERNAME_SPLITTER.length());
 				logger.log(LogLevel.DEBUG, "Got their name: " + theirName);
+				// CONNECTING:seed:time, then any initial state
+				int amt = tokenizer.split(input, 0, userAt, MESSAGE_SPLITTER);
+				String[] hello = tokenizer.get(0).toString().split(":");
+				seed = Long.parseLong(hello[1]);
+				logger.log(LogLevel.DEBUG, "Got seed: " + seed);
+				if (hello.length > 2)
+					syncTime(Long.parseLong(hello[2]), sentTime, receivedTime);
+				List<String> state = new ArrayList<String>(amt);
+				for (int i = 1; i < amt; i++)
+					state.add(tokenizer.get(i) + USERNAME_SPLITTER + theirName);
 				connected = true;
 				logger.log(LogLevel.NORMAL, "Successfully connected to server!");
+				resumeToken = null;
 				maxConnectionAttempts = -1;
+				for (int i = 0; i < state.size(); i++)
+					messageHandler.preProcess(me, state.get(i), port + 1);
+			} else {
+				logger.log(LogLevel.WARNING, "Server didn't reply to CONNECTING properly: " + input);
+				closeConnection();
 			}
 		} catch (Exception e) {
-			logger.err(LogLevel.WARNING, "Could not connect to server.");
-			e.printStackTrace();
+			logger.err(LogLevel.WARNING, "Could not connect to server: " + e);
+			closeConnection();
 		}
 	}
 
+	/**
+	 * Closes {@link #socket} or {@link #channel}, whichever we are using, or
+	 * {@link #out} if connected through {@link #virtualNetwork}.
+	 */
+	private void closeConnection() {
+		try {
+			if (channel != null)
+				channel.close();
+			else if (socket != null)
+				socket.close();
+			else if (out != null)
+				out.close();
+		} catch (Exception e) {
+		}
+	}
+
+	/**
+	 * Sets {@link #timeOffset} from the {@link Server}'s time in its
+	 * <i>CONNECTING:</i> reply. If that time falls within our round trip our
+	 * clocks already agree; otherwise it was most likely read halfway through.
+	 * Refined later by <i>SYNCTIME</i>.
+	 */
+	private void syncTime(long serverTime, long sentTime, long receivedTime) {
+		long difference = serverTime + (receivedTime - sentTime) / 2 - receivedTime;
+		if (serverTime < sentTime - 20 || serverTime > receivedTime + 20)
+			timeOffset = (int) difference;
+		logger.log(LogLevel.DEBUG, "Time offset from handshake: " + difference + " (rtt "
+				+ (receivedTime - sentTime) + ")");
+	}
+
+	/**
+	 * Puts off the next connection attempt after a failed one: twice as long as
+	 * last time (starting at {@link #timeBetweenConnectionAttempts}, up to
+	 * {@link #maxBackoff}), randomly shortened by up to half so {@link Client}s
+	 * that lost the {@link Server} together don't all retry together.
+	 */
+	private void backOff() {
+		failedAttempts++;
+		long backoff = timeBetweenConnectionAttempts;
+		for (int i = 1; i < failedAttempts && backoff < maxBackoff; i++)
+			backoff *= 2;
+		backoff = Math.max(1, Math.min(maxBackoff, backoff));
+		backoff -= (long) (backoffRandom.nextDouble() * backoff / 2);
+		nextAttemptTime = clock.currentTimeMillis() + backoff;
+		logger.log(LogLevel.DEBUG, "Trying again in " + backoff + "ms.");
+	}
+
+	/**
+	 * Sends a single line to the {@link Server}, recording it in {@link #journal}
+	 * if set.
+	 */
+	private void println(String line) {
+		println(line, true);
+	}
+
+	/**
+	 * Sends a single line to the {@link Server}, recording it in {@link #journal}
+	 * if set.
+	 * 
+	 * @param flush
+	 *            If <b>false</b>, the line waits to go out with the next one.
+	 */
+	private void println(String line, boolean flush) {
+		out.println(line);
+		if (flush)
+			out.flush();
+		if (journal != null)
+			journal.record(journalID, NetworkJournal.OUTBOUND, line);
+	}
+
+	/**
+	 * Reads a single line from the {@link Server}, recording it in
+	 * {@link #journal} if set.
+	 */
+	private String readLine() throws IOException {
+		String line = in.readLine();
+		if (line != null && journal != null)
+			journal.record(journalID, NetworkJournal.INBOUND, line);
+		return line;
+	}
+
+	/**
+	 * @return {@link #journal}.
+	 */
+	public NetworkJournal getJournal() {
+		return journal;
+	}
+
+	/**
+	 * @param journal
+	 *            See {@link #journal}, or <b>null</b> to stop recording.
+	 */
+	public void setJournal(NetworkJournal journal) {
+		this.journal = journal;
+	}
+
+	/**
+	 * @param journal
+	 *            See {@link #journal}, or <b>null</b> to stop recording.
+	 * @param journalID
+	 *            See {@link #journalID}.
+	 */
+	public void setJournal(NetworkJournal journal, int journalID) {
+		this.journal = journal;
+		this.journalID = journalID;
+	}
+
 	/**
 	 * Puts a given message into the {@link #queue} of messages to send to the
 	 * {@link Server}.<br>
@@ -481,7 +798,7 @@ public class Client {
 	public void sendMessageToServer(String message) {
 		logger.log(LogLevel.DEBUG, "Queueing message to send to server: (" + message + ")");
 		queue.add(message);
-		queueTimes.add(System.currentTimeMillis());
+		queueTimes.add(clock.currentTimeMillis());
 	}
 
 	/**
@@ -591,7 +908,43 @@ public class Client {
 		out = null;
 		in = null;
 		socket = null;
+		channel = null;
+		connected = false;
+	}
+
+	/**
+	 * Drops our connection and connects to another {@link Server} node instead,
+	 * resuming our session there with <b>resumeToken</b>. Messages we have queued
+	 * are kept and sent once we are connected. Used when the {@link Server} tells
+	 * us it moved us, with <i>REDIRECT:</i>.
+	 * 
+	 * @param ip
+	 *            The node's IP.
+	 * @param port
+	 *            The node's port.
+	 * @param resumeToken
+	 *            See {@link #resumeToken}.
+	 */
+	public void redirect(String ip, int port, String resumeToken) {
+		logger.log(LogLevel.NORMAL, "Server moved us to " + ip + ":" + port + ", reconnecting.");
+		this.resumeToken = resumeToken;
 		connected = false;
+		connecting = true;
+		closeConnection();
+		out = null;
+		in = null;
+		socket = null;
+		channel = null;
+		// The node we move to is reached at its address, not our shared memory
+		sharedMemory = null;
+		connector.IP = ip;
+		connector.port = port;
+		connector.address = null;
+		// Reconnect as soon as we're done with this exchange, not a tick later
+		failedAttempts = 0;
+		nextAttemptTime = 0;
+		if (connector.thread != null)
+			connector.thread.go = true;
 	}
 
 	/**
@@ -605,8 +958,9 @@ public class Client {
 
 	/**
 	 * Attempts to establish a connection with the {@link Server} via
-	 * {@link #connect(String, int)}, meant for being used with a {@link Timer} to
-	 * attempt connection until a connection is successfully established.<br>
+	 * {@link #connect(String, int)}, meant for being run repeatedly by a
+	 * {@link NetworkScheduler} to attempt connection until a connection is
+	 * successfully established.<br>
 	 * <br>
 	 * Once a connection is established, this class instead uses
 	 * {@link #connectToServer(String, int)} to communicate with the {@link Server}.
@@ -614,7 +968,7 @@ public class Client {
 	 * @author Nathan
 	 * 
 	 */
-	public class Connector extends TimerTask {
+	public class Connector implements Runnable {
 		/**
 		 * The {@link Thread}, used for handling actions in a separate Thread than the
 		 * rest of the {@link Client}.
@@ -630,9 +984,9 @@ public class Client {
 		 */
 		private boolean running = false;
 		/**
-		 * The timer that is activating this {@link Connector}.
+		 * The scheduled repetition of this {@link Connector}, used to cancel it.
 		 */
-		private Timer ourTimer = null;
+		private ScheduledFuture<?> future = null;
 		/**
 		 * The IP address of the {@link Server} we wish to connect to.
 		 */
@@ -641,24 +995,69 @@ public class Client {
 		 * The port of the {@link Server} we wish to connect to.
 		 */
 		private int port = -1;
+		/**
+		 * {@link #IP} and {@link #port}, resolved on our first attempt.
+		 */
+		private InetSocketAddress address = null;
+		/**
+		 * The {@link NetworkScheduler} running this {@link Connector}.
+		 */
+		private NetworkScheduler scheduler = null;
+		/**
+		 * How often (in milliseconds) this {@link Connector} runs.
+		 */
+		private long period = -1;
 
 		/**
-		 * Initiates {@link Connector}.
+		 * Initiates {@link Connector} and starts its {@link #thread}, which waits
+		 * until {@link #start(NetworkScheduler, long)} is called. If our
+		 * {@link Client#scheduler} is {@link NetworkScheduler#isVirtual()}, there
+		 * is no {@link #thread}: we work straight from {@link #run()} instead.
 		 * 
-		 * @param ourTimer
-		 *            {@link Connector#ourTimer}
 		 * @param IP
 		 *            {@link Connector#IP}
 		 * @param port
 		 *            {@link Connector#port}
 		 */
-		public Connector(Timer ourTimer, String IP, int port) {
-			this.ourTimer = ourTimer;
+		public Connector(String IP, int port) {
 			this.IP = IP;
 			this.port = port;
-			thread = new ConnectorThread();
-			thread.start();
-			logger.log(LogLevel.DEBUG, "Connector (TimerTask) created.");
+			if (!me.scheduler.isVirtual()) {
+				thread = new ConnectorThread();
+				thread.start();
+			}
+			logger.log(LogLevel.DEBUG, "Connector created.");
+		}
+
+		/**
+		 * Starts running this {@link Connector} on <b>scheduler</b> every
+		 * <b>period</b> milliseconds.
+		 */
+		public void start(NetworkScheduler scheduler, long period) {
+			this.scheduler = scheduler;
+			this.period = period;
+			future = scheduler.scheduleAtFixedRate(this, 0, period);
+		}
+
+		/**
+		 * Changes how often this {@link Connector} runs, if it has been started.
+		 * 
+		 * @param period
+		 *            The new period, in milliseconds.
+		 */
+		public synchronized void setPeriod(long period) {
+			if (future == null || period == this.period)
+				return;
+			future.cancel(false);
+			this.period = period;
+			future = scheduler.scheduleAtFixedRate(this, period, period);
+		}
+
+		/**
+		 * @return How often (in milliseconds) this {@link Connector} runs.
+		 */
+		public long getPeriod() {
+			return period;
 		}
 
 		/**
@@ -670,63 +1069,88 @@ public class Client {
 		}
 
 		/**
+		 * Wakes up {@link #thread}, or does its work right away if we don't have
+		 * one.
+		 * 
 		 * @see ConnectorThread#run()
 		 */
 		public void run() {
+			if (thread == null) {
+				work();
+				return;
+			}
 			thread.go = true;
+			LockSupport.unpark(thread);
+		}
+
+		/**
+		 * Before we are connected to a {@link Server}, uses
+		 * {@link #connect(String, int)} to connect to a {@link Server}.<br>
+		 * <br>
+		 * Once a connection is established, uses {@link #talkToServer()} to communicate
+		 * with the {@link Server}.
+		 * 
+		 * @return <b>false</b> if we have nowhere to connect to, and should stop.
+		 */
+		private boolean work() {
+			// logger.log(LogLevel.DEBUG, "Running...");
+			if (currentConnectionAttempt > maxConnectionAttempts && maxConnectionAttempts != -1) {
+				logger.log(LogLevel.NORMAL, "Attempted to connect max amount of times! Disconnecting.");
+				disconnect();
+			} else {
+				if (IP == null || port == -1) {
+					logger.log(LogLevel.ERROR, "Connector attempting to connect, but no IP/port was set!");
+					return false;
+				} else if (!override && !running && !stop) {
+					running = true;
+					if (!me.connected) {
+						connectionTime = -1;
+						if (clock.currentTimeMillis() >= nextAttemptTime) {
+							currentConnectionAttempt++;
+							logger.log(LogLevel.DEBUG, "Trying to connect to Server (" + IP + "/" + port + ")...");
+							me.connect(IP, port);
+							if (me.connected) {
+								failedAttempts = 0;
+								connectionTime = clock.currentTimeMillis();
+								// Our first exchange right away, rather than a tick later
+								talkToServer();
+							} else if (!stop)
+								backOff();
+						}
+					} else {
+						if (connectionTime == -1)
+							connectionTime = clock.currentTimeMillis();
+						// logger.log(LogLevel.DEBUG, "Trying to
+						// connect and talk...");
+						talkToServer();
+					}
+				} else {
+					logger.err(LogLevel.WARNING, "?? " + override + ":" + running + ":" + stop);
+				}
+			}
+			running = false;
+			return true;
 		}
 
 		public class ConnectorThread extends Thread {
 			/**
 			 * Whether or not to run - changed by {@link Connector#run()}.
 			 */
-			public boolean go = false;
+			public volatile boolean go = false;
 
 			/**
-			 * Before we are connected to a {@link Server}, uses
-			 * {@link #connect(String, int)} to connect to a {@link Server}.<br>
-			 * <br>
-			 * Once a connection is established, uses {@link #talkToServer()} to communicate
-			 * with the {@link Server}.
+			 * Does {@link Connector#work()} every time {@link Connector#run()} wakes
+			 * us.
 			 */
 			@Override
 			public void run() {
 				while (!override) {
 					if (go) {
 						go = false;
-						// logger.log(LogLevel.DEBUG, "Running...");
-						if (currentConnectionAttempt > maxConnectionAttempts && maxConnectionAttempts != -1) {
-							logger.log(LogLevel.NORMAL, "Attempted to connect max amount of times! Disconnecting.");
-							disconnect();
-						} else {
-							if (IP == null || port == -1) {
-								logger.log(LogLevel.ERROR, "Connector attempting to connect, but no IP/port was set!");
-								return;
-							} else if (!override && !running && !stop) {
-								running = true;
-								currentConnectionAttempt++;
-								if (!me.connected) {
-									connectionTime = -1;
-									logger.log(LogLevel.DEBUG,
-											"Trying to connect to Server (" + IP + "/" + port + ")...");
-									me.connect(IP, port);
-								} else {
-									if (connectionTime == -1)
-										connectionTime = System.currentTimeMillis();
-									// logger.log(LogLevel.DEBUG, "Trying to
-									// connect and talk...");
-									talkToServer();
-								}
-							} else {
-								logger.err(LogLevel.WARNING, "?? " + override + ":" + running + ":" + stop);
-							}
-						}
-						running = false;
+						if (!work())
+							return;
 					} else
-						try {
-							sleep(1);
-						} catch (InterruptedException e) {
-						}
+						LockSupport.park(this);
 				}
 			}
 		}
@@ -739,18 +1163,22 @@ public class Client {
 		}
 
 		/**
-		 * Stops this {@link Connector} and it's {@link Timer}s.
+		 * Stops this {@link Connector}, cancels its scheduled repetition and lets
+		 * {@link #thread} end.
 		 */
 		public void stop() {
 			logger.log(LogLevel.DEBUG, "Stopping Connector.");
-			if (ourTimer != null) {
-				ourTimer.cancel();
-				ourTimer.purge();
-				ourTimer = null;
+			synchronized (this) {
+				if (future != null) {
+					future.cancel(false);
+					future = null;
+				}
 			}
 			override(true);
-			thread.interrupt();
-			cancel();
+			if (thread != null) {
+				thread.interrupt();
+				LockSupport.unpark(thread);
+			}
 		}
 
 		/**
@@ -770,6 +1198,50 @@ public class Client {
 		username = newUsername;
 	}
 
+	/**
+	 * @param room
+	 *            The room to join on our next connection. See {@link #room}.
+	 */
+	public void setRoom(String room) {
+		this.room = room;
+	}
+
+	/**
+	 * @return {@link #room}.
+	 */
+	public String getRoom() {
+		return room;
+	}
+
+	/**
+	 * @see {@link #scheduler}.
+	 */
+	public NetworkScheduler getScheduler() {
+		return scheduler;
+	}
+
+	/**
+	 * Sets {@link #scheduler}. Only affects connections started afterwards.
+	 */
+	public void setScheduler(NetworkScheduler scheduler) {
+		this.scheduler = scheduler;
+	}
+
+	/**
+	 * @see {@link #clock}.
+	 */
+	public Clock getClock() {
+		return clock;
+	}
+
+	/**
+	 * @param clock
+	 *            See {@link #clock}.
+	 */
+	public void setClock(Clock clock) {
+		this.clock = clock;
+	}
+
 	/**
 	 * @return {@link #seed}.
 	 */
@@ -777,6 +1249,97 @@ public class Client {
 		return seed;
 	}
 
+	/**
+	 * @param bulkDirectory
+	 *            See {@link #bulkDirectory}.
+	 */
+	public void setBulkDirectory(File bulkDirectory) {
+		this.bulkDirectory = bulkDirectory;
+	}
+
+	/**
+	 * @param sharedMemory
+	 *            See {@link #sharedMemory}. Must be the directory given to the
+	 *            {@link Server}'s {@link Server#openSharedMemory(File)}. The IP and
+	 *            port given to {@link #connectToServer(String, int, int)} are then
+	 *            only used to fetch payloads from a {@link BulkTransfer}.
+	 */
+	public void setSharedMemory(File sharedMemory) {
+		this.sharedMemory = sharedMemory;
+	}
+
+	/**
+	 * Fetches a payload the {@link Server} offered with <i>BULK_OFFER:</i> on a
+	 * thread of its own, saving it to a new file in {@link #bulkDirectory}. Our
+	 * {@link #messageHandler} is told how it goes.
+	 * 
+	 * @param id
+	 *            The offer's id.
+	 * @param size
+	 *            The payload's size, in bytes.
+	 * @param port
+	 *            The {@link Server}'s {@link BulkTransfer} port.
+	 * @param name
+	 *            What the payload is called.
+	 */
+	public void fetchBulk(final String id, final long size, final int port, final String name) {
+		final String ip = connector.IP;
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				File file = null;
+				SocketChannel channel = null;
+				try {
+					file = File.createTempFile("bulk", ".tmp", bulkDirectory);
+					channel = SocketChannel.open(new InetSocketAddress(ip, port));
+					channel.write(ByteBuffer.wrap((id + "\n").getBytes("UTF-8")));
+					FileOutputStream out = new FileOutputStream(file);
+					try {
+						FileChannel fileChannel = out.getChannel();
+						ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+						long received = 0;
+						while (received < size) {
+							buffer.clear();
+							if (size - received < buffer.capacity())
+								buffer.limit((int) (size - received));
+							int amt = channel.read(buffer);
+							if (amt == -1)
+								throw new IOException("Server closed the connection after " + received + " of " + size
+										+ " bytes.");
+							buffer.flip();
+							while (buffer.hasRemaining())
+								fileChannel.write(buffer);
+							received += amt;
+							messageHandler.onBulkProgress(me, name, received, size);
+						}
+					} finally {
+						out.close();
+					}
+					logger.log(LogLevel.DEBUG, "Received " + name + " (" + size + " bytes).");
+					if (name.startsWith(SnapshotBootstrap.SNAPSHOT_PREFIX)) {
+						long tick = Long.parseLong(name.substring(SnapshotBootstrap.SNAPSHOT_PREFIX.length()));
+						messageHandler.onSnapshot(me, tick, file);
+						// Everything published since is sent once the Server hears this
+						sendMessageToServer(SnapshotBootstrap.LOADED_PREFIX + tick);
+					} else
+						messageHandler.onBulkReceived(me, name, file);
+				} catch (IOException e) {
+					logger.log(LogLevel.WARNING, "Couldn't fetch " + name + ": " + e.getMessage());
+					if (file != null)
+						file.delete();
+					messageHandler.onBulkFailed(me, name, e);
+				} finally {
+					try {
+						if (channel != null)
+							channel.close();
+					} catch (IOException e) {
+					}
+				}
+			}
+		}, "BulkTransfer fetch");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
 	/**
 	 * Abstract class meant to be used to decode all messages sent from a
 	 * {@link Server} through a {@link Handler}. This is where all the net-code
@@ -789,17 +1352,189 @@ public class Client {
 		public abstract void process(String message);
 
 		/**
-		 * Hard-coded pre-processing of {@link Server} input where necessary. <br>
-		 * If message.startsWith(EXITING), disconnect Client.<br>
-		 * If message.startsWith(MOVE_TO_P2P), we are moving to a Peer-to-Peer
-		 * connection, so disconnect this Client and set {@link #p2pNetwork}.<br>
-		 * If message.startsWith(SYNCTIME:), we are receiving a response from the Server
-		 * with their currentTimeMillis, set {@link Client#timeOffset} accordingly.
+		 * Picks what to do with each message by its type (see {@link MessageRouter}).
+		 * Messages a {@link MessageRouter.Route} doesn't consume go on to
+		 * {@link #process(String)}.
+		 */
+		protected final MessageRouter<Client> router = new MessageRouter<Client>();
+		/**
+		 * If set, {@link #process(String)} is run on the game thread, in the order
+		 * messages arrived, right before its next {@link Game#gameTick()} (see
+		 * {@link Game#getInbox()}), instead of on ours. Routes in {@link #router}
+		 * still run on ours. <b>null</b> by default.
+		 */
+		protected volatile GameInbox gameInbox = null;
+
+		/**
+		 * Initiates {@link ClientMessageHandler} with the hard-coded routes:<br>
+		 * <i>EXITING</i>: disconnect the {@link Client}, consumed.<br>
+		 * <i>MOVE_TO_P2P</i>: we are moving to a Peer-to-Peer connection, so
+		 * disconnect this {@link Client} and set {@link Client#p2pNetwork}.<br>
+		 * <i>SENDRATE</i>: the {@link Server} wants us to talk to it at a different
+		 * interval.<br>
+		 * <i>REDIRECT</i>: the {@link Server} moved us to another node, so reconnect
+		 * there with {@link Client#redirect(String, int, String)}.<br>
+		 * <i>BULK_OFFER</i>: the {@link Server} has a payload for us, so fetch it with
+		 * {@link Client#fetchBulk(String, long, int, String)}.<br>
+		 * <i>SYNCTIME</i>: we are receiving a response from the {@link Server} with
+		 * their currentTimeMillis, set {@link Client#timeOffset} accordingly.
+		 */
+		public ClientMessageHandler() {
+			router.register("EXITING", new MessageRouter.Route<Client>() {
+				public boolean route(Client client, String message) {
+					client.disconnect();
+					return true;
+				}
+			});
+			router.register("MOVE_TO_P2P", new MessageRouter.Route<Client>() {
+				public boolean route(Client client, String message) {
+					client.logger.log(LogLevel.WARNING,
+							"Received message to move to Peer-to-Peer connectivity, shutting this Client down.",
+							"Use client.getP2PNetwork() to retrieve the new P2PNetwork instance that is replacing this Client.",
+							"If you want to use your own message handler, please add it to the P2PNetwork now.");
+					String serverIP = client.connector.IP;
+					int port = client.connector.port + 1;
+					Logger logger = client.logger.clone();
+					client.disconnect();
+					VirtualNetwork virtualNetwork = client.virtualNetwork;
+					client.p2pNetwork = new P2PNetwork(
+							serverIP + "@@@" + message.split(":")[1].substring(3).split(USERNAME_SPLITTER)[0], port,
+							logger, client.timeBetweenConnectionAttempts, client.p2pServerMessageHandler,
+							client.p2pClientMessageHandler, virtualNetwork,
+							virtualNetwork == null ? null : virtualNetwork.getHost(client));
+					return false;
+				}
+			});
+			router.register("SENDRATE", new MessageRouter.Route<Client>() {
+				public boolean route(Client client, String message) {
+					long interval = Long.parseLong(message.split(":")[1].split(USERNAME_SPLITTER)[0]);
+					// Never faster than we were set up to talk
+					client.connector.setPeriod(Math.max(client.timeBetweenConnectionAttempts, interval));
+					client.logger.log(LogLevel.DEBUG, "Server set our send interval to " + interval + "ms.");
+					return false;
+				}
+			});
+			router.register("REDIRECT", new MessageRouter.Route<Client>() {
+				public boolean route(Client client, String message) {
+					String[] redirect = message.split(USERNAME_SPLITTER)[0].substring(REDIRECT_PREFIX.length())
+							.split(":", 3);
+					client.redirect(redirect[2], Integer.parseInt(redirect[1]), redirect[0]);
+					return false;
+				}
+			});
+			router.register("BULK_OFFER", new MessageRouter.Route<Client>() {
+				public boolean route(Client client, String message) {
+					String[] offer = message.split(USERNAME_SPLITTER)[0].substring(BulkTransfer.OFFER_PREFIX.length())
+							.split(":", 4);
+					client.fetchBulk(offer[0], Long.parseLong(offer[1]), Integer.parseInt(offer[2]), offer[3]);
+					return false;
+				}
+			});
+			router.register("SYNCTIME", new MessageRouter.Route<Client>() {
+				public boolean route(Client client, String message) {
+					if (!message.startsWith("SYNCTIME:"))
+						return false;
+					long time = Long.parseLong(message.split(":")[1].split(USERNAME_SPLITTER)[0]);
+					long ourTime = client.clock.currentTimeMillis();
+					int delay = client.getPing();
+					client.logger.log(LogLevel.ERROR, "Got SyncTime response from Server: " + time);
+					long difference = time + delay - ourTime;
+					client.logger.log(LogLevel.ERROR,
+							"Our time is: " + ourTime + ", delay (rtt): " + delay + ", difference=" + difference);
+					if (Math.abs(difference) < 20) {
+						client.logger.log(LogLevel.ERROR, "Difference<20, so it's probably on-time, just leave it.");
+					} else {
+						client.logger.log(LogLevel.ERROR, "Difference was >20! (" + difference + ") Updated our time.");
+						client.timeOffset = (int) difference;
+					}
+					return false;
+				}
+			});
+		}
+
+		/**
+		 * @return {@link #router}, to route messages of your own.
+		 */
+		public MessageRouter<Client> getRouter() {
+			return router;
+		}
+
+		/**
+		 * Runs as a payload from {@link Client#fetchBulk(String, long, int, String)}
+		 * arrives, on the thread fetching it. Does nothing unless overridden.
+		 */
+		public void onBulkProgress(Client client, String name, long received, long size) {
+
+		}
+
+		/**
+		 * Runs once a payload from {@link Client#fetchBulk(String, long, int, String)}
+		 * has been saved to <b>file</b>, on the thread that fetched it. Does nothing
+		 * unless overridden.
+		 */
+		public void onBulkReceived(Client client, String name, File file) {
+
+		}
+
+		/**
+		 * Runs once a snapshot from the {@link Server}'s {@link SnapshotBootstrap} has
+		 * been saved to <b>file</b>: load it before returning. The changes published
+		 * after <b>tick</b> follow through {@link #process(String)}. Does nothing
+		 * unless overridden.
+		 */
+		public void onSnapshot(Client client, long tick, File file) {
+
+		}
+
+		/**
+		 * Runs if a payload from {@link Client#fetchBulk(String, long, int, String)}
+		 * couldn't be fetched. Does nothing unless overridden.
+		 */
+		public void onBulkFailed(Client client, String name, Exception e) {
+
+		}
+
+		/**
+		 * Takes the ping value out of <b>message</b> (if it has one) without
+		 * copying anything it doesn't have to, then hands it on to
+		 * {@link #preProcess(Client, String, int)}.
+		 * 
+		 * @param client
+		 *            The {@link Client} in which this message handling is taking place.
+		 * @param message
+		 *            input from a {@link Server}, only valid during this call.
+		 */
+		public void preProcess(Client client, MessageView message, int port) {
+			int pingAt = message.indexOf(PING_SPLITTER, 0);
+			if (pingAt == -1) {
+				preProcess(client, message.toString(), port);
+				return;
+			}
+			int userAt = message.indexOf(USERNAME_SPLITTER, pingAt);
+			if (userAt == -1) {
+				// No username to keep, let the String version deal with it
+				preProcess(client, message.toString(), port);
+				return;
+			}
+			client.ping = message.parseInt(pingAt + PING_SPLITTER.length(), userAt);
+			if (!message.equalsWithout(client.lastUnpingedMessage, pingAt, userAt))
+				client.lastUnpingedMessage = message.toString(0, pingAt)
+						+ message.toString(userAt, message.length());
+			preProcess(client, client.lastUnpingedMessage, port);
+		}
+
+		/**
+		 * Hard-coded pre-processing of {@link Server} input where necessary, through
+		 * {@link #router}. Messages it doesn't consume go on to
+		 * {@link #process(String)}.
 		 * 
 		 * @param client
 		 *            The {@link Client} in which this message handling is taking place.
 		 * @param message
 		 *            input from a {@link Server}.
+		 * @param port
+		 *            No longer used: the Peer-to-Peer port is worked out from our
+		 *            connection.
 		 */
 		public void preProcess(Client client, String message, int port) {
 			if (message.contains(PING_SPLITTER)) {
@@ -808,37 +1543,40 @@ public class Client {
 				client.ping = Integer.parseInt(ping);
 				message = message.split(PING_SPLITTER)[0] + USERNAME_SPLITTER + username;
 			}
-			if (message.startsWith("EXITING")) {
-				client.disconnect();
-				return;
-			} else if (message.startsWith("MOVE_TO_P2P:")) {
-				client.logger.log(LogLevel.WARNING,
-						"Received message to move to Peer-to-Peer connectivity, shutting this Client down.",
-						"Use client.getP2PNetwork() to retrieve the new P2PNetwork instance that is replacing this Client.",
-						"If you want to use your own message handler, please add it to the P2PNetwork now.");
-				String serverIP = client.connector.IP;
-				Logger logger = client.logger.clone();
-				client.disconnect();
-				client.p2pNetwork = new P2PNetwork(
-						serverIP + "@@@" + message.split(":")[1].substring(3).split(USERNAME_SPLITTER)[0], port, logger,
-						client.timeBetweenConnectionAttempts, client.p2pServerMessageHandler,
-						client.p2pClientMessageHandler);
-			} else if (message.startsWith("SYNCTIME:")) {
-				long time = Long.parseLong(message.split(":")[1].split(USERNAME_SPLITTER)[0]);
-				long ourTime = System.currentTimeMillis();
-				int delay = client.getPing();
-				client.logger.log(LogLevel.ERROR, "Got SyncTime response from Server: " + time);
-				long difference = time + delay - ourTime;
-				client.logger.log(LogLevel.ERROR,
-						"Our time is: " + ourTime + ", delay (rtt): " + delay + ", difference=" + difference);
-				if (Math.abs(difference) < 20) {
-					client.logger.log(LogLevel.ERROR, "Difference<20, so it's probably on-time, just leave it.");
-				} else {
-					client.logger.log(LogLevel.ERROR, "Difference was >20! (" + difference + ") Updated our time.");
-					client.timeOffset = (int) difference;
-				}
-			}
-			process(message);
+			if (!router.route(client, message))
+				handOff(message);
+		}
+
+		/**
+		 * Runs {@link #process(String)} with <b>message</b>, on the game thread if
+		 * {@link #gameInbox} is set.
+		 */
+		protected void handOff(final String message) {
+			GameInbox gameInbox = this.gameInbox;
+			if (gameInbox == null)
+				process(message);
+			else
+				gameInbox.post(new Runnable() {
+					public void run() {
+						process(message);
+					}
+				});
+		}
+
+		/**
+		 * @param gameInbox
+		 *            See {@link #gameInbox}, or <b>null</b> to process messages as
+		 *            soon as they arrive.
+		 */
+		public void setGameInbox(GameInbox gameInbox) {
+			this.gameInbox = gameInbox;
+		}
+
+		/**
+		 * @return {@link #gameInbox}.
+		 */
+		public GameInbox getGameInbox() {
+			return gameInbox;
 		}
 	}
 
@@ -877,7 +1615,7 @@ public class Client {
 	 *         clock.
 	 */
 	public long currentTimeMillis() {
-		return System.currentTimeMillis() + (long) timeOffset;
+		return clock.currentTimeMillis() + (long) timeOffset;
 	}
 
 }
@@ -0,0 +1,287 @@
+package com.github.vegeto079.ngcommontools.networking;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.github.vegeto079.ngcommontools.main.DoublePoint;
+import com.github.vegeto079.ngcommontools.networking.Server.Handler;
+
+/**
+ * Keeps track of which area of the world each {@link Client} is interested in,
+ * so that a {@link Server} only sends an update to the {@link Handler}s that
+ * can actually see it, rather than everyone (as
+ * {@link Server#sendMessageToAllClients(String)} does).<br>
+ * <br>
+ * Each {@link Handler} registers a position and radius with
+ * {@link #setInterest(Handler, double, double, double)}. The interest areas are
+ * indexed in a grid of square cells {@link #cellSize} wide, so finding who is
+ * interested in a point only looks at the {@link Handler}s in that one cell.
+ * Entities can also be given a position with
+ * {@link #setEntityPosition(String, double, double)} so updates can be sent by
+ * entity with {@link #sendEntityUpdate(String, String)}.<br>
+ * <br>
+ * Set on a {@link Server} with {@link Server#setInterestManager(InterestManager)}.
+ *
+ * @author Nathan
+ * @version 1.0: Started tracking version.
+ * @version 1.01: Non-finite positions and negative or non-finite radii are
+ *          rejected. Areas spanning more than {@link #maxCellSpan} cells are
+ *          kept in {@link #wide} instead of the grid.
+ */
+public class InterestManager {
+	/**
+	 * Width and height of each grid cell, in world units. Works best at around the
+	 * size of a typical interest radius.
+	 */
+	protected final double cellSize;
+	/**
+	 * Every {@link Handler} whose interest area overlaps a cell, by cell key (see
+	 * {@link #cellKey(int, int)}).
+	 */
+	protected Map<Long, ArrayList<Interest>> grid = new HashMap<Long, ArrayList<Interest>>();
+	/**
+	 * The current {@link Interest} of each registered {@link Handler}.
+	 */
+	protected Map<Handler, Interest> interests = new HashMap<Handler, Interest>();
+	/**
+	 * The last known position of every entity, by entity id.
+	 */
+	protected Map<String, DoublePoint> entities = new HashMap<String, DoublePoint>();
+	/**
+	 * The most cells an interest area can span on either axis and still be put
+	 * in {@link #grid}. Larger ones go in {@link #wide}.
+	 */
+	public int maxCellSpan = 64;
+	/**
+	 * Interest areas too large for {@link #grid} (see {@link #maxCellSpan}),
+	 * checked on every lookup instead.
+	 */
+	protected ArrayList<Interest> wide = new ArrayList<Interest>();
+
+	/**
+	 * Initiates {@link InterestManager}.
+	 *
+	 * @param cellSize
+	 *            See {@link #cellSize}.
+	 */
+	public InterestManager(double cellSize) {
+		if (cellSize <= 0)
+			throw new IllegalArgumentException("cellSize must be >0.");
+		this.cellSize = cellSize;
+	}
+
+	/**
+	 * Sets (or moves) the area <b>handler</b> is interested in. Only cells whose
+	 * coverage changed are touched.
+	 *
+	 * @param handler
+	 *            The {@link Handler} of the {@link Client}.
+	 * @param x
+	 *            Center x of the area.
+	 * @param y
+	 *            Center y of the area.
+	 * @param radius
+	 *            Radius of the area.
+	 * @throws IllegalArgumentException
+	 *             If <b>x</b> or <b>y</b> isn't finite, or <b>radius</b> isn't
+	 *             finite and at least 0.
+	 */
+	public synchronized void setInterest(Handler handler, double x, double y, double radius) {
+		if (Double.isNaN(x) || Double.isInfinite(x) || Double.isNaN(y) || Double.isInfinite(y))
+			throw new IllegalArgumentException("x and y must be finite.");
+		if (Double.isNaN(radius) || Double.isInfinite(radius) || radius < 0)
+			throw new IllegalArgumentException("radius must be finite and >=0.");
+		Interest interest = interests.get(handler);
+		if (interest == null) {
+			interest = new Interest(handler);
+			interests.put(handler, interest);
+		} else if (interest.x == x && interest.y == y && interest.radius == radius) {
+			return;
+		}
+		int minX = cell(x - radius), maxX = cell(x + radius);
+		int minY = cell(y - radius), maxY = cell(y + radius);
+		if (interest.indexed && (minX != interest.minX || maxX != interest.maxX || minY != interest.minY
+				|| maxY != interest.maxY)) {
+			unindex(interest);
+		}
+		interest.x = x;
+		interest.y = y;
+		interest.radius = radius;
+		if (!interest.indexed) {
+			interest.minX = minX;
+			interest.maxX = maxX;
+			interest.minY = minY;
+			interest.maxY = maxY;
+			index(interest);
+		}
+	}
+
+	/**
+	 * Stops sending anything to <b>handler</b> through this
+	 * {@link InterestManager}. Called automatically by {@link Server} when a
+	 * {@link Handler} is removed.
+	 */
+	public synchronized void removeInterest(Handler handler) {
+		Interest interest = interests.remove(handler);
+		if (interest != null && interest.indexed)
+			unindex(interest);
+	}
+
+	/**
+	 * @return Whether or not <b>handler</b> has registered an interest area.
+	 */
+	public synchronized boolean hasInterest(Handler handler) {
+		return interests.containsKey(handler);
+	}
+
+	/**
+	 * Sets the position of an entity, used by
+	 * {@link #sendEntityUpdate(String, String)}.
+	 */
+	public synchronized void setEntityPosition(String entityId, double x, double y) {
+		DoublePoint point = entities.get(entityId);
+		if (point == null)
+			entities.put(entityId, new DoublePoint(x, y));
+		else {
+			point.x = x;
+			point.y = y;
+		}
+	}
+
+	/**
+	 * Forgets about an entity set with
+	 * {@link #setEntityPosition(String, double, double)}.
+	 */
+	public synchronized void removeEntity(String entityId) {
+		entities.remove(entityId);
+	}
+
+	/**
+	 * Sends <b>message</b> to every {@link Handler} interested in the last known
+	 * position of <b>entityId</b>.
+	 *
+	 * @return How many {@link Handler}s the message was sent to, or -1 if the
+	 *         entity has no position.
+	 */
+	public int sendEntityUpdate(String entityId, String message) {
+		double x, y;
+		synchronized (this) {
+			DoublePoint point = entities.get(entityId);
+			if (point == null)
+				return -1;
+			x = point.x;
+			y = point.y;
+		}
+		return sendMessage(message, x, y);
+	}
+
+	/**
+	 * Sends <b>message</b> to every {@link Handler} whose interest area covers
+	 * (<b>x</b>, <b>y</b>).
+	 *
+	 * @return How many {@link Handler}s the message was sent to.
+	 */
+	public int sendMessage(String message, double x, double y) {
+		List<Handler> handlers = getInterestedHandlers(x, y);
+		for (int i = 0; i < handlers.size(); i++)
+			handlers.get(i).sendMessageToClient(message);
+		return handlers.size();
+	}
+
+	/**
+	 * @return Every {@link Handler} whose interest area covers (<b>x</b>,
+	 *         <b>y</b>).
+	 */
+	public synchronized List<Handler> getInterestedHandlers(double x, double y) {
+		ArrayList<Interest> cell = grid.get(cellKey(cell(x), cell(y)));
+		List<Handler> found = new ArrayList<Handler>((cell == null ? 0 : cell.size()) + wide.size());
+		if (cell != null)
+			addCovering(cell, x, y, found);
+		addCovering(wide, x, y, found);
+		return found;
+	}
+
+	private static void addCovering(ArrayList<Interest> check, double x, double y, List<Handler> found) {
+		for (int i = 0; i < check.size(); i++) {
+			Interest interest = check.get(i);
+			double dx = interest.x - x, dy = interest.y - y;
+			if (dx * dx + dy * dy <= interest.radius * interest.radius)
+				found.add(interest.handler);
+		}
+	}
+
+	/**
+	 * @return Whether or not <b>interest</b> spans too many cells for
+	 *         {@link #grid}.
+	 */
+	private boolean isWide(Interest interest) {
+		return (long) interest.maxX - interest.minX >= maxCellSpan
+				|| (long) interest.maxY - interest.minY >= maxCellSpan;
+	}
+
+	private void index(Interest interest) {
+		interest.indexed = true;
+		interest.wide = isWide(interest);
+		if (interest.wide) {
+			wide.add(interest);
+			return;
+		}
+		// Counted in longs, cells can be at Integer.MAX_VALUE
+		for (long cx = interest.minX; cx <= interest.maxX; cx++)
+			for (long cy = interest.minY; cy <= interest.maxY; cy++) {
+				Long key = cellKey((int) cx, (int) cy);
+				ArrayList<Interest> cell = grid.get(key);
+				if (cell == null) {
+					cell = new ArrayList<Interest>(4);
+					grid.put(key, cell);
+				}
+				cell.add(interest);
+			}
+	}
+
+	private void unindex(Interest interest) {
+		interest.indexed = false;
+		if (interest.wide) {
+			wide.remove(interest);
+			return;
+		}
+		for (long cx = interest.minX; cx <= interest.maxX; cx++)
+			for (long cy = interest.minY; cy <= interest.maxY; cy++) {
+				Long key = cellKey((int) cx, (int) cy);
+				ArrayList<Interest> cell = grid.get(key);
+				if (cell == null)
+					continue;
+				cell.remove(interest);
+				if (cell.isEmpty())
+					grid.remove(key);
+			}
+	}
+
+	private int cell(double coordinate) {
+		return (int) Math.floor(coordinate / cellSize);
+	}
+
+	private static long cellKey(int cx, int cy) {
+		return ((long) cx << 32) | (cy & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * A {@link Handler}'s interest area and the range of cells it is indexed in.
+	 */
+	private static class Interest {
+		private final Handler handler;
+		private double x, y, radius;
+		private int minX, maxX, minY, maxY;
+		private boolean indexed = false;
+		/**
+		 * Whether or not we're in {@link InterestManager#wide} instead of the grid.
+		 */
+		private boolean wide = false;
+
+		private Interest(Handler handler) {
+			this.handler = handler;
+		}
+	}
+}
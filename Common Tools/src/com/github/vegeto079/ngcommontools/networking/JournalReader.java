@@ -0,0 +1,295 @@
+package com.github.vegeto079.ngcommontools.networking;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import com.github.vegeto079.ngcommontools.networking.Server.ServerMessageHandler;
+
+/**
+ * Reads back the records written by a {@link NetworkJournal}, oldest first,
+ * across all of its files.<br>
+ * <br>
+ * Use {@link #next()} to step through them one by one, or
+ * {@link #replay(ServerMessageHandler, double)} to feed a whole session back
+ * into a {@link ServerMessageHandler} at its original (or a faster) speed.
+ * Files left by earlier runs are read too, each run after the one before.
+ *
+ * @author Nathan
+ * @version 1.0: Started tracking version.
+ * @version 1.01: {@link #replay(ServerMessageHandler, double, int)} hands each
+ *          message over as {@link Server} would have, and only those a
+ *          {@link Server} received.
+ * @version 1.02: Keeps track of which run wrote each record (see
+ *          {@link #getRunStart()}), and replays each run on its own timing.
+ */
+public class JournalReader {
+	/**
+	 * Every journal file to read, oldest first.
+	 */
+	protected final List<File> files = new ArrayList<File>();
+	/**
+	 * Which of {@link #files} we are reading.
+	 */
+	protected int fileIndex = -1;
+	/**
+	 * The file we are reading, mapped into memory.
+	 */
+	protected MappedByteBuffer buffer = null;
+	/**
+	 * The record last read by {@link #next()}.
+	 */
+	protected long nanoTime = -1;
+	protected int connectionID = -1;
+	protected byte direction = -1;
+	protected String message = null;
+	/**
+	 * When the run that wrote the current file started (see
+	 * {@link NetworkJournal#getRunStart()}), or -1 before the first.
+	 */
+	protected long runStart = -1;
+	/**
+	 * Splits message packs for {@link #replay(ServerMessageHandler, double, int)}.
+	 */
+	protected final MessageTokenizer tokenizer = new MessageTokenizer();
+
+	/**
+	 * Initiates {@link JournalReader} on every file of the {@link NetworkJournal}
+	 * called <b>name</b> in <b>directory</b>.
+	 */
+	public JournalReader(File directory, String name) {
+		int[] nums = getFileNums(directory, name);
+		for (int i = 0; i < nums.length; i++)
+			files.add(getFile(directory, name, nums[i]));
+	}
+
+	/**
+	 * Moves on to the next record.
+	 *
+	 * @return <b>false</b> if there are no more records.
+	 * @throws IOException
+	 *             If a journal file couldn't be read.
+	 */
+	public boolean next() throws IOException {
+		while (true) {
+			if (buffer != null && buffer.remaining() >= NetworkJournal.HEADER_SIZE) {
+				int length = buffer.getInt();
+				if (length > 0 && length <= buffer.remaining() - (NetworkJournal.HEADER_SIZE - 4)) {
+					nanoTime = buffer.getLong();
+					connectionID = buffer.getInt();
+					direction = buffer.get();
+					byte[] bytes = new byte[length];
+					buffer.get(bytes);
+					message = decode(bytes);
+					return true;
+				}
+			}
+			// Nothing more in this file
+			if (++fileIndex >= files.size()) {
+				buffer = null;
+				return false;
+			}
+			RandomAccessFile file = new RandomAccessFile(files.get(fileIndex), "r");
+			try {
+				buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+			} finally {
+				file.close();
+			}
+			if (buffer.remaining() < NetworkJournal.FILE_HEADER_SIZE)
+				buffer = null;
+			else
+				runStart = buffer.getLong();
+		}
+	}
+
+	/**
+	 * Replays every connection a {@link Server} received on, as in
+	 * {@link #replay(ServerMessageHandler, double, int)}.
+	 */
+	public int replay(ServerMessageHandler messageHandler, double speed) throws IOException {
+		return replay(messageHandler, speed, -1);
+	}
+
+	/**
+	 * Feeds every {@link NetworkJournal#INBOUND} record a {@link Server} received
+	 * to <b>messageHandler</b>'s {@link ServerMessageHandler#process(String)},
+	 * waiting between them as long as they originally were apart. Each is handed
+	 * over as the {@link Server} would have: packs are split into their
+	 * messages, wait markers are taken out and the sender's name is added where
+	 * it's missing. Keep-alive pings are skipped, as are records of a
+	 * {@link Client} or {@link P2PNetwork} (whose connection IDs are below 0).
+	 * Each run in the journal starts straight after the one before, its
+	 * connections as new ones.
+	 *
+	 * @param speed
+	 *            How much faster than the original to go: 1 is original speed, 2
+	 *            is twice as fast. 0 or less doesn't wait at all.
+	 * @param connectionID
+	 *            Only replay what this connection received, or -1 for all of
+	 *            them.
+	 * @return How many messages were replayed.
+	 * @throws IOException
+	 *             If a journal file couldn't be read.
+	 */
+	public int replay(ServerMessageHandler messageHandler, double speed, int connectionID) throws IOException {
+		int amt = 0;
+		long firstTime = -1, startTime = -1, run = -1;
+		// Who is on each connection, as they said when connecting
+		HashMap<Integer, String> names = new HashMap<Integer, String>();
+		while (next()) {
+			if (runStart != run) {
+				// Another program's nanoTime, and its own connections
+				run = runStart;
+				firstTime = -1;
+				names.clear();
+			}
+			if (direction != NetworkJournal.INBOUND || this.connectionID < 0
+					|| (connectionID != -1 && this.connectionID != connectionID))
+				continue;
+			if (firstTime == -1) {
+				firstTime = nanoTime;
+				startTime = System.nanoTime();
+			}
+			if (speed > 0) {
+				long wait = startTime + (long) ((nanoTime - firstTime) / speed) - System.nanoTime();
+				if (wait > 0)
+					try {
+						Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return amt;
+					}
+			}
+			if (!message.contains(Server.MESSAGE_SPLITTER)) {
+				if (message.equals("Ping pong")
+						|| message.equals("Ping pong" + Server.USERNAME_SPLITTER + names.get(this.connectionID)))
+					continue;
+				if (message.startsWith("CONNECTING")) {
+					String[] split = message.split(Server.USERNAME_SPLITTER);
+					if (split.length > 1)
+						names.put(this.connectionID, split[1]);
+				}
+				messageHandler.process(message);
+				amt++;
+				continue;
+			}
+			String name = names.get(this.connectionID);
+			int parts = tokenizer.split(message, Server.MESSAGE_SPLITTER);
+			for (int i = 0; i < parts; i++) {
+				MessageView view = tokenizer.get(i);
+				if (view.contentEquals("Ping pong"))
+					continue;
+				String part = removeWait(view.toString(), "[WAITBEFORE]");
+				part = removeWait(part, "[WAITAFTER]");
+				if (!view.contains(Server.USERNAME_SPLITTER))
+					part += Server.USERNAME_SPLITTER + name;
+				messageHandler.process(part);
+				amt++;
+			}
+		}
+		return amt;
+	}
+
+	/**
+	 * @return <b>message</b> without its <b>marker</b>-wrapped wait, such as
+	 *         <i>[WAITAFTER]100[WAITAFTER]</i>, if it has one.
+	 */
+	private static String removeWait(String message, String marker) {
+		int start = message.indexOf(marker);
+		int end = start == -1 ? -1 : message.indexOf(marker, start + marker.length());
+		if (end == -1)
+			return message;
+		try {
+			int wait = Integer.parseInt(message.substring(start + marker.length(), end));
+			return message.replace(marker + wait + marker, "");
+		} catch (NumberFormatException e) {
+			return message;
+		}
+	}
+
+	/**
+	 * @return {@link #runStart}.
+	 */
+	public long getRunStart() {
+		return runStart;
+	}
+
+	/**
+	 * @return {@link System#nanoTime()} when the current record was written, only
+	 *         comparable to records of the same run (see {@link #getRunStart()}).
+	 */
+	public long getNanoTime() {
+		return nanoTime;
+	}
+
+	/**
+	 * @return The connection id of the current record.
+	 */
+	public int getConnectionID() {
+		return connectionID;
+	}
+
+	/**
+	 * @return {@link NetworkJournal#INBOUND} or {@link NetworkJournal#OUTBOUND}.
+	 */
+	public byte getDirection() {
+		return direction;
+	}
+
+	/**
+	 * @return The line in the current record.
+	 */
+	public String getMessage() {
+		return message;
+	}
+
+	/**
+	 * @return The file with number <b>num</b> of the {@link NetworkJournal}
+	 *         called <b>name</b>.
+	 */
+	static File getFile(File directory, String name, int num) {
+		return new File(directory, name + "." + num + NetworkJournal.EXTENSION);
+	}
+
+	/**
+	 * @return The numbers of every existing file of the {@link NetworkJournal}
+	 *         called <b>name</b>, lowest first.
+	 */
+	static int[] getFileNums(File directory, String name) {
+		String[] list = directory.list();
+		if (list == null)
+			return new int[0];
+		int[] nums = new int[list.length];
+		int amt = 0;
+		String prefix = name + ".";
+		for (int i = 0; i < list.length; i++) {
+			if (!list[i].startsWith(prefix) || !list[i].endsWith(NetworkJournal.EXTENSION))
+				continue;
+			try {
+				nums[amt] = Integer.parseInt(list[i].substring(prefix.length(),
+						list[i].length() - NetworkJournal.EXTENSION.length()));
+				amt++;
+			} catch (NumberFormatException e) {
+			}
+		}
+		nums = Arrays.copyOf(nums, amt);
+		Arrays.sort(nums);
+		return nums;
+	}
+
+	private static String decode(byte[] bytes) {
+		try {
+			return new String(bytes, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			// UTF-8 is always supported
+			throw new RuntimeException(e);
+		}
+	}
+}
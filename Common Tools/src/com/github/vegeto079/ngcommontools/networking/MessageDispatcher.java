@@ -0,0 +1,168 @@
+package com.github.vegeto079.ngcommontools.networking;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import com.github.vegeto079.ngcommontools.main.Logger;
+import com.github.vegeto079.ngcommontools.main.Logger.LogLevel;
+import com.github.vegeto079.ngcommontools.networking.Server.ServerMessageHandler;
+
+/**
+ * A fixed pool of worker threads that messages are handed to after being read,
+ * instead of being processed on the thread that read them.<br>
+ * <br>
+ * Work is split into partitions by connection id (see
+ * {@link Server.Handler#getID()}), one thread per partition. Everything from the
+ * same connection always lands on the same partition, so it is processed in the
+ * order it arrived; different connections are processed in parallel across the
+ * partitions. Each partition has a bounded queue; when it is full,
+ * {@link #dispatch(int, Runnable)} waits, slowing down reading from that
+ * connection rather than using up memory.<br>
+ * <br>
+ * Set on a {@link Server} with
+ * {@link Server#setMessageDispatcher(MessageDispatcher)} to run
+ * {@link ServerMessageHandler#preProcess(Server, String, String, int, String)}
+ * here.
+ *
+ * @author Nathan
+ * @version 1.0: Started tracking version.
+ * @version 1.01: Added {@link #offer(int, Runnable)}, for callers that must
+ *          not wait.
+ */
+public class MessageDispatcher {
+	/**
+	 * Custom {@link Logger} used to display messages with this
+	 * {@link MessageDispatcher}.
+	 */
+	protected Logger logger = null;
+	/**
+	 * The queue of work waiting for each partition.
+	 */
+	protected List<BlockingQueue<Runnable>> queues = null;
+	/**
+	 * The thread running each partition.
+	 */
+	protected Thread[] threads = null;
+	/**
+	 * Whether or not the partitions should stop.
+	 */
+	protected volatile boolean stop = false;
+
+	/**
+	 * Initiates {@link MessageDispatcher} and starts its threads.
+	 *
+	 * @param logger
+	 *            See {@link #logger}
+	 * @param partitionAmt
+	 *            How many partitions (and threads) to use. Values less than 1 use
+	 *            the amount of available processors.
+	 * @param queueCapacity
+	 *            The most work each partition can have waiting before
+	 *            {@link #dispatch(int, Runnable)} waits.
+	 */
+	public MessageDispatcher(Logger logger, int partitionAmt, int queueCapacity) {
+		this.logger = logger;
+		if (partitionAmt < 1)
+			partitionAmt = Runtime.getRuntime().availableProcessors();
+		queues = new ArrayList<BlockingQueue<Runnable>>(partitionAmt);
+		threads = new Thread[partitionAmt];
+		for (int i = 0; i < partitionAmt; i++) {
+			final BlockingQueue<Runnable> queue = new ArrayBlockingQueue<Runnable>(queueCapacity);
+			queues.add(queue);
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					runPartition(queue);
+				}
+			}, "MessageDispatcher Partition " + i);
+			threads[i].setDaemon(true);
+			threads[i].start();
+		}
+		logger.log(LogLevel.DEBUG, "MessageDispatcher started with " + partitionAmt + " partitions.");
+	}
+
+	/**
+	 * Hands <b>work</b> to the partition for <b>connectionID</b>, waiting if that
+	 * partition's queue is full.
+	 *
+	 * @param connectionID
+	 *            Id of the connection the work belongs to.
+	 * @param work
+	 *            The work to run.
+	 * @return <b>false</b> if we were interrupted or stopped before the work
+	 *         could be queued.
+	 */
+	public boolean dispatch(int connectionID, Runnable work) {
+		if (stop)
+			return false;
+		try {
+			queues.get(getPartition(connectionID)).put(work);
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * As {@link #dispatch(int, Runnable)}, but never waits.
+	 *
+	 * @return <b>false</b> if that partition's queue is full or we are stopped,
+	 *         and the work was not queued.
+	 */
+	public boolean offer(int connectionID, Runnable work) {
+		if (stop)
+			return false;
+		return queues.get(getPartition(connectionID)).offer(work);
+	}
+
+	/**
+	 * @return The partition that work for <b>connectionID</b> runs on.
+	 */
+	public int getPartition(int connectionID) {
+		return (connectionID & Integer.MAX_VALUE) % queues.size();
+	}
+
+	/**
+	 * @return How many partitions (and threads) there are.
+	 */
+	public int getPartitionAmt() {
+		return queues.size();
+	}
+
+	/**
+	 * @return How much work is waiting on <b>partition</b>.
+	 */
+	public int getQueuedAmt(int partition) {
+		return queues.get(partition).size();
+	}
+
+	/**
+	 * Stops every partition. Work still waiting is discarded.
+	 */
+	public void stop() {
+		logger.log(LogLevel.DEBUG, "Stopping MessageDispatcher.");
+		stop = true;
+		for (int i = 0; i < threads.length; i++) {
+			threads[i].interrupt();
+			queues.get(i).clear();
+		}
+	}
+
+	private void runPartition(BlockingQueue<Runnable> queue) {
+		while (!stop) {
+			Runnable work;
+			try {
+				work = queue.take();
+			} catch (InterruptedException e) {
+				continue;
+			}
+			try {
+				work.run();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
@@ -0,0 +1,228 @@
+package com.github.vegeto079.ngcommontools.networking;
+
+/**
+ * Picks what to do with a message by its type, in the same time no matter how
+ * many types there are.<br>
+ * <br>
+ * A message's type is its <i>keyword</i>: the letters and underscores it
+ * starts with, up to the first space, ':', number or anything else, so
+ * <i>SYNCTIME:123-=USER=-name</i> is a <i>SYNCTIME</i> and both <i>move 3 4</i>
+ * and <i>move34</i> a <i>move</i>. Digits followed by more letters stay part of
+ * it, as in <i>MOVE_TO_P2P</i>. The only keyword with a space is {@link #PING}, kept so
+ * keep-alives can be routed. Each keyword is given a type id by {@link #register(String, Route)}. Routing a
+ * message hashes its keyword in place (nothing is copied), looks the id up in
+ * an open-addressed table and calls the {@link Route} at that index of a flat
+ * array.<br>
+ * <br>
+ * Routing is safe from any thread. Registering copies the table, so it is best
+ * done while setting up.
+ *
+ * @author Nathan
+ * @version 1.0: Started tracking version.
+ * @version 1.01: Keywords end at the first space or digit, with {@link #PING}
+ *          the only exception.
+ * @param <C>
+ *            What each {@link Route} is given along with the message, such as
+ *            the {@link Client} it came to.
+ */
+public class MessageRouter<C> {
+	/**
+	 * The keep-alive's keyword, the only one with a space in it.
+	 */
+	public final static String PING = "Ping pong";
+	/**
+	 * Where the keyword of a message starting with {@link #PING} would otherwise
+	 * end.
+	 */
+	private final static int PING_WORD_END = PING.indexOf(' ');
+
+	/**
+	 * Everything needed to route, replaced as a whole by
+	 * {@link #register(String, Route)}.
+	 */
+	protected volatile Table<C> table = new Table<C>(32, 0);
+
+	/**
+	 * Routes messages with <b>keyword</b> to <b>route</b>, replacing any
+	 * {@link Route} it had.
+	 *
+	 * @param route
+	 *            What to do with them, or <b>null</b> to do nothing.
+	 * @return The keyword's type id.
+	 */
+	public synchronized int register(String keyword, Route<C> route) {
+		if (keyword.length() == 0 || (!keyword.equals(PING) && keywordEnd(keyword) != keyword.length()))
+			throw new IllegalArgumentException("Not a keyword: " + keyword);
+		Table<C> old = table;
+		int type = keyword.equals(PING) ? old.pingType : getType(keyword);
+		int typeAmt = type == -1 ? old.typeAmt + 1 : old.typeAmt;
+		Table<C> table = new Table<C>(typeAmt * 2 > old.keywords.length ? old.keywords.length * 2
+				: old.keywords.length, typeAmt);
+		for (int i = 0; i < old.keywords.length; i++)
+			if (old.keywords[i] != null)
+				table.insert(old.keywords[i], old.types[i]);
+		System.arraycopy(old.routes, 0, table.routes, 0, old.typeAmt);
+		table.pingType = old.pingType;
+		if (type == -1) {
+			type = typeAmt - 1;
+			if (keyword.equals(PING))
+				table.pingType = type;
+			else
+				table.insert(keyword, type);
+		}
+		table.routes[type] = route;
+		this.table = table;
+		return type;
+	}
+
+	/**
+	 * Hands <b>message</b> to the {@link Route} of its type.
+	 *
+	 * @return Whether or not the {@link Route} consumed it. <b>false</b> if it has
+	 *         no {@link Route}.
+	 */
+	public boolean route(C context, String message) {
+		Table<C> table = this.table;
+		int type = table.getType(message);
+		if (type == -1)
+			return false;
+		Route<C> route = table.routes[type];
+		return route != null && route.route(context, message);
+	}
+
+	/**
+	 * @return The type id of <b>message</b>'s keyword, or -1 if it hasn't been
+	 *         registered.
+	 */
+	public int getType(CharSequence message) {
+		return table.getType(message);
+	}
+
+	/**
+	 * @return The {@link Route} of <b>type</b>, or <b>null</b>.
+	 */
+	public Route<C> getRoute(int type) {
+		Table<C> table = this.table;
+		return type < 0 || type >= table.typeAmt ? null : table.routes[type];
+	}
+
+	/**
+	 * @return How many keywords have been registered.
+	 */
+	public int getTypeAmt() {
+		return table.typeAmt;
+	}
+
+	/**
+	 * @return Where <b>message</b>'s keyword ends, not counting {@link #PING}'s
+	 *         special case.
+	 */
+	public static int keywordEnd(CharSequence message) {
+		int end = 0, length = message.length();
+		while (end < length) {
+			char c = message.charAt(end);
+			if (isKeywordChar(c))
+				end++;
+			else if (c >= '0' && c <= '9') {
+				// Only part of it if more of the keyword follows
+				int digitsEnd = end + 1;
+				while (digitsEnd < length && message.charAt(digitsEnd) >= '0' && message.charAt(digitsEnd) <= '9')
+					digitsEnd++;
+				if (digitsEnd == length || !isKeywordChar(message.charAt(digitsEnd)))
+					return end;
+				end = digitsEnd;
+			} else
+				return end;
+		}
+		return end;
+	}
+
+	private static boolean isKeywordChar(char c) {
+		return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || c == '_';
+	}
+
+	/**
+	 * @return Whether or not <b>message</b>'s keyword is {@link #PING}.
+	 */
+	private static boolean isPing(CharSequence message) {
+		return message.length() >= PING.length() && regionEquals(PING, message, PING.length())
+				&& (message.length() == PING.length() || !isKeywordChar(message.charAt(PING.length())));
+	}
+
+	private static boolean regionEquals(String keyword, CharSequence message, int length) {
+		for (int i = 0; i < length; i++)
+			if (keyword.charAt(i) != message.charAt(i))
+				return false;
+		return true;
+	}
+
+	/**
+	 * Spreads <b>hash</b>'s bits, as the low ones of similar keywords are often
+	 * alike.
+	 */
+	private static int mix(int hash) {
+		hash ^= hash >>> 16;
+		hash *= 0x85ebca6b;
+		return hash ^ (hash >>> 13);
+	}
+
+	/**
+	 * Registered keywords by hash (always at most half full), their type ids and
+	 * the {@link Route} of each type id. {@link #PING} isn't in the table, its
+	 * type id is kept on its own.
+	 */
+	protected static class Table<C> {
+		protected final String[] keywords;
+		protected final int[] types;
+		protected final Route<C>[] routes;
+		protected final int typeAmt;
+		protected int pingType = -1;
+
+		@SuppressWarnings("unchecked")
+		protected Table(int size, int typeAmt) {
+			keywords = new String[size];
+			types = new int[size];
+			routes = (Route<C>[]) new Route<?>[Math.max(1, typeAmt)];
+			this.typeAmt = typeAmt;
+		}
+
+		protected void insert(String keyword, int type) {
+			int mask = keywords.length - 1;
+			int i = mix(keyword.hashCode()) & mask;
+			while (keywords[i] != null)
+				i = (i + 1) & mask;
+			keywords[i] = keyword;
+			types[i] = type;
+		}
+
+		protected int getType(CharSequence message) {
+			int end = keywordEnd(message), hash = 0;
+			for (int i = 0; i < end; i++)
+				hash = 31 * hash + message.charAt(i);
+			if (end == PING_WORD_END && pingType != -1 && isPing(message))
+				return pingType;
+			if (end == 0)
+				return -1;
+			int mask = keywords.length - 1;
+			for (int i = mix(hash) & mask;; i = (i + 1) & mask) {
+				String keyword = keywords[i];
+				if (keyword == null)
+					return -1;
+				if (keyword.length() == end && regionEquals(keyword, message, end))
+					return types[i];
+			}
+		}
+	}
+
+	/**
+	 * What to do with messages of one type.
+	 */
+	public interface Route<C> {
+		/**
+		 * @return Whether or not <b>message</b> was consumed: if not, it is still
+		 *         passed on as usual (such as to
+		 *         {@link Client.ClientMessageHandler#process(String)}).
+		 */
+		public boolean route(C context, String message);
+	}
+}
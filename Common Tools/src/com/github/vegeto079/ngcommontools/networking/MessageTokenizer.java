@@ -0,0 +1,82 @@
+package com.github.vegeto079.ngcommontools.networking;
+
+/**
+ * Splits a line into {@link MessageView}s in a single pass, as a replacement
+ * for {@link String#split(String)} (which compiles a regex and copies every
+ * part each time).<br>
+ * <br>
+ * The {@link MessageView}s are kept and reused for the next line, so once a
+ * {@link MessageTokenizer} has seen its largest message pack it no longer
+ * creates anything. Not thread safe: each reading thread should use its own.
+ *
+ * @author Nathan
+ * @version 1.0: Started tracking version.
+ */
+public class MessageTokenizer {
+	/**
+	 * The views from the last {@link #split(String, int, int, String)}, plus any
+	 * left over from larger ones before it.
+	 */
+	protected MessageView[] views = new MessageView[4];
+	/**
+	 * How many of {@link #views} the last split filled.
+	 */
+	protected int size = 0;
+
+	/**
+	 * Splits all of <b>source</b> on <b>splitter</b>.
+	 *
+	 * @return How many parts were found, see {@link #get(int)}.
+	 */
+	public int split(String source, String splitter) {
+		return split(source, 0, source.length(), splitter);
+	}
+
+	/**
+	 * Splits the part of <b>source</b> between <b>start</b> and <b>end</b> on
+	 * <b>splitter</b>. Unlike {@link String#split(String)}, empty parts are kept.
+	 *
+	 * @return How many parts were found, see {@link #get(int)}.
+	 */
+	public int split(String source, int start, int end, String splitter) {
+		size = 0;
+		int from = start;
+		while (true) {
+			int found = source.indexOf(splitter, from);
+			if (found == -1 || found + splitter.length() > end) {
+				next().set(source, from, end);
+				return size;
+			}
+			next().set(source, from, found);
+			from = found + splitter.length();
+		}
+	}
+
+	/**
+	 * @return Part <b>index</b> of the last split. Only valid until the next
+	 *         split.
+	 */
+	public MessageView get(int index) {
+		if (index >= size)
+			throw new IndexOutOfBoundsException(index + " >= " + size);
+		return views[index];
+	}
+
+	/**
+	 * @return How many parts the last split found.
+	 */
+	public int size() {
+		return size;
+	}
+
+	private MessageView next() {
+		if (size == views.length) {
+			MessageView[] grown = new MessageView[views.length * 2];
+			System.arraycopy(views, 0, grown, 0, views.length);
+			views = grown;
+		}
+		if (views[size] == null)
+			views[size] = new MessageView();
+		return views[size++];
+	}
+}
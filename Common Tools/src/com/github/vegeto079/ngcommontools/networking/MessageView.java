@@ -0,0 +1,164 @@
+package com.github.vegeto079.ngcommontools.networking;
+
+/**
+ * A reusable, read-only view of part of a {@link String} (usually one message
+ * out of a line read from a {@link Client} or {@link Server}), so it can be
+ * looked at without copying it with {@link String#split(String)} or
+ * {@link String#substring(int)}.<br>
+ * <br>
+ * A {@link MessageView} is only valid until it is {@link #set(String, int, int)}
+ * again, so keep the result of {@link #toString()} rather than the view itself.
+ * See {@link MessageTokenizer}.
+ *
+ * @author Nathan
+ * @version 1.0: Started tracking version.
+ * @version 1.01: Added {@link #getEncodedLength(CharSequence)}.
+ */
+public class MessageView implements CharSequence {
+	/**
+	 * The {@link String} this is a view of.
+	 */
+	protected String source = "";
+	/**
+	 * Where in {@link #source} this view starts.
+	 */
+	protected int start = 0;
+	/**
+	 * Where in {@link #source} this view ends (exclusive).
+	 */
+	protected int end = 0;
+
+	/**
+	 * Points this view at part of <b>source</b>.
+	 *
+	 * @return This {@link MessageView}.
+	 */
+	public MessageView set(String source, int start, int end) {
+		this.source = source;
+		this.start = start;
+		this.end = end;
+		return this;
+	}
+
+	/**
+	 * Points this view at all of <b>source</b>.
+	 *
+	 * @return This {@link MessageView}.
+	 */
+	public MessageView set(String source) {
+		return set(source, 0, source.length());
+	}
+
+	public int length() {
+		return end - start;
+	}
+
+	public char charAt(int index) {
+		return source.charAt(start + index);
+	}
+
+	public CharSequence subSequence(int from, int to) {
+		return toString(from, to);
+	}
+
+	/**
+	 * @return Whether or not this view starts with <b>prefix</b>.
+	 */
+	public boolean startsWith(String prefix) {
+		return prefix.length() <= length() && source.startsWith(prefix, start);
+	}
+
+	/**
+	 * @return Whether or not this view is exactly <b>text</b>.
+	 */
+	public boolean contentEquals(String text) {
+		return text.length() == length() && source.startsWith(text, start);
+	}
+
+	/**
+	 * @return Whether or not <b>text</b> is anywhere in this view.
+	 */
+	public boolean contains(String text) {
+		return indexOf(text, 0) != -1;
+	}
+
+	/**
+	 * @return Where <b>text</b> first appears in this view at or after
+	 *         <b>from</b>, or -1 if it doesn't.
+	 */
+	public int indexOf(String text, int from) {
+		int found = source.indexOf(text, start + from);
+		return found == -1 || found + text.length() > end ? -1 : found - start;
+	}
+
+	/**
+	 * Reads the (optionally negative) number between <b>from</b> and <b>to</b>
+	 * without creating a {@link String}.
+	 *
+	 * @throws NumberFormatException
+	 *             If it isn't a number.
+	 */
+	public int parseInt(int from, int to) {
+		if (from >= to)
+			throw new NumberFormatException("Empty number in: " + this);
+		boolean negative = charAt(from) == '-';
+		if (negative && ++from == to)
+			throw new NumberFormatException("Empty number in: " + this);
+		int value = 0;
+		for (int i = from; i < to; i++) {
+			int digit = charAt(i) - '0';
+			if (digit < 0 || digit > 9)
+				throw new NumberFormatException("Not a number: " + toString(from, to));
+			value = value * 10 + digit;
+		}
+		return negative ? -value : value;
+	}
+
+	/**
+	 * @return Whether or not this view, with everything between <b>cutFrom</b>
+	 *         and <b>cutTo</b> taken out, is exactly <b>text</b>.
+	 */
+	public boolean equalsWithout(String text, int cutFrom, int cutTo) {
+		int cut = cutTo - cutFrom;
+		return text.length() == length() - cut && text.regionMatches(0, source, start, cutFrom)
+				&& text.regionMatches(cutFrom, source, start + cutTo, length() - cutTo);
+	}
+
+	/**
+	 * @return How many bytes <b>text</b> takes in UTF-8, counted without
+	 *         encoding it.
+	 */
+	public static int getEncodedLength(CharSequence text) {
+		int bytes = 0, length = text.length();
+		for (int i = 0; i < length; i++) {
+			char c = text.charAt(i);
+			if (c < 0x80)
+				bytes++;
+			else if (c < 0x800)
+				bytes += 2;
+			else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+				bytes += 4;
+				i++;
+			} else
+				bytes += 3;
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return The part of this view between <b>from</b> and <b>to</b> as a
+	 *         {@link String}.
+	 */
+	public String toString(int from, int to) {
+		return source.substring(start + from, start + to);
+	}
+
+	/**
+	 * @return This view as a {@link String}. If the view covers all of
+	 *         {@link #source}, that is returned without copying.
+	 */
+	@Override
+	public String toString() {
+		return toString(0, length());
+	}
+}
@@ -0,0 +1,249 @@
+package com.github.vegeto079.ngcommontools.networking;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Records every line sent and received by a {@link Server}, {@link Client} or
+ * {@link P2PNetwork} to disk, so a session can be looked at (or replayed with
+ * {@link JournalReader}) after a desync or crash.<br>
+ * <br>
+ * Lines are written straight into memory-mapped files, so recording one is
+ * little more than a copy: the operating system writes it out in the
+ * background, and it survives the program crashing. When a file is full, the
+ * next one is started; only the newest {@link #maxFiles} are kept.<br>
+ * <br>
+ * Each file starts with <i>[long run start]</i>: when the
+ * {@link NetworkJournal} writing it was made, in
+ * {@link System#currentTimeMillis()}. Record times are only comparable within a
+ * run, as each program's {@link System#nanoTime()} starts somewhere else. Then
+ * each record is: <i>[int length][long nanoTime][int connection id][byte
+ * direction][length bytes of UTF-8]</i>. A length of 0 marks the end of a
+ * file. The connection id is {@link Server.Handler#getID()} for a
+ * {@link Server}, and negative for a {@link Client} (see
+ * {@link Client#setJournal(NetworkJournal, int)}).
+ *
+ * @author Nathan
+ * @version 1.0: Started tracking version.
+ * @version 1.01: Each file starts with {@link #runStart}, telling apart files
+ *          written by different runs.
+ */
+public class NetworkJournal {
+	/**
+	 * Direction of a line received from the other side.
+	 */
+	public final static byte INBOUND = 0;
+	/**
+	 * Direction of a line sent to the other side.
+	 */
+	public final static byte OUTBOUND = 1;
+	/**
+	 * Size of everything in a record before the message itself.
+	 */
+	public final static int HEADER_SIZE = 4 + 8 + 4 + 1;
+	/**
+	 * Size of everything in a file before its first record.
+	 */
+	public final static int FILE_HEADER_SIZE = 8;
+	/**
+	 * Ending of every journal file's name.
+	 */
+	public final static String EXTENSION = ".journal";
+
+	/**
+	 * Where the journal files are kept.
+	 */
+	protected final File directory;
+	/**
+	 * Start of every journal file's name, followed by its number and
+	 * {@link #EXTENSION}.
+	 */
+	protected final String name;
+	/**
+	 * Size of each journal file, in bytes.
+	 */
+	protected final int fileSize;
+	/**
+	 * How many journal files to keep before deleting the oldest.
+	 */
+	protected final int maxFiles;
+	/**
+	 * Number of the file currently being written to.
+	 */
+	protected int fileNum = -1;
+	/**
+	 * The file currently being written to.
+	 */
+	protected RandomAccessFile file = null;
+	/**
+	 * {@link #file}, mapped into memory.
+	 */
+	protected MappedByteBuffer buffer = null;
+	/**
+	 * Turns messages into UTF-8 directly in {@link #buffer}.
+	 */
+	protected final CharsetEncoder encoder = Charset.forName("UTF-8").newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+	/**
+	 * Whether or not {@link #close()} has been called.
+	 */
+	protected boolean closed = false;
+	/**
+	 * When this {@link NetworkJournal} was made, in
+	 * {@link System#currentTimeMillis()}. Written at the start of every file.
+	 */
+	protected final long runStart = System.currentTimeMillis();
+
+	/**
+	 * Initiates {@link NetworkJournal} and opens its first file, after any that
+	 * already exist.
+	 *
+	 * @param directory
+	 *            See {@link #directory}. Created if it doesn't exist.
+	 * @param name
+	 *            See {@link #name}.
+	 * @param fileSize
+	 *            See {@link #fileSize}.
+	 * @param maxFiles
+	 *            See {@link #maxFiles}.
+	 * @throws IOException
+	 *             If the first file couldn't be opened.
+	 */
+	public NetworkJournal(File directory, String name, int fileSize, int maxFiles) throws IOException {
+		if (fileSize <= FILE_HEADER_SIZE + HEADER_SIZE * 2)
+			throw new IllegalArgumentException("fileSize too small: " + fileSize);
+		this.directory = directory;
+		this.name = name;
+		this.fileSize = fileSize;
+		this.maxFiles = Math.max(1, maxFiles);
+		directory.mkdirs();
+		int[] existing = JournalReader.getFileNums(directory, name);
+		rotate(existing.length == 0 ? 0 : existing[existing.length - 1] + 1);
+	}
+
+	/**
+	 * Records a single line.
+	 *
+	 * @param connectionID
+	 *            Which connection the line was sent or received on.
+	 * @param direction
+	 *            {@link #INBOUND} or {@link #OUTBOUND}.
+	 * @param message
+	 *            The line.
+	 * @return Whether or not the line was recorded. It isn't if it would never
+	 *         fit in a file, or we couldn't start a new file.
+	 */
+	public synchronized boolean record(int connectionID, byte direction, String message) {
+		if (closed)
+			return false;
+		long time = System.nanoTime();
+		if (HEADER_SIZE + message.length() > fileSize - FILE_HEADER_SIZE - 4)
+			return false;
+		for (int attempt = 0; attempt < 2; attempt++) {
+			int start = buffer.position();
+			// Always leave room for the 0 length that ends the file
+			if (buffer.remaining() - 4 >= HEADER_SIZE) {
+				buffer.limit(buffer.capacity() - 4);
+				buffer.position(start + HEADER_SIZE);
+				encoder.reset();
+				CoderResult result = encoder.encode(CharBuffer.wrap(message), buffer, true);
+				if (!result.isOverflow())
+					result = encoder.flush(buffer);
+				buffer.limit(buffer.capacity());
+				if (!result.isOverflow()) {
+					int end = buffer.position();
+					buffer.putLong(start + 4, time);
+					buffer.putInt(start + 12, connectionID);
+					buffer.put(start + 16, direction);
+					// Length last, so a half-written record is never read
+					buffer.putInt(start, end - start - HEADER_SIZE);
+					return true;
+				}
+				buffer.position(start);
+			}
+			try {
+				rotate(fileNum + 1);
+			} catch (IOException e) {
+				e.printStackTrace();
+				closed = true;
+				return false;
+			}
+		}
+		// Even a new file couldn't hold it (it had a lot of multi-byte characters)
+		return false;
+	}
+
+	/**
+	 * Closes the current file and starts writing to file <b>num</b>, deleting
+	 * the oldest if there are more than {@link #maxFiles}.
+	 */
+	private void rotate(int num) throws IOException {
+		closeFile();
+		fileNum = num;
+		File next = JournalReader.getFile(directory, name, fileNum);
+		next.delete();
+		file = new RandomAccessFile(next, "rw");
+		buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+		buffer.putLong(runStart);
+		File old = JournalReader.getFile(directory, name, fileNum - maxFiles);
+		if (old.exists())
+			old.delete();
+	}
+
+	private void closeFile() {
+		if (buffer != null)
+			buffer.force();
+		if (file != null)
+			try {
+				file.close();
+			} catch (IOException e) {
+			}
+		buffer = null;
+		file = null;
+	}
+
+	/**
+	 * Makes sure everything recorded so far is on disk.
+	 */
+	public synchronized void flush() {
+		if (buffer != null)
+			buffer.force();
+	}
+
+	/**
+	 * Stops recording and closes the current file.
+	 */
+	public synchronized void close() {
+		closed = true;
+		closeFile();
+	}
+
+	/**
+	 * @return {@link #runStart}.
+	 */
+	public long getRunStart() {
+		return runStart;
+	}
+
+	/**
+	 * @return {@link #directory}.
+	 */
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * @return {@link #name}.
+	 */
+	public String getName() {
+		return name;
+	}
+}
@@ -0,0 +1,108 @@
+package com.github.vegeto079.ngcommontools.networking;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the repeating and delayed work of {@link Server}s and {@link Client}s
+ * (their {@link Server.Connector}s and {@link Client.Connector}s) on a small,
+ * shared pool of threads, instead of every connection starting its own
+ * {@link java.util.Timer} thread.<br>
+ * <br>
+ * Everything uses {@link #getShared()} unless given another
+ * {@link NetworkScheduler}. Work scheduled here should not block for long, as it
+ * holds up everything else sharing the pool.
+ *
+ * @author Nathan
+ * @version 1.0: Started tracking version.
+ * @version 1.01: Added {@link #isVirtual()}, see {@link VirtualScheduler}.
+ */
+public class NetworkScheduler {
+	/**
+	 * The {@link NetworkScheduler} used by default, created on first use by
+	 * {@link #getShared()}.
+	 */
+	private static NetworkScheduler shared = null;
+
+	/**
+	 * The pool that runs all scheduled work.
+	 */
+	protected ScheduledThreadPoolExecutor executor = null;
+
+	/**
+	 * Initiates {@link NetworkScheduler} with its own pool of daemon threads.
+	 *
+	 * @param threadAmt
+	 *            How many threads to run work on.
+	 * @param name
+	 *            Name given to the threads.
+	 */
+	public NetworkScheduler(int threadAmt, final String name) {
+		executor = new ScheduledThreadPoolExecutor(threadAmt, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, name + " " + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.setRemoveOnCancelPolicy(true);
+	}
+
+	/**
+	 * Constructor for extending classes that don't use {@link #executor}.
+	 */
+	protected NetworkScheduler() {
+	}
+
+	/**
+	 * @return The {@link NetworkScheduler} shared by everything that wasn't given
+	 *         its own, with a thread per available processor (at least two).
+	 */
+	public static synchronized NetworkScheduler getShared() {
+		if (shared == null)
+			shared = new NetworkScheduler(Math.max(2, Runtime.getRuntime().availableProcessors()),
+					"Network Scheduler");
+		return shared;
+	}
+
+	/**
+	 * Runs <b>work</b> every <b>period</b> milliseconds, starting after
+	 * <b>initialDelay</b>. If a run takes longer than <b>period</b>, the next one
+	 * starts late rather than at the same time.
+	 *
+	 * @return Used to cancel <b>work</b>.
+	 */
+	public ScheduledFuture<?> scheduleAtFixedRate(Runnable work, long initialDelay, long period) {
+		return executor.scheduleAtFixedRate(work, initialDelay, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Runs <b>work</b> once, after <b>delay</b> milliseconds.
+	 *
+	 * @return Used to cancel <b>work</b>.
+	 */
+	public ScheduledFuture<?> schedule(Runnable work, long delay) {
+		return executor.schedule(work, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return Whether or not work runs in virtual time on a single thread (see
+	 *         {@link VirtualScheduler}), so nothing it runs may wait on another
+	 *         thread.
+	 */
+	public boolean isVirtual() {
+		return false;
+	}
+
+	/**
+	 * Stops running all work. Should not be called on {@link #getShared()}.
+	 */
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+}
@@ -0,0 +1,253 @@
+package com.github.vegeto079.ngcommontools.networking;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import com.github.vegeto079.ngcommontools.main.Clock;
+
+/**
+ * The messages waiting to be sent to a single {@link Client}, split into
+ * lanes by priority instead of one first-come-first-served queue:
+ * <ul>
+ * <li>{@link #CONTROL}: connection messages (<i>EXITING</i>, <i>SYNCTIME</i>,
+ * <i>MOVE_TO_P2P</i>, ...). Always all sent first.</li>
+ * <li>{@link #GAMEPLAY}: everything else.</li>
+ * <li>{@link #CHAT}: messages containing {@link Client#CHAT_SPLITTER}.</li>
+ * </ul>
+ * Gameplay and chat share each send by weight ({@link #setWeight(int, int)}),
+ * using deficit round robin: each send, every lane may add up to its weight
+ * times {@link #quantum} characters, and unused allowance carries over while
+ * the lane still has messages waiting. A burst of chat is spread over several
+ * sends rather than holding up gameplay, and neither lane is ever starved.
+ * Weights only apply while both lanes have messages waiting: a lane on its own
+ * is sent in full.
+ *
+ * @author Nathan
+ * @version 1.0: Started tracking version.
+ * @version 1.01: Times messages with a {@link Clock}.
+ * @version 1.02: Every lane with messages waiting sends at least one, so
+ *          {@link #poll(String)} only gives <b>null</b> when nothing is.
+ */
+public class OutboundLanes {
+	/**
+	 * Lane for connection control messages.
+	 */
+	public final static int CONTROL = 0;
+	/**
+	 * Lane for gameplay messages.
+	 */
+	public final static int GAMEPLAY = 1;
+	/**
+	 * Lane for chat messages.
+	 */
+	public final static int CHAT = 2;
+	/**
+	 * Messages starting with any of these go in {@link #CONTROL}.
+	 */
+	public final static String[] CONTROL_PREFIXES = { "EXITING", "SYNCTIME", "MOVE_TO_P2P",
+			"ESTABLISHING_CONNECTION_NUM", "SENDRATE:", BulkTransfer.OFFER_PREFIX };
+
+	/**
+	 * The messages waiting in each lane, oldest first.
+	 */
+	protected final List<LinkedList<String>> lanes = new ArrayList<LinkedList<String>>();
+	/**
+	 * When each message in {@link #lanes} was added.
+	 */
+	protected final List<LinkedList<Long>> times = new ArrayList<LinkedList<Long>>();
+	/**
+	 * The weight of each lane. {@link #CONTROL}'s is ignored, as it is always
+	 * sent in full.
+	 */
+	protected final int[] weights = { 0, 8, 1 };
+	/**
+	 * Characters each lane has left over from previous sends.
+	 */
+	protected final int[] deficits = new int[3];
+	/**
+	 * Characters a lane may send per send, per point of weight.
+	 */
+	public int quantum = 256;
+	/**
+	 * Times when messages were added.
+	 */
+	protected final Clock clock;
+
+	/**
+	 * Initiates {@link OutboundLanes} with empty lanes, timed by
+	 * {@link Clock#SYSTEM}.
+	 */
+	public OutboundLanes() {
+		this(Clock.SYSTEM);
+	}
+
+	/**
+	 * Initiates {@link OutboundLanes} with empty lanes, timed by <b>clock</b>.
+	 */
+	public OutboundLanes(Clock clock) {
+		this.clock = clock;
+		for (int i = 0; i < 3; i++) {
+			lanes.add(new LinkedList<String>());
+			times.add(new LinkedList<Long>());
+		}
+	}
+
+	/**
+	 * @return The lane <b>message</b> belongs in.
+	 */
+	public static int getLane(String message) {
+		for (int i = 0; i < CONTROL_PREFIXES.length; i++)
+			if (message.startsWith(CONTROL_PREFIXES[i]))
+				return CONTROL;
+		if (message.contains(Client.CHAT_SPLITTER))
+			return CHAT;
+		return GAMEPLAY;
+	}
+
+	/**
+	 * Adds <b>message</b> to the lane it belongs in (see
+	 * {@link #getLane(String)}).
+	 */
+	public void add(String message) {
+		add(message, getLane(message));
+	}
+
+	/**
+	 * Adds <b>message</b> to <b>lane</b>.
+	 */
+	public synchronized void add(String message, int lane) {
+		lanes.get(lane).add(message);
+		times.get(lane).add(clock.currentTimeMillis());
+	}
+
+	/**
+	 * Sets how much of each send <b>lane</b> gets compared to the others.
+	 * {@link #GAMEPLAY} is 8 and {@link #CHAT} is 1 by default.
+	 */
+	public synchronized void setWeight(int lane, int weight) {
+		if (lane == CONTROL)
+			throw new IllegalArgumentException("CONTROL is always sent in full.");
+		weights[lane] = Math.max(1, weight);
+	}
+
+	/**
+	 * Takes the messages that should go out in this send, joined by
+	 * <b>splitter</b>: all of {@link #CONTROL}, then {@link #GAMEPLAY} and
+	 * {@link #CHAT} by weight. If only one of those has messages waiting, all
+	 * of it is sent. Each lane with messages waiting sends at least its first,
+	 * however long.
+	 *
+	 * @return The joined messages, or <b>null</b> if nothing is waiting.
+	 */
+	public synchronized String poll(String splitter) {
+		StringBuilder send = new StringBuilder();
+		LinkedList<String> control = lanes.get(CONTROL);
+		while (!control.isEmpty())
+			append(send, pollLane(CONTROL), splitter);
+		boolean shared = !lanes.get(GAMEPLAY).isEmpty() && !lanes.get(CHAT).isEmpty();
+		for (int lane = GAMEPLAY; lane <= CHAT; lane++) {
+			LinkedList<String> messages = lanes.get(lane);
+			if (!shared) {
+				while (!messages.isEmpty())
+					append(send, pollLane(lane), splitter);
+				deficits[lane] = 0;
+				continue;
+			}
+			deficits[lane] += weights[lane] * quantum;
+			if (messages.getFirst().length() > deficits[lane]) {
+				// Too long to ever fit, send it anyway rather than holding the lane
+				append(send, pollLane(lane), splitter);
+				deficits[lane] = 0;
+			}
+			while (!messages.isEmpty() && messages.getFirst().length() <= deficits[lane]) {
+				deficits[lane] -= messages.getFirst().length();
+				append(send, pollLane(lane), splitter);
+			}
+			if (messages.isEmpty())
+				deficits[lane] = 0;
+		}
+		return send.length() == 0 ? null : send.toString();
+	}
+
+	private String pollLane(int lane) {
+		times.get(lane).removeFirst();
+		return lanes.get(lane).removeFirst();
+	}
+
+	private static void append(StringBuilder send, String message, String splitter) {
+		if (send.length() > 0)
+			send.append(splitter);
+		send.append(message);
+	}
+
+	/**
+	 * @return When the oldest message still waiting was added, or -1 if nothing
+	 *         is waiting.
+	 */
+	public synchronized long getOldestTime() {
+		long oldest = -1;
+		for (int i = 0; i < times.size(); i++)
+			if (!times.get(i).isEmpty() && (oldest == -1 || times.get(i).getFirst() < oldest))
+				oldest = times.get(i).getFirst();
+		return oldest;
+	}
+
+	/**
+	 * @return Whether or not any message contains <b>text</b>.
+	 */
+	public synchronized boolean contains(String text) {
+		for (int i = 0; i < lanes.size(); i++)
+			for (String message : lanes.get(i))
+				if (message.contains(text))
+					return true;
+		return false;
+	}
+
+	/**
+	 * @return How many messages are waiting, in all lanes.
+	 */
+	public synchronized int size() {
+		int size = 0;
+		for (int i = 0; i < lanes.size(); i++)
+			size += lanes.get(i).size();
+		return size;
+	}
+
+	/**
+	 * @return How many messages are waiting in <b>lane</b>.
+	 */
+	public synchronized int size(int lane) {
+		return lanes.get(lane).size();
+	}
+
+	/**
+	 * @return Whether or not nothing is waiting.
+	 */
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/**
+	 * Takes every waiting message, in lane order, leaving all lanes empty.
+	 */
+	public synchronized List<String> removeAll() {
+		List<String> list = toList();
+		for (int i = 0; i < lanes.size(); i++) {
+			lanes.get(i).clear();
+			times.get(i).clear();
+			deficits[i] = 0;
+		}
+		return list;
+	}
+
+	/**
+	 * @return A copy of every waiting message, in lane order.
+	 */
+	public synchronized List<String> toList() {
+		List<String> list = new ArrayList<String>(size());
+		for (int i = 0; i < lanes.size(); i++)
+			list.addAll(lanes.get(i));
+		return list;
+	}
+}
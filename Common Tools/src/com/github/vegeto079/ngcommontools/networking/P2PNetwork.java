@@ -2,7 +2,9 @@ package com.github.vegeto079.ngcommontools.networking;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ScheduledFuture;
 
+import com.github.vegeto079.ngcommontools.main.Clock;
 import com.github.vegeto079.ngcommontools.main.Logger;
 import com.github.vegeto079.ngcommontools.main.Logger.LogLevel;
 import com.github.vegeto079.ngcommontools.networking.Client.ClientMessageHandler;
@@ -21,6 +23,12 @@ import com.github.vegeto079.ngcommontools.networking.Server.ServerMessageHandler
  * @version 1.0: Started tracking version.
  * @version 1.01: Fully setup as it seems to work now.
  * @version 1.02: Lots of stuff.
+ * @version 1.03: Added {@link #journal} to record everything sent and received
+ *          by our {@link Server} and {@link Client}s.
+ * @version 1.04: Messages are handled through {@link #router} instead of
+ *          checking each kind in turn.
+ * @version 1.05: Can run on a {@link VirtualNetwork}, following the
+ *          {@link Server} or {@link Client} it replaces there.
  * 
  */
 public class P2PNetwork {
@@ -93,6 +101,35 @@ public class P2PNetwork {
 	 * properly.
 	 */
 	public P2PClientMessageHandler clientMessageHandler;
+	/**
+	 * If set, passed on to our {@link Server} and {@link Client}s so everything
+	 * they send and receive is recorded. Lines from the {@link Client} connected
+	 * to peer <i>n</i> are recorded with connection id <i>-1 - n</i>.
+	 */
+	private NetworkJournal journal = null;
+	/**
+	 * Routes messages given to {@link #processMessage(String)} by type.
+	 */
+	private final MessageRouter<P2PNetwork> router = new MessageRouter<P2PNetwork>();
+	/**
+	 * The {@link VirtualNetwork} our {@link Server} and {@link Client}s run on,
+	 * or <b>null</b> to use sockets.
+	 */
+	private VirtualNetwork virtualNetwork = null;
+	/**
+	 * The host we are attached at on {@link #virtualNetwork}.
+	 */
+	private String host = null;
+	/**
+	 * Where we get the time from, and how we wait: {@link #virtualNetwork}'s
+	 * clock if we have one.
+	 */
+	private Clock clock = Clock.SYSTEM;
+	/**
+	 * Checks whether everyone has connected to our {@link Server} yet, when on a
+	 * {@link VirtualNetwork}. See {@link #connect()}.
+	 */
+	private ScheduledFuture<?> waitForClients = null;
 
 	/**
 	 * Sets up this P2PNetwork.
@@ -113,7 +150,35 @@ public class P2PNetwork {
 	 */
 	public P2PNetwork(String IPlist, int startingPort, Logger logger, long timeBetweenConnectionAttempts,
 			P2PServerMessageHandler serverMessageHandler, P2PClientMessageHandler clientMessageHandler) {
+		this(IPlist, startingPort, logger, timeBetweenConnectionAttempts, serverMessageHandler, clientMessageHandler,
+				null, null);
+	}
+
+	/**
+	 * Sets up this P2PNetwork on <b>virtualNetwork</b>, as what was attached at
+	 * <b>host</b>.
+	 * 
+	 * @param virtualNetwork
+	 *            See {@link #virtualNetwork}. If <b>null</b>, sockets are used.
+	 * @param host
+	 *            See {@link #host}.
+	 * @see #P2PNetwork(String, int, Logger, long, P2PServerMessageHandler,
+	 *      P2PClientMessageHandler)
+	 */
+	public P2PNetwork(String IPlist, int startingPort, Logger logger, long timeBetweenConnectionAttempts,
+			P2PServerMessageHandler serverMessageHandler, P2PClientMessageHandler clientMessageHandler,
+			VirtualNetwork virtualNetwork, String host) {
+		this.virtualNetwork = virtualNetwork;
+		this.host = host;
+		if (virtualNetwork != null)
+			clock = virtualNetwork.getClock();
 		logger.log(LogLevel.DEBUG, "New P2PNetwork instance created. IPlist: " + IPlist);
+		router.register("ESTABLISHING_CONNECTION_NUM", new MessageRouter.Route<P2PNetwork>() {
+			public boolean route(P2PNetwork network, String message) {
+				network.establishingConnectionNum(message);
+				return true;
+			}
+		});
 		port = startingPort;
 		this.logger = logger;
 		this.timeBetweenConnectionAttempts = timeBetweenConnectionAttempts;
@@ -208,10 +273,7 @@ public class P2PNetwork {
 						allHandlersTalkedTo = false;
 					}
 			}
-			try {
-				Thread.sleep(100);
-			} catch (Exception e) {
-			}
+			originalHost.clock.sleep(100);
 		}
 		String exitString;
 		if (attempts == 0) {
@@ -220,8 +282,10 @@ public class P2PNetwork {
 			logger.log(LogLevel.DEBUG,
 					"All handlers talked to successfully! P2P Network framework ready to go. Killing Server.");
 			originalHost.disconnect();
+			VirtualNetwork virtualNetwork = originalHost.virtualNetwork;
 			return new P2PNetwork(IPaddresses, startingPort, logger, timeBetweenConnectionAttempts,
-					serverMessageHandler, clientMessageHandler);
+					serverMessageHandler, clientMessageHandler, virtualNetwork,
+					virtualNetwork == null ? null : virtualNetwork.getHost(originalHost));
 		} else {
 			exitString = "FATAL ERROR: P2P Network encounted an unknown problem.";
 		}
@@ -245,6 +309,9 @@ public class P2PNetwork {
 							// we connect to everyone via clients.
 			server = new Server(serverMessageHandler, logger, tempPort, timeBetweenConnectionAttempts, -1, 1,
 					"P2PNetwork" + ourID + "server");
+			server.setJournal(journal);
+			if (virtualNetwork != null)
+				virtualNetwork.attach(server, host);
 			String clientsToConnectTo = "";
 			for (int i = 0; i < maxClients; i++)
 				if (i == ourID || i >= ourID)
@@ -264,6 +331,9 @@ public class P2PNetwork {
 				continue;
 			Client client = new Client(clientMessageHandler, logger, timeBetweenConnectionAttempts,
 					"P2PNetworkID" + ourID + "toClient" + i);
+			client.setJournal(journal, -1 - i);
+			if (virtualNetwork != null)
+				virtualNetwork.attach(client, host);
 			clients.add(client);
 			logger.log(LogLevel.DEBUG, "Created client connector to Client " + i);
 		}
@@ -290,34 +360,24 @@ public class P2PNetwork {
 			if (server != null) {
 				server.openIncomingClientConnection();
 				logger.log(LogLevel.DEBUG, "Incoming Client connections opened.");
+				if (virtualNetwork != null) {
+					// Everyone we wait on runs on this thread, so check back instead
+					waitForClients = virtualNetwork.getScheduler().scheduleAtFixedRate(new Runnable() {
+						public void run() {
+							if (server.getConnectedClientAmt() != ourID)
+								return;
+							waitForClients.cancel(false);
+							connectedToClients();
+						}
+					}, timeBetweenConnectionAttempts, timeBetweenConnectionAttempts);
+					connecting = false;
+					return;
+				}
 				do {
-					try {
-						Thread.sleep(timeBetweenConnectionAttempts);
-						// Wait for all Client connections
-					} catch (Exception e) {
-					}
+					// Wait for all Client connections
+					clock.sleep(timeBetweenConnectionAttempts);
 				} while (server.getConnectedClientAmt() != ourID);
-				if (server.getConnectedClientAmt() == ourID) {
-					logger.log(LogLevel.NORMAL,
-							"Connected to all clients (" + server.getConnectedClientAmt() + " total)");
-					server.closeIncomingClientConnection();
-					establishingConnectionNum--;
-					server.sendMessageToAllClients("ESTABLISHING_CONNECTION_NUM:" + establishingConnectionNum
-							+ Client.USERNAME_SPLITTER + server.username);
-					for (int i = 0; i < clients.size(); i++)
-						clients.get(i).sendMessageToServer("ESTABLISHING_CONNECTION_NUM:" + establishingConnectionNum);
-					if (establishingConnectionNum == 0) {
-						for (int i = 5; i >= 0; i--)
-							logger.log(LogLevel.ERROR, "Successfully connected to everyone!");
-						connected = true;
-					} else
-						logger.log(LogLevel.DEBUG,
-								"Queued message to tell all clients and servers we're ready for the next set of p2p connections.");
-
-				} else {
-					logger.log(LogLevel.ERROR, "Didn't connect to all Clients? (" + server.getConnectedClientAmt() + "/"
-							+ (ourID) + ") on port " + server.getPort());
-				}
+				connectedToClients();
 			}
 		} else {
 			if (clientIndentification.get(establishingConnectionNum) == -1) {
@@ -349,6 +409,34 @@ public class P2PNetwork {
 		connecting = false;
 	}
 
+	/**
+	 * Once every {@link Client} below us has connected to our {@link Server},
+	 * stops accepting more and tells everyone to move on to the next set of
+	 * connections.
+	 */
+	private void connectedToClients() {
+		if (server.getConnectedClientAmt() == ourID) {
+			logger.log(LogLevel.NORMAL, "Connected to all clients (" + server.getConnectedClientAmt() + " total)");
+			server.closeIncomingClientConnection();
+			establishingConnectionNum--;
+			server.sendMessageToAllClients("ESTABLISHING_CONNECTION_NUM:" + establishingConnectionNum
+					+ Client.USERNAME_SPLITTER + server.username);
+			for (int i = 0; i < clients.size(); i++)
+				clients.get(i).sendMessageToServer("ESTABLISHING_CONNECTION_NUM:" + establishingConnectionNum);
+			if (establishingConnectionNum == 0) {
+				for (int i = 5; i >= 0; i--)
+					logger.log(LogLevel.ERROR, "Successfully connected to everyone!");
+				connected = true;
+			} else
+				logger.log(LogLevel.DEBUG,
+						"Queued message to tell all clients and servers we're ready for the next set of p2p connections.");
+
+		} else {
+			logger.log(LogLevel.ERROR, "Didn't connect to all Clients? (" + server.getConnectedClientAmt() + "/"
+					+ (ourID) + ") on port " + server.getPort());
+		}
+	}
+
 	private static class defaultServerMessageHandler extends P2PServerMessageHandler {
 
 		public void process(String message) {
@@ -406,22 +494,35 @@ public class P2PNetwork {
 	 */
 	private void processMessage(String message) {
 		logger.log(LogLevel.DEBUG, "Processing message: " + message);
-		if (message.startsWith("ESTABLISHING_CONNECTION_NUM:")) {
-			logger.log(LogLevel.DEBUG, "Establishing connection num detected");
-			int num = Integer.parseInt(message.split(Client.USERNAME_SPLITTER)[0].split(":")[1]);
-			if (num == 0) {
-				for (int i = 5; i >= 0; i--)
-					logger.log(LogLevel.ERROR, "Successfully connected to everyone!");
-				connected = true;
-			} else {
-				establishingConnectionNum = num;
-				logger.log(LogLevel.DEBUG,
-						"Got word that everyone connected in this stage! Advancing to " + establishingConnectionNum);
-				connect();
-			}
+		router.route(this, message);
+	}
+
+	/**
+	 * Handles <i>ESTABLISHING_CONNECTION_NUM:</i> messages: everyone connected in
+	 * this stage, so advance to the one given (or finish if it is 0).
+	 */
+	private void establishingConnectionNum(String message) {
+		logger.log(LogLevel.DEBUG, "Establishing connection num detected");
+		int num = Integer.parseInt(message.split(Client.USERNAME_SPLITTER)[0].split(":")[1]);
+		if (num == 0) {
+			for (int i = 5; i >= 0; i--)
+				logger.log(LogLevel.ERROR, "Successfully connected to everyone!");
+			connected = true;
+		} else {
+			establishingConnectionNum = num;
+			logger.log(LogLevel.DEBUG,
+					"Got word that everyone connected in this stage! Advancing to " + establishingConnectionNum);
+			connect();
 		}
 	}
 
+	/**
+	 * @return {@link #router}, to handle more kinds of messages.
+	 */
+	public MessageRouter<P2PNetwork> getRouter() {
+		return router;
+	}
+
 	/**
 	 * @return {@link #connected}.
 	 */
@@ -514,6 +615,27 @@ public class P2PNetwork {
 		}
 	}
 
+	/**
+	 * @return {@link #journal}.
+	 */
+	public NetworkJournal getJournal() {
+		return journal;
+	}
+
+	/**
+	 * @param journal
+	 *            See {@link #journal}, or <b>null</b> to stop recording. Also set
+	 *            on our {@link Server} and {@link Client}s if they already exist.
+	 */
+	public void setJournal(NetworkJournal journal) {
+		this.journal = journal;
+		if (server != null)
+			server.setJournal(journal);
+		if (clients != null)
+			for (int i = 0; i < clients.size(); i++)
+				clients.get(i).setJournal(journal, -1 - (ourID + 1 + i));
+	}
+
 	/**
 	 * @see {@link #ourID}.
 	 * @return
@@ -0,0 +1,214 @@
+package com.github.vegeto079.ngcommontools.networking;
+
+/**
+ * Limits how much a single {@link Client} can send to the {@link Server}, so
+ * one misbehaving connection can't use up the time meant for everyone
+ * else.<br>
+ * <br>
+ * Two token buckets are kept: one for messages and one for bytes. Each fills at
+ * its rate per second, up to its burst, and every message takes one token from
+ * the first and its length from the second. A message that finds either
+ * bucket short is over the limit, and what happens to it depends on the
+ * {@link Action}. How many messages went over, and what was done with them, is
+ * counted.
+ *
+ * @author Nathan
+ * @version 1.0: Started tracking version.
+ * @version 1.01: Added {@link #acquire(int, long)}, to acquire at a time from
+ *          any clock.
+ */
+public class RateLimiter {
+	/**
+	 * What to do with messages over the limit.
+	 */
+	public enum Action {
+		/**
+		 * Throw them away.
+		 */
+		DROP,
+		/**
+		 * Hold them back until the limit allows them (up to
+		 * {@link RateLimiter#maxDelay}, after which they are dropped).
+		 */
+		DELAY,
+		/**
+		 * Disconnect the {@link Client}.
+		 */
+		DISCONNECT
+	}
+
+	/**
+	 * Limits messages, or <b>null</b> for no limit.
+	 */
+	protected final Bucket messages;
+	/**
+	 * Limits bytes (characters), or <b>null</b> for no limit.
+	 */
+	protected final Bucket bytes;
+	/**
+	 * What to do with messages over the limit.
+	 */
+	protected final Action action;
+	/**
+	 * The longest (in milliseconds) {@link Action#DELAY} holds back a message.
+	 */
+	public long maxDelay = 1000;
+	/**
+	 * How many messages went over the limit.
+	 */
+	protected volatile long exceeded = 0;
+	/**
+	 * How many messages over the limit were dropped.
+	 */
+	protected volatile long dropped = 0;
+	/**
+	 * How many messages over the limit were held back.
+	 */
+	protected volatile long delayed = 0;
+
+	/**
+	 * Initiates {@link RateLimiter} with full buckets, each able to take a
+	 * second's worth at once.
+	 *
+	 * @param messagesPerSecond
+	 *            Messages allowed per second, or -1 for no limit.
+	 * @param bytesPerSecond
+	 *            Bytes allowed per second, or -1 for no limit. Longer messages
+	 *            than this are always over the limit.
+	 * @param action
+	 *            See {@link #action}.
+	 */
+	public RateLimiter(double messagesPerSecond, double bytesPerSecond, Action action) {
+		this(messagesPerSecond, messagesPerSecond, bytesPerSecond, bytesPerSecond, action);
+	}
+
+	/**
+	 * Initiates {@link RateLimiter} with full buckets.
+	 *
+	 * @param messageBurst
+	 *            The most messages allowed at once.
+	 * @param byteBurst
+	 *            The most bytes allowed at once.
+	 * @see #RateLimiter(double, double, Action)
+	 */
+	public RateLimiter(double messagesPerSecond, double messageBurst, double bytesPerSecond, double byteBurst,
+			Action action) {
+		messages = messagesPerSecond > 0 ? new Bucket(messagesPerSecond, messageBurst) : null;
+		bytes = bytesPerSecond > 0 ? new Bucket(bytesPerSecond, byteBurst) : null;
+		this.action = action;
+	}
+
+	/**
+	 * Takes what a message of <b>length</b> needs from the buckets, if it is
+	 * allowed.
+	 *
+	 * @return When the message may be handled: 0 for now, a time (from
+	 *         {@link System#currentTimeMillis()}) to hold it back until, or -1 if
+	 *         it must not be (see {@link #action}).
+	 */
+	public long acquire(int length) {
+		return acquire(length, System.currentTimeMillis());
+	}
+
+	/**
+	 * Takes what a message of <b>length</b> needs from the buckets as of
+	 * <b>now</b>, if it is allowed. See {@link #acquire(int)}.
+	 *
+	 * @return When the message may be handled: 0 for now, a time (on the same
+	 *         clock as <b>now</b>) to hold it back until, or -1 if it must not be.
+	 */
+	public synchronized long acquire(int length, long now) {
+		long wait = 0;
+		if (messages != null)
+			wait = Math.max(wait, messages.waitFor(1, now));
+		if (bytes != null)
+			wait = Math.max(wait, bytes.waitFor(length, now));
+		if (wait == 0) {
+			take(length);
+			return 0;
+		}
+		exceeded++;
+		if (action == Action.DELAY && wait <= maxDelay) {
+			// Taken now, leaving the buckets owing, so later messages wait behind it
+			take(length);
+			delayed++;
+			return now + wait;
+		}
+		if (action != Action.DISCONNECT)
+			dropped++;
+		return -1;
+	}
+
+	private void take(int length) {
+		if (messages != null)
+			messages.tokens -= 1;
+		if (bytes != null)
+			bytes.tokens -= length;
+	}
+
+	/**
+	 * @return {@link #action}.
+	 */
+	public Action getAction() {
+		return action;
+	}
+
+	/**
+	 * @return {@link #exceeded}.
+	 */
+	public long getExceeded() {
+		return exceeded;
+	}
+
+	/**
+	 * @return {@link #dropped}.
+	 */
+	public long getDropped() {
+		return dropped;
+	}
+
+	/**
+	 * @return {@link #delayed}.
+	 */
+	public long getDelayed() {
+		return delayed;
+	}
+
+	@Override
+	public String toString() {
+		return "RateLimiter(" + action + ", exceeded " + exceeded + ", dropped " + dropped + ", delayed " + delayed
+				+ ")";
+	}
+
+	/**
+	 * A single token bucket. {@link #tokens} can go below 0 while messages are
+	 * being held back.
+	 */
+	protected static class Bucket {
+		protected final double rate;
+		protected final double burst;
+		protected double tokens;
+		protected long lastFill = -1;
+
+		protected Bucket(double rate, double burst) {
+			this.rate = rate;
+			this.burst = Math.max(1, burst);
+			tokens = this.burst;
+		}
+
+		/**
+		 * Fills the bucket up to <b>now</b>.
+		 *
+		 * @return How long (in milliseconds) until it holds <b>amt</b> tokens.
+		 */
+		protected long waitFor(double amt, long now) {
+			if (lastFill == -1)
+				lastFill = now;
+			tokens = Math.min(burst, tokens + (now - lastFill) * rate / 1000);
+			lastFill = now;
+			if (tokens >= amt)
+				return 0;
+			return (long) Math.ceil((amt - tokens) * 1000 / rate);
+		}
+	}
+}
@@ -0,0 +1,1034 @@
+package com.github.vegeto079.ngcommontools.networking;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.github.vegeto079.ngcommontools.main.Logger;
+import com.github.vegeto079.ngcommontools.main.Logger.LogLevel;
+
+/**
+ * A reliable, ordered transport built on top of UDP, as an alternative to the
+ * TCP connections used by {@link Server} and {@link Client}.<br>
+ * <br>
+ * Every message is sent on a <b>stream</b> (0-255). Messages on the same stream
+ * are delivered in the order they were sent, but streams are independent of
+ * each other: a lost chat message on one stream will never hold back gameplay
+ * messages on another (no head-of-line blocking between unrelated messages).
+ * <br>
+ * <br>
+ * Every packet carries a packet sequence number, along with the latest sequence
+ * number we have received from the other side and a 32-bit field of the
+ * packets received before that (selective acknowledgements). Unacknowledged
+ * messages are resent once they exceed a retransmit timeout calculated from
+ * the measured round-trip time.<br>
+ * <br>
+ * To use, create a new class <b>extending</b> {@link ReliableUDPMessageHandler}
+ * and pass it to {@link #ReliableUDP(ReliableUDPMessageHandler, Logger, int)},
+ * then call {@link #start()}. Both sides of a connection are the same class;
+ * there is no listening or connecting step, just
+ * {@link #sendMessage(SocketAddress, int, String)}.<br>
+ * <br>
+ * The first message to an address starts a short handshake, and messages are
+ * held until it completes. Each side picks a random <b>epoch</b> for the
+ * connection, and every packet carries both epochs: packets from an address
+ * we have no connection with (or an old one) are answered with a reset
+ * instead of being acknowledged, so both sides always start their sequence
+ * numbers from the same place. The handshake only keeps state once the other
+ * side has proven it receives packets at its address, so spoofed sources get
+ * nothing kept for them.
+ *
+ * @author Nathan
+ * @version 1.0: Started tracking version.
+ * @version 1.01: Peers are dropped after {@link #maxRetransmits} resends of a
+ *          message or {@link #peerTimeout} of silence (see
+ *          {@link ReliableUDPMessageHandler#peerLost(SocketAddress)}), so dead
+ *          or spoofed addresses aren't kept forever.
+ * @version 1.02: Connections start with a handshake and carry an epoch per
+ *          side, so a peer dropped by only one side is reset on both instead
+ *          of its new messages being lost as duplicates. Messages buffered
+ *          out of order are limited by {@link #maxOutOfOrder}.
+ */
+public class ReliableUDP {
+	/**
+	 * Packet type for a packet carrying a message (and acknowledgements).
+	 */
+	private final static byte TYPE_DATA = 1;
+	/**
+	 * Packet type for a packet carrying only acknowledgements.
+	 */
+	private final static byte TYPE_ACK = 2;
+	/**
+	 * Handshake packet asking for a {@link #TYPE_CHALLENGE}, carrying our epoch.
+	 */
+	private final static byte TYPE_HELLO = 3;
+	/**
+	 * Handshake reply to {@link #TYPE_HELLO}, echoing their epoch along with a
+	 * cookie only someone receiving at their address could know.
+	 */
+	private final static byte TYPE_CHALLENGE = 4;
+	/**
+	 * Handshake packet echoing a {@link #TYPE_CHALLENGE}'s epoch and cookie.
+	 * Only a valid one makes the other side keep state for us.
+	 */
+	private final static byte TYPE_CONNECT = 5;
+	/**
+	 * Handshake reply to {@link #TYPE_CONNECT}, echoing their epoch along with
+	 * ours. The connection is established once received.
+	 */
+	private final static byte TYPE_ACCEPT = 6;
+	/**
+	 * Reply to a {@link #TYPE_DATA} packet for a connection we don't have,
+	 * echoing both of its epochs.
+	 */
+	private final static byte TYPE_RESET = 7;
+	/**
+	 * Bytes used by every handshake packet, including {@link #TYPE_HELLO} (which
+	 * is padded so no reply is ever larger than what was sent to us).
+	 */
+	private final static int HANDSHAKE_SIZE = 1 + 4 + 4;
+	/**
+	 * Bytes used by a {@link #TYPE_ACK} packet.
+	 */
+	private final static int ACK_SIZE = 1 + 4 + 4 + 4 + 4;
+	/**
+	 * Bytes used by the header of a {@link #TYPE_DATA} packet.
+	 */
+	private final static int DATA_HEADER_SIZE = 1 + 4 + 4 + 4 + 4 + 4 + 1 + 4 + 2;
+	/**
+	 * How long (in milliseconds) a handshake cookie is valid for. Cookies from
+	 * the previous period are still accepted.
+	 */
+	private final static long COOKIE_LIFETIME = 10000;
+	/**
+	 * The largest message (in UTF-8 bytes) that can be sent in a single packet.
+	 */
+	public final static int MAX_MESSAGE_SIZE = 1200 - DATA_HEADER_SIZE;
+	/**
+	 * Charset used to encode messages.
+	 */
+	private final static Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Custom {@link ReliableUDPMessageHandler} used when receiving messages.
+	 */
+	protected ReliableUDPMessageHandler messageHandler = null;
+	/**
+	 * Custom {@link Logger} used to display messages with this
+	 * {@link ReliableUDP}.
+	 */
+	protected Logger logger = null;
+	/**
+	 * The local port we are bound to. 0 picks any free port, see
+	 * {@link #getPort()}.
+	 */
+	protected int port = -1;
+	/**
+	 * The socket used to send and receive all packets.
+	 */
+	protected DatagramSocket socket = null;
+	/**
+	 * Every remote address we have talked to, and the state kept for it.
+	 */
+	protected Map<SocketAddress, Peer> peers = new HashMap<SocketAddress, Peer>();
+	/**
+	 * Thread receiving packets and handling retransmits and acknowledgements.
+	 */
+	protected Thread thread = null;
+	/**
+	 * Whether or not we should stop {@link #thread}.
+	 */
+	protected volatile boolean stop = true;
+	/**
+	 * Lowest retransmit timeout, in milliseconds.
+	 */
+	public long minRetransmitTimeout = 20;
+	/**
+	 * Highest retransmit timeout, in milliseconds.
+	 */
+	public long maxRetransmitTimeout = 2000;
+	/**
+	 * How long (in milliseconds) we sleep waiting for packets before checking
+	 * retransmits and acknowledgements again.
+	 */
+	public int serviceInterval = 5;
+	/**
+	 * How many times a message is resent without being acknowledged before we
+	 * give up on its peer and drop it.
+	 */
+	public int maxRetransmits = 10;
+	/**
+	 * How long (in milliseconds) a peer can go without sending us anything, and
+	 * without us sending it anything, before it is dropped.
+	 */
+	public long peerTimeout = 30000;
+	/**
+	 * How far ahead (in messages) of the next expected one on a stream we
+	 * buffer messages received out of order. Anything further is dropped
+	 * without being acknowledged, so it is resent later. We also hold back our
+	 * own messages this far ahead of the oldest unacknowledged one on their
+	 * stream, so it should be the same on both sides.
+	 */
+	public int maxOutOfOrder = 256;
+	/**
+	 * Used to pick epochs.
+	 */
+	private final SecureRandom random = new SecureRandom();
+	/**
+	 * Secret mixed into every handshake cookie, so they can't be guessed.
+	 */
+	private final byte[] cookieSecret = new byte[16];
+
+	/**
+	 * Initiates {@link ReliableUDP}. Nothing is opened until {@link #start()}.
+	 *
+	 * @param messageHandler
+	 *            See {@link #messageHandler}
+	 * @param logger
+	 *            See {@link #logger}
+	 * @param port
+	 *            See {@link #port}
+	 */
+	public ReliableUDP(ReliableUDPMessageHandler messageHandler, Logger logger, int port) {
+		this.messageHandler = messageHandler;
+		this.logger = logger;
+		this.port = port;
+		random.nextBytes(cookieSecret);
+	}
+
+	/**
+	 * Binds to {@link #port} and starts {@link #thread}.
+	 *
+	 * @throws IOException
+	 *             If the port could not be bound.
+	 */
+	public void start() throws IOException {
+		if (!stop) {
+			logger.log(LogLevel.WARNING, "We tried to start ReliableUDP when it was already started..");
+			return;
+		}
+		socket = new DatagramSocket(port);
+		socket.setSoTimeout(serviceInterval);
+		stop = false;
+		thread = new Thread(new Runnable() {
+			public void run() {
+				serviceLoop();
+			}
+		}, "ReliableUDP Thread (" + getPort() + ")");
+		thread.setDaemon(true);
+		thread.start();
+		logger.log(LogLevel.NORMAL, "ReliableUDP started on port " + getPort() + ".");
+	}
+
+	/**
+	 * Stops {@link #thread} and closes {@link #socket}. Unacknowledged messages
+	 * are discarded.
+	 */
+	public void close() {
+		logger.log(LogLevel.NORMAL, "Stopping ReliableUDP.");
+		stop = true;
+		if (socket != null)
+			socket.close();
+		if (thread != null && thread != Thread.currentThread()) {
+			try {
+				thread.join(1000);
+			} catch (InterruptedException e) {
+			}
+		}
+		thread = null;
+		synchronized (peers) {
+			peers.clear();
+		}
+	}
+
+	/**
+	 * @return The port we are bound to, or {@link #port} if not yet started.
+	 */
+	public int getPort() {
+		if (socket != null)
+			return socket.getLocalPort();
+		return port;
+	}
+
+	/**
+	 * Sends a message reliably to <b>ip</b>:<b>port</b>.
+	 *
+	 * @see #sendMessage(SocketAddress, int, String)
+	 */
+	public void sendMessage(String ip, int port, int stream, String message) {
+		sendMessage(new InetSocketAddress(ip, port), stream, message);
+	}
+
+	/**
+	 * Queues <b>message</b> to be sent reliably to <b>to</b> on <b>stream</b>. It
+	 * is sent immediately (unless the handshake isn't done yet, or it is
+	 * {@link #maxOutOfOrder} messages ahead of the oldest unacknowledged one on
+	 * its stream), and resent until acknowledged.
+	 *
+	 * @param to
+	 *            Address of the other {@link ReliableUDP}.
+	 * @param stream
+	 *            Stream (0-255) to send the message on. Messages are ordered
+	 *            per-stream.
+	 * @param message
+	 *            The message to send, at most {@link #MAX_MESSAGE_SIZE} bytes
+	 *            when encoded.
+	 * @throws IllegalArgumentException
+	 *             If <b>stream</b> or the size of <b>message</b> is out of range.
+	 */
+	public void sendMessage(SocketAddress to, int stream, String message) {
+		if (stream < 0 || stream > 255)
+			throw new IllegalArgumentException("stream must be >=0 && <=255.");
+		byte[] payload = message.getBytes(UTF8);
+		if (payload.length > MAX_MESSAGE_SIZE)
+			throw new IllegalArgumentException("message must be <=" + MAX_MESSAGE_SIZE + " bytes.");
+		while (true) {
+			Peer peer = getPeer(to);
+			synchronized (peer) {
+				if (peer.removed)
+					// Dropped meanwhile, start over with a new one
+					continue;
+				peer.lastActivity = System.currentTimeMillis();
+				Outgoing outgoing = new Outgoing();
+				outgoing.stream = stream;
+				outgoing.streamSeq = peer.nextStreamSeq[stream]++;
+				outgoing.payload = payload;
+				peer.pending.add(outgoing);
+				if (peer.remoteEpoch != 0)
+					flushPending(peer);
+				else if (peer.handshakeSentTime == 0)
+					transmitHandshake(peer);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @param address
+	 *            Address of the other {@link ReliableUDP}.
+	 * @return Smoothed round-trip time to <b>address</b> in milliseconds, or -1 if
+	 *         not yet measured.
+	 */
+	public int getRTT(SocketAddress address) {
+		Peer peer;
+		synchronized (peers) {
+			peer = peers.get(address);
+		}
+		if (peer == null)
+			return -1;
+		synchronized (peer) {
+			return peer.srtt < 0 ? -1 : (int) peer.srtt;
+		}
+	}
+
+	/**
+	 * @param address
+	 *            Address of the other {@link ReliableUDP}.
+	 * @return How many messages sent to <b>address</b> have not been
+	 *         acknowledged yet, including those not sent yet.
+	 */
+	public int getUnacknowledgedAmt(SocketAddress address) {
+		Peer peer;
+		synchronized (peers) {
+			peer = peers.get(address);
+		}
+		if (peer == null)
+			return 0;
+		synchronized (peer) {
+			return peer.unacked.size() + peer.pending.size();
+		}
+	}
+
+	/**
+	 * @return How many remote addresses we are keeping track of.
+	 */
+	public int getPeerAmt() {
+		synchronized (peers) {
+			return peers.size();
+		}
+	}
+
+	/**
+	 * Gets (or creates) the {@link Peer} for <b>address</b>. Only used when we
+	 * are the one sending first; peers that contact us are only created by
+	 * {@link #receiveConnect(SocketAddress, int)}.
+	 */
+	private Peer getPeer(SocketAddress address) {
+		synchronized (peers) {
+			Peer peer = peers.get(address);
+			if (peer == null) {
+				peer = new Peer(address);
+				peers.put(address, peer);
+			}
+			return peer;
+		}
+	}
+
+	/**
+	 * Sends <b>outgoing</b> under a new packet sequence number, piggybacking our
+	 * latest acknowledgements. Must be called while holding the lock on
+	 * <b>peer</b>.
+	 */
+	private void transmit(Peer peer, Outgoing outgoing) {
+		int seq = peer.nextPacketSeq++;
+		outgoing.sentTime = System.currentTimeMillis();
+		peer.unacked.put(seq, outgoing);
+		ByteBuffer buf = ByteBuffer.allocate(DATA_HEADER_SIZE + outgoing.payload.length);
+		buf.put(TYPE_DATA);
+		buf.putInt(peer.localEpoch);
+		buf.putInt(peer.remoteEpoch);
+		buf.putInt(seq);
+		buf.putInt(peer.remoteSeq);
+		buf.putInt(peer.remoteAckBits);
+		buf.put((byte) outgoing.stream);
+		buf.putInt(outgoing.streamSeq);
+		buf.putShort((short) outgoing.payload.length);
+		buf.put(outgoing.payload);
+		peer.ackPending = false;
+		send(peer.address, buf);
+	}
+
+	/**
+	 * Sends every message in {@link Peer#pending} that is less than
+	 * {@link #maxOutOfOrder} ahead of the oldest unacknowledged message on its
+	 * stream, so the other side never has to drop one for being too far ahead.
+	 * Must be called while holding the lock on <b>peer</b>.
+	 */
+	private void flushPending(Peer peer) {
+		if (peer.remoteEpoch == 0 || peer.pending.isEmpty())
+			return;
+		Iterator<Outgoing> it = peer.pending.iterator();
+		while (it.hasNext()) {
+			Outgoing outgoing = it.next();
+			int oldest = outgoing.streamSeq;
+			for (Outgoing sent : peer.unacked.values())
+				if (sent.stream == outgoing.stream && sent.streamSeq - oldest < 0)
+					oldest = sent.streamSeq;
+			if (outgoing.streamSeq - oldest < maxOutOfOrder) {
+				it.remove();
+				transmit(peer, outgoing);
+			}
+		}
+	}
+
+	/**
+	 * Sends a packet containing only our latest acknowledgements. Must be called
+	 * while holding the lock on <b>peer</b>.
+	 */
+	private void transmitAck(Peer peer) {
+		ByteBuffer buf = ByteBuffer.allocate(ACK_SIZE);
+		buf.put(TYPE_ACK);
+		buf.putInt(peer.localEpoch);
+		buf.putInt(peer.remoteEpoch);
+		buf.putInt(peer.remoteSeq);
+		buf.putInt(peer.remoteAckBits);
+		peer.ackPending = false;
+		send(peer.address, buf);
+	}
+
+	/**
+	 * Sends (or resends) our side of the handshake to <b>peer</b>: a
+	 * {@link #TYPE_CONNECT} if we have its cookie, otherwise a
+	 * {@link #TYPE_HELLO}. Must be called while holding the lock on
+	 * <b>peer</b>.
+	 */
+	private void transmitHandshake(Peer peer) {
+		peer.handshakeSentTime = System.currentTimeMillis();
+		if (peer.hasCookie)
+			sendHandshake(peer.address, TYPE_CONNECT, peer.localEpoch, peer.cookie);
+		else
+			sendHandshake(peer.address, TYPE_HELLO, peer.localEpoch, 0);
+	}
+
+	private void sendHandshake(SocketAddress to, byte type, int first, int second) {
+		ByteBuffer buf = ByteBuffer.allocate(HANDSHAKE_SIZE);
+		buf.put(type);
+		buf.putInt(first);
+		buf.putInt(second);
+		send(to, buf);
+	}
+
+	/**
+	 * Sends a single packet, the first <b>buf.position()</b> bytes of
+	 * <b>buf</b>, to <b>to</b>. Can be overridden to simulate a lossy network,
+	 * by dropping or delaying packets before passing them on.
+	 */
+	protected void send(SocketAddress to, ByteBuffer buf) {
+		try {
+			socket.send(new DatagramPacket(buf.array(), buf.position(), to));
+		} catch (Exception e) {
+			if (!stop)
+				logger.log(LogLevel.WARNING, "Could not send packet to " + to + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Receives packets until {@link #stop}, handling retransmits and pending
+	 * acknowledgements every {@link #serviceInterval}.
+	 */
+	private void serviceLoop() {
+		byte[] data = new byte[1500];
+		DatagramPacket packet = new DatagramPacket(data, data.length);
+		while (!stop) {
+			try {
+				packet.setLength(data.length);
+				socket.receive(packet);
+				receive(packet.getSocketAddress(), ByteBuffer.wrap(data, 0, packet.getLength()));
+			} catch (SocketTimeoutException ignore) {
+			} catch (Exception e) {
+				if (!stop)
+					logger.log(LogLevel.WARNING, "ReliableUDP receive error: " + e.getMessage());
+			}
+			service();
+		}
+	}
+
+	/**
+	 * Resends every message whose retransmit timeout has passed, and sends any
+	 * acknowledgements that weren't piggybacked on a message.
+	 */
+	private void service() {
+		Peer[] all;
+		synchronized (peers) {
+			all = peers.values().toArray(new Peer[peers.size()]);
+		}
+		long now = System.currentTimeMillis();
+		ArrayList<Peer> lost = null;
+		for (Peer peer : all) {
+			synchronized (peer) {
+				String reason = null;
+				if (now - peer.lastActivity > peerTimeout)
+					reason = "Idle for " + (now - peer.lastActivity) + "ms";
+				else if (peer.remoteEpoch == 0) {
+					if (now - peer.handshakeSentTime >= peer.getRetransmitTimeout() << Math.min(peer.handshakeAttempts, 6)) {
+						if (peer.handshakeAttempts >= maxRetransmits)
+							reason = "No handshake reply after " + maxRetransmits + " resends";
+						else {
+							peer.handshakeAttempts++;
+							transmitHandshake(peer);
+						}
+					}
+				} else if (!peer.unacked.isEmpty()) {
+					ArrayList<Outgoing> resend = null;
+					Iterator<Map.Entry<Integer, Outgoing>> it = peer.unacked.entrySet().iterator();
+					while (it.hasNext() && reason == null) {
+						Outgoing outgoing = it.next().getValue();
+						if (now - outgoing.sentTime >= peer.getRetransmitTimeout() << Math.min(outgoing.attempts, 6)) {
+							if (outgoing.attempts >= maxRetransmits) {
+								reason = "Message not acknowledged after " + maxRetransmits + " resends";
+								break;
+							}
+							it.remove();
+							if (resend == null)
+								resend = new ArrayList<Outgoing>();
+							resend.add(outgoing);
+						}
+					}
+					if (resend != null && reason == null)
+						for (Outgoing outgoing : resend) {
+							outgoing.attempts++;
+							transmit(peer, outgoing);
+						}
+				}
+				if (reason != null) {
+					drop(peer, reason);
+					if (lost == null)
+						lost = new ArrayList<Peer>();
+					lost.add(peer);
+				} else if (peer.ackPending)
+					transmitAck(peer);
+			}
+		}
+		if (lost != null)
+			for (Peer peer : lost)
+				peerLost(peer.address);
+	}
+
+	/**
+	 * Forgets <b>peer</b>, discarding any messages it had not acknowledged. Must
+	 * be called while holding the lock on <b>peer</b>, and followed by
+	 * {@link #peerLost(SocketAddress)} once it is released.
+	 */
+	private void drop(Peer peer, String reason) {
+		peer.removed = true;
+		peer.unacked.clear();
+		peer.pending.clear();
+		synchronized (peers) {
+			if (peers.get(peer.address) == peer)
+				peers.remove(peer.address);
+		}
+		logger.log(LogLevel.WARNING, "Dropping ReliableUDP peer " + peer.address + ": " + reason + ".");
+	}
+
+	private void peerLost(SocketAddress address) {
+		try {
+			messageHandler.peerLost(address);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Handles a single incoming packet.
+	 */
+	private void receive(SocketAddress from, ByteBuffer buf) {
+		if (buf.remaining() < HANDSHAKE_SIZE)
+			return;
+		byte type = buf.get();
+		if (type == TYPE_DATA) {
+			if (buf.remaining() >= DATA_HEADER_SIZE - 1)
+				receiveData(from, buf);
+		} else if (type == TYPE_ACK) {
+			if (buf.remaining() >= ACK_SIZE - 1)
+				receiveAck(from, buf);
+		} else
+			receiveHandshake(from, type, buf.getInt(), buf.getInt());
+	}
+
+	private void receiveAck(SocketAddress from, ByteBuffer buf) {
+		Peer peer;
+		synchronized (peers) {
+			peer = peers.get(from);
+		}
+		if (peer == null)
+			return;
+		synchronized (peer) {
+			// Acknowledgements only mean something to the connection they're for
+			if (peer.removed || !peer.matches(buf.getInt(), buf.getInt()))
+				return;
+			peer.lastActivity = System.currentTimeMillis();
+			processAcks(peer, buf.getInt(), buf.getInt());
+			flushPending(peer);
+		}
+	}
+
+	private void receiveData(SocketAddress from, ByteBuffer buf) {
+		int senderEpoch = buf.getInt();
+		int receiverEpoch = buf.getInt();
+		Peer peer;
+		synchronized (peers) {
+			peer = peers.get(from);
+		}
+		if (peer == null) {
+			// Not acknowledged or kept, they need to start over with a handshake
+			sendHandshake(from, TYPE_RESET, senderEpoch, receiverEpoch);
+			return;
+		}
+		ArrayList<Incoming> deliver = null;
+		synchronized (peer) {
+			if (peer.removed)
+				return;
+			if (!peer.matches(senderEpoch, receiverEpoch)) {
+				if (receiverEpoch != peer.localEpoch)
+					// Meant for a connection of ours that's gone
+					sendHandshake(from, TYPE_RESET, senderEpoch, receiverEpoch);
+				return;
+			}
+			peer.lastActivity = System.currentTimeMillis();
+			int seq = buf.getInt();
+			processAcks(peer, buf.getInt(), buf.getInt());
+			flushPending(peer);
+			int stream = buf.get() & 0xFF;
+			int streamSeq = buf.getInt();
+			int length = buf.getShort() & 0xFFFF;
+			if (buf.remaining() < length)
+				return;
+			int expected = peer.expectedStreamSeq[stream];
+			if (streamSeq - expected >= maxOutOfOrder)
+				return; // Too far ahead to buffer, left unacknowledged to be resent
+			recordReceived(peer, seq);
+			peer.ackPending = true;
+			TreeMap<Integer, String> waiting = peer.outOfOrder.get(stream);
+			if (streamSeq - expected < 0 || waiting != null && waiting.containsKey(streamSeq))
+				return; // Duplicate
+			String message = new String(buf.array(), buf.arrayOffset() + buf.position(), length, UTF8);
+			if (streamSeq != expected) {
+				if (waiting == null) {
+					waiting = new TreeMap<Integer, String>();
+					peer.outOfOrder.put(stream, waiting);
+				}
+				waiting.put(streamSeq, message);
+				return;
+			}
+			deliver = new ArrayList<Incoming>();
+			deliver.add(new Incoming(stream, message));
+			expected++;
+			while (waiting != null && !waiting.isEmpty() && waiting.containsKey(expected))
+				deliver.add(new Incoming(stream, waiting.remove(expected++)));
+			if (waiting != null && waiting.isEmpty())
+				peer.outOfOrder.remove(stream);
+			peer.expectedStreamSeq[stream] = expected;
+		}
+		for (Incoming incoming : deliver) {
+			try {
+				messageHandler.process(from, incoming.stream, incoming.message);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Handles a handshake packet. The first and second epochs are in the order
+	 * they're written by {@link #sendHandshake(SocketAddress, byte, int, int)}.
+	 */
+	private void receiveHandshake(SocketAddress from, byte type, int first, int second) {
+		if (type == TYPE_HELLO) {
+			// Nothing is kept until they echo this back from the same address
+			sendHandshake(from, TYPE_CHALLENGE, first, getCookie(from, first, System.currentTimeMillis() / COOKIE_LIFETIME));
+			return;
+		} else if (type == TYPE_CONNECT) {
+			if (first != 0 && isCookieValid(from, first, second))
+				receiveConnect(from, first);
+			return;
+		}
+		Peer peer;
+		synchronized (peers) {
+			peer = peers.get(from);
+		}
+		if (peer == null)
+			return;
+		boolean lost = false;
+		synchronized (peer) {
+			if (peer.removed || first != peer.localEpoch)
+				return;
+			if (type == TYPE_CHALLENGE) {
+				if (peer.remoteEpoch == 0) {
+					peer.cookie = second;
+					peer.hasCookie = true;
+					transmitHandshake(peer);
+				}
+			} else if (type == TYPE_ACCEPT) {
+				if (peer.remoteEpoch == 0 && second != 0) {
+					if (peer.handshakeAttempts == 0)
+						peer.addRTTSample(System.currentTimeMillis() - peer.handshakeSentTime);
+					peer.lastActivity = System.currentTimeMillis();
+					peer.establish(second);
+				}
+			} else if (type == TYPE_RESET) {
+				if (peer.remoteEpoch != 0 && second == peer.remoteEpoch) {
+					drop(peer, "They no longer have our connection");
+					lost = true;
+				}
+			}
+		}
+		if (lost)
+			peerLost(from);
+	}
+
+	/**
+	 * Handles a {@link #TYPE_CONNECT} with a valid cookie, creating a
+	 * {@link Peer} for <b>from</b> if we don't have one for <b>epoch</b> yet, and
+	 * replying with a {@link #TYPE_ACCEPT}.
+	 */
+	private void receiveConnect(SocketAddress from, int epoch) {
+		while (true) {
+			Peer peer;
+			synchronized (peers) {
+				peer = peers.get(from);
+				if (peer == null) {
+					peer = new Peer(from);
+					peer.remoteEpoch = epoch;
+					peers.put(from, peer);
+					sendHandshake(from, TYPE_ACCEPT, epoch, peer.localEpoch);
+					return;
+				}
+			}
+			boolean lost = false;
+			synchronized (peer) {
+				if (!peer.removed) {
+					if (peer.remoteEpoch == epoch) {
+						// Our last accept was lost
+						sendHandshake(from, TYPE_ACCEPT, epoch, peer.localEpoch);
+						return;
+					} else if (peer.remoteEpoch == 0) {
+						// We were both starting a connection at once, use theirs
+						peer.lastActivity = System.currentTimeMillis();
+						peer.establish(epoch);
+						sendHandshake(from, TYPE_ACCEPT, epoch, peer.localEpoch);
+						return;
+					}
+					drop(peer, "They started a new connection");
+					lost = true;
+				}
+			}
+			if (lost)
+				peerLost(from);
+		}
+	}
+
+	/**
+	 * @return A random, non-zero epoch.
+	 */
+	private int newEpoch() {
+		int epoch = 0;
+		while (epoch == 0)
+			epoch = random.nextInt();
+		return epoch;
+	}
+
+	/**
+	 * @return The cookie for <b>epoch</b> from <b>address</b> during
+	 *         <b>period</b> (the time divided by {@link #COOKIE_LIFETIME}).
+	 */
+	private int getCookie(SocketAddress address, int epoch, long period) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			digest.update(cookieSecret);
+			digest.update(address.toString().getBytes(UTF8));
+			digest.update(ByteBuffer.allocate(4 + 8).putInt(epoch).putLong(period).array());
+			return ByteBuffer.wrap(digest.digest()).getInt();
+		} catch (Exception e) {
+			throw new IllegalStateException("SHA-1 is not available.", e);
+		}
+	}
+
+	private boolean isCookieValid(SocketAddress address, int epoch, int cookie) {
+		long period = System.currentTimeMillis() / COOKIE_LIFETIME;
+		return cookie == getCookie(address, epoch, period) || cookie == getCookie(address, epoch, period - 1);
+	}
+
+	/**
+	 * Notes that we have received packet <b>seq</b> from <b>peer</b>, updating
+	 * {@link Peer#remoteSeq} and {@link Peer#remoteAckBits}.
+	 */
+	private void recordReceived(Peer peer, int seq) {
+		if (!peer.receivedAny) {
+			peer.receivedAny = true;
+			peer.remoteSeq = seq;
+			peer.remoteAckBits = 0;
+			return;
+		}
+		int diff = seq - peer.remoteSeq;
+		if (diff > 0) {
+			peer.remoteAckBits = diff >= 32 ? 0 : (peer.remoteAckBits << diff);
+			if (diff <= 32)
+				peer.remoteAckBits |= 1 << (diff - 1);
+			peer.remoteSeq = seq;
+		} else if (diff < 0 && diff >= -32) {
+			peer.remoteAckBits |= 1 << (-diff - 1);
+		}
+	}
+
+	/**
+	 * Removes every message acknowledged by <b>ack</b> and <b>ackBits</b> from
+	 * {@link Peer#unacked}, sampling the round-trip time from those that were
+	 * only sent once.
+	 */
+	private void processAcks(Peer peer, int ack, int ackBits) {
+		if (peer.unacked.isEmpty())
+			return;
+		long now = System.currentTimeMillis();
+		acknowledge(peer, ack, now);
+		for (int i = 0; i < 32; i++)
+			if ((ackBits & (1 << i)) != 0)
+				acknowledge(peer, ack - i - 1, now);
+	}
+
+	private void acknowledge(Peer peer, int seq, long now) {
+		Outgoing outgoing = peer.unacked.remove(seq);
+		if (outgoing != null && outgoing.attempts == 0)
+			peer.addRTTSample(now - outgoing.sentTime);
+	}
+
+	/**
+	 * Everything we keep track of for a single remote address.
+	 */
+	private class Peer {
+		private final SocketAddress address;
+		/**
+		 * Our epoch for this connection, picked when it was created.
+		 */
+		private final int localEpoch = newEpoch();
+		/**
+		 * Their epoch for this connection, 0 until the handshake completes.
+		 */
+		private int remoteEpoch = 0;
+		/**
+		 * The cookie from their {@link ReliableUDP#TYPE_CHALLENGE}, if
+		 * {@link #hasCookie}.
+		 */
+		private int cookie = 0;
+		private boolean hasCookie = false;
+		/**
+		 * When we last sent our side of the handshake, 0 if never.
+		 */
+		private long handshakeSentTime = 0;
+		/**
+		 * How many times our side of the handshake has been resent.
+		 */
+		private int handshakeAttempts = 0;
+		/**
+		 * Messages not sent yet, in order, waiting on the handshake or
+		 * {@link ReliableUDP#maxOutOfOrder}.
+		 */
+		private final ArrayList<Outgoing> pending = new ArrayList<Outgoing>();
+		/**
+		 * The sequence number for the next packet we send.
+		 */
+		private int nextPacketSeq = 0;
+		/**
+		 * The next message sequence number for each stream we send on.
+		 */
+		private final int[] nextStreamSeq = new int[256];
+		/**
+		 * The next message sequence number we expect for each stream we receive on.
+		 */
+		private final int[] expectedStreamSeq = new int[256];
+		/**
+		 * Messages received ahead of {@link #expectedStreamSeq}, per stream.
+		 */
+		private final HashMap<Integer, TreeMap<Integer, String>> outOfOrder = new HashMap<Integer, TreeMap<Integer, String>>();
+		/**
+		 * Messages sent but not yet acknowledged, by packet sequence number.
+		 */
+		private final LinkedHashMap<Integer, Outgoing> unacked = new LinkedHashMap<Integer, Outgoing>();
+		/**
+		 * Whether or not we've received anything from this peer yet.
+		 */
+		private boolean receivedAny = false;
+		/**
+		 * The latest packet sequence number received from this peer.
+		 */
+		private int remoteSeq = -1;
+		/**
+		 * Bit <i>n</i> is set if we've received packet {@link #remoteSeq} - n - 1.
+		 */
+		private int remoteAckBits = 0;
+		/**
+		 * Whether or not we've received something that we haven't acknowledged yet.
+		 */
+		private boolean ackPending = false;
+		/**
+		 * Smoothed round-trip time in milliseconds, -1 if not measured.
+		 */
+		private double srtt = -1;
+		/**
+		 * Round-trip time variation in milliseconds.
+		 */
+		private double rttvar = 0;
+		/**
+		 * When we last heard from or sent to this peer.
+		 */
+		private long lastActivity = System.currentTimeMillis();
+		/**
+		 * Whether or not this peer has been dropped, and shouldn't be used.
+		 */
+		private boolean removed = false;
+
+		private Peer(SocketAddress address) {
+			this.address = address;
+		}
+
+		/**
+		 * @return Whether or not a packet carrying these epochs belongs to this
+		 *         (established) connection.
+		 */
+		private boolean matches(int senderEpoch, int receiverEpoch) {
+			return remoteEpoch != 0 && senderEpoch == remoteEpoch && receiverEpoch == localEpoch;
+		}
+
+		/**
+		 * Completes the handshake, sending the messages that were waiting on it.
+		 */
+		private void establish(int epoch) {
+			remoteEpoch = epoch;
+			flushPending(this);
+		}
+
+		/**
+		 * Updates {@link #srtt} and {@link #rttvar} the same way TCP does.
+		 */
+		private void addRTTSample(long rtt) {
+			if (srtt < 0) {
+				srtt = rtt;
+				rttvar = rtt / 2d;
+			} else {
+				rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - rtt);
+				srtt = 0.875 * srtt + 0.125 * rtt;
+			}
+		}
+
+		/**
+		 * @return How long to wait for an acknowledgement before resending.
+		 */
+		private long getRetransmitTimeout() {
+			if (srtt < 0)
+				return maxRetransmitTimeout / 4;
+			long rto = (long) (srtt + 4 * rttvar);
+			return Math.max(minRetransmitTimeout, Math.min(maxRetransmitTimeout, rto));
+		}
+	}
+
+	/**
+	 * A message we've sent and are waiting to be acknowledged.
+	 */
+	private static class Outgoing {
+		private int stream;
+		private int streamSeq;
+		private byte[] payload;
+		private long sentTime;
+		/**
+		 * How many times this message has been resent.
+		 */
+		private int attempts = 0;
+	}
+
+	private static class Incoming {
+		private final int stream;
+		private final String message;
+
+		private Incoming(int stream, String message) {
+			this.stream = stream;
+			this.message = message;
+		}
+	}
+
+	/**
+	 * Abstract class meant to be used to decode all messages received through a
+	 * {@link ReliableUDP}.
+	 *
+	 * @author Nathan
+	 *
+	 */
+	public abstract static class ReliableUDPMessageHandler {
+		/**
+		 * Called once per message, in order per-stream, from the
+		 * {@link ReliableUDP}'s thread.
+		 *
+		 * @param from
+		 *            The address the message came from.
+		 * @param stream
+		 *            The stream the message was sent on.
+		 * @param message
+		 *            The message.
+		 */
+		public abstract void process(SocketAddress from, int stream, String message);
+
+		/**
+		 * Called when we give up on <b>address</b>, after a message (or the
+		 * handshake) to it went unacknowledged {@link ReliableUDP#maxRetransmits}
+		 * times, nothing was heard from it for {@link ReliableUDP#peerTimeout}, or
+		 * it reset or restarted our connection. Any messages to it
+		 * not yet acknowledged are lost. Does nothing unless overridden.
+		 *
+		 * @param address
+		 *            The address dropped.
+		 */
+		public void peerLost(SocketAddress address) {
+		}
+	}
+}
@@ -0,0 +1,422 @@
+package com.github.vegeto079.ngcommontools.networking;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.github.vegeto079.ngcommontools.main.Logger;
+import com.github.vegeto079.ngcommontools.main.Logger.LogLevel;
+import com.github.vegeto079.ngcommontools.networking.Server.ServerMessageHandler;
+
+/**
+ * Hosts many independent game sessions ("rooms") in one process, on one
+ * listening port.<br>
+ * <br>
+ * Each room is a normal {@link Server} with its own
+ * {@link ServerMessageHandler} and {@link Server.Handler}s, created with
+ * {@link #createRoom(String, ServerMessageHandler, long)}. Instead of every
+ * {@link Server} opening its own port and {@link java.util.Timer}, this
+ * {@link RoomServer} accepts all {@link Client}s and hands each one to the room
+ * it asks for (see {@link Client#setRoom(String)}), then ticks every room (
+ * {@link Server#onTick()}) on a bounded set of worker threads.<br>
+ * <br>
+ * Every room is pinned to the worker with the fewest rooms when it is created,
+ * so a room that runs long only delays the rooms sharing its worker, never the
+ * rest.
+ *
+ * @author Nathan
+ * @version 1.0: Started tracking version.
+ * @version 1.01: Rooms are ticked even when empty, and {@link Client}s are
+ *          added to their room on its worker.
+ * @version 1.02: Rooms are started when added, so an empty room isn't
+ *          disconnected each tick. {@link Server.Handler}s leave their room on
+ *          its worker (see {@link Server#handlerExecutor}) and rooms are closed
+ *          on it, so a room's handlers are only ever changed by the thread
+ *          ticking it.
+ */
+public class RoomServer {
+	/**
+	 * Sent by a {@link Client} (followed by the room name) before its
+	 * <b>CONNECTING</b> line to pick a room.
+	 */
+	public final static String ROOM_PREFIX = "ROOM:";
+
+	/**
+	 * Custom {@link Logger} used to display messages with this
+	 * {@link RoomServer}, and passed on to every room.
+	 */
+	protected Logger logger = null;
+	/**
+	 * The port we accept {@link Client}s on, for every room.
+	 */
+	protected int port = -1;
+	/**
+	 * See {@link Server#timeBetweenConnectionAttempts}. Used for every room.
+	 */
+	protected long timeBetweenConnectionAttempts = -1;
+	/**
+	 * See {@link Server#clientTimeout}. Used for every room.
+	 */
+	protected long clientTimeout = -1;
+	/**
+	 * Username used by every room to identify itself to its {@link Client}s.
+	 */
+	protected String username = null;
+	/**
+	 * The room {@link Client}s join when they don't ask for one, or <b>null</b> to
+	 * turn them away.
+	 */
+	protected String defaultRoom = null;
+	/**
+	 * Every room, by name.
+	 */
+	protected Map<String, Room> rooms = new HashMap<String, Room>();
+	/**
+	 * The worker threads rooms are ticked on. Each is a single thread, so a room
+	 * is never ticked twice at the same time.
+	 */
+	protected ScheduledExecutorService[] workers = null;
+	/**
+	 * How many rooms are pinned to each of {@link #workers}.
+	 */
+	protected int[] workerLoad = null;
+	/**
+	 * The thread of each of {@link #workers}, once started.
+	 */
+	protected final Thread[] workerThreads;
+	/**
+	 * Accepts all incoming {@link Client}s.
+	 */
+	protected ServerSocket listener = null;
+	/**
+	 * Thread running {@link #acceptClients()}.
+	 */
+	protected Thread acceptThread = null;
+	/**
+	 * Whether or not we should stop accepting {@link Client}s.
+	 */
+	protected volatile boolean stop = true;
+	/**
+	 * How long (in milliseconds) a new {@link Client} has to tell us which room it
+	 * wants before we give up on it.
+	 */
+	public int handshakeTimeout = 5000;
+
+	/**
+	 * Initiates {@link RoomServer}. Nothing is opened until {@link #open()}.
+	 *
+	 * @param logger
+	 *            See {@link #logger}
+	 * @param port
+	 *            See {@link #port}
+	 * @param timeBetweenConnectionAttempts
+	 *            See {@link #timeBetweenConnectionAttempts}
+	 * @param clientTimeout
+	 *            See {@link #clientTimeout}
+	 * @param workerAmt
+	 *            How many threads rooms are ticked on. Values less than 1 use the
+	 *            amount of available processors.
+	 * @param username
+	 *            See {@link #username}
+	 */
+	public RoomServer(Logger logger, int port, long timeBetweenConnectionAttempts, long clientTimeout, int workerAmt,
+			String username) {
+		this.logger = logger;
+		this.port = port;
+		this.timeBetweenConnectionAttempts = timeBetweenConnectionAttempts;
+		this.clientTimeout = clientTimeout;
+		this.username = username;
+		if (workerAmt < 1)
+			workerAmt = Runtime.getRuntime().availableProcessors();
+		workers = new ScheduledExecutorService[workerAmt];
+		workerLoad = new int[workerAmt];
+		workerThreads = new Thread[workerAmt];
+		for (int i = 0; i < workerAmt; i++) {
+			final int num = i;
+			workers[i] = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "RoomServer Worker " + num);
+					thread.setDaemon(true);
+					workerThreads[num] = thread;
+					return thread;
+				}
+			});
+		}
+	}
+
+	/**
+	 * Creates a new room and starts ticking it.
+	 *
+	 * @param name
+	 *            The name {@link Client}s use to join the room.
+	 * @param messageHandler
+	 *            The room's {@link ServerMessageHandler}.
+	 * @param seed
+	 *            See {@link Server#seed}.
+	 * @return The room's {@link Server}.
+	 * @throws IllegalArgumentException
+	 *             If a room called <b>name</b> already exists.
+	 */
+	public Server createRoom(String name, ServerMessageHandler messageHandler, long seed) {
+		return addRoom(name,
+				new Server(messageHandler, logger, port, timeBetweenConnectionAttempts, clientTimeout, seed, username));
+	}
+
+	/**
+	 * Adds an already created {@link Server} (for example, one overriding
+	 * {@link Server#onTick()}) as a room and starts ticking it. The
+	 * {@link Server} should not open its own incoming or talking connections.
+	 *
+	 * @param name
+	 *            The name {@link Client}s use to join the room.
+	 * @param server
+	 *            The room's {@link Server}.
+	 * @return <b>server</b>.
+	 * @throws IllegalArgumentException
+	 *             If a room called <b>name</b> already exists.
+	 */
+	public Server addRoom(String name, final Server server) {
+		synchronized (rooms) {
+			if (rooms.containsKey(name))
+				throw new IllegalArgumentException("Room already exists: " + name);
+			int worker = 0;
+			for (int i = 1; i < workerLoad.length; i++)
+				if (workerLoad[i] < workerLoad[worker])
+					worker = i;
+			workerLoad[worker]++;
+			Room room = new Room(server, worker);
+			// Clients come through us, never through the room's own Connector
+			server.stop = false;
+			server.handlerExecutor = workers[worker];
+			room.future = workers[worker].scheduleAtFixedRate(new Runnable() {
+				public void run() {
+					try {
+						server.serviceClients();
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			}, timeBetweenConnectionAttempts, timeBetweenConnectionAttempts, TimeUnit.MILLISECONDS);
+			rooms.put(name, room);
+			logger.log(LogLevel.NORMAL, "Created room " + name + " on worker " + worker + ".");
+		}
+		return server;
+	}
+
+	/**
+	 * Stops ticking a room and disconnects all of its {@link Client}s, on its
+	 * worker.
+	 *
+	 * @return Whether or not the room existed.
+	 */
+	public boolean closeRoom(String name) {
+		final Room room;
+		synchronized (rooms) {
+			room = rooms.remove(name);
+			if (room == null)
+				return false;
+			workerLoad[room.worker]--;
+		}
+		room.future.cancel(false);
+		if (Thread.currentThread() == workerThreads[room.worker])
+			room.server.disconnect();
+		else
+			try {
+				workers[room.worker].submit(new Runnable() {
+					public void run() {
+						room.server.disconnect();
+					}
+				}).get();
+			} catch (RejectedExecutionException e) {
+				// Worker already stopped, nothing else is ticking it
+				room.server.disconnect();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e) {
+				e.getCause().printStackTrace();
+			}
+		logger.log(LogLevel.NORMAL, "Closed room " + name + ".");
+		return true;
+	}
+
+	/**
+	 * @return The room's {@link Server}, or <b>null</b> if there is no room called
+	 *         <b>name</b>.
+	 */
+	public Server getRoom(String name) {
+		synchronized (rooms) {
+			Room room = rooms.get(name);
+			return room == null ? null : room.server;
+		}
+	}
+
+	/**
+	 * @return The {@link Room} called <b>name</b>, or <b>null</b> if there isn't
+	 *         one.
+	 */
+	private Room getRoomEntry(String name) {
+		synchronized (rooms) {
+			return rooms.get(name);
+		}
+	}
+
+	/**
+	 * @return The names of every room.
+	 */
+	public List<String> getRoomNames() {
+		synchronized (rooms) {
+			return new ArrayList<String>(rooms.keySet());
+		}
+	}
+
+	/**
+	 * @param defaultRoom
+	 *            See {@link #defaultRoom}.
+	 */
+	public void setDefaultRoom(String defaultRoom) {
+		this.defaultRoom = defaultRoom;
+	}
+
+	/**
+	 * @return {@link #port}.
+	 */
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * Opens {@link #listener} on {@link #port} and starts accepting
+	 * {@link Client}s.
+	 *
+	 * @throws IOException
+	 *             If the port could not be opened.
+	 */
+	public void open() throws IOException {
+		if (!stop) {
+			logger.log(LogLevel.WARNING, "We tried to open the RoomServer when it was already open..");
+			return;
+		}
+		listener = new ServerSocket(port, 100);
+		stop = false;
+		acceptThread = new Thread(new Runnable() {
+			public void run() {
+				acceptClients();
+			}
+		}, "RoomServer Accept Thread");
+		acceptThread.start();
+		logger.log(LogLevel.NORMAL, "RoomServer listening on port " + port + ".");
+	}
+
+	/**
+	 * Stops accepting {@link Client}s, closes every room and stops all workers.
+	 */
+	public void close() {
+		logger.log(LogLevel.NORMAL, "Stopping RoomServer.");
+		stop = true;
+		if (listener != null) {
+			try {
+				listener.close();
+			} catch (IOException e) {
+			}
+			listener = null;
+		}
+		for (String name : getRoomNames())
+			closeRoom(name);
+		for (int i = 0; i < workers.length; i++)
+			workers[i].shutdownNow();
+	}
+
+	/**
+	 * Accepts {@link Client}s until {@link #stop}, handing each to
+	 * {@link #handshake(Socket)} on its own short-lived thread so a slow
+	 * {@link Client} can't hold up the others.
+	 */
+	private void acceptClients() {
+		while (!stop) {
+			try {
+				final Socket socket = listener.accept();
+				new Thread(new Runnable() {
+					public void run() {
+						handshake(socket);
+					}
+				}, "RoomServer Handshake").start();
+			} catch (Exception e) {
+				if (!stop)
+					logger.log(LogLevel.WARNING, "RoomServer could not accept Client: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Reads the first line from <b>socket</b> to find which room it wants, and
+	 * hands it over with {@link Server#addClient(Socket, BufferedReader, String)}
+	 * on the room's worker.
+	 */
+	private void handshake(final Socket socket) {
+		try {
+			socket.setSoTimeout(handshakeTimeout);
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+			String line = in.readLine();
+			socket.setSoTimeout(0);
+			String name = defaultRoom;
+			String firstLine = line;
+			if (line != null && line.startsWith(ROOM_PREFIX)) {
+				name = line.substring(ROOM_PREFIX.length());
+				firstLine = null;
+			}
+			final Room room = name == null ? null : getRoomEntry(name);
+			if (line == null || room == null) {
+				logger.log(LogLevel.WARNING, "Client asked for unknown room (" + name + "), turning it away.");
+				try {
+					new PrintWriter(socket.getOutputStream(), true).println("EXITING");
+				} catch (Exception e) {
+				}
+				socket.close();
+				return;
+			}
+			logger.log(LogLevel.DEBUG, "Client joining room " + name + ".");
+			final BufferedReader reader = in;
+			final String first = firstLine;
+			workers[room.worker].execute(new Runnable() {
+				public void run() {
+					room.server.addClient(socket, reader, first);
+				}
+			});
+		} catch (Exception e) {
+			logger.log(LogLevel.WARNING, "RoomServer handshake failed: " + e.getMessage());
+			try {
+				socket.close();
+			} catch (IOException e1) {
+			}
+		}
+	}
+
+	/**
+	 * A room: its {@link Server}, which worker it is pinned to and its scheduled
+	 * tick.
+	 */
+	private static class Room {
+		private final Server server;
+		private final int worker;
+		private ScheduledFuture<?> future = null;
+
+		private Room(Server server, int worker) {
+			this.server = server;
+			this.worker = worker;
+		}
+	}
+}
@@ -0,0 +1,176 @@
+package com.github.vegeto079.ngcommontools.networking;
+
+/**
+ * Decides how often a single {@link Server.Handler} should send updates to its
+ * {@link Client}, from how well that connection is keeping up.<br>
+ * <br>
+ * Three things are watched:
+ * <ul>
+ * <li>Round trip time: when it rises well above the lowest seen, data is
+ * queueing up somewhere on the way.</li>
+ * <li>Queue age: how long the oldest outgoing message had to wait before it was
+ * sent.</li>
+ * <li>Ack rate: how many replies per second the {@link Client} sends back,
+ * compared to how many it should at the current interval.</li>
+ * </ul>
+ * If any of them shows the connection falling behind, the interval is
+ * multiplied by {@link #backoff} (fewer, larger updates). Otherwise it shrinks
+ * a little each evaluation (see {@link #recoveryStep}) back towards
+ * {@link #minInterval}, so good connections get the full rate without any
+ * tuning.
+ *
+ * @author Nathan
+ * @version 1.0: Started tracking version.
+ * @version 1.01: Added {@link #evaluate(long)}, to evaluate at a time from any
+ *          clock.
+ */
+public class SendRateController {
+	/**
+	 * The shortest (fastest) interval, in milliseconds.
+	 */
+	protected final long minInterval;
+	/**
+	 * The longest (slowest) interval, in milliseconds.
+	 */
+	protected final long maxInterval;
+	/**
+	 * What the interval is multiplied by when the connection falls behind.
+	 */
+	public double backoff = 1.5;
+	/**
+	 * The least (in milliseconds) the interval shrinks each evaluation the
+	 * connection keeps up. It shrinks by an eighth when that is more.
+	 */
+	public long recoveryStep = 5;
+	/**
+	 * How far (as a multiple) the smoothed round trip time can rise above the
+	 * lowest seen before we back off.
+	 */
+	public double rttTolerance = 1.5;
+	/**
+	 * The current interval, in milliseconds.
+	 */
+	protected long interval;
+	/**
+	 * Smoothed round trip time, or -1 before the first sample.
+	 */
+	protected double smoothedRTT = -1;
+	/**
+	 * Lowest round trip time seen, used as the connection's baseline.
+	 */
+	protected long minRTT = Long.MAX_VALUE;
+	/**
+	 * Oldest queue age seen since the last evaluation.
+	 */
+	protected long queueAge = 0;
+	/**
+	 * Replies received since the last evaluation.
+	 */
+	protected int acks = 0;
+	/**
+	 * When we last evaluated, or -1 if we haven't yet.
+	 */
+	protected long lastEvaluation = -1;
+
+	/**
+	 * Initiates {@link SendRateController}, starting at full rate.
+	 *
+	 * @param minInterval
+	 *            See {@link #minInterval}.
+	 * @param maxInterval
+	 *            See {@link #maxInterval}.
+	 */
+	public SendRateController(long minInterval, long maxInterval) {
+		this.minInterval = Math.max(1, minInterval);
+		this.maxInterval = Math.max(this.minInterval, maxInterval);
+		this.interval = this.minInterval;
+	}
+
+	/**
+	 * Adds a round trip time sample. It should not include any time the
+	 * {@link Client} waited on purpose before replying.
+	 */
+	public synchronized void onRTT(long rtt) {
+		if (rtt < 0)
+			return;
+		if (rtt < minRTT)
+			minRTT = rtt;
+		smoothedRTT = smoothedRTT < 0 ? rtt : smoothedRTT * 0.875 + rtt * 0.125;
+	}
+
+	/**
+	 * Notes that a reply was received from the {@link Client}.
+	 */
+	public synchronized void onAck() {
+		acks++;
+	}
+
+	/**
+	 * Notes that queued messages were sent, the oldest having waited <b>age</b>
+	 * milliseconds.
+	 */
+	public synchronized void onSend(long age) {
+		if (age > queueAge)
+			queueAge = age;
+	}
+
+	/**
+	 * Re-evaluates the interval if at least three intervals (and two round trips)
+	 * have passed since the last time.
+	 *
+	 * @return The current interval, in milliseconds.
+	 */
+	public long evaluate() {
+		return evaluate(System.currentTimeMillis());
+	}
+
+	/**
+	 * Re-evaluates the interval as of <b>now</b>. See {@link #evaluate()}.
+	 *
+	 * @return The current interval, in milliseconds.
+	 */
+	public synchronized long evaluate(long now) {
+		if (lastEvaluation == -1)
+			lastEvaluation = now;
+		long elapsed = now - lastEvaluation;
+		if (elapsed < Math.max(interval * 3, smoothedRTT * 2))
+			return interval;
+		boolean behind = false;
+		// Round trip time rising above its baseline means queueing somewhere. Half
+		// an interval of slack covers the Client catching up to a new interval.
+		if (smoothedRTT > 0 && minRTT != Long.MAX_VALUE
+				&& smoothedRTT > minRTT * rttTolerance + Math.max(minInterval, interval / 2))
+			behind = true;
+		// Messages waiting well past their send time
+		if (queueAge > interval * 2 + minInterval)
+			behind = true;
+		// Fewer than half the replies we should have had
+		if (acks * interval * 2 < elapsed)
+			behind = true;
+		if (behind)
+			interval = Math.min(maxInterval, (long) (interval * backoff) + 1);
+		else
+			interval = Math.max(minInterval, interval - Math.max(recoveryStep, interval / 8));
+		queueAge = 0;
+		acks = 0;
+		lastEvaluation = now;
+		// Let the baseline drift back up slowly, in case the route changed
+		if (minRTT != Long.MAX_VALUE && smoothedRTT > minRTT)
+			minRTT++;
+		return interval;
+	}
+
+	/**
+	 * @return The current interval, in milliseconds, without re-evaluating.
+	 */
+	public synchronized long getInterval() {
+		return interval;
+	}
+
+	/**
+	 * @return The smoothed round trip time, or -1 if there hasn't been a sample.
+	 */
+	public synchronized double getSmoothedRTT() {
+		return smoothedRTT;
+	}
+}
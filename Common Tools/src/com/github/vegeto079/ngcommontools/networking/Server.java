@@ -1,6 +1,7 @@
 package com.github.vegeto079.ngcommontools.networking;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
@@ -8,11 +9,20 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import com.github.vegeto079.ngcommontools.main.Clock;
 import com.github.vegeto079.ngcommontools.main.Game;
+import com.github.vegeto079.ngcommontools.main.GameInbox;
 import com.github.vegeto079.ngcommontools.main.Logger;
 import com.github.vegeto079.ngcommontools.main.Tools;
 import com.github.vegeto079.ngcommontools.main.Logger.LogLevel;
@@ -97,6 +107,90 @@ import com.github.vegeto079.ngcommontools.main.Logger.LogLevel;
  *          connected to a Client. If it returns true, {@link Connector#run()}
  *          will keep running until it is false, to get all possible Clients.
  * @version 1.21 Added {@link Handler#pingListSize} and increased from 5 to 8.
+ * @version 1.22: Added {@link #interestManager} and
+ *          {@link #sendMessageToInterestedClients(String, double, double)} to
+ *          only send updates to {@link Client}s that can see them.
+ * @version 1.23: Added {@link #addClient(Socket, BufferedReader, String)},
+ *          {@link #serviceClients()} and {@link #onTick()} so a Server can be
+ *          hosted as a room of a {@link RoomServer} without its own listener or
+ *          timers.
+ * @version 1.24: Added {@link #messageDispatcher} so messages can be processed
+ *          on a worker pool instead of each {@link Handler}'s thread. Added
+ *          {@link Handler#getID()}.
+ * @version 1.25: {@link Connector}s are now run by a shared
+ *          {@link NetworkScheduler} (see {@link #scheduler}) instead of each
+ *          creating its own {@link java.util.Timer} thread. {@link #connect()}
+ *          no longer sleeps or closes {@link #listener} when nobody connected,
+ *          it just waits up to {@link #acceptTimeout}. {@link #sleepTime} is no
+ *          longer used.
+ * @version 1.26: Idle {@link Client}s are now found with a {@link TimingWheel}
+ *          (see {@link #timingWheel}) instead of checking every {@link Handler}
+ *          each tick, and are disconnected together without sleeping in
+ *          between.
+ * @version 1.27: <i>[WAITBEFORE]</i> and <i>[WAITAFTER]</i> messages are now
+ *          delivered later by {@link #scheduler} (see
+ *          {@link Handler#deliverAfter(String, int, int)}) instead of sleeping
+ *          the {@link Handler}'s thread, which kept reading in the meantime.
+ *          Fixed reading the wait times (the markers were used as a regex) and
+ *          <i>[WAITAFTER]</i> markers not being removed from the message.
+ * @version 1.28: {@link Handler}s now split message packs once with a
+ *          {@link MessageTokenizer} instead of {@link String#split}, and reuse
+ *          the same <i>Ping pong</i> message rather than rebuilding it each time.
+ * @version 1.29: Added {@link #journal} to record every line sent and
+ *          received.
+ * @version 1.3: Added {@link #setAdaptiveSendRate(long)}: each {@link Handler}
+ *          can pace its updates with a {@link SendRateController} and tell its
+ *          {@link Client} to do the same with <i>SENDRATE:</i>.
+ *          {@link Handler#queueTimes} is now cleared when the queue is sent.
+ * @version 1.31: {@link Handler#queue} is now a set of {@link OutboundLanes}:
+ *          control messages go out first, and a burst of chat no longer holds
+ *          up gameplay messages queued behind it.
+ * @version 1.32: Added {@link #setFederation(SessionDirectory, String, String)}:
+ *          several {@link Server} nodes sharing a {@link SessionDirectory} can
+ *          move {@link Client}s between each other without disconnecting them
+ *          (see {@link #migrate(Handler, SessionDirectory.Node)},
+ *          {@link #rebalance()} and {@link #drain()}). Nodes should share the
+ *          same {@link #seed}.
+ * @version 1.33: The <i>CONNECTING:</i> reply now also carries our time and any
+ *          initial state queued by {@link #onConnect(Handler)}, so a
+ *          {@link Client} can join in a single round trip.
+ * @version 1.34: Added {@link #openBulkTransfer(int)} and
+ *          {@link #sendFileToClient(String, File, Handler, BulkTransfer.ProgressListener)}
+ *          to send large payloads over a {@link BulkTransfer} instead of the
+ *          message queue.
+ * @version 1.35: Added {@link #setSnapshotBootstrap(SnapshotBootstrap)} to bring
+ *          {@link Client}s that join mid-match up to date with a snapshot and
+ *          the changes since.
+ * @version 1.36: {@link ServerMessageHandler} picks what to do with each
+ *          message through a {@link MessageRouter} instead of a chain of
+ *          {@link String#startsWith(String)}s. Games can route their own
+ *          messages with {@link ServerMessageHandler#getRouter()}.
+ * @version 1.37: Added {@link #openSharedMemory(File)}, so {@link Client}s in
+ *          other processes on this host can connect through a
+ *          {@link SharedMemoryChannel} instead of a loopback socket.
+ * @version 1.38: Added {@link #setRateLimit(double, double, RateLimiter.Action)}
+ *          to limit how much each {@link Client} can send us, with
+ *          {@link Handler#getRateLimiter()} and {@link #getRateLimitedAmt()}
+ *          counting how often they go over.
+ * @version 1.39: {@link ServerMessageHandler#setGameInbox(GameInbox)} runs
+ *          {@link ServerMessageHandler#process(String)} on the game thread
+ *          instead of the {@link Handler}'s.
+ * @version 1.4: Everything timed now goes through {@link #clock}, and
+ *          {@link Handler#handle(String)} handles each line on its own, so a
+ *          {@link VirtualNetwork} can run us with {@link Client}s in virtual
+ *          time.
+ * @version 1.41: Messages held back by
+ *          {@link Handler#deliverAfter(String, int, int)} are handed to
+ *          {@link #messageDispatcher} (or {@link #delayedDispatcher}) once
+ *          due, instead of being processed on {@link #scheduler}.
+ * @version 1.42: Nothing is sent to a {@link Client} when
+ *          {@link OutboundLanes#poll(String)} gives nothing.
+ * @version 1.43: {@link SharedMemoryChannel}s are closed and forgotten however
+ *          their {@link Handler} is removed.
+ * @version 1.44: {@link #me} is set whatever the port, and {@link Handler}s
+ *          remove themselves on {@link #handlerExecutor} if set.
+ * @version 1.45: Rate limits count the bytes each message took up as
+ *          received, and only exact keep-alives skip them.
  */
 public class Server {
 
@@ -130,6 +224,13 @@ public class Server {
 	 * This instance of {@link Server}.
 	 */
 	protected Server me = null;
+	/**
+	 * Where {@link Handler}s remove themselves from {@link #handlers} when they
+	 * end, or <b>null</b> to do so on whichever thread ends them. A
+	 * {@link RoomServer} sets this to its room's worker, so a room's
+	 * {@link #handlers} are only changed by the thread ticking it.
+	 */
+	protected Executor handlerExecutor = null;
 	/**
 	 * {@link Connector} used in this {@link Server} to attempt to establish a
 	 * connection with new {@link Client}s.
@@ -203,10 +304,144 @@ public class Server {
 	 */
 	protected P2PNetwork p2pNetwork = null;
 	/**
-	 * The amount of time to sleep in-between unsuccessful {@link #connect()}
-	 * attempts.
+	 * No longer used: {@link #incomingConnector} is simply re-run by
+	 * {@link #scheduler} every {@link #timeBetweenConnectionAttempts}.
 	 */
+	@Deprecated
 	public long sleepTime = 2000;
+	/**
+	 * The longest time (in milliseconds) a single {@link #connect()} waits for a
+	 * {@link Client} to connect. Kept short, as it holds up a {@link #scheduler}
+	 * thread while waiting.
+	 */
+	public int acceptTimeout = 10;
+	/**
+	 * Runs {@link #incomingConnector} and {@link #talkingConnector}. Defaults to
+	 * {@link NetworkScheduler#getShared()}.
+	 */
+	protected NetworkScheduler scheduler = NetworkScheduler.getShared();
+	/**
+	 * Used by {@link #sendMessageToInterestedClients(String, double, double)} to
+	 * decide which {@link Client}s get a message. <b>null</b> until set with
+	 * {@link #setInterestManager(InterestManager)}.
+	 */
+	protected InterestManager interestManager = null;
+	/**
+	 * If set, every message read by a {@link Handler} is handed to this
+	 * {@link MessageDispatcher} (by {@link Handler#getID()}) to be processed,
+	 * instead of being processed on the {@link Handler}'s own thread. <b>null</b>
+	 * by default.
+	 */
+	protected MessageDispatcher messageDispatcher = null;
+	/**
+	 * Processes messages that were held back (see
+	 * {@link Handler#deliverAfter(String, int, int)}) once they are due, when
+	 * there is no {@link #messageDispatcher}, so slow processing never holds up
+	 * {@link #scheduler}. Made when first needed.
+	 */
+	protected MessageDispatcher delayedDispatcher = null;
+	/**
+	 * Used to give each {@link Handler} a unique {@link Handler#id}.
+	 */
+	private static final AtomicInteger nextHandlerID = new AtomicInteger();
+	/**
+	 * Where we get the time from, and how we wait. {@link Clock#SYSTEM} unless
+	 * set with {@link #setClock(Clock)}.
+	 */
+	protected Clock clock = Clock.SYSTEM;
+	/**
+	 * The {@link VirtualNetwork} our {@link Client}s connect through instead of
+	 * sockets, or <b>null</b>. Set by {@link VirtualNetwork#attach(Server, String)}.
+	 */
+	protected VirtualNetwork virtualNetwork = null;
+	/**
+	 * Keeps an idle check for every {@link Handler} when {@link #clientTimeout}
+	 * isn't -1, and is advanced every time we talk to our {@link Client}s. Other
+	 * timeouts, such as heartbeats, can be scheduled on it too (see
+	 * {@link #getTimingWheel()}).
+	 */
+	protected TimingWheel timingWheel = new TimingWheel(50, 512, clock.currentTimeMillis());
+	/**
+	 * {@link Handler}s found idle by {@link #timingWheel}, waiting to be
+	 * disconnected by {@link #disconnectFromIdleClients()}.
+	 */
+	protected final List<Handler> timedOutHandlers = new ArrayList<Handler>();
+	/**
+	 * If set, every line sent to or received from a {@link Client} is recorded
+	 * here, by {@link Handler#getID()}. <b>null</b> by default.
+	 */
+	protected NetworkJournal journal = null;
+	/**
+	 * The longest interval (in milliseconds) a {@link Handler}'s
+	 * {@link SendRateController} can slow down to, or -1 to send to every
+	 * {@link Client} at {@link #timeBetweenConnectionAttempts}.
+	 */
+	protected long maxSendInterval = -1;
+	/**
+	 * Messages per second each {@link Client} may send us, or -1 for no limit.
+	 * See {@link #setRateLimit(double, double, RateLimiter.Action)}.
+	 */
+	protected double rateLimitMessages = -1;
+	/**
+	 * Bytes per second each {@link Client} may send us, or -1 for no limit.
+	 */
+	protected double rateLimitBytes = -1;
+	/**
+	 * What to do with messages over {@link #rateLimitMessages} or
+	 * {@link #rateLimitBytes}.
+	 */
+	protected RateLimiter.Action rateLimitAction = RateLimiter.Action.DROP;
+	/**
+	 * How many messages from all {@link Client}s went over the limit, including
+	 * those no longer connected.
+	 */
+	protected final AtomicLong rateLimited = new AtomicLong();
+	/**
+	 * Shared with the other {@link Server} nodes we can move {@link Client}s to,
+	 * or <b>null</b> if we aren't part of any. See
+	 * {@link #setFederation(SessionDirectory, String, String)}.
+	 */
+	protected SessionDirectory sessionDirectory = null;
+	/**
+	 * Our name in {@link #sessionDirectory}.
+	 */
+	protected String nodeID = null;
+	/**
+	 * Where {@link Client}s moved to us should connect.
+	 */
+	protected String nodeHost = null;
+	/**
+	 * How often (in milliseconds) we tell {@link #sessionDirectory} our load.
+	 * Should be well under {@link SessionDirectory#nodeTimeout}.
+	 */
+	public long registrationInterval = 1000;
+	/**
+	 * When we last told {@link #sessionDirectory} our load.
+	 */
+	private long lastRegistration = 0;
+	/**
+	 * Whether or not {@link #drain()} was called, so we stop taking
+	 * {@link Client}s.
+	 */
+	protected boolean draining = false;
+	/**
+	 * Sends large payloads to {@link Client}s, or <b>null</b> until
+	 * {@link #openBulkTransfer(int)}.
+	 */
+	protected BulkTransfer bulkTransfer = null;
+	/**
+	 * Brings every {@link Client} that connects up to date, or <b>null</b>.
+	 */
+	protected SnapshotBootstrap snapshotBootstrap = null;
+	/**
+	 * Directory we pick up {@link SharedMemoryChannel}s from, or <b>null</b> until
+	 * {@link #openSharedMemory(File)}.
+	 */
+	protected File sharedMemoryDirectory = null;
+	/**
+	 * Names of {@link SharedMemoryChannel} files we already picked up.
+	 */
+	protected final Set<String> sharedMemoryChannels = new HashSet<String>();
 
 	/**
 	 * Initiates {@link Server} and opens a {@link ServerSocket} on <b>port</b>.
@@ -235,8 +470,6 @@ public class Server {
 		this.clientTimeout = clientTimeout;
 		this.seed = seed;
 		this.username = username;
-		if (port == 0)
-			return;
 		me = this;
 	}
 
@@ -287,7 +520,7 @@ public class Server {
 	 * in {@link #handlers}.<br>
 	 * All messages sent through this message will be noted as being put into every
 	 * {@link Handler#queue} at the same exact time (or near, depending on
-	 * processing time), via each {@link Handler}'s {@link Handler#queueTimes}. <br>
+	 * processing time). <br>
 	 * <br>
 	 * To put it simply, takes the {@link List} of {@link String}s and submits them
 	 * individually to {@link #sendMessageToAllClients(String)}.
@@ -343,6 +576,82 @@ public class Server {
 		}
 	}
 
+	/**
+	 * Sends a <b>message</b> only to the {@link Client}s whose interest area (as
+	 * set in {@link #interestManager}) covers (<b>x</b>, <b>y</b>). If no
+	 * {@link InterestManager} is set, sends to every {@link Client}.
+	 * 
+	 * @param message
+	 * @param x
+	 * @param y
+	 * @see {@link InterestManager#sendMessage(String, double, double)}.
+	 */
+	public void sendMessageToInterestedClients(String message, double x, double y) {
+		if (interestManager == null)
+			sendMessageToAllClients(message);
+		else
+			interestManager.sendMessage(message, x, y);
+	}
+
+	/**
+	 * @see {@link #interestManager}.
+	 */
+	public InterestManager getInterestManager() {
+		return interestManager;
+	}
+
+	/**
+	 * @see {@link #interestManager}.
+	 */
+	public void setInterestManager(InterestManager interestManager) {
+		this.interestManager = interestManager;
+	}
+
+	/**
+	 * @see {@link #scheduler}.
+	 */
+	public NetworkScheduler getScheduler() {
+		return scheduler;
+	}
+
+	/**
+	 * Sets {@link #scheduler}. Only affects {@link Connector}s started afterwards.
+	 */
+	public void setScheduler(NetworkScheduler scheduler) {
+		this.scheduler = scheduler;
+	}
+
+	/**
+	 * @see {@link #clock}.
+	 */
+	public Clock getClock() {
+		return clock;
+	}
+
+	/**
+	 * Sets {@link #clock}, starting {@link #timingWheel} over at its time. Should
+	 * be set before we start, as anything already scheduled on
+	 * {@link #timingWheel} is lost.
+	 */
+	public void setClock(Clock clock) {
+		this.clock = clock;
+		timingWheel = new TimingWheel(50, 512, clock.currentTimeMillis());
+	}
+
+	/**
+	 * @see {@link #messageDispatcher}.
+	 */
+	public MessageDispatcher getMessageDispatcher() {
+		return messageDispatcher;
+	}
+
+	/**
+	 * @see {@link #messageDispatcher}.
+	 */
+	public void setMessageDispatcher(MessageDispatcher messageDispatcher) {
+		this.messageDispatcher = messageDispatcher;
+	}
+
 	/**
 	 * Queues a <b>message</b> with {@link Handler#queue} to a given {@link Handler}
 	 * in {@link #handlers}, as indicated by <b>handlerIdx</b>.
@@ -496,6 +805,12 @@ public class Server {
 			return false;
 		if (index != -1) {
 			onExit(handlers.get(index), index);
+			if (interestManager != null)
+				interestManager.removeInterest(handlers.get(index));
+			if (handlers.get(index).idleTimeout != null)
+				handlers.get(index).idleTimeout.cancel();
+			if (snapshotBootstrap != null)
+				snapshotBootstrap.remove(handlers.get(index));
 			handlers.get(index).override = true;
 			try {
 				handlers.get(index).socket.close();
@@ -509,6 +824,7 @@ public class Server {
 				handlers.get(index).out.close();
 			} catch (Exception e) {
 			}
+			handlers.get(index).closeChannel();
 			try {
 				handlers.set(index, null);
 				handlers.remove(index);
@@ -558,19 +874,107 @@ public class Server {
 
 	}
 
+	/**
+	 * Runs every time this {@link Server} talks to its {@link Client}s (through
+	 * {@link #talkingConnector}, or the room tick of a {@link RoomServer}). You
+	 * can override this method to run per-session logic alongside it.
+	 */
+	public void onTick() {
+
+	}
+
+	/**
+	 * Runs when a {@link Client} says it is connecting, right before we reply.
+	 * Anything queued for <b>handler</b> here (see
+	 * {@link Handler#sendMessageToClient(String)}) goes out with the reply, so the
+	 * {@link Client} has its initial state as soon as it is connected. You can
+	 * override this method to send it.
+	 * 
+	 * @param handler
+	 *            The {@link Handler} of the {@link Client} that is connecting.
+	 */
+	public void onConnect(Handler handler) {
+
+	}
+
+	/**
+	 * Runs when a {@link Client} moved here from another node has had its session
+	 * restored into <b>handler</b> (its queued messages and
+	 * {@link Handler#getAttributes()}). You can override this method to rebuild
+	 * anything else the game needs for it.
+	 * 
+	 * @param handler
+	 *            The {@link Handler} of the {@link Client} that was moved here.
+	 */
+	public void onResume(Handler handler) {
+
+	}
+
+	/**
+	 * Hands an already accepted <b>socket</b> over to this {@link Server}, as if it
+	 * was accepted by {@link #connect()}. Used by {@link RoomServer}, which owns
+	 * the listening port and reads the first line to pick a room.
+	 * 
+	 * @param socket
+	 *            The {@link Client}'s connection.
+	 * @param in
+	 *            Reader already opened on <b>socket</b>, or <b>null</b> to open a
+	 *            new one.
+	 * @param firstLine
+	 *            A line already read from <b>in</b> that still needs processing,
+	 *            or <b>null</b>.
+	 */
+	public void addClient(Socket socket, BufferedReader in, String firstLine) {
+		stop = false;
+		Handler handler = new Handler(socket, in, firstLine);
+		handlers.add(handler);
+		trackIdle(handler);
+		handler.start();
+		logger.log(LogLevel.NORMAL, "Connected to a Client!");
+	}
+
+	/**
+	 * Accepts a {@link Client} connecting through {@link #virtualNetwork}, if we
+	 * are accepting new {@link Client}s. The returned {@link Handler} isn't
+	 * started as a thread: each line is given to it by
+	 * {@link Handler#handle(String)}.
+	 * 
+	 * @param in
+	 *            What the {@link Client} sends us.
+	 * @param out
+	 *            Where our replies go.
+	 * @param ip
+	 *            See {@link Handler#ip}.
+	 * @return The new {@link Handler}, or <b>null</b> if we aren't accepting.
+	 */
+	protected Handler addVirtualClient(BufferedReader in, PrintWriter out, String ip) {
+		if (stop || draining || incomingConnector == null)
+			return null;
+		Handler handler = new Handler(in, out, ip);
+		handlers.add(handler);
+		trackIdle(handler);
+		logger.log(LogLevel.NORMAL, "Connected to a Client!");
+		return handler;
+	}
+
 	/**
 	 * Attempts to establish a connection with a {@link Client}.
 	 */
 	private boolean connect() {
 		Handler handler;
 		logger.log(LogLevel.NORMAL, "Waiting for connection..");
+		if (virtualNetwork != null)
+			// Our Clients come to us, see addVirtualClient()
+			return false;
+		if (sharedMemoryDirectory != null && acceptSharedMemory())
+			return true;
 		Socket newSocket = null;
 		boolean complete = false;
 		try {
 			if (listener == null || listener.isClosed()) {
 				try {
 					listener = new ServerSocket(port, 100);
-					listener.setSoTimeout((int) sleepTime);
+					listener.setSoTimeout(acceptTimeout);
 				} catch (Exception e) {
 					logger.err(LogLevel.ERROR,
 							"Could not start server. The port is likely in use (" + port + "). Otherwise, who knows?\n"
@@ -591,6 +995,8 @@ public class Server {
 			}
 			complete = true;
 		} catch (SocketTimeoutException ignore) {
+			// Nobody connected this time, keep the listener open for next time.
+			complete = true;
 		} catch (Exception e) {
 			// e.printStackTrace();
 		} finally {
@@ -613,16 +1019,12 @@ public class Server {
 		if (newSocket != null) {
 			handler = new Handler(newSocket);
 			handlers.add(handler);
+			trackIdle(handler);
 			handler.start();
 			logger.log(LogLevel.NORMAL, "Connected to a Client!");
 			return true;
 		} else {
-			logger.log(LogLevel.DEBUG, "No connection found, sleeping.");
-			try {
-				Thread.sleep(sleepTime);
-			} catch (Exception ignored) {
-				ignored.printStackTrace();
-			}
+			logger.log(LogLevel.DEBUG, "No connection found.");
 			return false;
 		}
 	}
@@ -635,9 +1037,8 @@ public class Server {
 		if (incomingConnector == null) {
 			logger.log(LogLevel.NORMAL, "Opening incoming client connections.");
 			stop = false;
-			Timer timer = new Timer();
-			incomingConnector = new Connector(timer);
-			timer.scheduleAtFixedRate(incomingConnector, 0, timeBetweenConnectionAttempts);
+			incomingConnector = new Connector();
+			incomingConnector.start(scheduler, timeBetweenConnectionAttempts);
 		} else {
 			logger.log(LogLevel.WARNING, "We tried to open incoming client connections when we already had it open..");
 		}
@@ -665,144 +1066,493 @@ public class Server {
 	 */
 	public void startClientTalkingConnections() {
 		stop = false;
-		Timer timer = new Timer();
-		talkingConnector = new Connector(timer);
-		timer.scheduleAtFixedRate(talkingConnector, 0, timeBetweenConnectionAttempts);
+		talkingConnector = new Connector();
+		talkingConnector.start(scheduler, timeBetweenConnectionAttempts);
 	}
 
 	/**
-	 * Used internally with {@link #clientTimeout} to remove any {@link Client}s
-	 * that have exceeded the timeout time.
+	 * Schedules the idle check of <b>handler</b> on {@link #timingWheel}, if we
+	 * have a {@link #clientTimeout}.
 	 */
-	private void disconnectFromIdleClients() {
-		for (int i = 0; i < handlers.size(); i++)
-			if (System.currentTimeMillis() - handlers.get(i).lastMessageReceived >= clientTimeout
-					&& clientTimeout != -1) {
-				// TODO: Wait for reconnection?
-				sendMessageToClient("EXITING", handlers.get(i));
-				sendMessageToAllClients("Server" + CHAT_SPLITTER + "Client timed out: " + handlers.get(i).theirName
-						+ " (" + handlers.get(i).ip + ")");
-				logger.log(LogLevel.WARNING,
-						"Client timed out: " + handlers.get(i).theirName + " (" + handlers.get(i).ip + ")");
-				removeHandler(handlers.get(i));
-				i--;
-				try {
-					Thread.sleep(250);
-				} catch (InterruptedException e) {
-				}
+	private void trackIdle(final Handler handler) {
+		if (clientTimeout == -1)
+			return;
+		handler.idleTimeout = timingWheel.schedule(new TimingWheel.TimeoutTask() {
+			public void run(TimingWheel.Timeout timeout) {
+				long idle = clock.currentTimeMillis() - handler.lastMessageReceived;
+				if (idle < clientTimeout)
+					// Heard from them since, check again when they could next time out
+					timeout.reschedule(clientTimeout - idle);
+				else
+					synchronized (timedOutHandlers) {
+						timedOutHandlers.add(handler);
+					}
 			}
+		}, clientTimeout);
 	}
 
 	/**
-	 * Disconnects the {@link Server} entirely. Turns off a {@link Connector} if on,
-	 * and ends all {@link Handler}s and removes them from {@link #handlers} .
+	 * Used internally with {@link #clientTimeout} to remove any {@link Client}s
+	 * that have exceeded the timeout time. Advances {@link #timingWheel}, then
+	 * disconnects everyone it found idle at once, telling the remaining
+	 * {@link Client}s about all of them in a single message.
 	 */
-	public void disconnect() {
-		logger.log(LogLevel.NORMAL, "Stopping server, disconnecting.");
-		stop = true;
-		if (listener != null) {
-			logger.log(LogLevel.DEBUG, "Closing listener.");
-			try {
-				listener.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-			listener = null;
-		}
-		if (incomingConnector != null) {
-			logger.log(LogLevel.DEBUG, "Closing incoming connector.");
-			incomingConnector.stop();
-			incomingConnector = null;
-		}
-		if (talkingConnector != null) {
-			logger.log(LogLevel.DEBUG, "Closing talking connector.");
-			talkingConnector.stop();
-			talkingConnector = null;
+	private void disconnectFromIdleClients() {
+		timingWheel.advance(clock.currentTimeMillis());
+		List<Handler> timedOut;
+		synchronized (timedOutHandlers) {
+			if (timedOutHandlers.isEmpty())
+				return;
+			timedOut = new ArrayList<Handler>(timedOutHandlers);
+			timedOutHandlers.clear();
 		}
-		while (handlers.size() > 0) {
-			logger.log(LogLevel.DEBUG, "Killing Handler");
-			try {
-				handlers.get(0).end();
-			} catch (Exception e) {
-			}
+		StringBuilder names = new StringBuilder();
+		for (int i = 0; i < timedOut.size(); i++) {
+			Handler handler = timedOut.get(i);
+			if (getHandlerIndex(handler) == -1)
+				continue;
+			// TODO: Wait for reconnection?
+			sendMessageToClient("EXITING", handler);
+			logger.log(LogLevel.WARNING, "Client timed out: " + handler.theirName + " (" + handler.ip + ")");
+			removeHandler(handler);
+			if (names.length() > 0)
+				names.append(", ");
+			names.append(handler.theirName).append(" (").append(handler.ip).append(")");
 		}
-		logger.log(LogLevel.DEBUG, "Completely disconnected.");
+		if (names.length() > 0)
+			sendMessageToAllClients("Server" + CHAT_SPLITTER + "Client timed out: " + names);
 	}
 
 	/**
-	 * Communicates with all {@link Client}s: sends and receives queued messages.
-	 * Also does hard-coded methods for handling some {@link Server} output and
-	 * {@link Client} input.
+	 * Paces updates to each {@link Client} by how well its connection is keeping
+	 * up (see {@link SendRateController}), instead of sending to everyone every
+	 * {@link #timeBetweenConnectionAttempts}.
+	 * 
+	 * @param maxSendInterval
+	 *            See {@link #maxSendInterval}. -1 turns pacing off.
 	 */
-	private void talkToClients() {
-		logger.log(LogLevel.ERROR, "talkToClients()");
-		if (stop) {
-			logger.log(LogLevel.WARNING,
-					"We tried to communicate with all clients but we were told to stop the connection. Disconnecting.");
-			disconnect();
-			return;
-		} else {
-			if (removeDuplicateConnections) {
-				List<String> ipList = new ArrayList<String>();
-				for (int i = 0; i < handlers.size(); i++) {
-					boolean found = false;
-					for (int j = 0; j < ipList.size(); j++) {
-						if (ipList.get(j).equals(handlers.get(i).ip)) {
-							logger.log(LogLevel.ERROR, "Found duplicate connection, removing one.");
-							removeHandler(handlers.get(i));
-							found = true;
-							break;
-						}
-					}
-					if (!found)
-						ipList.add(handlers.get(i).ip);
-				}
-			}
-			for (int i = 0; i < handlers.size(); i++)
-				handlers.get(i).run();
-		}
+	public void setAdaptiveSendRate(long maxSendInterval) {
+		this.maxSendInterval = maxSendInterval;
 	}
 
 	/**
-	 * An individual 'talker' to a specific {@link Client}. A {@link List} of these
-	 * is gathered in {@link #handlers} to talk to every {@link Client}.
+	 * Limits how much each {@link Client} can send us (see {@link RateLimiter}).
+	 * <i>Ping pong</i>s aren't counted. Applies to {@link Client}s from their next
+	 * message on.
 	 * 
-	 * @author Nathan
+	 * @param messagesPerSecond
+	 *            See {@link #rateLimitMessages}.
+	 * @param bytesPerSecond
+	 *            See {@link #rateLimitBytes}.
+	 * @param action
+	 *            See {@link #rateLimitAction}.
+	 */
+	public void setRateLimit(double messagesPerSecond, double bytesPerSecond, RateLimiter.Action action) {
+		rateLimitMessages = messagesPerSecond;
+		rateLimitBytes = bytesPerSecond;
+		rateLimitAction = action;
+		for (int i = 0; i < handlers.size(); i++)
+			handlers.get(i).rateLimiter = null;
+	}
+
+	/**
+	 * @return How many messages from all {@link Client}s went over the limit set
+	 *         by {@link #setRateLimit(double, double, RateLimiter.Action)}.
+	 */
+	public long getRateLimitedAmt() {
+		return rateLimited.get();
+	}
+
+	/**
+	 * @return {@link #journal}.
+	 */
+	public NetworkJournal getJournal() {
+		return journal;
+	}
+
+	/**
+	 * @param journal
+	 *            See {@link #journal}, or <b>null</b> to stop recording.
+	 */
+	public void setJournal(NetworkJournal journal) {
+		this.journal = journal;
+	}
+
+	/**
+	 * @return {@link #timingWheel}.
+	 */
+	public TimingWheel getTimingWheel() {
+		return timingWheel;
+	}
+
+	/**
+	 * Opens {@link #bulkTransfer} on <b>port</b>, so large payloads can be sent
+	 * with {@link #sendFileToClient(String, File, Handler, BulkTransfer.ProgressListener)}.
 	 * 
+	 * @throws IOException
+	 *             If the port could not be opened.
 	 */
-	public class Handler extends Thread {
+	public void openBulkTransfer(int port) throws IOException {
+		if (bulkTransfer != null)
+			bulkTransfer.close();
+		bulkTransfer = new BulkTransfer(logger, port);
+		bulkTransfer.open();
+	}
 
-		/**
-		 * Handles connection to this {@link Handler}'s {@link Client}.
-		 */
-		private Socket socket = null;
-		/**
-		 * Reads incoming data from this {@link Handler}'s {@link Client}.
-		 */
-		private BufferedReader in = null;
-		/**
-		 * Sends outgoing data to this {@link Handler}'s {@link Client}.
-		 */
-		private PrintWriter out = null;
-		/**
-		 * A queue of all messages to be sent to this {@link Handler}'s {@link Client}.
-		 */
-		private List<String> queue = new ArrayList<String>();
-		/**
-		 * A queue of the times messages were put in {@link Handler#queue}.
-		 */
-		private List<Long> queueTimes = new ArrayList<Long>();
-		/**
-		 * The IP address of the {@link Client} this {@link Handler} is connected to.
-		 * Used to identify this {@link Handler}'s {@link Client} from others.
-		 */
-		private String ip = null;
-		/**
-		 * The username set by the {@link Client} used to identify the {@link Client}
-		 * from others.
-		 */
-		private String theirName = null;
-		/**
+	/**
+	 * @return {@link #bulkTransfer}.
+	 */
+	public BulkTransfer getBulkTransfer() {
+		return bulkTransfer;
+	}
+
+	/**
+	 * Starts picking up {@link Client}s that connect through a
+	 * {@link SharedMemoryChannel} in <b>directory</b> (see
+	 * {@link Client#setSharedMemory(File)}), alongside those connecting to our
+	 * port. No other {@link Server} may use the same directory.
+	 */
+	public void openSharedMemory(File directory) {
+		directory.mkdirs();
+		sharedMemoryDirectory = directory;
+	}
+
+	/**
+	 * @return {@link #sharedMemoryDirectory}.
+	 */
+	public File getSharedMemoryDirectory() {
+		return sharedMemoryDirectory;
+	}
+
+	/**
+	 * Starts a {@link Handler} for every {@link Client} waiting in
+	 * {@link #sharedMemoryDirectory}.
+	 * 
+	 * @return Whether or not any were found.
+	 */
+	private boolean acceptSharedMemory() {
+		List<SharedMemoryChannel> channels;
+		synchronized (sharedMemoryChannels) {
+			channels = SharedMemoryChannel.accept(sharedMemoryDirectory, sharedMemoryChannels);
+		}
+		for (int i = 0; i < channels.size(); i++) {
+			Handler handler = new Handler(channels.get(i));
+			handlers.add(handler);
+			trackIdle(handler);
+			handler.start();
+			logger.log(LogLevel.NORMAL, "Connected to a Client through shared memory!");
+		}
+		return !channels.isEmpty();
+	}
+
+	/**
+	 * Sends <b>file</b> to <b>handler</b>'s {@link Client} through
+	 * {@link #bulkTransfer}, alongside anything else we send it.
+	 * 
+	 * @param name
+	 *            What the {@link Client} is told the payload is called.
+	 * @param listener
+	 *            Told how the transfer goes, or <b>null</b>.
+	 * @return The transfer, or <b>null</b> if {@link #bulkTransfer} isn't open.
+	 */
+	public BulkTransfer.Transfer sendFileToClient(String name, File file, Handler handler,
+			BulkTransfer.ProgressListener listener) {
+		if (bulkTransfer == null) {
+			logger.log(LogLevel.ERROR, "We tried to send a file without opening a BulkTransfer!");
+			return null;
+		}
+		return bulkTransfer.offer(handler, name, file, listener);
+	}
+
+	/**
+	 * @param snapshotBootstrap
+	 *            See {@link #snapshotBootstrap}. Needs {@link #bulkTransfer}
+	 *            open.
+	 */
+	public void setSnapshotBootstrap(SnapshotBootstrap snapshotBootstrap) {
+		this.snapshotBootstrap = snapshotBootstrap;
+	}
+
+	/**
+	 * @return {@link #snapshotBootstrap}.
+	 */
+	public SnapshotBootstrap getSnapshotBootstrap() {
+		return snapshotBootstrap;
+	}
+
+	/**
+	 * Sends <b>data</b> to <b>handler</b>'s {@link Client} through
+	 * {@link #bulkTransfer}, alongside anything else we send it.
+	 * 
+	 * @see #sendFileToClient(String, File, Handler, BulkTransfer.ProgressListener)
+	 */
+	public BulkTransfer.Transfer sendDataToClient(String name, byte[] data, Handler handler,
+			BulkTransfer.ProgressListener listener) {
+		if (bulkTransfer == null) {
+			logger.log(LogLevel.ERROR, "We tried to send data without opening a BulkTransfer!");
+			return null;
+		}
+		return bulkTransfer.offer(handler, name, data, listener);
+	}
+
+	/**
+	 * Joins the {@link Server} nodes sharing <b>sessionDirectory</b>, so
+	 * {@link Client}s can be moved between us. Our load is kept up to date in it
+	 * every {@link #registrationInterval} while we talk to our {@link Client}s.
+	 * 
+	 * @param sessionDirectory
+	 *            See {@link #sessionDirectory}.
+	 * @param nodeID
+	 *            See {@link #nodeID}. Must be unique among the nodes.
+	 * @param nodeHost
+	 *            See {@link #nodeHost}.
+	 */
+	public void setFederation(SessionDirectory sessionDirectory, String nodeID, String nodeHost) {
+		this.sessionDirectory = sessionDirectory;
+		this.nodeID = nodeID;
+		this.nodeHost = nodeHost;
+		draining = false;
+		lastRegistration = 0;
+		updateRegistration();
+	}
+
+	/**
+	 * @return {@link #sessionDirectory}.
+	 */
+	public SessionDirectory getSessionDirectory() {
+		return sessionDirectory;
+	}
+
+	/**
+	 * @return {@link #nodeID}.
+	 */
+	public String getNodeID() {
+		return nodeID;
+	}
+
+	/**
+	 * Tells {@link #sessionDirectory} our load, if {@link #registrationInterval}
+	 * has passed since last time. Also clears out sessions nobody claimed.
+	 */
+	private void updateRegistration() {
+		if (sessionDirectory == null || draining)
+			return;
+		long now = clock.currentTimeMillis();
+		if (now - lastRegistration < registrationInterval)
+			return;
+		lastRegistration = now;
+		try {
+			sessionDirectory.register(nodeID, nodeHost, port, handlers.size());
+		} catch (IOException e) {
+			logger.log(LogLevel.WARNING, "Couldn't register in the session directory: " + e.getMessage());
+		}
+		sessionDirectory.removeExpiredSessions();
+	}
+
+	/**
+	 * Moves <b>handler</b>'s {@link Client} to the node <b>node</b>. The next time
+	 * the {@link Client} talks to us, its session is saved to
+	 * {@link #sessionDirectory} and it is told to reconnect to <b>node</b> with
+	 * <i>REDIRECT</i>, then <b>handler</b> is removed (see
+	 * {@link Handler#isMigrated()}).
+	 */
+	public void migrate(Handler handler, SessionDirectory.Node node) {
+		if (sessionDirectory == null) {
+			logger.log(LogLevel.ERROR, "We tried to move a Client without a session directory to move it through!");
+			return;
+		}
+		logger.log(LogLevel.NORMAL, "Moving Client " + handler.theirName + " (" + handler.ip + ") to " + node + ".");
+		handler.migrateTo = node;
+	}
+
+	/**
+	 * Moves {@link Client}s to the least loaded other node while we have at least
+	 * two more than it.
+	 * 
+	 * @return How many {@link Client}s are being moved.
+	 */
+	public int rebalance() {
+		if (sessionDirectory == null)
+			return 0;
+		SessionDirectory.Node least = sessionDirectory.getLeastLoaded(nodeID);
+		if (least == null)
+			return 0;
+		int amt = 0, load = least.load;
+		for (int i = handlers.size() - 1; i >= 0 && handlers.size() - amt > load + amt + 1; i--) {
+			Handler handler = handlers.get(i);
+			if (handler.migrateTo != null)
+				continue;
+			migrate(handler, least);
+			amt++;
+		}
+		return amt;
+	}
+
+	/**
+	 * Stops taking new {@link Client}s, removes us from {@link #sessionDirectory}
+	 * and moves every {@link Client} we have to the least loaded other node, so
+	 * we can be shut down without kicking anyone.
+	 * 
+	 * @return How many {@link Client}s are being moved, or -1 if there is no other
+	 *         node to move them to.
+	 */
+	public int drain() {
+		if (sessionDirectory == null)
+			return -1;
+		SessionDirectory.Node least = sessionDirectory.getLeastLoaded(nodeID);
+		if (least == null) {
+			logger.log(LogLevel.WARNING, "No other node to drain our Clients to.");
+			return -1;
+		}
+		draining = true;
+		sessionDirectory.unregister(nodeID);
+		if (incomingConnector != null)
+			closeIncomingClientConnection();
+		int amt = 0;
+		for (int i = 0; i < handlers.size(); i++) {
+			Handler handler = handlers.get(i);
+			if (handler.migrateTo == null) {
+				migrate(handler, least);
+				amt++;
+			}
+		}
+		return amt;
+	}
+
+	/**
+	 * A single tick of talking to all {@link Client}s: removes idle ones, runs
+	 * {@link #talkToClients()} and then {@link #onTick()}.
+	 */
+	void serviceClients() {
+		updateRegistration();
+		disconnectFromIdleClients();
+		talkToClients();
+		onTick();
+	}
+
+	/**
+	 * Disconnects the {@link Server} entirely. Turns off a {@link Connector} if on,
+	 * and ends all {@link Handler}s and removes them from {@link #handlers} .
+	 */
+	public void disconnect() {
+		logger.log(LogLevel.NORMAL, "Stopping server, disconnecting.");
+		stop = true;
+		if (listener != null) {
+			logger.log(LogLevel.DEBUG, "Closing listener.");
+			try {
+				listener.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			listener = null;
+		}
+		if (incomingConnector != null) {
+			logger.log(LogLevel.DEBUG, "Closing incoming connector.");
+			incomingConnector.stop();
+			incomingConnector = null;
+		}
+		if (talkingConnector != null) {
+			logger.log(LogLevel.DEBUG, "Closing talking connector.");
+			talkingConnector.stop();
+			talkingConnector = null;
+		}
+		if (bulkTransfer != null) {
+			logger.log(LogLevel.DEBUG, "Closing bulk transfer.");
+			bulkTransfer.close();
+			bulkTransfer = null;
+		}
+		synchronized (this) {
+			if (delayedDispatcher != null) {
+				delayedDispatcher.stop();
+				delayedDispatcher = null;
+			}
+		}
+		while (handlers.size() > 0) {
+			logger.log(LogLevel.DEBUG, "Killing Handler");
+			try {
+				handlers.get(0).end();
+			} catch (Exception e) {
+			}
+		}
+		logger.log(LogLevel.DEBUG, "Completely disconnected.");
+	}
+
+	/**
+	 * Communicates with all {@link Client}s: sends and receives queued messages.
+	 * Also does hard-coded methods for handling some {@link Server} output and
+	 * {@link Client} input.
+	 */
+	private void talkToClients() {
+		logger.log(LogLevel.ERROR, "talkToClients()");
+		if (stop) {
+			logger.log(LogLevel.WARNING,
+					"We tried to communicate with all clients but we were told to stop the connection. Disconnecting.");
+			disconnect();
+			return;
+		} else {
+			if (removeDuplicateConnections) {
+				List<String> ipList = new ArrayList<String>();
+				for (int i = 0; i < handlers.size(); i++) {
+					boolean found = false;
+					for (int j = 0; j < ipList.size(); j++) {
+						if (ipList.get(j).equals(handlers.get(i).ip)) {
+							logger.log(LogLevel.ERROR, "Found duplicate connection, removing one.");
+							removeHandler(handlers.get(i));
+							found = true;
+							break;
+						}
+					}
+					if (!found)
+						ipList.add(handlers.get(i).ip);
+				}
+			}
+			for (int i = 0; i < handlers.size(); i++)
+				handlers.get(i).run();
+		}
+	}
+
+	/**
+	 * An individual 'talker' to a specific {@link Client}. A {@link List} of these
+	 * is gathered in {@link #handlers} to talk to every {@link Client}.
+	 * 
+	 * @author Nathan
+	 * 
+	 */
+	public class Handler extends Thread {
+
+		/**
+		 * Handles connection to this {@link Handler}'s {@link Client}.
+		 */
+		private Socket socket = null;
+		/**
+		 * Handles connection to this {@link Handler}'s {@link Client} instead of
+		 * {@link #socket} if it is in another process on this host, or <b>null</b>.
+		 */
+		private SharedMemoryChannel channel = null;
+		/**
+		 * Reads incoming data from this {@link Handler}'s {@link Client}.
+		 */
+		private BufferedReader in = null;
+		/**
+		 * Sends outgoing data to this {@link Handler}'s {@link Client}.
+		 */
+		private PrintWriter out = null;
+		/**
+		 * All messages to be sent to this {@link Handler}'s {@link Client}, by
+		 * priority. See {@link OutboundLanes}.
+		 */
+		private OutboundLanes queue = new OutboundLanes(clock);
+		/**
+		 * The IP address of the {@link Client} this {@link Handler} is connected to.
+		 * Used to identify this {@link Handler}'s {@link Client} from others.
+		 */
+		private String ip = null;
+		/**
+		 * The username set by the {@link Client} used to identify the {@link Client}
+		 * from others.
+		 */
+		private String theirName = null;
+		/**
 		 * If set to <b>true</b>, this {@link Handler} will return instead of running,
 		 * effectively disabling it.
 		 */
@@ -837,7 +1587,92 @@ public class Server {
 		 * The last time we communicated with this {@link Handler}'s {@link Client}.
 		 * Used to check for connection timeouts.
 		 */
-		protected long lastMessageReceived = System.currentTimeMillis();
+		protected volatile long lastMessageReceived = clock.currentTimeMillis();
+		/**
+		 * This {@link Handler}'s idle check on {@link Server#timingWheel}, or
+		 * <b>null</b> if we have no {@link Server#clientTimeout}.
+		 */
+		protected TimingWheel.Timeout idleTimeout = null;
+		/**
+		 * Messages from this {@link Handler}'s {@link Client} waiting to be
+		 * delivered, in order. See {@link #deliverAfter(String, int, int)}.
+		 */
+		private List<String> delayedMessages = new ArrayList<String>();
+		/**
+		 * The time each of {@link #delayedMessages} is to be delivered at.
+		 */
+		private List<Long> delayedTimes = new ArrayList<Long>();
+		/**
+		 * The earliest time the next message may be delivered, pushed forward by
+		 * <i>[WAITBEFORE]</i> and <i>[WAITAFTER]</i>.
+		 */
+		private long deliveryCursor = 0;
+		/**
+		 * The scheduled delivery of the first of {@link #delayedMessages}, if any.
+		 */
+		private ScheduledFuture<?> delayedFuture = null;
+		/**
+		 * How many messages have been handed off (see
+		 * {@link #handOff(String, boolean)}) and not processed yet. While any
+		 * are, new messages are handed off too, so none overtake them.
+		 */
+		private int handedOff = 0;
+		/**
+		 * Splits message packs read from this {@link Handler}'s {@link Client}.
+		 */
+		protected MessageTokenizer tokenizer = new MessageTokenizer();
+		/**
+		 * <i>Ping pong</i> from this {@link Handler}'s {@link Client}, as delivered
+		 * (with their username), kept so it isn't rebuilt for every message pack.
+		 */
+		private String pingMessage = null;
+		/**
+		 * Paces updates to this {@link Handler}'s {@link Client}, or <b>null</b> if
+		 * {@link Server#maxSendInterval} is -1.
+		 */
+		protected SendRateController sendRate = null;
+		/**
+		 * Limits how much our {@link Client} can send us, or <b>null</b> if there is
+		 * no limit (or it hasn't sent anything since it was set).
+		 */
+		protected volatile RateLimiter rateLimiter = null;
+		/**
+		 * The interval last sent to our {@link Client} with <i>SENDRATE:</i>.
+		 */
+		private long advertisedInterval = -1;
+		/**
+		 * When we last sent queued messages to our {@link Client}.
+		 */
+		private long lastSend = 0;
+		/**
+		 * A line that was read from {@link #in} before this {@link Handler} was
+		 * created, to be processed before reading anything else. See
+		 * {@link Server#addClient(Socket, BufferedReader, String)}.
+		 */
+		private String pendingInput = null;
+		/**
+		 * Our index in {@link #handlers} as last looked up, for logging.
+		 */
+		private int index = -1;
+		/**
+		 * Unique id of this {@link Handler}'s connection, which never changes (unlike
+		 * its index in {@link #handlers}).
+		 */
+		protected final int id = nextHandlerID.getAndIncrement();
+		/**
+		 * Anything the game wants to keep for this {@link Handler}'s {@link Client}
+		 * that should follow it to another node. See
+		 * {@link #migrate(Handler, SessionDirectory.Node)}.
+		 */
+		protected final Map<String, String> attributes = new ConcurrentHashMap<String, String>();
+		/**
+		 * The node our {@link Client} is being moved to, or <b>null</b>.
+		 */
+		private volatile SessionDirectory.Node migrateTo = null;
+		/**
+		 * Whether or not our {@link Client} was moved to another node.
+		 */
+		private volatile boolean migrated = false;
 
 		/**
 		 * Initiates this {@link Handler}. Also sets {@link Handler#ip}, determined by
@@ -851,14 +1686,74 @@ public class Server {
 		public Handler(Socket socket) {
 			this.socket = socket;
 			this.ip = socket.getRemoteSocketAddress().toString().replace("/", "").split(":")[0];
-			queueTimes.add(System.currentTimeMillis());
 			addPing(-1);
 		}
 
 		/**
-		 * @see {@link #queue}.
+		 * Initiates this {@link Handler} with a reader that was already opened on
+		 * <b>socket</b>.
+		 * 
+		 * @param socket
+		 *            The {@link Socket} connection for the {@link Client} connected to
+		 *            this {@link Handler}.
+		 * @param in
+		 *            See {@link #in}. If <b>null</b>, one is opened in {@link #run()}.
+		 * @param pendingInput
+		 *            See {@link #pendingInput}.
+		 * @see #Handler(Socket)
+		 */
+		public Handler(Socket socket, BufferedReader in, String pendingInput) {
+			this(socket);
+			this.in = in;
+			this.pendingInput = pendingInput;
+		}
+
+		/**
+		 * Initiates this {@link Handler} for a {@link Client} connected through
+		 * <b>channel</b>. {@link Handler#ip} is set to <i>shm:</i> followed by the
+		 * channel's name, so each is told apart.
+		 * 
+		 * @param channel
+		 *            See {@link #channel}.
+		 * @see #Handler(Socket)
+		 */
+		public Handler(SharedMemoryChannel channel) {
+			this.channel = channel;
+			this.ip = "shm:" + channel.getName();
+			addPing(-1);
+		}
+
+		/**
+		 * Initiates this {@link Handler} for a {@link Client} connected through a
+		 * {@link VirtualNetwork}, talking over <b>in</b> and <b>out</b>. It isn't
+		 * started as a thread: see {@link #handle(String)}.
+		 * 
+		 * @param ip
+		 *            See {@link #ip}.
+		 * @see #Handler(Socket)
+		 */
+		public Handler(BufferedReader in, PrintWriter out, String ip) {
+			this.in = in;
+			this.out = out;
+			this.ip = ip;
+			// Never reads on its own, so run() has nothing to do
+			running = true;
+			addPing(-1);
+		}
+
+		/**
+		 * @return A copy of every message in {@link #queue}, control messages
+		 *         first.
 		 */
 		public List<String> getQueue() {
+			return queue.toList();
+		}
+
+		/**
+		 * @return {@link #queue}, to change lane weights or queue a message in a
+		 *         specific lane.
+		 */
+		public OutboundLanes getLanes() {
 			return queue;
 		}
 
@@ -869,6 +1764,274 @@ public class Server {
 			return ip;
 		}
 
+		/**
+		 * @see {@link #id}.
+		 */
+		public int getID() {
+			return id;
+		}
+
+		/**
+		 * @return The {@link Server} this {@link Handler} belongs to.
+		 */
+		public Server getServer() {
+			return me;
+		}
+
+		/**
+		 * @return The attribute <b>key</b>, or <b>null</b>. See {@link #attributes}.
+		 */
+		public String getAttribute(String key) {
+			return attributes.get(key);
+		}
+
+		/**
+		 * Sets the attribute <b>key</b>, or removes it if <b>value</b> is
+		 * <b>null</b>. See {@link #attributes}.
+		 */
+		public void setAttribute(String key, String value) {
+			if (value == null)
+				attributes.remove(key);
+			else
+				attributes.put(key, value);
+		}
+
+		/**
+		 * @see {@link #attributes}.
+		 */
+		public Map<String, String> getAttributes() {
+			return attributes;
+		}
+
+		/**
+		 * @return Whether or not our {@link Client} was moved to another node, for
+		 *         telling a move apart from leaving in
+		 *         {@link Server#onExit(Handler, int)}.
+		 */
+		public boolean isMigrated() {
+			return migrated;
+		}
+
+		/**
+		 * Saves our session to {@link #sessionDirectory} for {@link #migrateTo}.
+		 * 
+		 * @return The <i>REDIRECT</i> message to send our {@link Client}, or
+		 *         <b>null</b> if the session couldn't be saved (and we aren't moving
+		 *         it after all).
+		 */
+		private String saveSession() {
+			SessionDirectory.Node node = migrateTo;
+			List<String> messages = queue.removeAll();
+			try {
+				String token = sessionDirectory.saveSession(theirName, messages, attributes);
+				return Client.REDIRECT_PREFIX + token + ":" + node.port + ":" + node.host;
+			} catch (IOException e) {
+				logger.log(LogLevel.ERROR,
+						"Couldn't save session of " + theirName + ", not moving them: " + e.getMessage());
+				for (int i = 0; i < messages.size(); i++)
+					queue.add(messages.get(i));
+				migrateTo = null;
+				return null;
+			}
+		}
+
+		/**
+		 * Restores the session saved under <b>token</b> by the node our
+		 * {@link Client} was moved from.
+		 */
+		private void resumeSession(String token) {
+			SessionDirectory.Session session = sessionDirectory == null ? null
+					: sessionDirectory.claimSession(token);
+			if (session == null) {
+				logger.log(LogLevel.WARNING, "Couldn't find session for " + theirName + ", starting a new one.");
+				return;
+			}
+			attributes.putAll(session.attributes);
+			for (int i = 0; i < session.queue.size(); i++)
+				queue.add(session.queue.get(i));
+			logger.log(LogLevel.NORMAL, "Resumed session of " + theirName + " (" + session.queue.size()
+					+ " messages waiting).");
+			onResume(this);
+		}
+
+		/**
+		 * Passes <b>message</b> on to {@link #messageHandler}, either right away or
+		 * through {@link #messageDispatcher} if one is set.
+		 * 
+		 * @param message
+		 *            A single message from this {@link Handler}'s {@link Client}.
+		 */
+		protected void deliver(final String message) {
+			if (messageDispatcher == null) {
+				messageHandler.preProcess(me, ip, theirName, getHandlerIndex(this), message);
+				return;
+			}
+			messageDispatcher.dispatch(id, deliveryOf(message));
+		}
+
+		/**
+		 * @return Work that passes <b>message</b> on to {@link #messageHandler},
+		 *         unless this {@link Handler} has been removed by then.
+		 */
+		private Runnable deliveryOf(final String message) {
+			return new Runnable() {
+				public void run() {
+					int index = getHandlerIndex(Handler.this);
+					if (index == -1) {
+						logger.log(LogLevel.DEBUG, "Dropping message from removed Handler (" + ip + "): " + message);
+						return;
+					}
+					messageHandler.preProcess(me, ip, theirName, index, message);
+				}
+			};
+		}
+
+		/**
+		 * Hands <b>message</b> to {@link #messageDispatcher} (or
+		 * {@link #delayedDispatcher}) to be delivered on its thread, counted in
+		 * {@link #handedOff} until it has been.
+		 * 
+		 * @param wait
+		 *            Whether or not to wait if the dispatcher is full. Must be
+		 *            <b>false</b> while holding the lock on {@link #delayedMessages}.
+		 * @return Whether or not it was handed off.
+		 */
+		private boolean handOff(String message, boolean wait) {
+			MessageDispatcher dispatcher = messageDispatcher;
+			if (dispatcher == null)
+				synchronized (Server.this) {
+					if (delayedDispatcher == null)
+						delayedDispatcher = new MessageDispatcher(logger, 0, 1000);
+					dispatcher = delayedDispatcher;
+				}
+			final Runnable delivery = deliveryOf(message);
+			Runnable work = new Runnable() {
+				public void run() {
+					try {
+						delivery.run();
+					} finally {
+						synchronized (delayedMessages) {
+							handedOff--;
+						}
+					}
+				}
+			};
+			synchronized (delayedMessages) {
+				handedOff++;
+			}
+			boolean queued = wait ? dispatcher.dispatch(id, work) : dispatcher.offer(id, work);
+			if (!queued)
+				synchronized (delayedMessages) {
+					handedOff--;
+				}
+			return queued;
+		}
+
+		/**
+		 * Delivers <b>message</b> (see {@link #deliver(String)}) once
+		 * <b>waitBefore</b> milliseconds have passed after the previous message,
+		 * and holds back the next message for <b>waitAfter</b> milliseconds after
+		 * it. Messages are always delivered in the order they arrived. Anything that
+		 * has to wait is delivered by {@link Server#scheduler}, so this never
+		 * blocks reading from the {@link Client}.
+		 * 
+		 * @param message
+		 *            A single message from this {@link Handler}'s {@link Client}.
+		 * @param waitBefore
+		 *            Milliseconds to wait before delivering, or -1 for none.
+		 * @param waitAfter
+		 *            Milliseconds to wait after delivering, or -1 for none.
+		 */
+		protected void deliverAfter(String message, int waitBefore, int waitAfter) {
+			deliverAfter(message, waitBefore, waitAfter, 0);
+		}
+
+		/**
+		 * As {@link #deliverAfter(String, int, int)}, but never before
+		 * <b>notBefore</b> (a time from {@link Server#clock}).
+		 */
+		protected void deliverAfter(String message, int waitBefore, int waitAfter, long notBefore) {
+			long now = clock.currentTimeMillis();
+			boolean behindHandedOff;
+			synchronized (delayedMessages) {
+				long deliverAt = Math.max(Math.max(now, deliveryCursor) + Math.max(0, waitBefore), notBefore);
+				deliveryCursor = deliverAt + Math.max(0, waitAfter);
+				if (deliverAt > now || !delayedMessages.isEmpty()) {
+					delayedMessages.add(message);
+					delayedTimes.add(deliverAt);
+					if (delayedFuture == null)
+						delayedFuture = scheduler.schedule(deliverDelayed, deliverAt - now);
+					return;
+				}
+				behindHandedOff = handedOff > 0;
+			}
+			if (!behindHandedOff || !handOff(message, true))
+				deliver(message);
+		}
+
+		/**
+		 * Sends a single line to this {@link Handler}'s {@link Client}, recording it
+		 * in {@link Server#journal} if set.
+		 */
+		private void println(String line) {
+			out.println(line);
+			if (journal != null)
+				journal.record(id, NetworkJournal.OUTBOUND, line);
+		}
+
+		/**
+		 * @return The number between the first two <b>marker</b>s in
+		 *         <b>message</b> (as in <i>[WAITBEFORE]500[WAITBEFORE]</i>), or -1
+		 *         if there isn't one.
+		 */
+		private int getWait(String message, String marker) {
+			int start = message.indexOf(marker);
+			int end = start == -1 ? -1 : message.indexOf(marker, start + marker.length());
+			if (end == -1)
+				return -1;
+			try {
+				return Integer.parseInt(message.substring(start + marker.length(), end));
+			} catch (NumberFormatException e) {
+				return -1;
+			}
+		}
+
+		/**
+		 * Hands every one of {@link #delayedMessages} that is due off to be
+		 * delivered (see {@link #handOff(String, boolean)}), then schedules itself
+		 * again for the next one. Runs on {@link Server#scheduler}, so never
+		 * processes them itself, unless the scheduler is virtual (and runs
+		 * everything on one thread anyway).
+		 */
+		private final Runnable deliverDelayed = new Runnable() {
+			public void run() {
+				synchronized (delayedMessages) {
+					delayedFuture = null;
+					if (override) {
+						delayedMessages.clear();
+						delayedTimes.clear();
+						return;
+					}
+					long now = clock.currentTimeMillis();
+					while (!delayedMessages.isEmpty() && delayedTimes.get(0) <= now) {
+						// Handed off while holding the lock, so a newer message can't
+						// overtake this one
+						if (scheduler.isVirtual())
+							deliver(delayedMessages.get(0));
+						else if (!handOff(delayedMessages.get(0), false)) {
+							// Dispatcher is full, try again shortly
+							delayedFuture = scheduler.schedule(this, 1);
+							return;
+						}
+						delayedTimes.remove(0);
+						delayedMessages.remove(0);
+					}
+					if (!delayedMessages.isEmpty())
+						delayedFuture = scheduler.schedule(this, delayedTimes.get(0) - now);
+				}
+			}
+		};
+
 		/**
 		 * Adds a ping to {@link Handler#pingList}. <br>
 		 * Also, prunes {@link Handler#pingList} before adding <b>pingToAdd</b>.
@@ -887,6 +2050,87 @@ public class Server {
 			}
 			pingList.add(pingToAdd);
 			pingTotal += pingToAdd;
+			if (sendRate != null && pingToAdd >= 0)
+				// Our Client waits for its own interval before replying, that
+				// part of the ping isn't the connection's fault
+				sendRate.onRTT(Math.max(0, pingToAdd - Math.max(advertisedInterval, timeBetweenConnectionAttempts)));
+		}
+
+		/**
+		 * @return How often (in milliseconds) this {@link Handler} currently sends
+		 *         updates to its {@link Client}. Games can use this to decide how
+		 *         often to send it snapshots.
+		 */
+		public long getSendInterval() {
+			return sendRate == null ? timeBetweenConnectionAttempts : sendRate.getInterval();
+		}
+
+		/**
+		 * Checks a message from our {@link Client} against {@link #rateLimiter},
+		 * disconnecting them if they went over and that is what we do.
+		 * 
+		 * @param bytes
+		 *            How many bytes of what they sent it took up.
+		 * @return When it can be delivered: 0 for now, a time to hold it back
+		 *         until, or -1 if it must not be.
+		 */
+		private long rateLimit(int bytes) {
+			if (rateLimitMessages <= 0 && rateLimitBytes <= 0)
+				return 0;
+			RateLimiter rateLimiter = this.rateLimiter;
+			if (rateLimiter == null)
+				this.rateLimiter = rateLimiter = new RateLimiter(rateLimitMessages, rateLimitBytes, rateLimitAction);
+			long when = rateLimiter.acquire(bytes, clock.currentTimeMillis());
+			if (when == 0)
+				return 0;
+			rateLimited.incrementAndGet();
+			if (when == -1 && rateLimiter.getAction() == RateLimiter.Action.DISCONNECT) {
+				logger.log(LogLevel.WARNING,
+						"Client " + theirName + " (" + ip + ") went over the rate limit, disconnecting.");
+				println("EXITING");
+				end();
+			}
+			return when;
+		}
+
+		/**
+		 * @return Whether or not <b>input</b> is exactly a keep-alive from our
+		 *         {@link Client}: <i>Ping pong</i>, alone or with their name.
+		 */
+		private boolean isPing(String input) {
+			if (input.equals("Ping pong"))
+				return true;
+			return theirName != null && input.length() == 9 + USERNAME_SPLITTER.length() + theirName.length()
+					&& input.startsWith("Ping pong" + USERNAME_SPLITTER) && input.endsWith(theirName);
+		}
+
+		/**
+		 * @return {@link #rateLimiter}, to see how often our {@link Client} went
+		 *         over the limit, or <b>null</b>.
+		 */
+		public RateLimiter getRateLimiter() {
+			return rateLimiter;
+		}
+
+		/**
+		 * Updates {@link #sendRate} after receiving something from our
+		 * {@link Client}, telling them if the interval changed by a fifth or more.
+		 */
+		private void updateSendRate() {
+			if (maxSendInterval == -1) {
+				sendRate = null;
+				return;
+			}
+			if (sendRate == null)
+				sendRate = new SendRateController(timeBetweenConnectionAttempts, maxSendInterval);
+			sendRate.onAck();
+			long interval = sendRate.evaluate(clock.currentTimeMillis());
+			if (advertisedInterval == -1 && interval == timeBetweenConnectionAttempts)
+				advertisedInterval = interval;
+			else if (Math.abs(interval - advertisedInterval) * 5 >= advertisedInterval) {
+				advertisedInterval = interval;
+				sendMessageToClient("SENDRATE:" + interval);
+			}
 		}
 
 		/**
@@ -921,14 +2165,7 @@ public class Server {
 		 * @return Whether or not the message is still in the queue.
 		 */
 		public boolean hasMessageQueued(String message) {
-			try {
-				ArrayList<String> newQueue = new ArrayList<String>(queue);
-				for (int i = 0; i < newQueue.size(); i++)
-					if (newQueue.get(i).contains(message))
-						return true;
-			} catch (Exception e) {
-			}
-			return false;
+			return queue.contains(message);
 		}
 
 		/**
@@ -942,15 +2179,13 @@ public class Server {
 		 * @return Whether or not the queue is empty.
 		 */
 		public boolean hasMessageQueued() {
-			return queue.size() != 0;
+			return !queue.isEmpty();
 		}
 
 		/**
 		 * Puts a given message into the {@link Handler#queue} of messages to send to
-		 * the {@link Client}.<br>
-		 * Also logs what time this message was put in the queue to
-		 * {@link Handler#queueTimes}, in case the {@link Server} needs to tell the
-		 * difference in time between messages.
+		 * the {@link Client}, in the lane {@link OutboundLanes#getLane(String)}
+		 * picks for it.
 		 * 
 		 * @param message
 		 *            {@link String} of the message we wish to send to the server.
@@ -959,7 +2194,6 @@ public class Server {
 			logger.log(LogLevel.DEBUG, "Sending message to Client (" + ip + "," + getHandlerIndex(this) + ","
 					+ theirName + ") from Handler. (" + message + ")");
 			queue.add(message);
-			queueTimes.add(System.currentTimeMillis());
 		}
 
 		/**
@@ -974,6 +2208,21 @@ public class Server {
 			return this.ip.equals(ip);
 		}
 
+		/**
+		 * Closes and deletes {@link #channel} if we have one, and forgets we
+		 * picked it up.
+		 */
+		private void closeChannel() {
+			SharedMemoryChannel channel = this.channel;
+			if (channel != null) {
+				channel.close();
+				channel.getFile().delete();
+				synchronized (sharedMemoryChannels) {
+					sharedMemoryChannels.remove(channel.getFile().getName());
+				}
+			}
+		}
+
 		/**
 		 * See {@link #removeHandler(Handler)}
 		 */
@@ -992,9 +2241,23 @@ public class Server {
 				socket.close();
 			} catch (Exception e) {
 			}
+			closeChannel();
 			out = null;
 			in = null;
 			socket = null;
+			channel = null;
+			Executor handlerExecutor = me.handlerExecutor;
+			if (handlerExecutor != null)
+				try {
+					handlerExecutor.execute(new Runnable() {
+						public void run() {
+							me.removeHandler(Handler.this);
+						}
+					});
+					return;
+				} catch (RejectedExecutionException e) {
+					// Shut down, nothing else is changing them anymore
+				}
 			me.removeHandler(this);
 		}
 
@@ -1011,11 +2274,13 @@ public class Server {
 				return;
 			logger.log(LogLevel.DEBUG, "Running listener (" + ip + ")");
 			try {
-				if (in == null || out == null) {
-					in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-					out = new PrintWriter(socket.getOutputStream(), true);
-				}
-				int index = -1;
+				if (in == null)
+					in = channel != null ? channel.openReader()
+							: new BufferedReader(new InputStreamReader(socket.getInputStream()));
+				if (out == null)
+					out = channel != null ? channel.openWriter(true)
+							: new PrintWriter(socket.getOutputStream(), true);
+				index = -1;
 				for (int i = 0; i < handlers.size(); i++)
 					if (isConnectedTo(handlers.get(i).ip))
 						index = i;
@@ -1030,135 +2295,15 @@ public class Server {
 				while (!override) {
 					String input = null;
 					try {
-						input = in.readLine();
+						if (pendingInput != null) {
+							input = pendingInput;
+							pendingInput = null;
+						} else
+							input = in.readLine();
 					} catch (Exception e) {
 						continue;
 					}
-					// logger.log(LogLevel.DEBUG, "Received raw input from
-					// client: " + input);
-					lastMessageReceived = System.currentTimeMillis();
-					if (input == null) {
-						logger.log(LogLevel.WARNING,
-								"Raw input is null, something is wrong. Disconnecting Server from Client.");
-						end();
-						try {
-							Thread.sleep(100);
-						} catch (Exception e) {
-						}
-						continue;
-					}
-					if (input.contains(MESSAGE_SPLITTER)) {
-						logger.log(LogLevel.DEBUG, "Got multiple message pack");
-						String[] splitInput = input.split(MESSAGE_SPLITTER);
-						for (int i = 0; i < splitInput.length; i++) {
-							int waitBefore = -1, waitAfter = -1;
-							String waitBeforeStr = "[WAITBEFORE]";
-							if (splitInput[i].contains(waitBeforeStr)) {
-								waitBefore = Integer.parseInt(splitInput[i].split(waitBeforeStr)[1]);
-								splitInput[i] = splitInput[i].replace(waitBeforeStr + waitBefore + waitBeforeStr, "");
-							}
-							String waitAfterStr = "[WAITAFTER]";
-							if (splitInput[i].contains(waitAfterStr)) {
-								waitAfter = Integer.parseInt(splitInput[i].split(waitAfterStr)[1]);
-								splitInput[i] = splitInput[i].replace(waitAfterStr + waitBefore + waitAfterStr, "");
-							}
-							if (!splitInput[i].contains(Client.USERNAME_SPLITTER))
-								splitInput[i] += Client.USERNAME_SPLITTER + theirName;
-							logger.log(LogLevel.DEBUG, "Got message #" + i + ": " + splitInput[i]);
-							if (waitBefore > 0) {
-								logger.log(LogLevel.DEBUG, "Waiting before: " + waitBefore);
-								try {
-									Thread.sleep(waitBefore);
-								} catch (Exception e) {
-								}
-								logger.log(LogLevel.DEBUG, "Waited before.");
-							}
-							messageHandler.preProcess(me,
-									socket.getRemoteSocketAddress().toString().split(":")[0].replace("/", ""),
-									theirName, getHandlerIndex(this), splitInput[i]);
-							if (waitAfter > 0) {
-								logger.log(LogLevel.DEBUG, "Waiting after: " + waitAfter);
-								try {
-									Thread.sleep(waitAfter);
-								} catch (Exception e) {
-								}
-								logger.log(LogLevel.DEBUG, "Waited after.");
-							}
-						}
-						try {
-							// Sleep a very small time between processing every
-							// message
-							Thread.sleep(1);
-						} catch (Exception e) {
-						}
-					} else {
-						if (!input.startsWith("Ping pong"))
-							logger.log(LogLevel.DEBUG, "Got one message: " + input);
-						messageHandler.preProcess(me,
-								socket.getRemoteSocketAddress().toString().split(":")[0].replace("/", ""), theirName,
-								getHandlerIndex(this), input);
-					}
-					boolean saidSomething = false;
-					if (input.startsWith("CONNECTING")) {
-						String nameToSet = input.split(USERNAME_SPLITTER)[1];
-						theirName = nameToSet;
-						out.println("CONNECTING:" + seed + USERNAME_SPLITTER + username);
-						// logger.log(LogLevel.DEBUG, "Sending to client:
-						// CONNECTING:SEED (seed is " + seed + ")");
-						saidSomething = true;
-						continue;
-					}
-					boolean first = true;
-					if (queue.size() > 0 && !saidSomething) {
-						String send = "", thisMsg = "";
-						while (queue.size() > 0) {
-							try {
-								thisMsg = queue.get(0);
-								queue.remove(0);
-								if (first) {
-									first = false;
-									send = thisMsg;
-								} else
-									send += MESSAGE_SPLITTER + thisMsg;
-							} catch (Exception e) {
-								e.printStackTrace();
-								System.err.println("Uh oh.. something going wrong in netcode!!!");
-							}
-						}
-						if (pingTime == -1)
-							pingTime = System.currentTimeMillis();
-						send = send + PING_SPLITTER + getPing() + USERNAME_SPLITTER + username;
-						if (index == -1) {
-							for (int i = 0; i < handlers.size(); i++)
-								if (isConnectedTo(handlers.get(i).ip))
-									index = i;
-						}
-						if (index == -1) {
-							logger.log(LogLevel.ERROR, "Problem getting correct handler..", "All listeners:");
-							for (int i = 0; i < handlers.size(); i++)
-								logger.log(LogLevel.ERROR, "handlers[" + i + "]: " + handlers.get(i).ip);
-						}
-						logger.log(LogLevel.DEBUG, "Sending to client: " + send);
-						out.println(send);
-						lastMessageReceived = System.currentTimeMillis();
-						saidSomething = true;
-					} else if (!saidSomething) {
-						// logger.log(LogLevel.DEBUG, "list size is zero,
-						// nothing to send to client.");
-					} else {
-						// logger.log(LogLevel.DEBUG, "We already said something
-						// to the client.");
-					}
-					if (!saidSomething) {
-						if (pingTime == -1)
-							pingTime = System.currentTimeMillis();
-						String msg = "RECEIVED";
-						int amt = getPing();
-						msg += PING_SPLITTER + amt + USERNAME_SPLITTER + username;
-						out.println(msg);
-						// logger.log(LogLevel.DEBUG, "Sending to client: " +
-						// msg);
-					}
+					handle(input);
 				}
 			} catch (Exception e) {
 				e.printStackTrace();
@@ -1167,7 +2312,7 @@ public class Server {
 				// writer from the sets, and close its socket.
 				logger.log(LogLevel.WARNING, "Client disappeared. Cleaning up. (" + ip + ")");
 				try {
-					out.println("EXITING");
+					println("EXITING");
 				} catch (Exception e) {
 					// Client probably already gone or something, don't worry
 					// about it.
@@ -1176,12 +2321,169 @@ public class Server {
 			}
 			running = false;
 		}
+
+		/**
+		 * Handles a single line <b>input</b> from our {@link Client}, as read by
+		 * {@link #run()}, and replies to it. <b>null</b> means the connection was
+		 * lost, and ends this {@link Handler}. A {@link VirtualNetwork} calls this
+		 * for each line its {@link Client}s send, instead of running this
+		 * {@link Handler} as a thread.
+		 */
+		protected void handle(String input) {
+			// logger.log(LogLevel.DEBUG, "Received raw input from client: " +
+			// input);
+			lastMessageReceived = clock.currentTimeMillis();
+			if (input == null) {
+				logger.log(LogLevel.WARNING,
+						"Raw input is null, something is wrong. Disconnecting Server from Client.");
+				end();
+				return;
+			}
+			if (journal != null)
+				journal.record(id, NetworkJournal.INBOUND, input);
+			updateSendRate();
+			if (input.contains(MESSAGE_SPLITTER)) {
+				logger.log(LogLevel.DEBUG, "Got multiple message pack");
+				int amt = tokenizer.split(input, MESSAGE_SPLITTER);
+				for (int i = 0; i < amt; i++) {
+					MessageView view = tokenizer.get(i);
+					if (view.contentEquals("Ping pong")) {
+						if (pingMessage == null || !pingMessage.endsWith(theirName) || pingMessage.length() != 9
+								+ USERNAME_SPLITTER.length() + theirName.length())
+							pingMessage = "Ping pong" + USERNAME_SPLITTER + theirName;
+						deliverAfter(pingMessage, -1, -1);
+						continue;
+					}
+					String message = view.toString();
+					int waitBefore = -1, waitAfter = -1;
+					String waitBeforeStr = "[WAITBEFORE]";
+					if (view.contains(waitBeforeStr)) {
+						waitBefore = getWait(message, waitBeforeStr);
+						message = message.replace(waitBeforeStr + waitBefore + waitBeforeStr, "");
+					}
+					String waitAfterStr = "[WAITAFTER]";
+					if (view.contains(waitAfterStr)) {
+						waitAfter = getWait(message, waitAfterStr);
+						message = message.replace(waitAfterStr + waitAfter + waitAfterStr, "");
+					}
+					if (!view.contains(Client.USERNAME_SPLITTER))
+						message += Client.USERNAME_SPLITTER + theirName;
+					logger.log(LogLevel.DEBUG, "Got message #" + i + ": " + message);
+					if (waitBefore > 0 || waitAfter > 0)
+						logger.log(LogLevel.DEBUG,
+								"Waiting before: " + waitBefore + ", waiting after: " + waitAfter);
+					// As received, the splitter before it included
+					long notBefore = rateLimit(MessageView.getEncodedLength(view)
+							+ (i > 0 ? MESSAGE_SPLITTER.length() : 0));
+					if (notBefore == -1) {
+						if (override)
+							break;
+						continue;
+					}
+					deliverAfter(message, waitBefore, waitAfter, notBefore);
+				}
+				// Sleep a very small time between processing every message
+				clock.sleep(1);
+			} else {
+				if (!isPing(input)) {
+					logger.log(LogLevel.DEBUG, "Got one message: " + input);
+					long notBefore = rateLimit(MessageView.getEncodedLength(input));
+					if (notBefore != -1)
+						deliverAfter(input, -1, -1, notBefore);
+				} else
+					deliverAfter(input, -1, -1);
+			}
+			if (override)
+				// Went over the rate limit and was disconnected
+				return;
+			boolean saidSomething = false;
+			if (input.startsWith("CONNECTING")) {
+				String nameToSet = input.split(USERNAME_SPLITTER)[1];
+				theirName = nameToSet;
+				if (input.startsWith(Client.RESUME_PREFIX))
+					resumeSession(input.substring(Client.RESUME_PREFIX.length(),
+							input.indexOf(USERNAME_SPLITTER)));
+				onConnect(this);
+				if (snapshotBootstrap != null)
+					snapshotBootstrap.join(this);
+				// Seed, our time and everything queued so far, all in one reply
+				StringBuilder reply = new StringBuilder("CONNECTING:").append(seed).append(':')
+						.append(clock.currentTimeMillis());
+				List<String> state = queue.removeAll();
+				for (int i = 0; i < state.size(); i++)
+					reply.append(MESSAGE_SPLITTER).append(state.get(i));
+				println(reply.append(USERNAME_SPLITTER).append(username).toString());
+				// logger.log(LogLevel.DEBUG, "Sending to client:
+				// CONNECTING:SEED (seed is " + seed + ")");
+				return;
+			}
+			if (migrateTo != null) {
+				String redirect = saveSession();
+				if (redirect != null) {
+					// Instead of our usual reply, so the Client reads it straight away
+					println(redirect + USERNAME_SPLITTER + username);
+					logger.log(LogLevel.NORMAL, "Moved Client " + theirName + " (" + ip + ") to "
+							+ migrateTo + ".");
+					migrated = true;
+					end();
+					return;
+				}
+			}
+			long now = clock.currentTimeMillis();
+			String send = null;
+			long oldestTime = -1;
+			if (!queue.isEmpty() && !saidSomething
+					&& (sendRate == null || now - lastSend >= sendRate.getInterval())) {
+				oldestTime = queue.getOldestTime();
+				send = queue.poll(MESSAGE_SPLITTER);
+			}
+			if (send != null) {
+				// Only if something was actually taken, else we reply as usual
+				if (sendRate != null)
+					sendRate.onSend(now - oldestTime);
+				lastSend = now;
+				if (pingTime == -1)
+					pingTime = clock.currentTimeMillis();
+				send = send + PING_SPLITTER + getPing() + USERNAME_SPLITTER + username;
+				if (index == -1) {
+					for (int i = 0; i < handlers.size(); i++)
+						if (isConnectedTo(handlers.get(i).ip))
+							index = i;
+				}
+				if (index == -1) {
+					logger.log(LogLevel.ERROR, "Problem getting correct handler..", "All listeners:");
+					for (int i = 0; i < handlers.size(); i++)
+						logger.log(LogLevel.ERROR, "handlers[" + i + "]: " + handlers.get(i).ip);
+				}
+				logger.log(LogLevel.DEBUG, "Sending to client: " + send);
+				println(send);
+				lastMessageReceived = clock.currentTimeMillis();
+				saidSomething = true;
+			} else if (!saidSomething) {
+				// logger.log(LogLevel.DEBUG, "list size is zero,
+				// nothing to send to client.");
+			} else {
+				// logger.log(LogLevel.DEBUG, "We already said something
+				// to the client.");
+			}
+			if (!saidSomething) {
+				if (pingTime == -1)
+					pingTime = clock.currentTimeMillis();
+				String msg = "RECEIVED";
+				int amt = getPing();
+				msg += PING_SPLITTER + amt + USERNAME_SPLITTER + username;
+				println(msg);
+				// logger.log(LogLevel.DEBUG, "Sending to client: " +
+				// msg);
+			}
+		}
 	}
 
 	/**
 	 * Attempts to open and establish a connection with {@link Client}s via
-	 * {@link #connect()}, meant for being used with a {@link Timer} to attempt
-	 * connection until a connection is successfully established.<br>
+	 * {@link #connect()}, meant for being run repeatedly by a
+	 * {@link NetworkScheduler} to attempt connection until a connection is
+	 * successfully established.<br>
 	 * <br>
 	 * Once a connection is established, this class instead uses
 	 * {@link #talkToClients()} to communicate with the all {@link Client} s.
@@ -1189,7 +2491,7 @@ public class Server {
 	 * @author Nathan
 	 * 
 	 */
-	public class Connector extends TimerTask {
+	public class Connector implements Runnable {
 		/**
 		 * If set to <b>true</b>, this {@link Connector} will return instead of running,
 		 * effectively disabling it.
@@ -1200,19 +2502,23 @@ public class Server {
 		 */
 		private boolean running = false;
 		/**
-		 * The timer that is activating this {@link Connector}.
+		 * The scheduled repetition of this {@link Connector}, used to cancel it.
 		 */
-		private Timer ourTimer = null;
+		private ScheduledFuture<?> future = null;
 
 		/**
-		 * Initiates {@link Connector}.
-		 * 
-		 * @param ourTimer
-		 *            {@link Connector#ourTimer}
+		 * Initiates {@link Connector}. It doesn't run until {@link #start(NetworkScheduler, long)}.
+		 */
+		public Connector() {
+			logger.log(LogLevel.DEBUG, "Connector created.");
+		}
+
+		/**
+		 * Starts running this {@link Connector} on <b>scheduler</b> every
+		 * <b>period</b> milliseconds.
 		 */
-		public Connector(Timer ourTimer) {
-			this.ourTimer = ourTimer;
-			logger.log(LogLevel.DEBUG, "Connector (TimerTask) created.");
+		public void start(NetworkScheduler scheduler, long period) {
+			future = scheduler.scheduleAtFixedRate(this, 0, period);
 		}
 
 		/**
@@ -1234,17 +2540,21 @@ public class Server {
 			logger.log(LogLevel.DEBUG, "Running...");
 			if (!override && !running && !stop) {
 				running = true;
-				if (this.equals(incomingConnector)) {
-					logger.log(LogLevel.NORMAL, "Trying to connect to potential Clients...");
-					disconnectFromIdleClients();
-					boolean connected = true;
-					while (connected && !override && !stop) {
-						connected = me.connect();
+				try {
+					if (this.equals(incomingConnector)) {
+						logger.log(LogLevel.NORMAL, "Trying to connect to potential Clients...");
+						disconnectFromIdleClients();
+						boolean connected = true;
+						while (connected && !override && !stop) {
+							connected = me.connect();
+						}
+					} else if (this.equals(talkingConnector)) {
+						logger.log(LogLevel.NORMAL, "Trying to connect and talk to existing Clients...");
+						serviceClients();
 					}
-				} else if (this.equals(talkingConnector)) {
-					logger.log(LogLevel.NORMAL, "Trying to connect and talk to existing Clients...");
-					disconnectFromIdleClients();
-					talkToClients();
+				} catch (Exception e) {
+					// Never let an exception cancel our scheduled repetition
+					e.printStackTrace();
 				}
 			} else {
 				logger.err(LogLevel.WARNING, "Server run error?? " + override + ":" + running + ":" + stop);
@@ -1260,17 +2570,15 @@ public class Server {
 		}
 
 		/**
-		 * Stops this {@link Connector} and it's {@link Timer}s.
+		 * Stops this {@link Connector} and cancels its scheduled repetition.
 		 */
 		public void stop() {
 			logger.log(LogLevel.DEBUG, "Stopping Connector.");
 			override(true);
-			if (ourTimer != null) {
-				ourTimer.cancel();
-				ourTimer.purge();
-				ourTimer = null;
+			if (future != null) {
+				future.cancel(false);
+				future = null;
 			}
-			cancel();
 		}
 	}
 
@@ -1286,7 +2594,66 @@ public class Server {
 		public abstract void process(String message);
 
 		/**
-		 * Hard-coded pre-processing of {@link Client} input where necessary.
+		 * Picks what to do with each message by its type (see {@link MessageRouter}),
+		 * given the {@link Handler} it came through. Messages a {@link MessageRouter.Route}
+		 * doesn't consume go on to {@link #process(String)}.
+		 */
+		protected final MessageRouter<Handler> router = new MessageRouter<Handler>();
+		/**
+		 * If set, {@link #process(String)} is run on the game thread, in the order
+		 * messages arrived, right before its next {@link Game#gameTick()} (see
+		 * {@link Game#getInbox()}), instead of on the {@link Handler}'s. Routes in
+		 * {@link #router} still run on the {@link Handler}'s. <b>null</b> by
+		 * default.
+		 */
+		protected volatile GameInbox gameInbox = null;
+
+		/**
+		 * Initiates {@link ServerMessageHandler} with the hard-coded routes:<br>
+		 * <i>Ping pong</i>: the {@link Client} replied to us, note the ping.<br>
+		 * <i>SYNCTIME</i>: the {@link Client} wants our currentTimeMillis.<br>
+		 * <i>SNAPSHOT_LOADED</i>: the {@link Client} loaded a snapshot from our
+		 * {@link SnapshotBootstrap}.
+		 */
+		public ServerMessageHandler() {
+			router.register("Ping pong", new MessageRouter.Route<Handler>() {
+				public boolean route(Handler handler, String message) {
+					if (handler.pingTime != -1) {
+						handler.addPing((int) (handler.getServer().clock.currentTimeMillis() - handler.pingTime));
+						handler.pingTime = -1;
+					}
+					return false;
+				}
+			});
+			router.register("SYNCTIME", new MessageRouter.Route<Handler>() {
+				public boolean route(Handler handler, String message) {
+					handler.getServer().logger.log(LogLevel.DEBUG, "Client (" + handler.ip + ", " + handler.theirName
+							+ ") Requested SyncTime");
+					handler.sendMessageToClient("SYNCTIME:" + handler.getServer().clock.currentTimeMillis());
+					return false;
+				}
+			});
+			router.register("SNAPSHOT_LOADED", new MessageRouter.Route<Handler>() {
+				public boolean route(Handler handler, String message) {
+					SnapshotBootstrap snapshotBootstrap = handler.getServer().snapshotBootstrap;
+					if (snapshotBootstrap != null)
+						snapshotBootstrap.loaded(handler, Long.parseLong(message.substring(
+								SnapshotBootstrap.LOADED_PREFIX.length()).split(USERNAME_SPLITTER)[0]));
+					return false;
+				}
+			});
+		}
+
+		/**
+		 * @return {@link #router}, to route messages of your own.
+		 */
+		public MessageRouter<Handler> getRouter() {
+			return router;
+		}
+
+		/**
+		 * Hard-coded pre-processing of {@link Client} input where necessary, through
+		 * {@link #router}.
 		 * 
 		 * @param server
 		 *            The {@link Server} in which this message handling is taking place.
@@ -1301,22 +2668,40 @@ public class Server {
 		 * @return {@link ServerMessageHandler#process(String)}.
 		 */
 		protected void preProcess(Server server, String ip, String username, int index, String message) {
-			Handler handler = server.handlers.get(index);
-			if (message.startsWith("Ping pong") && handler.pingTime != -1) {
-				long ping = System.currentTimeMillis() - handler.pingTime;
-				// server.logger.log(LogLevel.DEBUG,
-				// "Got ping of Client (" + ip + ", " + username + ")! Ping
-				// time: " + ping + ".");
-				handler.addPing((int) ping);
-				// server.logger.log(LogLevel.DEBUG,
-				// "Average ping of Client (" + ip + ", " + username + "): " +
-				// handler.getPing());
-				handler.pingTime = -1;
-			} else if (message.startsWith("SYNCTIME")) {// TODO
-				server.logger.log(LogLevel.DEBUG, "Client (" + ip + ", " + username + ") Requested SyncTime");
-				handler.sendMessageToClient("SYNCTIME:" + System.currentTimeMillis());
-			}
-			process(message);
+			if (!router.route(server.handlers.get(index), message))
+				handOff(message);
+		}
+
+		/**
+		 * Runs {@link #process(String)} with <b>message</b>, on the game thread if
+		 * {@link #gameInbox} is set.
+		 */
+		protected void handOff(final String message) {
+			GameInbox gameInbox = this.gameInbox;
+			if (gameInbox == null)
+				process(message);
+			else
+				gameInbox.post(new Runnable() {
+					public void run() {
+						process(message);
+					}
+				});
+		}
+
+		/**
+		 * @param gameInbox
+		 *            See {@link #gameInbox}, or <b>null</b> to process messages as
+		 *            soon as they arrive.
+		 */
+		public void setGameInbox(GameInbox gameInbox) {
+			this.gameInbox = gameInbox;
+		}
+
+		/**
+		 * @return {@link #gameInbox}.
+		 */
+		public GameInbox getGameInbox() {
+			return gameInbox;
 		}
 	}
 
@@ -0,0 +1,284 @@
+package com.github.vegeto079.ngcommontools.networking;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+
+/**
+ * A directory shared by several {@link Server} nodes (separate processes on
+ * this host, or on several hosts through a shared drive), so they can hand
+ * connected {@link Client}s to each other.<br>
+ * <br>
+ * Each node writes a <i>.node</i> file with where it can be reached and how many
+ * {@link Client}s it has, refreshed by {@link #register(String, String, int, int)}
+ * every so often. When a {@link Client} is moved, its session (name, messages
+ * not yet sent to it and {@link Server.Handler} attributes) is written to a
+ * <i>.session</i> file under a random token; the node it moves to claims the
+ * file with that token when the {@link Client} reconnects.<br>
+ * <br>
+ * Files are written to a temporary name and renamed into place, so a node never
+ * reads half a file, and a session is claimed by renaming it, so only one node
+ * can ever claim it.
+ *
+ * @author Nathan
+ * @version 1.0: Started tracking version.
+ */
+public class SessionDirectory {
+	/**
+	 * Extension of node files.
+	 */
+	public final static String NODE_EXTENSION = ".node";
+	/**
+	 * Extension of session files.
+	 */
+	public final static String SESSION_EXTENSION = ".session";
+
+	/**
+	 * The shared directory.
+	 */
+	protected final File directory;
+	/**
+	 * How long (in milliseconds) since a node last registered before we consider
+	 * it gone.
+	 */
+	public long nodeTimeout = 5000;
+	/**
+	 * How long (in milliseconds) an unclaimed session is kept before
+	 * {@link #removeExpiredSessions()} deletes it.
+	 */
+	public long sessionTimeout = 60000;
+
+	/**
+	 * Initiates {@link SessionDirectory} on <b>directory</b>, creating it if
+	 * needed.
+	 */
+	public SessionDirectory(File directory) {
+		this.directory = directory;
+		directory.mkdirs();
+	}
+
+	/**
+	 * Writes (or refreshes) the node file of <b>nodeID</b>.
+	 *
+	 * @param host
+	 *            Where {@link Client}s can reach the node.
+	 * @param port
+	 *            The port {@link Client}s connect to.
+	 * @param load
+	 *            How many {@link Client}s the node has.
+	 * @throws IOException
+	 *             If the file couldn't be written.
+	 */
+	public void register(String nodeID, String host, int port, int load) throws IOException {
+		Properties properties = new Properties();
+		properties.setProperty("host", host);
+		properties.setProperty("port", Integer.toString(port));
+		properties.setProperty("load", Integer.toString(load));
+		write(new File(directory, nodeID + NODE_EXTENSION), properties);
+	}
+
+	/**
+	 * Deletes the node file of <b>nodeID</b>, so no more {@link Client}s are sent
+	 * to it.
+	 */
+	public void unregister(String nodeID) {
+		new File(directory, nodeID + NODE_EXTENSION).delete();
+	}
+
+	/**
+	 * @return Every node that has registered within {@link #nodeTimeout}.
+	 */
+	public List<Node> getNodes() {
+		List<Node> nodes = new ArrayList<Node>();
+		File[] files = directory.listFiles();
+		if (files == null)
+			return nodes;
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < files.length; i++) {
+			String fileName = files[i].getName();
+			if (!fileName.endsWith(NODE_EXTENSION) || now - files[i].lastModified() > nodeTimeout)
+				continue;
+			try {
+				Properties properties = read(files[i]);
+				nodes.add(new Node(fileName.substring(0, fileName.length() - NODE_EXTENSION.length()),
+						properties.getProperty("host"), Integer.parseInt(properties.getProperty("port")),
+						Integer.parseInt(properties.getProperty("load"))));
+			} catch (Exception e) {
+				// Being rewritten or removed, skip it this time
+			}
+		}
+		return nodes;
+	}
+
+	/**
+	 * @return The node with the lowest load that isn't <b>excludedID</b>, or
+	 *         <b>null</b> if there are none.
+	 */
+	public Node getLeastLoaded(String excludedID) {
+		List<Node> nodes = getNodes();
+		Node least = null;
+		for (int i = 0; i < nodes.size(); i++)
+			if (!nodes.get(i).id.equals(excludedID) && (least == null || nodes.get(i).load < least.load))
+				least = nodes.get(i);
+		return least;
+	}
+
+	/**
+	 * Saves a session for another node to claim with
+	 * {@link #claimSession(String)}.
+	 *
+	 * @param name
+	 *            The {@link Client}'s username.
+	 * @param queue
+	 *            Messages not yet sent to the {@link Client}, in order.
+	 * @param attributes
+	 *            Anything else the game keeps for the {@link Client}.
+	 * @return The token to claim the session with.
+	 * @throws IOException
+	 *             If the file couldn't be written.
+	 */
+	public String saveSession(String name, List<String> queue, Map<String, String> attributes) throws IOException {
+		String token = UUID.randomUUID().toString().replace("-", "");
+		Properties properties = new Properties();
+		properties.setProperty("name", name == null ? "" : name);
+		properties.setProperty("queue", Integer.toString(queue.size()));
+		for (int i = 0; i < queue.size(); i++)
+			properties.setProperty("queue." + i, queue.get(i));
+		Iterator<Map.Entry<String, String>> entries = attributes.entrySet().iterator();
+		while (entries.hasNext()) {
+			Map.Entry<String, String> entry = entries.next();
+			properties.setProperty("attribute." + entry.getKey(), entry.getValue());
+		}
+		write(new File(directory, token + SESSION_EXTENSION), properties);
+		return token;
+	}
+
+	/**
+	 * Takes the session saved under <b>token</b>. Only one caller ever gets it.
+	 *
+	 * @return The session, or <b>null</b> if there is none (never saved, already
+	 *         claimed or expired).
+	 */
+	public Session claimSession(String token) {
+		if (token.indexOf(File.separatorChar) != -1 || token.indexOf('.') != -1)
+			return null;
+		File file = new File(directory, token + SESSION_EXTENSION);
+		File claimed = new File(directory, token + ".claimed." + UUID.randomUUID());
+		if (!file.renameTo(claimed))
+			return null;
+		try {
+			Properties properties = read(claimed);
+			Session session = new Session(properties.getProperty("name"));
+			int queueSize = Integer.parseInt(properties.getProperty("queue", "0"));
+			for (int i = 0; i < queueSize; i++)
+				session.queue.add(properties.getProperty("queue." + i));
+			Iterator<String> names = properties.stringPropertyNames().iterator();
+			while (names.hasNext()) {
+				String key = names.next();
+				if (key.startsWith("attribute."))
+					session.attributes.put(key.substring(10), properties.getProperty(key));
+			}
+			return session;
+		} catch (Exception e) {
+			return null;
+		} finally {
+			claimed.delete();
+		}
+	}
+
+	/**
+	 * Deletes every session nobody claimed within {@link #sessionTimeout}.
+	 *
+	 * @return How many were deleted.
+	 */
+	public int removeExpiredSessions() {
+		File[] files = directory.listFiles();
+		if (files == null)
+			return 0;
+		int amt = 0;
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < files.length; i++)
+			if (files[i].getName().endsWith(SESSION_EXTENSION) && now - files[i].lastModified() > sessionTimeout
+					&& files[i].delete())
+				amt++;
+		return amt;
+	}
+
+	/**
+	 * @return {@link #directory}.
+	 */
+	public File getDirectory() {
+		return directory;
+	}
+
+	private void write(File file, Properties properties) throws IOException {
+		File temp = new File(directory, file.getName() + ".tmp." + UUID.randomUUID());
+		OutputStream out = new FileOutputStream(temp);
+		try {
+			properties.store(out, null);
+		} finally {
+			out.close();
+		}
+		// Renaming over an existing file fails on some platforms
+		if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+			temp.delete();
+			throw new IOException("Couldn't write " + file);
+		}
+	}
+
+	private static Properties read(File file) throws IOException {
+		Properties properties = new Properties();
+		InputStream in = new FileInputStream(file);
+		try {
+			properties.load(in);
+		} finally {
+			in.close();
+		}
+		return properties;
+	}
+
+	/**
+	 * A {@link Server} node registered in a {@link SessionDirectory}.
+	 */
+	public static class Node {
+		public final String id;
+		public final String host;
+		public final int port;
+		public final int load;
+
+		public Node(String id, String host, int port, int load) {
+			this.id = id;
+			this.host = host;
+			this.port = port;
+			this.load = load;
+		}
+
+		@Override
+		public String toString() {
+			return id + "(" + host + ":" + port + ", " + load + ")";
+		}
+	}
+
+	/**
+	 * A {@link Client}'s session, claimed by {@link #claimSession(String)}.
+	 */
+	public static class Session {
+		public final String name;
+		public final List<String> queue = new ArrayList<String>();
+		public final Map<String, String> attributes = new HashMap<String, String>();
+
+		public Session(String name) {
+			this.name = name;
+		}
+	}
+}
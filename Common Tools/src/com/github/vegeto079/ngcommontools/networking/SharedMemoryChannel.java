@@ -0,0 +1,571 @@
+package com.github.vegeto079.ngcommontools.networking;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A connection between a {@link Client} and a {@link Server} in separate
+ * processes on the same host, through a memory-mapped file instead of a
+ * loopback socket.<br>
+ * <br>
+ * The file holds two ring buffers, one each way, each with a single writer and
+ * a single reader. Lines are written into the ring and made visible to the
+ * other process by moving the ring's <i>tail</i>; the reader moves its
+ * <i>head</i> once it has copied them out. Neither side makes a system call to
+ * send or receive: a waiting reader spins for a moment, then parks for longer
+ * and longer (up to {@link #maxParkNanos}) until something arrives. Messages
+ * are the same lines sent over a socket, read and written through
+ * {@link #openReader()} and {@link #openWriter(boolean)}, so everything else
+ * works the same.<br>
+ * <br>
+ * A {@link Client} creates the file in a directory the {@link Server} watches
+ * (see {@link Client#setSharedMemory(File)} and
+ * {@link Server#openSharedMemory(File)}), and the {@link Server} picks it up with
+ * {@link #accept(File, Set)}. Only one {@link Server} may watch a directory.<br>
+ * <br>
+ * A process can die without closing its channels, so each side writes the
+ * time into the file's header every {@link #BEAT_INTERVAL}. If the other
+ * side's time falls more than {@link #staleTimeout} behind, it is taken to be
+ * gone and the channel is closed, just as if it had closed it.
+ *
+ * @author Nathan
+ * @version 1.0: Started tracking version.
+ * @version 1.01: Heartbeats, so a side that died without closing is noticed.
+ */
+public class SharedMemoryChannel {
+	/**
+	 * Extension of channel files.
+	 */
+	public final static String EXTENSION = ".shm";
+	/**
+	 * Written at the start of every channel file, so other files are never
+	 * mistaken for one.
+	 */
+	private final static int MAGIC = 0x6E67534D;
+	/**
+	 * The channel's file is still being set up.
+	 */
+	public final static int NEW = 0;
+	/**
+	 * The {@link Client} is waiting for a {@link Server} to pick it up.
+	 */
+	public final static int READY = 1;
+	/**
+	 * A {@link Server} picked it up.
+	 */
+	public final static int ACCEPTED = 2;
+	/**
+	 * Either side closed it.
+	 */
+	public final static int CLOSED = 3;
+	/**
+	 * Where {@link #MAGIC}, the status and the ring capacity are.
+	 */
+	private final static int MAGIC_AT = 0, STATUS_AT = 4, CAPACITY_AT = 8;
+	/**
+	 * Size of the file's header, and of each ring's header. Head and tail are a
+	 * cache line apart so the two processes don't fight over one.
+	 */
+	private final static int HEADER = 256, RING_HEADER = 128, TAIL_AT = 64;
+	/**
+	 * Where each side's last heartbeat is, a cache line apart.
+	 */
+	private final static int CLIENT_BEAT_AT = 64, SERVER_BEAT_AT = 128;
+	/**
+	 * How often (in milliseconds) every open channel's heartbeat is written.
+	 */
+	public final static long BEAT_INTERVAL = 500;
+	/**
+	 * How long (in milliseconds) a file's {@link Client} heartbeat may be behind
+	 * before {@link #accept(File, Set)} deletes it.
+	 */
+	private final static long STALE_FILE_TIMEOUT = BEAT_INTERVAL * 10;
+
+	/**
+	 * Every channel not yet closed, whose heartbeats {@link #beater} writes.
+	 */
+	private final static List<SharedMemoryChannel> open = new ArrayList<SharedMemoryChannel>();
+	/**
+	 * Writes the heartbeats of {@link #open}, or <b>null</b> if none are open.
+	 */
+	private static Thread beater = null;
+
+	/**
+	 * Written then read by {@link #fence()}.
+	 */
+	private static volatile int fence = 0;
+
+	/**
+	 * The channel's file.
+	 */
+	protected final File file;
+	/**
+	 * The whole of {@link #file}, mapped.
+	 */
+	protected final MappedByteBuffer buffer;
+	/**
+	 * What we read from.
+	 */
+	protected final Ring in;
+	/**
+	 * What we write to.
+	 */
+	protected final Ring out;
+	/**
+	 * Whether or not we created {@link #file} (we are the {@link Client}).
+	 */
+	protected final boolean creator;
+	/**
+	 * How long (in milliseconds) a read waits for something to arrive before
+	 * throwing a {@link SocketTimeoutException}, or 0 to wait forever.
+	 */
+	protected volatile int timeout = 0;
+	/**
+	 * How many times a waiting reader or writer checks again straight away
+	 * before it starts parking.
+	 */
+	public int spinTries = 2000;
+	/**
+	 * The longest (in nanoseconds) a waiting reader or writer parks before
+	 * checking again.
+	 */
+	public long maxParkNanos = 1000000;
+	/**
+	 * How long (in milliseconds) the other side's heartbeat may be behind before
+	 * it is taken to be gone.
+	 */
+	public long staleTimeout = 5000;
+
+	private SharedMemoryChannel(File file, MappedByteBuffer buffer, boolean creator) {
+		this.file = file;
+		this.buffer = buffer;
+		this.creator = creator;
+		int capacity = buffer.getInt(CAPACITY_AT);
+		Ring toServer = new Ring(buffer, HEADER, capacity);
+		Ring toClient = new Ring(buffer, HEADER + RING_HEADER + capacity, capacity);
+		in = creator ? toClient : toServer;
+		out = creator ? toServer : toClient;
+		beat();
+		synchronized (open) {
+			open.add(this);
+			if (beater == null) {
+				beater = new Thread(new Runnable() {
+					public void run() {
+						beatAll();
+					}
+				}, "SharedMemoryChannel heartbeat");
+				beater.setDaemon(true);
+				beater.start();
+			}
+		}
+	}
+
+	/**
+	 * Creates a new channel file in <b>directory</b> for a {@link Server}
+	 * watching it to pick up. Called by the {@link Client}.
+	 *
+	 * @param capacity
+	 *            Bytes each ring holds, rounded up to a power of two.
+	 * @throws IOException
+	 *             If the file couldn't be created.
+	 */
+	public static SharedMemoryChannel create(File directory, int capacity) throws IOException {
+		directory.mkdirs();
+		int size = 64;
+		while (size < capacity)
+			size *= 2;
+		File file = new File(directory, UUID.randomUUID().toString().replace("-", "") + EXTENSION);
+		MappedByteBuffer buffer = map(file, HEADER + 2 * (RING_HEADER + size));
+		buffer.putInt(MAGIC_AT, MAGIC);
+		buffer.putInt(CAPACITY_AT, size);
+		buffer.putLong(CLIENT_BEAT_AT, System.currentTimeMillis());
+		fence();
+		buffer.putInt(STATUS_AT, READY);
+		return new SharedMemoryChannel(file, buffer, true);
+	}
+
+	/**
+	 * Picks up every channel file in <b>directory</b> that is waiting for a
+	 * {@link Server}, and deletes those that were closed or whose {@link Client}
+	 * is gone. Called by the {@link Server}.
+	 *
+	 * @param known
+	 *            Names of files already picked up, which are skipped. Picked up
+	 *            files are added to it.
+	 * @return The channels picked up, if any.
+	 */
+	public static List<SharedMemoryChannel> accept(File directory, Set<String> known) {
+		List<SharedMemoryChannel> accepted = new ArrayList<SharedMemoryChannel>();
+		File[] files = directory.listFiles();
+		if (files == null)
+			return accepted;
+		for (int i = 0; i < files.length; i++) {
+			String name = files[i].getName();
+			if (!name.endsWith(EXTENSION) || known.contains(name))
+				continue;
+			try {
+				MappedByteBuffer buffer = map(files[i], 0);
+				if (buffer.capacity() < HEADER || buffer.getInt(MAGIC_AT) != MAGIC)
+					continue;
+				int status = buffer.getInt(STATUS_AT);
+				if (status == CLOSED || (status != NEW
+						&& System.currentTimeMillis() - buffer.getLong(CLIENT_BEAT_AT) > STALE_FILE_TIMEOUT))
+					// Closed, or left behind by a Client that died
+					files[i].delete();
+				else if (status == READY) {
+					fence();
+					SharedMemoryChannel channel = new SharedMemoryChannel(files[i], buffer, false);
+					channel.setStatus(ACCEPTED);
+					known.add(name);
+					accepted.add(channel);
+				}
+			} catch (Exception e) {
+				// Still being created, or already gone
+			}
+		}
+		return accepted;
+	}
+
+	/**
+	 * Maps <b>file</b>, making it <b>size</b> bytes first if that isn't 0.
+	 */
+	private static MappedByteBuffer map(File file, long size) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			if (size > 0)
+				raf.setLength(size);
+			// The mapping stays valid after the file is closed
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Run by {@link #beater}: writes the heartbeat of every channel in
+	 * {@link #open} each {@link #BEAT_INTERVAL}, until there are none.
+	 */
+	private static void beatAll() {
+		while (true) {
+			List<SharedMemoryChannel> channels;
+			synchronized (open) {
+				if (open.isEmpty()) {
+					beater = null;
+					return;
+				}
+				channels = new ArrayList<SharedMemoryChannel>(open);
+			}
+			for (int i = 0; i < channels.size(); i++)
+				channels.get(i).beat();
+			try {
+				Thread.sleep(BEAT_INTERVAL);
+			} catch (InterruptedException e) {
+			}
+		}
+	}
+
+	/**
+	 * Writes our heartbeat.
+	 */
+	private void beat() {
+		buffer.putLong(creator ? CLIENT_BEAT_AT : SERVER_BEAT_AT, System.currentTimeMillis());
+	}
+
+	/**
+	 * @return Whether or not the other side's heartbeat is more than
+	 *         {@link #staleTimeout} behind. A {@link Server} that hasn't picked us
+	 *         up yet has none, and is never stale.
+	 */
+	public boolean isPeerStale() {
+		long beat = buffer.getLong(creator ? SERVER_BEAT_AT : CLIENT_BEAT_AT);
+		return beat != 0 && System.currentTimeMillis() - beat > staleTimeout;
+	}
+
+	/**
+	 * Makes sure everything written to mapped memory before this is visible to the
+	 * other process before anything written after it, and that nothing read after
+	 * it is read early. Mapped memory has no ordering of its own, so this leans on
+	 * a volatile write followed by a volatile read, which the JVM may not reorder
+	 * anything across.
+	 */
+	private static int fence() {
+		fence = 1;
+		return fence;
+	}
+
+	/**
+	 * @return A reader of the lines the other side sends.
+	 */
+	public BufferedReader openReader() throws IOException {
+		return new BufferedReader(new InputStreamReader(new RingInputStream(), "UTF-8"));
+	}
+
+	/**
+	 * @param autoFlush
+	 *            Whether or not every line goes out as soon as it is written.
+	 * @return A writer to send lines to the other side with. Each flush (or
+	 *         filled buffer) goes out as one write to the ring.
+	 */
+	public PrintWriter openWriter(boolean autoFlush) throws IOException {
+		return new PrintWriter(new BufferedWriter(new OutputStreamWriter(new RingOutputStream(), "UTF-8")),
+				autoFlush);
+	}
+
+	/**
+	 * Closes this channel, so the other side's reads end. The {@link Client}'s
+	 * file is deleted.
+	 */
+	public void close() {
+		synchronized (open) {
+			open.remove(this);
+		}
+		if (getStatus() != CLOSED)
+			setStatus(CLOSED);
+		if (creator)
+			file.delete();
+	}
+
+	/**
+	 * @return Whether or not either side closed this channel.
+	 */
+	public boolean isClosed() {
+		return getStatus() == CLOSED;
+	}
+
+	/**
+	 * @return {@link #NEW}, {@link #READY}, {@link #ACCEPTED} or {@link #CLOSED}.
+	 */
+	public int getStatus() {
+		int status = buffer.getInt(STATUS_AT);
+		fence();
+		return status;
+	}
+
+	private void setStatus(int status) {
+		fence();
+		buffer.putInt(STATUS_AT, status);
+	}
+
+	/**
+	 * @param timeout
+	 *            See {@link #timeout}.
+	 */
+	public void setTimeout(int timeout) {
+		this.timeout = timeout;
+	}
+
+	/**
+	 * @return {@link #file}.
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return The name of {@link #file} without {@link #EXTENSION}, which tells
+	 *         this channel apart from others in the directory.
+	 */
+	public String getName() {
+		String name = file.getName();
+		return name.substring(0, name.length() - EXTENSION.length());
+	}
+
+	/**
+	 * Closes this channel if {@link #isPeerStale()}, checked only once a waiting
+	 * reader or writer has stopped spinning (after <b>tries</b> tries).
+	 *
+	 * @return Whether or not this channel is closed.
+	 */
+	private boolean closeIfStale(int tries) {
+		if (isClosed())
+			return true;
+		if (tries < spinTries || !isPeerStale())
+			return false;
+		close();
+		return true;
+	}
+
+	/**
+	 * Waits a little, longer the more <b>tries</b> there have been.
+	 */
+	private void idle(int tries) {
+		if (tries < spinTries)
+			return;
+		if (tries < spinTries + 100) {
+			Thread.yield();
+			return;
+		}
+		LockSupport.parkNanos(Math.min(maxParkNanos, 1000L << Math.min(20, (tries - spinTries - 100) / 10)));
+	}
+
+	/**
+	 * One direction of a {@link SharedMemoryChannel}: a ring of bytes with a
+	 * single writer and a single reader. {@link #head} and {@link #tail} only
+	 * ever grow; their difference is how much is waiting.
+	 */
+	protected static class Ring {
+		protected final ByteBuffer data;
+		protected final MappedByteBuffer buffer;
+		protected final int headAt;
+		protected final int tailAt;
+		protected final int capacity;
+
+		protected Ring(MappedByteBuffer buffer, int at, int capacity) {
+			this.buffer = buffer;
+			this.headAt = at;
+			this.tailAt = at + TAIL_AT;
+			this.capacity = capacity;
+			ByteBuffer data = buffer.duplicate();
+			data.position(at + RING_HEADER);
+			data.limit(at + RING_HEADER + capacity);
+			this.data = data.slice();
+		}
+
+		protected long head() {
+			return buffer.getLong(headAt);
+		}
+
+		protected long tail() {
+			return buffer.getLong(tailAt);
+		}
+
+		/**
+		 * Writes as much of <b>b</b> as fits.
+		 *
+		 * @return How much was written.
+		 */
+		protected int write(byte[] b, int off, int len) {
+			long tail = tail();
+			int free = capacity - (int) (tail - head());
+			int amt = Math.min(len, free);
+			if (amt == 0)
+				return 0;
+			fence();
+			copy(b, off, amt, (int) (tail & (capacity - 1)), true);
+			fence();
+			buffer.putLong(tailAt, tail + amt);
+			return amt;
+		}
+
+		/**
+		 * Reads as much as is waiting, up to <b>len</b>.
+		 *
+		 * @return How much was read.
+		 */
+		protected int read(byte[] b, int off, int len) {
+			long head = head();
+			int waiting = (int) (tail() - head);
+			int amt = Math.min(len, waiting);
+			if (amt == 0)
+				return 0;
+			fence();
+			copy(b, off, amt, (int) (head & (capacity - 1)), false);
+			fence();
+			buffer.putLong(headAt, head + amt);
+			return amt;
+		}
+
+		private void copy(byte[] b, int off, int len, int at, boolean write) {
+			int first = Math.min(len, capacity - at);
+			ByteBuffer data = this.data.duplicate();
+			data.position(at);
+			if (write) {
+				data.put(b, off, first);
+				data.position(0);
+				data.put(b, off + first, len - first);
+			} else {
+				data.get(b, off, first);
+				data.position(0);
+				data.get(b, off + first, len - first);
+			}
+		}
+	}
+
+	/**
+	 * Reads {@link #in}, waiting for something to arrive.
+	 */
+	private class RingInputStream extends InputStream {
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			long start = timeout > 0 ? System.currentTimeMillis() : 0;
+			for (int tries = 0;; tries++) {
+				int amt = in.read(b, off, len);
+				if (amt > 0)
+					return amt;
+				if (closeIfStale(tries)) {
+					// Anything sent just before closing is still read
+					amt = in.read(b, off, len);
+					return amt > 0 ? amt : -1;
+				}
+				if (timeout > 0 && System.currentTimeMillis() - start >= timeout)
+					throw new SocketTimeoutException("Nothing arrived in " + timeout + "ms");
+				idle(tries);
+			}
+		}
+
+		@Override
+		public int available() {
+			return (int) (in.tail() - in.head());
+		}
+
+		@Override
+		public void close() {
+			SharedMemoryChannel.this.close();
+		}
+	}
+
+	/**
+	 * Writes to {@link #out}, waiting for room if it is full.
+	 */
+	private class RingOutputStream extends OutputStream {
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			for (int tries = 0; len > 0; tries++) {
+				if (closeIfStale(tries))
+					throw new IOException("SharedMemoryChannel closed");
+				int amt = out.write(b, off, len);
+				if (amt > 0) {
+					off += amt;
+					len -= amt;
+					tries = 0;
+				} else
+					idle(tries);
+			}
+		}
+
+		@Override
+		public void close() {
+			SharedMemoryChannel.this.close();
+		}
+	}
+}
@@ -0,0 +1,281 @@
+package com.github.vegeto079.ngcommontools.networking;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import com.github.vegeto079.ngcommontools.main.Logger.LogLevel;
+
+/**
+ * Brings {@link Client}s that join mid-match up to date, without the game
+ * having to pause or send its state by hand.<br>
+ * <br>
+ * The game sends every change to its state through {@link #publish(String)}
+ * (instead of {@link Server#sendMessageToAllClients(String)}), right after
+ * applying it, and calls {@link #update()} once per tick. When a {@link Client}
+ * joins ({@link #join(Server.Handler)}, done by the {@link Server} when it
+ * connects):
+ * <ol>
+ * <li>At the end of the next {@link #publish(String)} or {@link #update()}, its
+ * {@link SnapshotSource} captures the state as of the last published change
+ * <i>T</i>. This runs on the game's thread, so it must be cheap, such as
+ * handing over an immutable or copy-on-write version of the state.</li>
+ * <li>The capture is serialized on a thread of its own and sent as the
+ * {@link BulkTransfer} payload <i>SNAPSHOT:T</i>. Changes published meanwhile
+ * are held back from that {@link Client} and buffered.</li>
+ * <li>The {@link Client} loads it (see
+ * {@link Client.ClientMessageHandler#onSnapshot(Client, long, java.io.File)})
+ * and replies <i>SNAPSHOT_LOADED:T</i>.</li>
+ * <li>Every change published after <i>T</i> is sent, in order, and the
+ * {@link Client} is live: it gets changes like everyone else from then on.</li>
+ * </ol>
+ * A {@link Client} that falls more than {@link #maxBufferedDeltas} changes
+ * behind while loading starts over with a newer snapshot.
+ *
+ * @author Nathan
+ * @version 1.0: Started tracking version.
+ */
+public class SnapshotBootstrap {
+	/**
+	 * Name of the {@link BulkTransfer} payload holding a snapshot, followed by its
+	 * tick.
+	 */
+	public final static String SNAPSHOT_PREFIX = "SNAPSHOT:";
+	/**
+	 * Starts the message a {@link Client} replies with once it has loaded a
+	 * snapshot, followed by its tick.
+	 */
+	public final static String LOADED_PREFIX = "SNAPSHOT_LOADED:";
+
+	/**
+	 * The {@link Server} whose {@link Client}s we bring up to date.
+	 */
+	protected final Server server;
+	/**
+	 * Captures and serializes the game's state.
+	 */
+	protected final SnapshotSource source;
+	/**
+	 * The most changes we hold back for a single joining {@link Client}.
+	 */
+	public int maxBufferedDeltas = 10000;
+	/**
+	 * How many changes have been published. A snapshot at tick <i>T</i> includes
+	 * the first <i>T</i>.
+	 */
+	protected long tick = 0;
+	/**
+	 * Changes published since the oldest snapshot still being loaded, oldest
+	 * first. The first is change number {@link #bufferStart} + 1.
+	 */
+	protected final LinkedList<String> buffer = new LinkedList<String>();
+	/**
+	 * The tick before the first change in {@link #buffer}.
+	 */
+	protected long bufferStart = 0;
+	/**
+	 * {@link Client}s still being brought up to date, and the tick of their
+	 * snapshot (-1 until it has been captured).
+	 */
+	protected final Map<Server.Handler, Long> joining = new LinkedHashMap<Server.Handler, Long>();
+
+	/**
+	 * Initiates {@link SnapshotBootstrap}.
+	 *
+	 * @param server
+	 *            See {@link #server}. Needs an open {@link BulkTransfer} (see
+	 *            {@link Server#openBulkTransfer(int)}).
+	 * @param source
+	 *            See {@link #source}.
+	 */
+	public SnapshotBootstrap(Server server, SnapshotSource source) {
+		this.server = server;
+		this.source = source;
+	}
+
+	/**
+	 * Starts bringing <b>handler</b>'s {@link Client} up to date. Its snapshot is
+	 * captured at the next {@link #publish(String)} or {@link #update()}.
+	 */
+	public synchronized void join(Server.Handler handler) {
+		joining.put(handler, -1L);
+	}
+
+	/**
+	 * Sends <b>delta</b>, a change the game just applied, to every live
+	 * {@link Client}, and keeps it for any still joining. Call from the game's
+	 * thread.
+	 */
+	public synchronized void publish(String delta) {
+		tick++;
+		List<Server.Handler> handlers = server.getHandlers();
+		for (int i = 0; i < handlers.size(); i++) {
+			Server.Handler handler = handlers.get(i);
+			if (handler != null && !joining.containsKey(handler))
+				handler.sendMessageToClient(delta);
+		}
+		if (joining.isEmpty())
+			bufferStart = tick;
+		else {
+			if (buffer.isEmpty())
+				bufferStart = tick - 1;
+			buffer.add(delta);
+			if (buffer.size() > maxBufferedDeltas)
+				restartOldest();
+		}
+		// The game's state already includes delta, so this is tick T
+		capture();
+	}
+
+	/**
+	 * Captures snapshots for every {@link Client} that joined since the last call.
+	 * Call once per tick from the game's thread.
+	 */
+	public synchronized void update() {
+		capture();
+	}
+
+	/**
+	 * Runs when <b>handler</b>'s {@link Client} says it loaded the snapshot at
+	 * <b>snapshotTick</b>: sends everything published since, and makes it live.
+	 */
+	public synchronized void loaded(Server.Handler handler, long snapshotTick) {
+		Long expected = joining.get(handler);
+		if (expected == null || expected != snapshotTick) {
+			server.logger.log(LogLevel.DEBUG, "Ignoring old snapshot load (" + snapshotTick + ") from "
+					+ handler.getTheirName());
+			return;
+		}
+		int amt = 0;
+		long at = bufferStart;
+		for (Iterator<String> deltas = buffer.iterator(); deltas.hasNext();) {
+			String delta = deltas.next();
+			if (++at > snapshotTick) {
+				handler.sendMessageToClient(delta);
+				amt++;
+			}
+		}
+		joining.remove(handler);
+		trim();
+		server.logger.log(LogLevel.NORMAL, handler.getTheirName() + " is live after snapshot " + snapshotTick + " and "
+				+ amt + " changes.");
+	}
+
+	/**
+	 * Forgets <b>handler</b>, such as when its {@link Client} leaves.
+	 */
+	public synchronized void remove(Server.Handler handler) {
+		if (joining.remove(handler) != null)
+			trim();
+	}
+
+	/**
+	 * @return How many {@link Client}s are still being brought up to date.
+	 */
+	public synchronized int getJoiningAmt() {
+		return joining.size();
+	}
+
+	/**
+	 * @return {@link #tick}.
+	 */
+	public synchronized long getTick() {
+		return tick;
+	}
+
+	/**
+	 * Captures a snapshot for everyone in {@link #joining} that needs one, and
+	 * starts serializing and sending it.
+	 */
+	private void capture() {
+		List<Server.Handler> waiting = null;
+		for (Map.Entry<Server.Handler, Long> entry : joining.entrySet())
+			if (entry.getValue() == -1) {
+				if (waiting == null)
+					waiting = new ArrayList<Server.Handler>();
+				waiting.add(entry.getKey());
+				entry.setValue(tick);
+			}
+		if (waiting == null)
+			return;
+		if (buffer.isEmpty())
+			bufferStart = tick;
+		final Object state = source.capture();
+		final long snapshotTick = tick;
+		final List<Server.Handler> handlers = waiting;
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				byte[] data;
+				try {
+					data = source.serialize(state);
+				} catch (Exception e) {
+					server.logger.log(LogLevel.ERROR, "Couldn't serialize snapshot " + snapshotTick + ": " + e);
+					return;
+				}
+				for (int i = 0; i < handlers.size(); i++)
+					server.sendDataToClient(SNAPSHOT_PREFIX + snapshotTick, data, handlers.get(i), null);
+			}
+		}, "SnapshotBootstrap");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Starts the {@link Client} with the oldest snapshot over, as
+	 * {@link #buffer} is full.
+	 */
+	private void restartOldest() {
+		Server.Handler oldest = null;
+		long oldestTick = Long.MAX_VALUE;
+		for (Map.Entry<Server.Handler, Long> entry : joining.entrySet())
+			if (entry.getValue() != -1 && entry.getValue() < oldestTick) {
+				oldest = entry.getKey();
+				oldestTick = entry.getValue();
+			}
+		if (oldest == null) {
+			trim();
+			return;
+		}
+		server.logger.log(LogLevel.WARNING, oldest.getTheirName() + " fell too far behind loading snapshot "
+				+ oldestTick + ", sending a newer one.");
+		joining.put(oldest, -1L);
+		trim();
+	}
+
+	/**
+	 * Drops changes from {@link #buffer} that no one joining needs any more.
+	 */
+	private void trim() {
+		long needed = tick;
+		for (Long snapshotTick : joining.values())
+			if (snapshotTick != -1 && snapshotTick < needed)
+				needed = snapshotTick;
+		while (bufferStart < needed && !buffer.isEmpty()) {
+			buffer.removeFirst();
+			bufferStart++;
+		}
+		if (buffer.isEmpty())
+			bufferStart = tick;
+	}
+
+	/**
+	 * Captures and serializes the game's state for {@link SnapshotBootstrap}.
+	 */
+	public abstract static class SnapshotSource {
+		/**
+		 * @return The game's state right now, which must not change afterwards (an
+		 *         immutable or copy-on-write version, or a cheap copy). Runs on the
+		 *         game's thread.
+		 */
+		public abstract Object capture();
+
+		/**
+		 * @return <b>state</b> (from {@link #capture()}) as bytes for the
+		 *         {@link Client} to load. Runs on a thread of its own.
+		 */
+		public abstract byte[] serialize(Object state) throws Exception;
+	}
+}
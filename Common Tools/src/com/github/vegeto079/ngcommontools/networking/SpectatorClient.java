@@ -0,0 +1,106 @@
+package com.github.vegeto079.ngcommontools.networking;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import com.github.vegeto079.ngcommontools.main.Logger;
+import com.github.vegeto079.ngcommontools.main.Logger.LogLevel;
+import com.github.vegeto079.ngcommontools.networking.Client.ClientMessageHandler;
+
+/**
+ * Watches a game through a {@link SpectatorServer}: every frame it sends is
+ * handed to {@link ClientMessageHandler#process(String)}. Unlike a
+ * {@link Client}, nothing is ever sent back.
+ *
+ * @author Nathan
+ * @version 1.0: Started tracking version.
+ */
+public class SpectatorClient {
+	/**
+	 * Custom {@link ClientMessageHandler} given every frame.
+	 */
+	protected ClientMessageHandler messageHandler = null;
+	/**
+	 * Custom {@link Logger} used to display messages with this
+	 * {@link SpectatorClient}.
+	 */
+	protected Logger logger = null;
+	/**
+	 * Our connection to the {@link SpectatorServer}.
+	 */
+	protected Socket socket = null;
+	/**
+	 * Reads frames from {@link #socket}.
+	 */
+	protected Thread thread = null;
+	/**
+	 * Whether or not we are watching.
+	 */
+	protected volatile boolean connected = false;
+
+	/**
+	 * Initiates {@link SpectatorClient}.
+	 *
+	 * @param messageHandler
+	 *            See {@link #messageHandler}
+	 * @param logger
+	 *            See {@link #logger}
+	 */
+	public SpectatorClient(ClientMessageHandler messageHandler, Logger logger) {
+		this.messageHandler = messageHandler;
+		this.logger = logger;
+	}
+
+	/**
+	 * Connects to a {@link SpectatorServer} and starts watching.
+	 *
+	 * @throws IOException
+	 *             If we couldn't connect.
+	 */
+	public void connect(String ip, int port) throws IOException {
+		socket = new Socket();
+		socket.connect(new InetSocketAddress(ip, port));
+		final BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+		connected = true;
+		thread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					String line;
+					while (connected && (line = in.readLine()) != null)
+						messageHandler.process(line);
+				} catch (IOException e) {
+					if (connected)
+						logger.log(LogLevel.WARNING, "Lost connection to SpectatorServer: " + e.getMessage());
+				}
+				disconnect();
+			}
+		}, "SpectatorClient");
+		thread.setDaemon(true);
+		thread.start();
+		logger.log(LogLevel.NORMAL, "Watching " + ip + ":" + port + ".");
+	}
+
+	/**
+	 * Stops watching.
+	 */
+	public void disconnect() {
+		if (!connected)
+			return;
+		connected = false;
+		try {
+			socket.close();
+		} catch (IOException e) {
+		}
+		logger.log(LogLevel.NORMAL, "Stopped watching.");
+	}
+
+	/**
+	 * @return Whether or not we are watching.
+	 */
+	public boolean isConnected() {
+		return connected;
+	}
+}
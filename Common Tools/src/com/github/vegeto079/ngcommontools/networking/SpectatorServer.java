@@ -0,0 +1,373 @@
+package com.github.vegeto079.ngcommontools.networking;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import com.github.vegeto079.ngcommontools.main.Logger;
+import com.github.vegeto079.ngcommontools.main.Logger.LogLevel;
+
+/**
+ * Lets any number of spectators watch a game, without each being a full
+ * {@link Client} on a {@link Server.Handler}.<br>
+ * <br>
+ * The game hands its state to {@link #publish(String, boolean)} as it goes. It
+ * is encoded once and held for {@link #delay} milliseconds (so spectators can't
+ * be used to cheat), then the same bytes are sent to every spectator from a
+ * single thread using non-blocking sockets. Spectators only receive; they
+ * connect with a {@link SpectatorClient} (or anything that reads lines from a
+ * socket).<br>
+ * <br>
+ * Nothing a spectator does can slow the game down: {@link #publish(String,
+ * boolean)} never touches a socket, and a spectator that can't keep up is
+ * simply dropped once it falls more than {@link #bufferSize} frames behind.
+ * New spectators start at the latest <i>keyframe</i> (a frame containing the
+ * full state) so they don't need anything from before they joined.
+ *
+ * @author Nathan
+ * @version 1.0: Started tracking version.
+ */
+public class SpectatorServer {
+	/**
+	 * Custom {@link Logger} used to display messages with this
+	 * {@link SpectatorServer}.
+	 */
+	protected Logger logger = null;
+	/**
+	 * The port spectators connect to.
+	 */
+	protected int port = -1;
+	/**
+	 * How long (in milliseconds) each frame is held before spectators get it.
+	 */
+	protected volatile long delay = 0;
+	/**
+	 * How many sent frames are kept for spectators that are behind. Also the most
+	 * frames that can be waiting out {@link #delay}; older ones are dropped.
+	 */
+	protected final int bufferSize;
+	/**
+	 * Frames from {@link #publish(String, boolean)} still waiting out
+	 * {@link #delay}, oldest first.
+	 */
+	protected final LinkedList<Frame> pending = new LinkedList<Frame>();
+	/**
+	 * Frames that have been released to spectators, by sequence number (
+	 * <i>sequence % bufferSize</i>). Only used by {@link #thread}.
+	 */
+	protected final Frame[] ring;
+	/**
+	 * Sequence number the next released frame gets.
+	 */
+	protected long ringHead = 0;
+	/**
+	 * Sequence number of the latest released keyframe, or -1 if none.
+	 */
+	protected long lastKeyframe = -1;
+	/**
+	 * Everyone currently watching. Only used by {@link #thread}.
+	 */
+	protected List<Spectator> spectators = new ArrayList<Spectator>();
+	/**
+	 * How many spectators are currently watching.
+	 */
+	protected volatile int spectatorAmt = 0;
+	/**
+	 * Accepts spectators.
+	 */
+	protected ServerSocketChannel listener = null;
+	/**
+	 * Tells {@link #thread} about new spectators and anything they sent.
+	 */
+	protected Selector selector = null;
+	/**
+	 * Runs {@link #fanOut()}.
+	 */
+	protected Thread thread = null;
+	/**
+	 * Whether or not we should stop.
+	 */
+	protected volatile boolean stop = true;
+	/**
+	 * Longest time (in milliseconds) {@link #thread} waits before checking for
+	 * frames to release.
+	 */
+	public long tickDuration = 5;
+
+	/**
+	 * Initiates {@link SpectatorServer}. Nothing is opened until {@link #open()}.
+	 *
+	 * @param logger
+	 *            See {@link #logger}
+	 * @param port
+	 *            See {@link #port}
+	 * @param delay
+	 *            See {@link #delay}
+	 * @param bufferSize
+	 *            See {@link #bufferSize}
+	 */
+	public SpectatorServer(Logger logger, int port, long delay, int bufferSize) {
+		if (bufferSize < 1)
+			throw new IllegalArgumentException("bufferSize must be >=1.");
+		this.logger = logger;
+		this.port = port;
+		this.delay = delay;
+		this.bufferSize = bufferSize;
+		this.ring = new Frame[bufferSize];
+	}
+
+	/**
+	 * Hands a frame of state to every spectator, once {@link #delay} has passed.
+	 * Cheap and never blocks, so it can be called straight from the game.
+	 *
+	 * @param message
+	 *            The frame, sent to spectators as a single line.
+	 * @param keyframe
+	 *            Whether or not <b>message</b> contains the full state, so new
+	 *            spectators can start watching from it.
+	 */
+	public void publish(String message, boolean keyframe) {
+		byte[] bytes;
+		try {
+			bytes = (message + "\n").getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			// UTF-8 is always supported
+			throw new RuntimeException(e);
+		}
+		Frame frame = new Frame(ByteBuffer.wrap(bytes).asReadOnlyBuffer(), System.currentTimeMillis() + delay,
+				keyframe);
+		synchronized (pending) {
+			pending.add(frame);
+			if (pending.size() > bufferSize)
+				pending.removeFirst();
+		}
+		if (delay <= 0 && selector != null)
+			selector.wakeup();
+	}
+
+	/**
+	 * Opens {@link #port} and starts serving spectators.
+	 *
+	 * @throws IOException
+	 *             If the port could not be opened.
+	 */
+	public void open() throws IOException {
+		if (!stop) {
+			logger.log(LogLevel.WARNING, "We tried to open the SpectatorServer when it was already open..");
+			return;
+		}
+		selector = Selector.open();
+		listener = ServerSocketChannel.open();
+		listener.socket().bind(new InetSocketAddress(port), 100);
+		listener.configureBlocking(false);
+		listener.register(selector, SelectionKey.OP_ACCEPT);
+		stop = false;
+		thread = new Thread(new Runnable() {
+			public void run() {
+				fanOut();
+			}
+		}, "SpectatorServer");
+		thread.setDaemon(true);
+		thread.start();
+		logger.log(LogLevel.NORMAL, "SpectatorServer listening on port " + port + ".");
+	}
+
+	/**
+	 * Disconnects every spectator and stops listening.
+	 */
+	public void close() {
+		logger.log(LogLevel.NORMAL, "Stopping SpectatorServer.");
+		stop = true;
+		if (selector != null)
+			selector.wakeup();
+	}
+
+	/**
+	 * @return How many spectators are currently watching.
+	 */
+	public int getSpectatorAmt() {
+		return spectatorAmt;
+	}
+
+	/**
+	 * @param delay
+	 *            See {@link #delay}. Only affects frames published afterwards.
+	 */
+	public void setDelay(long delay) {
+		this.delay = delay;
+	}
+
+	/**
+	 * @return {@link #port}.
+	 */
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * Run by {@link #thread} until {@link #stop}: accepts spectators, releases
+	 * frames whose {@link #delay} is over and sends them on.
+	 */
+	private void fanOut() {
+		ByteBuffer scratch = ByteBuffer.allocate(256);
+		while (!stop) {
+			try {
+				selector.select(tickDuration);
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid())
+						continue;
+					if (key.isAcceptable())
+						accept();
+					else if (key.isReadable()) {
+						// Spectators have nothing to say, we only look for them leaving
+						scratch.clear();
+						try {
+							if (((SocketChannel) key.channel()).read(scratch) == -1)
+								drop((Spectator) key.attachment(), "left");
+						} catch (IOException e) {
+							drop((Spectator) key.attachment(), e.getMessage());
+						}
+					} else if (key.isWritable())
+						send((Spectator) key.attachment());
+				}
+				release();
+				for (int i = spectators.size() - 1; i >= 0; i--) {
+					Spectator spectator = spectators.get(i);
+					if (spectator.current == null && spectator.next >= ringHead)
+						continue;
+					send(spectator);
+				}
+			} catch (Exception e) {
+				if (!stop)
+					e.printStackTrace();
+			}
+		}
+		for (int i = spectators.size() - 1; i >= 0; i--)
+			drop(spectators.get(i), "server closing");
+		try {
+			listener.close();
+			selector.close();
+		} catch (IOException e) {
+		}
+		logger.log(LogLevel.DEBUG, "SpectatorServer stopped.");
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel;
+		while ((channel = listener.accept()) != null) {
+			channel.configureBlocking(false);
+			Spectator spectator = new Spectator(channel);
+			spectator.next = lastKeyframe != -1 && lastKeyframe >= ringHead - bufferSize ? lastKeyframe : ringHead;
+			spectator.key = channel.register(selector, SelectionKey.OP_READ, spectator);
+			spectators.add(spectator);
+			spectatorAmt = spectators.size();
+			logger.log(LogLevel.DEBUG, "Spectator joined (" + spectatorAmt + " watching).");
+		}
+	}
+
+	/**
+	 * Moves every frame that has waited out {@link #delay} from {@link #pending}
+	 * to {@link #ring}.
+	 */
+	private void release() {
+		long now = System.currentTimeMillis();
+		synchronized (pending) {
+			while (!pending.isEmpty() && pending.getFirst().releaseTime <= now) {
+				Frame frame = pending.removeFirst();
+				if (frame.keyframe)
+					lastKeyframe = ringHead;
+				ring[(int) (ringHead % bufferSize)] = frame;
+				ringHead++;
+			}
+		}
+	}
+
+	/**
+	 * Writes as much as <b>spectator</b> can take right now. Waits for the
+	 * socket to be writable again if it can't take everything.
+	 */
+	private void send(Spectator spectator) {
+		try {
+			while (true) {
+				if (spectator.next < ringHead - bufferSize) {
+					drop(spectator, "too far behind");
+					return;
+				}
+				if (spectator.current == null) {
+					if (spectator.next >= ringHead)
+						break;
+					spectator.current = ring[(int) (spectator.next % bufferSize)].data.duplicate();
+				}
+				spectator.channel.write(spectator.current);
+				if (spectator.current.hasRemaining()) {
+					spectator.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					return;
+				}
+				spectator.current = null;
+				spectator.next++;
+			}
+			spectator.key.interestOps(SelectionKey.OP_READ);
+		} catch (IOException e) {
+			drop(spectator, e.getMessage());
+		}
+	}
+
+	private void drop(Spectator spectator, String reason) {
+		if (!spectators.remove(spectator))
+			return;
+		spectatorAmt = spectators.size();
+		spectator.key.cancel();
+		try {
+			spectator.channel.close();
+		} catch (IOException e) {
+		}
+		logger.log(LogLevel.DEBUG, "Dropped spectator (" + reason + "), " + spectatorAmt + " watching.");
+	}
+
+	/**
+	 * A single frame of state, already encoded.
+	 */
+	private static class Frame {
+		private final ByteBuffer data;
+		private final long releaseTime;
+		private final boolean keyframe;
+
+		private Frame(ByteBuffer data, long releaseTime, boolean keyframe) {
+			this.data = data;
+			this.releaseTime = releaseTime;
+			this.keyframe = keyframe;
+		}
+	}
+
+	/**
+	 * A single spectator: its connection, and how far into {@link #ring} it is.
+	 */
+	private static class Spectator {
+		private final SocketChannel channel;
+		private SelectionKey key = null;
+		/**
+		 * Sequence number of the next frame to send.
+		 */
+		private long next = 0;
+		/**
+		 * What's left of the frame being sent, or <b>null</b>.
+		 */
+		private ByteBuffer current = null;
+
+		private Spectator(SocketChannel channel) {
+			this.channel = channel;
+		}
+	}
+}
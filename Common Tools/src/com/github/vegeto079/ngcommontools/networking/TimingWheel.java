@@ -0,0 +1,276 @@
+package com.github.vegeto079.ngcommontools.networking;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hashed timing wheel: keeps track of a very large number of timeouts (for
+ * example, one idle-timeout per connected {@link Client}) where scheduling and
+ * cancelling are O(1), and time only costs work when it actually passes.<br>
+ * <br>
+ * Time is split into ticks of {@link #tickDuration} milliseconds, and every
+ * {@link Timeout} is put in the bucket for the tick it expires on. Each call to
+ * {@link #advance(long)} walks only the buckets of the ticks that passed since
+ * the last call, and runs everything in them that is due, all in one batch.
+ * <br>
+ * <br>
+ * Nothing here runs by itself: whoever owns the wheel calls
+ * {@link #advance(long)} regularly (see {@link Server#clientTimeout}).
+ * Repeating timeouts, as used for heartbeats, can be made with
+ * {@link #scheduleRepeating(TimeoutTask, long)}.
+ *
+ * @author Nathan
+ * @version 1.0: Started tracking version.
+ * @version 1.01: A repeating {@link Timeout} rescheduled by its own task is no
+ *          longer put back in a second time.
+ */
+public class TimingWheel {
+	/**
+	 * Length of a single tick, in milliseconds. Timeouts fire up to one tick late.
+	 */
+	protected final long tickDuration;
+	/**
+	 * The first {@link Timeout} in each bucket, linked to the rest.
+	 */
+	protected final Timeout[] buckets;
+	/**
+	 * Used to find a tick's bucket: <i>tick & mask</i>.
+	 */
+	protected final int mask;
+	/**
+	 * The time that tick 0 started.
+	 */
+	protected final long startTime;
+	/**
+	 * The last tick that has been processed by {@link #advance(long)}.
+	 */
+	protected long tick = 0;
+	/**
+	 * How many {@link Timeout}s are currently waiting.
+	 */
+	protected int size = 0;
+
+	/**
+	 * Initiates {@link TimingWheel}.
+	 *
+	 * @param tickDuration
+	 *            See {@link #tickDuration}.
+	 * @param bucketAmt
+	 *            How many buckets to use, rounded up to a power of two. More
+	 *            buckets means fewer timeouts are looked at each tick.
+	 * @param startTime
+	 *            See {@link #startTime}, usually the current time.
+	 */
+	public TimingWheel(long tickDuration, int bucketAmt, long startTime) {
+		if (tickDuration < 1)
+			throw new IllegalArgumentException("tickDuration must be >=1.");
+		int amt = 1;
+		while (amt < bucketAmt)
+			amt <<= 1;
+		this.tickDuration = tickDuration;
+		this.buckets = new Timeout[amt];
+		this.mask = amt - 1;
+		this.startTime = startTime;
+	}
+
+	/**
+	 * Schedules <b>task</b> to run once, <b>delay</b> milliseconds from the
+	 * current tick.
+	 *
+	 * @return The {@link Timeout}, which can be cancelled.
+	 */
+	public Timeout schedule(TimeoutTask task, long delay) {
+		return schedule(task, delay, 0);
+	}
+
+	/**
+	 * Schedules <b>task</b> to run every <b>period</b> milliseconds, starting
+	 * <b>period</b> milliseconds from the current tick, until cancelled.
+	 *
+	 * @return The {@link Timeout}, which can be cancelled.
+	 */
+	public Timeout scheduleRepeating(TimeoutTask task, long period) {
+		if (period < 1)
+			throw new IllegalArgumentException("period must be >=1.");
+		return schedule(task, period, period);
+	}
+
+	private synchronized Timeout schedule(TimeoutTask task, long delay, long period) {
+		Timeout timeout = new Timeout(task, period);
+		insert(timeout, delay);
+		return timeout;
+	}
+
+	/**
+	 * Puts <b>timeout</b> in the bucket <b>delay</b> milliseconds from now. Must
+	 * be called while holding the lock on this {@link TimingWheel}.
+	 */
+	private void insert(Timeout timeout, long delay) {
+		long ticks = (delay + tickDuration - 1) / tickDuration;
+		timeout.deadline = tick + Math.max(1, ticks);
+		int index = (int) (timeout.deadline & mask);
+		timeout.bucket = index;
+		timeout.prev = null;
+		timeout.next = buckets[index];
+		if (timeout.next != null)
+			timeout.next.prev = timeout;
+		buckets[index] = timeout;
+		size++;
+	}
+
+	/**
+	 * Takes <b>timeout</b> out of its bucket. Must be called while holding the
+	 * lock on this {@link TimingWheel}.
+	 */
+	private void unlink(Timeout timeout) {
+		if (timeout.bucket == -1)
+			return;
+		if (timeout.prev != null)
+			timeout.prev.next = timeout.next;
+		else
+			buckets[timeout.bucket] = timeout.next;
+		if (timeout.next != null)
+			timeout.next.prev = timeout.prev;
+		timeout.prev = null;
+		timeout.next = null;
+		timeout.bucket = -1;
+		size--;
+	}
+
+	/**
+	 * Processes every tick that has passed by <b>now</b>, running all
+	 * {@link Timeout}s that expired (outside of the lock, so they can schedule
+	 * new ones).
+	 *
+	 * @param now
+	 *            The current time.
+	 * @return How many {@link Timeout}s expired.
+	 */
+	public int advance(long now) {
+		List<Timeout> expired = null;
+		synchronized (this) {
+			long target = (now - startTime) / tickDuration;
+			if (target <= tick)
+				return 0;
+			if (target - tick >= buckets.length) {
+				// Went around the whole wheel, just look at everything once
+				for (int i = 0; i < buckets.length; i++)
+					expired = collect(i, target, expired);
+			} else {
+				for (long t = tick + 1; t <= target; t++)
+					expired = collect((int) (t & mask), t, expired);
+			}
+			tick = target;
+		}
+		if (expired == null)
+			return 0;
+		for (int i = 0; i < expired.size(); i++) {
+			Timeout timeout = expired.get(i);
+			if (timeout.cancelled)
+				continue;
+			try {
+				timeout.task.run(timeout);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+			if (timeout.period > 0)
+				synchronized (this) {
+					// Not if its task already rescheduled (or cancelled) it
+					if (!timeout.cancelled && timeout.bucket == -1)
+						insert(timeout, timeout.period);
+				}
+		}
+		return expired.size();
+	}
+
+	/**
+	 * Unlinks every {@link Timeout} in bucket <b>index</b> due by tick
+	 * <b>upTo</b>, adding them to <b>expired</b>.
+	 */
+	private List<Timeout> collect(int index, long upTo, List<Timeout> expired) {
+		Timeout timeout = buckets[index];
+		while (timeout != null) {
+			Timeout next = timeout.next;
+			if (timeout.deadline <= upTo) {
+				unlink(timeout);
+				if (expired == null)
+					expired = new ArrayList<Timeout>();
+				expired.add(timeout);
+			}
+			timeout = next;
+		}
+		return expired;
+	}
+
+	/**
+	 * @return How many {@link Timeout}s are currently waiting.
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * @return {@link #tickDuration}.
+	 */
+	public long getTickDuration() {
+		return tickDuration;
+	}
+
+	/**
+	 * Something to run when a {@link Timeout} expires.
+	 */
+	public static interface TimeoutTask {
+		/**
+		 * @param timeout
+		 *            The {@link Timeout} that expired.
+		 */
+		public void run(Timeout timeout);
+	}
+
+	/**
+	 * A single scheduled {@link TimeoutTask}.
+	 */
+	public class Timeout {
+		private final TimeoutTask task;
+		private final long period;
+		private long deadline;
+		private int bucket = -1;
+		private Timeout prev = null, next = null;
+		private volatile boolean cancelled = false;
+
+		private Timeout(TimeoutTask task, long period) {
+			this.task = task;
+			this.period = period;
+		}
+
+		/**
+		 * Stops this {@link Timeout} from running (again).
+		 */
+		public void cancel() {
+			cancelled = true;
+			synchronized (TimingWheel.this) {
+				unlink(this);
+			}
+		}
+
+		/**
+		 * @return Whether or not {@link #cancel()} was called.
+		 */
+		public boolean isCancelled() {
+			return cancelled;
+		}
+
+		/**
+		 * Runs this {@link Timeout} again, <b>delay</b> milliseconds from the
+		 * current tick. Can be called from inside its own {@link TimeoutTask}.
+		 */
+		public void reschedule(long delay) {
+			synchronized (TimingWheel.this) {
+				if (cancelled)
+					return;
+				unlink(this);
+				insert(this, delay);
+			}
+		}
+	}
+}
@@ -0,0 +1,339 @@
+package com.github.vegeto079.ngcommontools.networking;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Random;
+
+import com.github.vegeto079.ngcommontools.main.VirtualClock;
+
+/**
+ * Runs {@link Server}s, {@link Client}s and {@link P2PNetwork}s together in
+ * one process, in virtual time, without any sockets or threads of their own.
+ * Meant for tests: hours of play run in seconds, and the same run always
+ * happens the same way, so a failure can be run again until it's found.<br>
+ * <br>
+ * Everything {@link #attach(Server, String)}ed or
+ * {@link #attach(Client, String)}ed uses our {@link VirtualClock} and
+ * {@link VirtualScheduler}, and nothing happens until {@link #runFor(long)} or
+ * {@link #runUntil(long)}. A {@link Client} connecting to a host and port
+ * reaches whichever {@link Server} was attached there, if it is accepting
+ * {@link Client}s. Each line a {@link Client} sends is handled by its
+ * {@link Server.Handler} straight away (see
+ * {@link Server.Handler#handle(String)}), and the reply is waiting to be read
+ * when it returns, just as the {@link Client} expects.<br>
+ * <br>
+ * Anything handed to a {@link MessageDispatcher} or a real thread still runs
+ * in real time, and isn't covered.
+ *
+ * @author Nathan
+ * @version 1.0: Started tracking version.
+ */
+public class VirtualNetwork {
+	/**
+	 * The time everything attached runs in.
+	 */
+	protected final VirtualClock clock;
+	/**
+	 * Runs everything attached, in {@link #clock}'s time.
+	 */
+	protected final VirtualScheduler scheduler;
+	/**
+	 * Seeds each attached {@link Client}'s {@link Client#backoffRandom}.
+	 */
+	protected final Random random;
+	/**
+	 * Attached {@link Server}s, by host and port (as <i>host:port</i>).
+	 */
+	protected final Map<String, Server> servers = new HashMap<String, Server>();
+	/**
+	 * The host of everything attached.
+	 */
+	protected final Map<Object, String> hosts = new IdentityHashMap<Object, String>();
+
+	/**
+	 * Initiates {@link VirtualNetwork} at time 0, with a seed of 0.
+	 */
+	public VirtualNetwork() {
+		this(0, 0);
+	}
+
+	/**
+	 * Initiates {@link VirtualNetwork}.
+	 *
+	 * @param startMillis
+	 *            The time we start at.
+	 * @param seed
+	 *            Seeds anything random in the attached {@link Client}s, so runs
+	 *            with the same seed are the same.
+	 */
+	public VirtualNetwork(long startMillis, long seed) {
+		clock = new VirtualClock(startMillis);
+		scheduler = new VirtualScheduler(clock);
+		random = new Random(seed);
+	}
+
+	/**
+	 * Runs <b>server</b> on this {@link VirtualNetwork} at <b>host</b> and its
+	 * {@link Server#getPort()}. Must be done before it starts accepting
+	 * {@link Client}s.
+	 */
+	public synchronized void attach(Server server, String host) {
+		server.setClock(clock);
+		server.setScheduler(scheduler);
+		server.virtualNetwork = this;
+		servers.put(host + ":" + server.getPort(), server);
+		hosts.put(server, host);
+	}
+
+	/**
+	 * Runs <b>client</b> on this {@link VirtualNetwork} from <b>host</b> (what
+	 * its {@link Server.Handler#getIP()} will be). Must be done before it
+	 * connects.
+	 */
+	public synchronized void attach(Client client, String host) {
+		client.setClock(clock);
+		client.setScheduler(scheduler);
+		client.virtualNetwork = this;
+		client.backoffRandom = new Random(random.nextLong());
+		hosts.put(client, host);
+	}
+
+	/**
+	 * @return The host <b>attached</b> was attached at, or <b>null</b> if it
+	 *         wasn't.
+	 */
+	public synchronized String getHost(Object attached) {
+		return hosts.get(attached);
+	}
+
+	/**
+	 * Connects <b>client</b> to the {@link Server} attached at <b>ip</b> and
+	 * <b>port</b>. Used by {@link Client} instead of opening a socket.
+	 *
+	 * @return The {@link Link} to talk to it over, or <b>null</b> if nobody
+	 *         there is accepting {@link Client}s.
+	 */
+	protected Link connect(Client client, String ip, int port) {
+		Server server;
+		synchronized (this) {
+			server = servers.get(ip + ":" + port);
+		}
+		if (server == null)
+			return null;
+		Pipe toServer = new Pipe(), toClient = new Pipe();
+		Server.Handler handler = server.addVirtualClient(new PipeReader(toServer),
+				new PrintWriter(new PipeWriter(toClient), true), getHost(client));
+		if (handler == null)
+			return null;
+		toServer.receiver = handler;
+		return new Link(new PipeReader(toClient), new PrintWriter(new PipeWriter(toServer)));
+	}
+
+	/**
+	 * Runs everything attached for <b>millis</b> milliseconds of virtual time.
+	 *
+	 * @see VirtualScheduler#runFor(long)
+	 */
+	public void runFor(long millis) {
+		scheduler.runFor(millis);
+	}
+
+	/**
+	 * Runs everything attached up to the virtual time <b>millis</b>.
+	 *
+	 * @see VirtualScheduler#runUntil(long)
+	 */
+	public void runUntil(long millis) {
+		scheduler.runUntil(millis);
+	}
+
+	/**
+	 * @return {@link #clock}.
+	 */
+	public VirtualClock getClock() {
+		return clock;
+	}
+
+	/**
+	 * @return {@link #scheduler}.
+	 */
+	public VirtualScheduler getScheduler() {
+		return scheduler;
+	}
+
+	/**
+	 * What a {@link Client} talks to its {@link Server} over.
+	 */
+	protected static class Link {
+		protected final BufferedReader in;
+		protected final PrintWriter out;
+
+		protected Link(BufferedReader in, PrintWriter out) {
+			this.in = in;
+			this.out = out;
+		}
+	}
+
+	/**
+	 * Lines going one way between a {@link Client} and its {@link Server}. If
+	 * {@link #receiver} is set, each line is handed to it as soon as it arrives
+	 * instead of waiting to be read.
+	 */
+	protected static class Pipe {
+		protected final LinkedList<String> lines = new LinkedList<String>();
+		protected boolean closed = false;
+		protected Server.Handler receiver = null;
+		/**
+		 * Whether or not {@link #receiver} is being handed lines, so lines it
+		 * causes to arrive wait their turn.
+		 */
+		private boolean delivering = false;
+
+		protected void push(String line) {
+			synchronized (this) {
+				if (closed)
+					return;
+				lines.add(line);
+			}
+			deliver();
+		}
+
+		protected void close() {
+			synchronized (this) {
+				if (closed)
+					return;
+				closed = true;
+			}
+			deliver();
+		}
+
+		/**
+		 * @return The next line, <b>null</b> if closed and there are no more.
+		 * @throws IOException
+		 *             If there isn't one yet.
+		 */
+		protected synchronized String take() throws IOException {
+			if (!lines.isEmpty())
+				return lines.poll();
+			if (closed)
+				return null;
+			throw new IOException("Nothing to read yet.");
+		}
+
+		protected synchronized boolean ready() {
+			return !lines.isEmpty();
+		}
+
+		/**
+		 * Closes this {@link Pipe} from the reading end: nothing more is read or
+		 * handed to {@link #receiver}.
+		 */
+		protected synchronized void closeReader() {
+			closed = true;
+			lines.clear();
+			receiver = null;
+		}
+
+		private void deliver() {
+			synchronized (this) {
+				if (receiver == null || delivering)
+					return;
+				delivering = true;
+			}
+			try {
+				while (true) {
+					Server.Handler handler;
+					String line;
+					synchronized (this) {
+						handler = receiver;
+						if (handler == null || (lines.isEmpty() && !closed))
+							break;
+						line = lines.poll();
+						if (line == null)
+							// Handing over that we closed, nothing more after it
+							receiver = null;
+					}
+					handler.handle(line);
+				}
+			} finally {
+				synchronized (this) {
+					delivering = false;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads a {@link Pipe} a line at a time.
+	 */
+	protected static class PipeReader extends BufferedReader {
+		protected final Pipe pipe;
+
+		protected PipeReader(Pipe pipe) {
+			super(new StringReader(""));
+			this.pipe = pipe;
+		}
+
+		@Override
+		public String readLine() throws IOException {
+			return pipe.take();
+		}
+
+		@Override
+		public boolean ready() {
+			return pipe.ready();
+		}
+
+		@Override
+		public void close() {
+			pipe.closeReader();
+		}
+	}
+
+	/**
+	 * Writes to a {@link Pipe}, each line arriving when flushed.
+	 */
+	protected static class PipeWriter extends Writer {
+		protected final Pipe pipe;
+		protected final StringBuilder pending = new StringBuilder();
+
+		protected PipeWriter(Pipe pipe) {
+			this.pipe = pipe;
+		}
+
+		@Override
+		public void write(char[] chars, int offset, int length) {
+			synchronized (pending) {
+				pending.append(chars, offset, length);
+			}
+		}
+
+		@Override
+		public void flush() {
+			while (true) {
+				String line;
+				synchronized (pending) {
+					int end = pending.indexOf("\n");
+					if (end == -1)
+						return;
+					line = pending.substring(0, end > 0 && pending.charAt(end - 1) == '\r' ? end - 1 : end);
+					pending.delete(0, end + 1);
+				}
+				pipe.push(line);
+			}
+		}
+
+		@Override
+		public void close() {
+			flush();
+			pipe.close();
+		}
+	}
+}
@@ -0,0 +1,262 @@
+package com.github.vegeto079.ngcommontools.networking;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.github.vegeto079.ngcommontools.main.VirtualClock;
+
+/**
+ * A {@link NetworkScheduler} that runs work in the time of a
+ * {@link VirtualClock}, on whichever thread calls {@link #runUntil(long)},
+ * instead of on a pool of threads in real time.<br>
+ * <br>
+ * Nothing runs until {@link #runUntil(long)} or {@link #runFor(long)} is
+ * called. Work then runs in the order it is due (work due at the same time in
+ * the order it was scheduled), with the clock moved on to when each is due.
+ * The same work scheduled the same way always runs the same way, and an hour of
+ * scheduled work takes only as long as the work itself.<br>
+ * <br>
+ * It becomes its clock's {@link VirtualClock.Driver}, so work that sleeps on the
+ * clock lets everything due meanwhile run first.
+ *
+ * @author Nathan
+ * @version 1.0: Started tracking version.
+ * @version 1.01: Waiting on scheduled work runs everything due until it's
+ *          done, instead of throwing.
+ */
+public class VirtualScheduler extends NetworkScheduler implements VirtualClock.Driver {
+	/**
+	 * The time work runs in.
+	 */
+	protected final VirtualClock clock;
+	/**
+	 * Work waiting to run, soonest first.
+	 */
+	protected final PriorityQueue<Task> tasks = new PriorityQueue<Task>();
+	/**
+	 * How many {@link Task}s have been scheduled, to keep those due at the same
+	 * time in order.
+	 */
+	protected long scheduled = 0;
+
+	/**
+	 * Initiates {@link VirtualScheduler} on <b>clock</b>, and sets itself as its
+	 * {@link VirtualClock.Driver}.
+	 */
+	public VirtualScheduler(VirtualClock clock) {
+		this.clock = clock;
+		clock.setDriver(this);
+	}
+
+	@Override
+	public synchronized ScheduledFuture<?> scheduleAtFixedRate(Runnable work, long initialDelay, long period) {
+		Task task = new Task(work, clock.currentTimeMillis() + Math.max(0, initialDelay), Math.max(1, period));
+		tasks.add(task);
+		return task;
+	}
+
+	@Override
+	public synchronized ScheduledFuture<?> schedule(Runnable work, long delay) {
+		Task task = new Task(work, clock.currentTimeMillis() + Math.max(0, delay), 0);
+		tasks.add(task);
+		return task;
+	}
+
+	/**
+	 * Runs everything due up to <b>millis</b>, in order, moving the clock on to
+	 * when each is due, then leaves the clock at <b>millis</b>. Work may
+	 * schedule more work, or sleep on the clock (which runs this again, up to
+	 * when it wakes).
+	 *
+	 * @throws RuntimeException
+	 *             Anything thrown by the work, after which it won't run again.
+	 */
+	public void runUntil(long millis) {
+		while (true) {
+			Task task;
+			synchronized (this) {
+				task = tasks.peek();
+				if (task == null || task.time > millis)
+					break;
+				tasks.poll();
+			}
+			clock.advanceTo(task.time);
+			try {
+				task.work.run();
+			} catch (RuntimeException e) {
+				task.failure = e;
+				task.cancelled = true;
+				throw e;
+			}
+			synchronized (this) {
+				if (task.period > 0 && !task.cancelled) {
+					task.time += task.period;
+					task.order = scheduled++;
+					tasks.add(task);
+				} else
+					task.done = true;
+			}
+		}
+		clock.advanceTo(millis);
+	}
+
+	/**
+	 * Runs everything due in the next <b>millis</b> milliseconds. See
+	 * {@link #runUntil(long)}.
+	 */
+	public void runFor(long millis) {
+		runUntil(clock.currentTimeMillis() + millis);
+	}
+
+	/**
+	 * @return When the next piece of work is due, or -1 if none is waiting.
+	 */
+	protected synchronized long getNextTime() {
+		Task task = tasks.peek();
+		return task == null ? -1 : task.time;
+	}
+
+	/**
+	 * @return How many pieces of work are waiting to run.
+	 */
+	public synchronized int getTaskAmt() {
+		return tasks.size();
+	}
+
+	/**
+	 * @return {@link #clock}.
+	 */
+	public VirtualClock getClock() {
+		return clock;
+	}
+
+	/**
+	 * Always <b>true</b>: work runs on the thread calling {@link #runUntil(long)}.
+	 */
+	@Override
+	public boolean isVirtual() {
+		return true;
+	}
+
+	/**
+	 * Throws away all waiting work.
+	 */
+	@Override
+	public synchronized void shutdown() {
+		tasks.clear();
+	}
+
+	/**
+	 * A single piece of scheduled work.
+	 */
+	protected class Task implements ScheduledFuture<Object> {
+		protected final Runnable work;
+		protected final long period;
+		protected long time;
+		protected long order;
+		protected volatile boolean cancelled = false;
+		protected volatile boolean done = false;
+		/**
+		 * What the work threw, if it did.
+		 */
+		protected volatile RuntimeException failure = null;
+
+		protected Task(Runnable work, long time, long period) {
+			this.work = work;
+			this.time = time;
+			this.period = period;
+			order = scheduled++;
+		}
+
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(time - clock.currentTimeMillis(), TimeUnit.MILLISECONDS);
+		}
+
+		public int compareTo(Delayed other) {
+			if (other instanceof Task) {
+				Task task = (Task) other;
+				if (time != task.time)
+					return time < task.time ? -1 : 1;
+				return order < task.order ? -1 : order == task.order ? 0 : 1;
+			}
+			long difference = getDelay(TimeUnit.MILLISECONDS) - other.getDelay(TimeUnit.MILLISECONDS);
+			return difference < 0 ? -1 : difference == 0 ? 0 : 1;
+		}
+
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			synchronized (VirtualScheduler.this) {
+				if (done || cancelled)
+					return false;
+				cancelled = true;
+				tasks.remove(this);
+				return true;
+			}
+		}
+
+		public boolean isCancelled() {
+			return cancelled;
+		}
+
+		public boolean isDone() {
+			return done || cancelled;
+		}
+
+		/**
+		 * Runs everything due, in order, until this is done, as
+		 * {@link #runUntil(long)} would on this thread. Work repeating at a fixed
+		 * rate is only done once cancelled.
+		 *
+		 * @return <b>null</b>.
+		 */
+		public Object get() throws ExecutionException {
+			return get(Long.MAX_VALUE);
+		}
+
+		/**
+		 * Runs everything due, in order, until this is done or <b>timeout</b>
+		 * has passed on {@link #clock}, as {@link #runUntil(long)} would on this
+		 * thread.
+		 *
+		 * @return <b>null</b>.
+		 */
+		public Object get(long timeout, TimeUnit unit) throws ExecutionException, TimeoutException {
+			long millis = unit.toMillis(timeout);
+			long now = clock.currentTimeMillis();
+			Object result = get(millis >= Long.MAX_VALUE - now ? Long.MAX_VALUE : now + Math.max(0, millis));
+			if (!isDone())
+				throw new TimeoutException("Work not done after " + millis + "ms");
+			return result;
+		}
+
+		/**
+		 * Runs everything due up to <b>deadline</b>, one time at a time, until
+		 * this is done.
+		 */
+		private Object get(long deadline) throws ExecutionException {
+			while (!isDone()) {
+				long next = getNextTime();
+				if (next == -1 || next > deadline) {
+					if (deadline != Long.MAX_VALUE)
+						runUntil(deadline);
+					break;
+				}
+				try {
+					runUntil(next);
+				} catch (RuntimeException e) {
+					if (e != failure)
+						throw e;
+				}
+			}
+			if (failure != null)
+				throw new ExecutionException(failure);
+			if (cancelled)
+				throw new CancellationException();
+			return null;
+		}
+	}
+}